@@ -1,6 +1,7 @@
 package org.ogerardin.b2b;
 
 import lombok.Data;
+import org.ogerardin.b2b.batch.jobs.ChangeDetectionMode;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
@@ -13,12 +14,120 @@ public class B2BProperties {
     // Debug properties
     //
 
-    /** Delay between files */
-    long fileThrottleDelay = 1000;
-
     /** Automatically restart full backup job when finished */
     boolean continuousBackup = true;
 
     /** Pause between backup jobs */
     long pauseAfterBackup = 30 * 60 * 1000;
+
+    //
+    // Performance properties
+    //
+
+    /** Number of files per chunk in the step that filters unchanged files; stored versions are looked up
+     * for a whole chunk at once */
+    int filterChunkSize = 100;
+
+    /** How to detect files that have changed since they were last stored */
+    ChangeDetectionMode changeDetection = ChangeDetectionMode.METADATA;
+
+    /** When using metadata-based change detection, interval between backups that hash the contents of all files
+     * regardless of metadata ("deep verify"); 0 to disable */
+    long deepVerifyInterval = 7 * 24 * 60 * 60 * 1000L;
+
+    /** Number of threads used to walk the source directory tree; 1 for a single-threaded walk */
+    int scanParallelism = 8;
+
+    /** Use a single step that walks, filters and stores files concurrently, instead of listing all files, then
+     * filtering them, then storing them; memory use is bounded and storing starts immediately */
+    boolean streamingBackup = false;
+
+    /** In streaming mode, maximum number of files found by the walk but not yet filtered */
+    int streamingQueueSize = 10000;
+
+    /** Maximum total size of the files stored in a single chunk; a chunk is completed before a file that would take it
+     * over this size, so a file larger than this forms a chunk on its own */
+    long storeChunkBytes = 64 * 1024 * 1024;
+
+    /** Maximum number of files stored in a single chunk */
+    int storeChunkFiles = 500;
+
+    /** Maximum number of files stored concurrently into the internal storage; 1 to store files one at a time */
+    int storeConcurrency = 4;
+
+    /** Adapt the number of files stored concurrently to the observed throughput, up to storeConcurrency; if false,
+     * storeConcurrency files are always stored concurrently */
+    boolean adaptiveStoreConcurrency = true;
+
+    /** Files smaller than this are stored in packs, i.e. grouped into a single GridFS file, instead of one GridFS file
+     * each; 0 to disable packing */
+    long packThreshold = 64 * 1024;
+
+    /** Size of the packs of small files */
+    long packSize = 8 * 1024 * 1024;
+
+    /** How long packed versions superseded by a newer version are kept before being reclaimed by the background
+     * repack that follows each backup; 0 to keep all versions */
+    long packedVersionRetention = 0;
+
+    /** Files at least this large are stored as binary deltas against their previous version, which is much smaller
+     * for files modified in place or appended to (databases, mailboxes, logs); 0 to always store files in full */
+    long deltaThreshold = 0;
+
+    /** Maximum number of deltas to apply to reconstruct a version; every that many versions, a file is stored in
+     * full, which bounds the cost of reading a version */
+    int maxDeltaChainLength = 10;
+
+    /** Codec used to compress stored contents ("deflate-fast" or "deflate"); empty to store contents uncompressed */
+    String compressionCodec = "deflate-fast";
+
+    /** Contents are only compressed if a sample of their beginning compresses to less than this fraction of its size;
+     * already compressed contents (JPEG, zip, video...) are stored as is */
+    double maxCompressionRatio = 0.9;
+
+    /** With chunked storage, minimum size of the content-defined chunks files are split into */
+    int minChunkSize = 256 * 1024;
+
+    /** With chunked storage, target average size of the chunks; must be a power of 2 */
+    int averageChunkSize = 1024 * 1024;
+
+    /** With chunked storage, maximum size of the chunks */
+    int maxChunkSize = 4 * 1024 * 1024;
+
+    /** File holding the persistent cache of file hashes; empty to keep the cache in memory only */
+    String hashCacheFile = "hash-cache.bin";
+
+    /** Maximum number of entries in the hash cache (each entry takes 64 bytes) */
+    long hashCacheEntries = 4 * 1024 * 1024;
+
+    //
+    // Peer properties
+    //
+
+    /** File holding the ID of this computer, generated on first start, which peers know this computer by */
+    String computerIdFile = "computer-id";
+
+    /** Port on which files sent by peer instances are received; 0 to not receive files from peers */
+    int peerReceiverPort = 0;
+
+    /** Number of threads that store the files received from peers, whatever the number of peers */
+    int peerReceiverThreads = 8;
+
+    /** Maximum number of files a peer may send concurrently over its connection */
+    int peerMaxStreams = 16;
+
+    /** Maximum number of bytes of a file that a peer may send ahead of what has been stored; the peer is held back
+     * when storing falls behind */
+    int peerStreamWindow = 1024 * 1024;
+
+    /** Files received from peers that are at least this large are staged on disk until they are complete, so that an
+     * interrupted transfer can be resumed from the last block received; 0 to always store files as they are received */
+    long peerStagingThreshold = 64 * 1024 * 1024;
+
+    /** Directory holding the files being staged */
+    String peerStagingDirectory = "peer-staging";
+
+    /** Compress the files sent to peers on the wire, with a codec chosen for each file according to its
+     * compressibility and to the measured throughput of the link (compressible files are sent as is over a fast link) */
+    boolean peerCompression = true;
 }
@@ -1,6 +1,7 @@
 package org.ogerardin.b2b.api;
 
 import org.ogerardin.b2b.Main;
+import org.ogerardin.b2b.peer.InstanceIdentity;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.ExitCodeGenerator;
 import org.springframework.boot.SpringApplication;
@@ -16,6 +17,9 @@ public class RestAppController {
     @Autowired
     private ApplicationContext appContext;
 
+    @Autowired
+    private InstanceIdentity instanceIdentity;
+
     @GetMapping("/version")
     String version() {
         // retrieve version information from MANIFEST.MF
@@ -23,6 +27,14 @@ public class RestAppController {
         return (implementationVersion != null) ? implementationVersion : "unknown";
     }
 
+    /**
+     * Returns the ID of this computer, to be paired with the peers it sends files to.
+     */
+    @GetMapping("/computer-id")
+    String computerId() {
+        return instanceIdentity.getComputerId().toString();
+    }
+
     @GetMapping("/shutdown")
     void shutdown() {
         SpringApplication.exit(appContext, (ExitCodeGenerator) () -> 1);
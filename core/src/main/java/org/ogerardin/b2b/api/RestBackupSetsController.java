@@ -6,10 +6,13 @@ import org.ogerardin.b2b.storage.StorageFileVersionNotFoundException;
 import org.ogerardin.b2b.storage.StorageService;
 import org.ogerardin.b2b.storage.StorageServiceFactory;
 import org.ogerardin.b2b.storage.FileVersion;
+import org.ogerardin.b2b.throttle.ThrottleRegistry;
+import org.ogerardin.b2b.throttle.ThrottleSettings;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -25,10 +28,13 @@ public class RestBackupSetsController {
 
     private final StorageServiceFactory storageServiceFactory;
 
+    private final ThrottleRegistry throttleRegistry;
+
     @Autowired
-    public RestBackupSetsController(BackupSetRepository backupSetRepository, @Qualifier("gridFsStorageServiceFactory") StorageServiceFactory storageServiceFactory) {
+    public RestBackupSetsController(BackupSetRepository backupSetRepository, @Qualifier("gridFsStorageServiceFactory") StorageServiceFactory storageServiceFactory, ThrottleRegistry throttleRegistry) {
         this.backupSetRepository = backupSetRepository;
         this.storageServiceFactory = storageServiceFactory;
+        this.throttleRegistry = throttleRegistry;
     }
 
     @GetMapping
@@ -43,6 +49,24 @@ public class RestBackupSetsController {
         return backupSetRepository.findOne(id);
     }
 
+    @GetMapping("/{id}/throttle")
+    public ThrottleSettings getThrottle(@PathVariable String id) {
+        BackupSet backupSet = backupSetRepository.findOne(id);
+        return backupSet.getThrottleSettings();
+    }
+
+    /**
+     * Changes the throttling settings of a backup set. The new settings are persisted, and apply immediately to the
+     * running job if any.
+     */
+    @PutMapping(value = "/{id}/throttle", consumes = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public void setThrottle(@PathVariable String id, @RequestBody ThrottleSettings settings) {
+        BackupSet backupSet = backupSetRepository.findOne(id);
+        backupSet.setThrottleSettings(settings);
+        backupSetRepository.save(backupSet);
+        throttleRegistry.update(id, settings);
+    }
+
     @GetMapping("/{id}/files")
     public Path[] getFiles(@PathVariable String id) {
         BackupSet backupSet = backupSetRepository.findOne(id);
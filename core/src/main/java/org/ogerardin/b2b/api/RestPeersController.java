@@ -0,0 +1,55 @@
+package org.ogerardin.b2b.api;
+
+import org.ogerardin.b2b.domain.PairedPeer;
+import org.ogerardin.b2b.domain.mongorepository.PairedPeerRepository;
+import org.ogerardin.b2b.peer.PeerAuthentication;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Manages the computers paired with this instance, i.e. allowed to send it files as peers.
+ */
+@RestController
+@RequestMapping("/api/peers")
+public class RestPeersController {
+
+    private final PairedPeerRepository pairedPeerRepository;
+
+    @Autowired
+    public RestPeersController(PairedPeerRepository pairedPeerRepository) {
+        this.pairedPeerRepository = pairedPeerRepository;
+    }
+
+    @GetMapping
+    // we return an array (and not a List) to make item type accessible to JSON serialization
+    public PairedPeer[] getAll() {
+        List<PairedPeer> peers = pairedPeerRepository.findAll();
+        return peers.toArray(new PairedPeer[0]);
+    }
+
+    /**
+     * Pairs a computer with this instance, replacing the previous pairing of the same computer if any.
+     * @return the secret shared with the computer, to be set in its peer target; it can't be retrieved afterwards
+     */
+    @PostMapping(consumes = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public String pair(@RequestBody PairedPeer peer) {
+        // normalize the ID, and reject anything that isn't one
+        peer.setComputerId(UUID.fromString(peer.getComputerId()).toString());
+        String secret = PeerAuthentication.newSecret();
+        peer.setSecret(secret);
+        peer.setPairedTime(Instant.now());
+        pairedPeerRepository.save(peer);
+        return secret;
+    }
+
+    @DeleteMapping("/{computerId}")
+    public void unpair(@PathVariable String computerId) {
+        pairedPeerRepository.delete(computerId);
+    }
+
+}
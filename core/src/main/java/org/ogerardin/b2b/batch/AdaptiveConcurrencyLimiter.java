@@ -0,0 +1,121 @@
+package org.ogerardin.b2b.batch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of concurrent operations (e.g. file uploads) to a value between 1 and a maximum.
+ *
+ * If adaptive, the limit is adjusted by hill climbing on the observed throughput: the number of bytes processed by
+ * completed operations is measured over successive windows, and after each window the limit is moved one step in the
+ * same direction if throughput improved, or in the opposite direction if it didn't. The limit starts at 1, so that
+ * a target that doesn't benefit from concurrency (e.g. a single spinning disk) isn't flooded.
+ * If not adaptive, the limit is fixed to the maximum.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final Log logger = LogFactory.getLog(AdaptiveConcurrencyLimiter.class);
+
+    /** Minimum duration of a measurement window */
+    private static final long WINDOW_NANOS = 2_000_000_000L;
+
+    /** Relative throughput change under which two windows are considered equivalent */
+    private static final double TOLERANCE = 0.05;
+
+    private final int maxLimit;
+    private final boolean adaptive;
+    private final LongSupplier nanoClock;
+
+    private int limit;
+    private int inUse = 0;
+
+    // current measurement window
+    private long windowStart;
+    private long windowBytes = 0;
+    private int windowCompletions = 0;
+
+    private double previousThroughput = -1;
+    private int direction = 1;
+
+    public AdaptiveConcurrencyLimiter(int maxLimit, boolean adaptive) {
+        this(maxLimit, adaptive, System::nanoTime);
+    }
+
+    AdaptiveConcurrencyLimiter(int maxLimit, boolean adaptive, LongSupplier nanoClock) {
+        if (maxLimit < 1) {
+            throw new IllegalArgumentException("Maximum concurrency must be at least 1: " + maxLimit);
+        }
+        this.maxLimit = maxLimit;
+        this.adaptive = adaptive;
+        this.nanoClock = nanoClock;
+        this.limit = adaptive ? 1 : maxLimit;
+        this.windowStart = nanoClock.getAsLong();
+    }
+
+    /**
+     * Waits until fewer than the current limit of operations are running, and registers a new operation.
+     * Every call must be followed by a call to {@link #release(long)}.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inUse >= limit) {
+            wait();
+        }
+        inUse++;
+    }
+
+    /**
+     * Registers the completion of an operation.
+     * @param bytes number of bytes processed by the operation, used to measure throughput
+     */
+    public synchronized void release(long bytes) {
+        inUse--;
+        windowBytes += bytes;
+        windowCompletions++;
+        if (adaptive) {
+            adjust();
+        }
+        notifyAll();
+    }
+
+    private void adjust() {
+        long now = nanoClock.getAsLong();
+        long elapsed = now - windowStart;
+        // wait for enough completions to be representative of the current limit
+        if (elapsed < WINDOW_NANOS || windowCompletions < limit) {
+            return;
+        }
+        double throughput = windowBytes * 1e9 / elapsed;
+        if (previousThroughput >= 0 && throughput < previousThroughput * (1 - TOLERANCE)) {
+            // last move made things worse: go back
+            direction = -direction;
+        }
+        else if (previousThroughput >= 0 && throughput < previousThroughput * (1 + TOLERANCE)) {
+            // no significant change: prefer the lower limit
+            direction = -1;
+        }
+        int newLimit = Math.max(1, Math.min(maxLimit, limit + direction));
+        if (newLimit == limit) {
+            // at a bound: probe in the other direction next time
+            direction = -direction;
+        }
+        else {
+            logger.debug(String.format("Throughput %.0f bytes/s with %d concurrent operations, new limit %d",
+                    throughput, limit, newLimit));
+        }
+        limit = newLimit;
+        previousThroughput = throughput;
+        windowStart = now;
+        windowBytes = 0;
+        windowCompletions = 0;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+}
@@ -0,0 +1,22 @@
+package org.ogerardin.b2b.batch;
+
+import org.springframework.batch.item.ItemWriter;
+
+import javax.validation.constraints.NotNull;
+import java.util.Collection;
+import java.util.List;
+
+public class CollectionItemWriter<T> implements ItemWriter<T> {
+
+    private final Collection<T> collection;
+
+    public CollectionItemWriter(@NotNull Collection<T> collection) {
+        this.collection = collection;
+    }
+
+    @Override
+    public void write(List<? extends T> items) throws Exception {
+        collection.addAll(items);
+    }
+
+}
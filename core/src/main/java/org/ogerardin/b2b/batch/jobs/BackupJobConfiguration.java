@@ -1,5 +1,6 @@
 package org.ogerardin.b2b.batch.jobs;
 
+import org.ogerardin.b2b.B2BProperties;
 import org.ogerardin.b2b.batch.StaticJobParameterValidator;
 import org.springframework.batch.core.JobParametersValidator;
 import org.springframework.batch.core.Step;
@@ -25,6 +26,9 @@ public abstract class BackupJobConfiguration {
     @Autowired
     protected StepBuilderFactory stepBuilderFactory;
 
+    @Autowired
+    protected B2BProperties properties;
+
     private List<JobParametersValidator> validators = new ArrayList<>();
 
     protected BackupJobConfiguration() {
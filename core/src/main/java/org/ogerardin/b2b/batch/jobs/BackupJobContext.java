@@ -2,9 +2,6 @@ package org.ogerardin.b2b.batch.jobs;
 
 import lombok.Data;
 
-import java.util.HashSet;
-import java.util.Set;
-
 /**
  * Holds the context of a running backup job.
  */
@@ -13,18 +10,45 @@ public class BackupJobContext {
 
     private final String backupSetId;
 
-    // these fields are populated by the ListFilesTasklet (step 1)
-    private Set<FileInfo> allFiles = new HashSet<>();
-    private long totalSize = 0;
+    // these fields are populated by the ListFilesTasklet (step 1); in streaming mode allFiles is not used, and
+    // the counters are updated as files are read
+    private FileTable allFiles = new FileTable();
+    private volatile long fileCount = 0;
+    private volatile long totalSize = 0;
+
+    // this field is populated by the ItemlWriter of step 2 (not used in streaming mode)
+    private FileTable changedFiles = new FileTable();
 
-    // this field is populated by the ItemlWriter of step 2
-    private Set<FileInfo> changedFiles = new HashSet<>();
+    // updated by the FilteringItemWriter as changed files are found
+    private volatile long changedCount = 0;
+    private volatile long changedSize = 0;
 
+    // updated by the InternalStorageItemWriter as files are stored
+    private volatile long storedCount = 0;
+    private volatile long storedSize = 0;
 
-    private long changedSize = 0;
+    // set at the beginning of the job if all files must be checked by content regardless of their metadata
+    private boolean deepVerify = false;
 
     public BackupJobContext(String backupSetId) {
         this.backupSetId = backupSetId;
     }
 
+    // The following methods update the counters atomically, for steps that process items concurrently
+
+    public synchronized void addFile(long size) {
+        fileCount++;
+        totalSize += size;
+    }
+
+    public synchronized void addChangedFile(long size) {
+        changedCount++;
+        changedSize += size;
+    }
+
+    public synchronized void addStoredFile(long size) {
+        storedCount++;
+        storedSize += size;
+    }
+
 }
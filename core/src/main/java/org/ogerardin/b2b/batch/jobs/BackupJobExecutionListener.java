@@ -43,12 +43,36 @@ public class BackupJobExecutionListener extends BackupSetAwareBean implements Jo
     @Autowired
     private AsyncTaskExecutor asyncTaskExecutor;
 
+    @Autowired
+    private BackupJobContext backupJobContext;
+
     @Override
     public void beforeJob(JobExecution jobExecution) {
 //        logger.debug("beforeJob, jobExecution=" + jobExecution);
         BackupSet backupSet = getBackupSet();
-        backupSet.setCurrentBackupStartTime(jobExecution.getStartTime().toInstant());
+        Instant startTime = jobExecution.getStartTime().toInstant();
+        backupSet.setCurrentBackupStartTime(startTime);
         backupSetRepository.save(backupSet);
+
+        if (isDeepVerifyDue(backupSet, startTime)) {
+            logger.info("Deep verify: all files will be checked by content");
+            backupJobContext.setDeepVerify(true);
+        }
+    }
+
+    /**
+     * Returns true if metadata-based change detection is in use and the last deep verify (if any) is older
+     * than the configured interval.
+     */
+    private boolean isDeepVerifyDue(BackupSet backupSet, Instant now) {
+        if (properties == null
+                || properties.getChangeDetection() != ChangeDetectionMode.METADATA
+                || properties.getDeepVerifyInterval() <= 0) {
+            return false;
+        }
+        Instant lastDeepVerifyTime = backupSet.getLastDeepVerifyTime();
+        return lastDeepVerifyTime == null
+                || lastDeepVerifyTime.plusMillis(properties.getDeepVerifyInterval()).isBefore(now);
     }
 
     @Override
@@ -57,6 +81,9 @@ public class BackupJobExecutionListener extends BackupSetAwareBean implements Jo
         BackupSet backupSet = getBackupSet();
         Instant completeTime = jobExecution.getEndTime().toInstant();
         backupSet.setLastBackupCompleteTime(completeTime);
+        if (backupJobContext.isDeepVerify() && jobExecution.getStatus() == BatchStatus.COMPLETED) {
+            backupSet.setLastDeepVerifyTime(completeTime);
+        }
 
         if (properties != null && properties.isContinuousBackup()) {
             // Pause and schedule a job restart. This is done asynchronously because
@@ -10,7 +10,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 /**
- * A {@link StepExecutionListener} that updates the backupSet status
+ * A {@link StepExecutionListener} that updates the backupSet status, and the file count and size collected in the job
+ * context.
  */
 @Component
 @JobScope
@@ -23,6 +24,7 @@ public class BackupStepExecutionListener extends BackupSetAwareBean implements S
     public void beforeStep(StepExecution stepExecution) {
         BackupSet backupSet = getBackupSet();
         backupSet.setStatus("Backing up");
+        backupSetRepository.save(backupSet);
     }
 
     @Override
@@ -31,6 +33,8 @@ public class BackupStepExecutionListener extends BackupSetAwareBean implements S
         if (exitCode.equals(ExitStatus.COMPLETED.getExitCode())) {
             BackupSet backupSet = getBackupSet();
             backupSet.setStatus("Backup done");
+            backupSet.setFileCount(backupJobContext.getFileCount());
+            backupSet.setSize(backupJobContext.getTotalSize());
             backupSetRepository.save(backupSet);
         }
         return null; //don't change exit status
@@ -0,0 +1,15 @@
+package org.ogerardin.b2b.batch.jobs;
+
+/**
+ * Strategies used by {@link FilteringPathItemProcessor} to decide whether a file has changed since its latest stored
+ * version.
+ */
+public enum ChangeDetectionMode {
+
+    /** Compare the file's size, last modification time and file key with the ones recorded when the file was stored;
+     * if they differ, the contents are hashed while storing the file */
+    METADATA,
+
+    /** Always hash the file's contents and compare with the stored hash */
+    CONTENT
+}
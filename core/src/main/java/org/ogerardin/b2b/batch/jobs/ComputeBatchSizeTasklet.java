@@ -8,11 +8,11 @@ import org.springframework.batch.core.step.tasklet.Tasklet;
 import org.springframework.batch.repeat.RepeatStatus;
 
 import javax.validation.constraints.NotNull;
-import java.nio.file.attribute.BasicFileAttributes;
 
 /**
- * Computes the size of the current backup batch by summing the sizes of files in {@link BackupJobContext#changedFiles}.
- * The result is stored into {@link BackupJobContext#changedSize}.
+ * Reports the size of the current backup batch, i.e. the files found to have changed. The size is accumulated into
+ * {@link BackupJobContext#changedSize} by {@link FilteringItemWriter} while filtering, so it doesn't require another
+ * pass over {@link BackupJobContext#changedFiles}.
  */
 class ComputeBatchSizeTasklet implements Tasklet {
     private static final Log logger = LogFactory.getLog(ComputeBatchSizeTasklet.class);
@@ -25,13 +25,7 @@ class ComputeBatchSizeTasklet implements Tasklet {
 
     @Override
     public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) {
-        long batchSize = context.getChangedFiles().stream()
-                .map(FileInfo::getFileAttributes)
-                .mapToLong(BasicFileAttributes::size)
-                .sum();
-
-        logger.info("Batch size is: " + batchSize);
-        context.setChangedSize(batchSize);
+        logger.info("Batch size is: " + context.getChangedSize() + " (" + context.getChangedCount() + " files)");
 
         return RepeatStatus.FINISHED;
     }
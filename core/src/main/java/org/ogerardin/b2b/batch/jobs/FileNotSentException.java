@@ -0,0 +1,18 @@
+package org.ogerardin.b2b.batch.jobs;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Thrown by {@link PeerItemWriter} when some files of a chunk could not be read, sent or stored by the peer, although
+ * the connection to the peer is still usable. The step skips these files, so that they are reported in the step's
+ * skip counts, and sends the others.
+ */
+class FileNotSentException extends Exception {
+
+    FileNotSentException(Map<Path, Throwable> failures) {
+        super(failures.size() + " file(s) not sent, first: " + failures.keySet().iterator().next(),
+                failures.values().iterator().next());
+        failures.values().stream().skip(1).forEach(this::addSuppressed);
+    }
+}
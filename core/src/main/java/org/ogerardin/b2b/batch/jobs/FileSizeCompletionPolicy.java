@@ -0,0 +1,137 @@
+package org.ogerardin.b2b.batch.jobs;
+
+import org.springframework.batch.core.ItemReadListener;
+import org.springframework.batch.item.ItemReader;
+import org.springframework.batch.repeat.RepeatContext;
+import org.springframework.batch.repeat.context.RepeatContextSupport;
+import org.springframework.batch.repeat.policy.CompletionPolicySupport;
+import org.springframework.batch.repeat.support.RepeatSynchronizationManager;
+
+/**
+ * A chunk {@link org.springframework.batch.repeat.CompletionPolicy} that completes a chunk of {@link FileInfo}
+ * items before the total size of the files exceeds a maximum number of bytes, or when the chunk reaches a maximum
+ * number of files, whichever comes first. This way small files are processed many at a time, while a file larger than
+ * the maximum number of bytes forms a chunk on its own.
+ *
+ * A completion policy doesn't see the items, so this class must also be registered as an {@link ItemReadListener}
+ * of the step: the size of each item read is accumulated into the current chunk's context. As each chunk has its own
+ * context, a single instance can be used by a multi-threaded step. To complete a chunk before a file that would take it
+ * over the maximum, the policy also needs the size of the next file, so the step must read through the reader returned
+ * by {@link #peekingReader}.
+ */
+class FileSizeCompletionPolicy extends CompletionPolicySupport implements ItemReadListener<FileInfo> {
+
+    private final long maxBytes;
+    private final int maxFiles;
+
+    /** Null until {@link #peekingReader} is called */
+    private PeekingReader reader;
+
+    FileSizeCompletionPolicy(long maxBytes, int maxFiles) {
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Returns a reader that reads from the specified reader, and lets this policy look at the next item before it is
+     * read. The returned reader is thread-safe: with a multi-threaded step, the next item may be read by another
+     * thread's chunk than the one that looked at it, so a chunk may then exceed the maximum number of bytes.
+     */
+    ItemReader<FileInfo> peekingReader(ItemReader<FileInfo> delegate) {
+        reader = new PeekingReader(delegate);
+        return reader;
+    }
+
+    @Override
+    public RepeatContext start(RepeatContext parent) {
+        return new FileSizeContext(parent);
+    }
+
+    @Override
+    public boolean isComplete(RepeatContext context) {
+        FileSizeContext fileSizeContext = (FileSizeContext) context;
+        if (fileSizeContext.bytes >= maxBytes || fileSizeContext.files >= maxFiles) {
+            return true;
+        }
+        if (fileSizeContext.files == 0 || reader == null) {
+            return false;
+        }
+        FileInfo next = reader.peek();
+        return next != null && fileSizeContext.bytes + next.getFileAttributes().size() > maxBytes;
+    }
+
+    @Override
+    public void beforeRead() {
+    }
+
+    @Override
+    public void afterRead(FileInfo item) {
+        // the chunk's repeat context is the current one while items are read
+        RepeatContext context = RepeatSynchronizationManager.getContext();
+        if (context instanceof FileSizeContext) {
+            FileSizeContext fileSizeContext = (FileSizeContext) context;
+            fileSizeContext.bytes += item.getFileAttributes().size();
+            fileSizeContext.files++;
+        }
+    }
+
+    @Override
+    public void onReadError(Exception ex) {
+    }
+
+    private static class FileSizeContext extends RepeatContextSupport {
+        private long bytes = 0;
+        private int files = 0;
+
+        FileSizeContext(RepeatContext parent) {
+            super(parent);
+        }
+    }
+
+    /**
+     * A reader that reads ahead one item when asked to peek at it. A failure to read ahead is not reported by
+     * {@link #peek()}, but by the next {@link #read()}, so that it is handled like any read error.
+     */
+    private static class PeekingReader implements ItemReader<FileInfo> {
+        private final ItemReader<FileInfo> delegate;
+        private boolean peeked = false;
+        private FileInfo next;
+        private Exception failure;
+
+        PeekingReader(ItemReader<FileInfo> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public synchronized FileInfo read() throws Exception {
+            if (!peeked) {
+                return delegate.read();
+            }
+            peeked = false;
+            if (failure != null) {
+                Exception e = failure;
+                failure = null;
+                throw e;
+            }
+            FileInfo item = next;
+            next = null;
+            return item;
+        }
+
+        /**
+         * @return the item the next call to {@link #read()} will return, or null if there are no more items or
+         * reading failed
+         */
+        synchronized FileInfo peek() {
+            if (!peeked) {
+                try {
+                    next = delegate.read();
+                } catch (Exception e) {
+                    failure = e;
+                }
+                peeked = true;
+            }
+            return next;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.ogerardin.b2b.batch.jobs;
+
+import org.ogerardin.b2b.files.FileKeys;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A compact collection of {@link FileInfo}, for holding the list of all the files of a large source.
+ *
+ * Instead of one {@link Path} and one {@link BasicFileAttributes} object per file, the table keeps:
+ * <ul>
+ *     <li>an interned list of parent directories (with the device they belong to)</li>
+ *     <li>the file names, encoded as UTF-8 in a single byte array</li>
+ *     <li>parallel primitive arrays for the parent directory, size, last modification time and inode number</li>
+ * </ul>
+ * which amounts to about 30 bytes per file plus the length of its name. {@link FileInfo} items are rebuilt on the fly
+ * when iterating; their attributes only provide what the backup jobs use (size, last modification time, file key).
+ *
+ * Adding is thread-safe, so the table can be populated directly by a parallel walk. Iterating while adding is not
+ * supported.
+ */
+public class FileTable extends AbstractCollection<FileInfo> {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Matches the string representation of a Unix file key */
+    private static final Pattern UNIX_FILE_KEY = Pattern.compile("\\(dev=([0-9a-f]+),ino=(-?[0-9]+)\\)");
+
+    private static final long UNKNOWN = -1;
+
+    // directories
+    private final List<String> directories = new ArrayList<>();
+    private final Map<String, Integer> directoryIds = new HashMap<>();
+    /** device of each directory's files, or UNKNOWN */
+    private long[] directoryDevices = new long[INITIAL_CAPACITY];
+
+    // files
+    private int count = 0;
+    private int[] directoryIndexes = new int[INITIAL_CAPACITY];
+    /** offset of each file's name in namePool; the name ends where the next one starts */
+    private int[] nameOffsets = new int[INITIAL_CAPACITY + 1];
+    private byte[] namePool = new byte[INITIAL_CAPACITY * 16];
+    private long[] sizes = new long[INITIAL_CAPACITY];
+    private long[] lastModifiedTimes = new long[INITIAL_CAPACITY];
+    /** inode number, or UNKNOWN if the file key isn't known or isn't a Unix file key */
+    private long[] inodes = new long[INITIAL_CAPACITY];
+
+    @Override
+    public boolean add(FileInfo fileInfo) {
+        add(fileInfo.getPath(), fileInfo.getFileAttributes());
+        return true;
+    }
+
+    public synchronized void add(Path path, BasicFileAttributes attributes) {
+        ensureCapacity(count + 1);
+
+        Path parent = path.getParent();
+        int directoryIndex = directoryIndex(parent != null ? parent.toString() : "");
+        directoryIndexes[count] = directoryIndex;
+
+        byte[] name = path.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+        int offset = nameOffsets[count];
+        if (offset + name.length > namePool.length) {
+            namePool = Arrays.copyOf(namePool, Math.max(namePool.length * 2, offset + name.length));
+        }
+        System.arraycopy(name, 0, namePool, offset, name.length);
+        nameOffsets[count + 1] = offset + name.length;
+
+        sizes[count] = attributes.size();
+        lastModifiedTimes[count] = attributes.lastModifiedTime().toMillis();
+
+        long inode = UNKNOWN;
+        String fileKey = FileKeys.asString(attributes);
+        Matcher matcher = (fileKey != null) ? UNIX_FILE_KEY.matcher(fileKey) : null;
+        if (matcher != null && matcher.matches()) {
+            long device = Long.parseUnsignedLong(matcher.group(1), 16);
+            if (directoryDevices[directoryIndex] == UNKNOWN) {
+                directoryDevices[directoryIndex] = device;
+            }
+            // files always live on the same device as their directory, but be safe
+            if (directoryDevices[directoryIndex] == device) {
+                inode = Long.parseLong(matcher.group(2));
+            }
+        }
+        inodes[count] = inode;
+
+        count++;
+    }
+
+    private int directoryIndex(String directory) {
+        Integer index = directoryIds.get(directory);
+        if (index == null) {
+            index = directories.size();
+            directories.add(directory);
+            directoryIds.put(directory, index);
+            if (index >= directoryDevices.length) {
+                directoryDevices = Arrays.copyOf(directoryDevices, directoryDevices.length * 2);
+            }
+            directoryDevices[index] = UNKNOWN;
+        }
+        return index;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= sizes.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, sizes.length * 2);
+        directoryIndexes = Arrays.copyOf(directoryIndexes, newCapacity);
+        nameOffsets = Arrays.copyOf(nameOffsets, newCapacity + 1);
+        sizes = Arrays.copyOf(sizes, newCapacity);
+        lastModifiedTimes = Arrays.copyOf(lastModifiedTimes, newCapacity);
+        inodes = Arrays.copyOf(inodes, newCapacity);
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the total size of the files in the table.
+     */
+    public long getTotalSize() {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += sizes[i];
+        }
+        return total;
+    }
+
+    @Override
+    public void clear() {
+        count = 0;
+        directories.clear();
+        directoryIds.clear();
+    }
+
+    @Override
+    public Iterator<FileInfo> iterator() {
+        return new Iterator<FileInfo>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public FileInfo next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(next++);
+            }
+        };
+    }
+
+    private FileInfo get(int i) {
+        int directoryIndex = directoryIndexes[i];
+        String name = new String(namePool, nameOffsets[i], nameOffsets[i + 1] - nameOffsets[i],
+                StandardCharsets.UTF_8);
+        Path path = Paths.get(directories.get(directoryIndex), name);
+
+        String fileKey = null;
+        if (inodes[i] != UNKNOWN) {
+            // same format as the JDK's UnixFileKey
+            fileKey = "(dev=" + Long.toHexString(directoryDevices[directoryIndex]) + ",ino=" + inodes[i] + ")";
+        }
+        return new FileInfo(path, new Attributes(sizes[i], FileTime.fromMillis(lastModifiedTimes[i]), fileKey));
+    }
+
+    /**
+     * The attributes of a file in the table. Only the size, last modification time and file key are known; the
+     * creation and last access times are reported to be the same as the last modification time.
+     */
+    static class Attributes implements BasicFileAttributes {
+        private final long size;
+        private final FileTime lastModifiedTime;
+        private final String fileKey;
+
+        Attributes(long size, FileTime lastModifiedTime, String fileKey) {
+            this.size = size;
+            this.lastModifiedTime = lastModifiedTime;
+            this.fileKey = fileKey;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return lastModifiedTime;
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return lastModifiedTime;
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return lastModifiedTime;
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return true;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return false;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return fileKey;
+        }
+    }
+}
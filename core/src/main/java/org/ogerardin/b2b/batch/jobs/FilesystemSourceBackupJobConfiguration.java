@@ -1,6 +1,6 @@
 package org.ogerardin.b2b.batch.jobs;
 
-import org.ogerardin.b2b.batch.SetItemWriter;
+import org.ogerardin.b2b.batch.CollectionItemWriter;
 import org.ogerardin.b2b.domain.FilesystemSource;
 import org.springframework.batch.core.Step;
 import org.springframework.batch.core.configuration.annotation.JobScope;
@@ -31,7 +31,20 @@ public abstract class FilesystemSourceBackupJobConfiguration extends BackupJobCo
             @Value("#{jobParameters['source.root']}") String sourceRootParam,
             BackupJobContext backupJobContext
     ) {
-        return new ListFilesTasklet(sourceRootParam, backupJobContext);
+        return new ListFilesTasklet(sourceRootParam, backupJobContext, properties.getScanParallelism());
+    }
+
+
+    /** Provides a {@link ItemReader} that supplies {@link FileInfo} items while walking the source directory, for
+     * streaming mode */
+    @Bean
+    @JobScope
+    protected StreamingFileInfoReader streamingFileInfoReader(
+            @Value("#{jobParameters['source.root']}") String sourceRootParam,
+            BackupJobContext backupJobContext
+    ) {
+        return new StreamingFileInfoReader(sourceRootParam, backupJobContext, properties.getScanParallelism(),
+                properties.getStreamingQueueSize());
     }
 
 
@@ -61,10 +74,10 @@ public abstract class FilesystemSourceBackupJobConfiguration extends BackupJobCo
      * {@link BackupJobContext#changedFiles} */
     @Bean
     @JobScope
-    protected SetItemWriter<FileInfo> changedFilesItemWriter(
+    protected CollectionItemWriter<FileInfo> changedFilesItemWriter(
             BackupJobContext backupJobContext
     ) {
-        return new SetItemWriter<>(backupJobContext.getChangedFiles());
+        return new CollectionItemWriter<>(backupJobContext.getChangedFiles());
     }
 
 
@@ -86,20 +99,19 @@ public abstract class FilesystemSourceBackupJobConfiguration extends BackupJobCo
 
     /**
      * Provides a {@link Step} that implements the second step of a backup job: populate the current job's
-     * {@link BackupJobContext} with the list of CHANGED files
+     * {@link BackupJobContext} with the list of CHANGED files.
+     * Filtering is done by the writer so that the stored versions of a whole chunk can be retrieved at once.
      */
     @Bean
     @JobScope
     protected Step filterFilesStep(
             ItemReader<FileInfo> allFilesItemReader,
-            FilteringPathItemProcessor pathFilteringItemProcessor,
-            ItemWriter<FileInfo> changedFilesItemWriter) {
+            FilteringItemWriter filteringItemWriter) {
         return stepBuilderFactory
                 .get("filterFilesStep")
-                .<FileInfo, FileInfo> chunk(10)
+                .<FileInfo, FileInfo> chunk(properties.getFilterChunkSize())
                 .reader(allFilesItemReader)
-                .processor(pathFilteringItemProcessor)
-                .writer(changedFilesItemWriter)
+                .writer(filteringItemWriter)
                 .build();
     }
 
@@ -1,15 +1,25 @@
 package org.ogerardin.b2b.batch.jobs;
 
-import org.ogerardin.b2b.B2BProperties;
+import org.ogerardin.b2b.batch.AdaptiveConcurrencyLimiter;
+import org.ogerardin.b2b.batch.CollectionItemWriter;
 import org.ogerardin.b2b.domain.FilesystemSource;
 import org.ogerardin.b2b.domain.LocalTarget;
+import org.ogerardin.b2b.domain.mongorepository.BackupSetRepository;
+import org.ogerardin.b2b.files.md5.HashCache;
 import org.ogerardin.b2b.files.md5.MD5Calculator;
 import org.ogerardin.b2b.storage.StorageService;
 import org.ogerardin.b2b.storage.StorageServiceFactory;
+import org.ogerardin.b2b.throttle.Throttle;
+import org.ogerardin.b2b.throttle.ThrottleRegistry;
+import org.springframework.batch.core.ItemReadListener;
 import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobExecution;
 import org.springframework.batch.core.Step;
 import org.springframework.batch.core.configuration.annotation.JobScope;
+import org.springframework.batch.core.job.builder.JobBuilder;
+import org.springframework.batch.core.scope.context.JobSynchronizationManager;
 import org.springframework.batch.core.launch.support.RunIdIncrementer;
+import org.springframework.batch.core.step.builder.AbstractTaskletStepBuilder;
 import org.springframework.batch.item.ItemReader;
 import org.springframework.batch.item.support.PassThroughItemProcessor;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -17,6 +27,8 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import java.nio.file.Path;
 
@@ -32,7 +44,13 @@ public class FilesystemToInternalBackupJobConfiguration extends FilesystemSource
     protected StorageServiceFactory storageServiceFactory;
 
     @Autowired
-    private B2BProperties properties;
+    protected HashCache hashCache;
+
+    @Autowired
+    protected BackupSetRepository backupSetRepository;
+
+    @Autowired
+    protected ThrottleRegistry throttleRegistry;
 
     public FilesystemToInternalBackupJobConfiguration() {
         addStaticParameter("target.type", LocalTarget.class.getName());
@@ -40,6 +58,7 @@ public class FilesystemToInternalBackupJobConfiguration extends FilesystemSource
 
     /**
      * Provides a job that performs the backup of a filesystem source into the internal storage.
+     * In streaming mode (see {@link org.ogerardin.b2b.B2BProperties#streamingBackup}), the job has a single step.
      */
     @Bean
     protected Job filesystemToInternalBackupJob(
@@ -47,12 +66,21 @@ public class FilesystemToInternalBackupJobConfiguration extends FilesystemSource
             Step filterFilesStep,
             Step backupToInternalStorageStep,
             Step computeBatchSizeStep,
-            BackupJobExecutionListener jobListener) {
-        return jobBuilderFactory
+            Step streamingBackupStep,
+            BackupJobExecutionListener jobListener,
+            RepackJobExecutionListener repackListener) {
+        JobBuilder jobBuilder = jobBuilderFactory
                 .get("filesystemToInternalBackupJob")
                 .validator(getValidator())
                 .incrementer(new RunIdIncrementer())
                 .listener(jobListener)
+                .listener(repackListener);
+        if (properties.isStreamingBackup()) {
+            return jobBuilder
+                    .start(streamingBackupStep)     //single step: walk, filter and store files as they are found
+                    .build();
+        }
+        return jobBuilder
                 .start(listFilesStep)               //step 1: list files and put them in the job context
                 .next(filterFilesStep)              //step 2: filter unchanged files
                 .next(computeBatchSizeStep)             //step 3: compute backup batch size
@@ -60,24 +88,110 @@ public class FilesystemToInternalBackupJobConfiguration extends FilesystemSource
                 .build();
     }
 
+    /**
+     * Provides a {@link Step} that performs the whole backup in streaming mode: files are read while the source is
+     * being walked, and each chunk is filtered then the changed files are stored into the internal storage.
+     * If {@link org.ogerardin.b2b.B2BProperties#storeConcurrency} is more than 1, several chunks are processed
+     * concurrently.
+     */
+    @Bean
+    @JobScope
+    protected Step streamingBackupStep(
+            StreamingFileInfoReader streamingFileInfoReader,
+            FilteringItemWriter streamingFilteringItemWriter,
+            InternalStorageItemWriter internalStorageItemWriter,
+            BackupStepExecutionListener backupStepListener,
+            TaskExecutor storeTaskExecutor) {
+        AbstractTaskletStepBuilder<?> stepBuilder = stepBuilderFactory
+                .get("streamingBackupStep")
+                .<FileInfo, FileInfo> chunk(properties.getFilterChunkSize())
+                .reader(streamingFileInfoReader)
+                .writer(streamingFilteringItemWriter)
+                .listener(backupStepListener)
+                .stream(internalStorageItemWriter);   // not the step's writer, but must be flushed on commit
+        return buildConcurrent(stepBuilder, storeTaskExecutor);
+    }
+
     /**
      * Provides a {@link Step} that performs backup of the files taken from the current job's
      * {@link BackupJobContext#changedFiles} into the internal storage.
+     * Chunks are limited both in number of files and in total size (see {@link FileSizeCompletionPolicy}), so that
+     * small files are committed many at a time, while a chunk is completed before a file that would take it over the
+     * size limit, so that a file larger than the limit is processed on its own.
+     * If {@link org.ogerardin.b2b.B2BProperties#storeConcurrency} is more than 1, several chunks are stored
+     * concurrently, so that a large file doesn't hold up the others.
      */
     @Bean
     @JobScope
     protected Step backupToInternalStorageStep(
             ItemReader<FileInfo> changedFilesItemReader,
             InternalStorageItemWriter internalStorageWriter,
-            PathItemWriteListener itemWriteListener) {
-        return stepBuilderFactory
+            PathItemWriteListener itemWriteListener,
+            TaskExecutor storeTaskExecutor) {
+        FileSizeCompletionPolicy completionPolicy = new FileSizeCompletionPolicy(
+                properties.getStoreChunkBytes(), properties.getStoreChunkFiles());
+        AbstractTaskletStepBuilder<?> stepBuilder = stepBuilderFactory
                 .get("backupToInternalStorageStep")
-                .<FileInfo, FileInfo> chunk(1)  // invoke writer 1 file at a time
-                .reader(changedFilesItemReader)
+                .<FileInfo, FileInfo> chunk(completionPolicy)
+                .reader(completionPolicy.peekingReader(changedFilesItemReader)) // thread-safe
+                .listener((ItemReadListener<FileInfo>) completionPolicy) // accumulates chunk size
                 .processor(new PassThroughItemProcessor<>()) // no processing
                 .writer(internalStorageWriter)
-                .listener(itemWriteListener)
-                .build();
+                .listener(itemWriteListener);
+        return buildConcurrent(stepBuilder, storeTaskExecutor);
+    }
+
+    /**
+     * Builds the specified step so that it processes chunks concurrently on the specified {@link TaskExecutor}, if the
+     * configured store concurrency is more than 1. The actual number of concurrent uploads is further limited by the
+     * {@link AdaptiveConcurrencyLimiter}.
+     */
+    private Step buildConcurrent(AbstractTaskletStepBuilder<?> stepBuilder, TaskExecutor taskExecutor) {
+        int concurrency = properties.getStoreConcurrency();
+        if (concurrency > 1) {
+            stepBuilder
+                    .taskExecutor(taskExecutor)
+                    .throttleLimit(concurrency);
+        }
+        return stepBuilder.build();
+    }
+
+    /**
+     * Provides a job-scoped {@link TaskExecutor} for multi-threaded store steps. It is distinct from the executor used
+     * to launch jobs, and is shut down when the job ends.
+     * The job context is made available to the executor's threads, so that they can use job-scoped beans.
+     */
+    @Bean
+    @JobScope
+    protected TaskExecutor storeTaskExecutor(
+            @Value("#{jobParameters['backupset.id']}") String backupSetId
+    ) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(properties.getStoreConcurrency());
+        executor.setMaxPoolSize(properties.getStoreConcurrency());
+        executor.setThreadNamePrefix("b2b-store-" + backupSetId + "-");
+        JobExecution jobExecution = JobSynchronizationManager.getContext().getJobExecution();
+        executor.setTaskDecorator(runnable -> () -> {
+            JobSynchronizationManager.register(jobExecution);
+            try {
+                runnable.run();
+            } finally {
+                // only detaches the context from this thread; the job's thread is still using it
+                JobSynchronizationManager.close();
+            }
+        });
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * Provides a job-scoped {@link AdaptiveConcurrencyLimiter} that bounds the number of files stored concurrently.
+     */
+    @Bean
+    @JobScope
+    protected AdaptiveConcurrencyLimiter storeConcurrencyLimiter() {
+        return new AdaptiveConcurrencyLimiter(Math.max(1, properties.getStoreConcurrency()),
+                properties.isAdaptiveStoreConcurrency());
     }
 
 
@@ -88,24 +202,81 @@ public class FilesystemToInternalBackupJobConfiguration extends FilesystemSource
     @Bean
     @JobScope
     protected InternalStorageItemWriter internalStorageItemWriter(
-            @Value("#{jobParameters['backupset.id']}") String backupSetId
+            @Value("#{jobParameters['backupset.id']}") String backupSetId,
+            AdaptiveConcurrencyLimiter storeConcurrencyLimiter,
+            BackupJobContext backupJobContext,
+            Throttle throttle
     )  {
         StorageService storageService = storageServiceFactory.getStorageService(backupSetId);
-        return new InternalStorageItemWriter(storageService, properties.getFileThrottleDelay());
+        return new InternalStorageItemWriter(storageService, hashCache, storeConcurrencyLimiter, backupJobContext,
+                throttle);
+    }
+
+    /**
+     * Provides the {@link Throttle} of the current job's backup set, that limits reading files for hashing and
+     * storing.
+     */
+    @Bean
+    @JobScope
+    protected Throttle throttle(
+            @Value("#{jobParameters['backupset.id']}") String backupSetId
+    ) {
+        return throttleRegistry.getThrottle(backupSetRepository.findOne(backupSetId));
+    }
+
+    /**
+     * Provides a job-scoped {@link org.springframework.batch.item.ItemWriter} that filters out unchanged
+     * {@link FileInfo} items a whole chunk at a time, and passes the others to the current job's
+     * changedFilesItemWriter.
+     */
+    @Bean
+    @JobScope
+    protected FilteringItemWriter filteringItemWriter(
+            @Value("#{jobParameters['backupset.id']}") String backupSetId,
+            FilteringPathItemProcessor filteringPathItemProcessor,
+            CollectionItemWriter<FileInfo> changedFilesItemWriter,
+            BackupJobContext backupJobContext
+    ) {
+        StorageService storageService = storageServiceFactory.getStorageService(backupSetId);
+        return new FilteringItemWriter(storageService, filteringPathItemProcessor, changedFilesItemWriter,
+                backupJobContext);
+    }
+
+    /**
+     * Provides a job-scoped {@link org.springframework.batch.item.ItemWriter} for streaming mode, that filters out
+     * unchanged {@link FileInfo} items a whole chunk at a time, and stores the others into the internal storage.
+     */
+    @Bean
+    @JobScope
+    protected FilteringItemWriter streamingFilteringItemWriter(
+            @Value("#{jobParameters['backupset.id']}") String backupSetId,
+            FilteringPathItemProcessor filteringPathItemProcessor,
+            InternalStorageItemWriter internalStorageItemWriter,
+            BackupJobContext backupJobContext
+    ) {
+        StorageService storageService = storageServiceFactory.getStorageService(backupSetId);
+        return new FilteringItemWriter(storageService, filteringPathItemProcessor, internalStorageItemWriter,
+                backupJobContext);
     }
 
     /**
      * Provides a job-scoped {@link org.springframework.batch.item.ItemProcessor} that filters out {@link Path} items
      * corresponding to a file that isn't different from the latest stored version.
-     * We use a {@link MD5Calculator} for determining if the file's hash has changed.
+     * We use a {@link MD5Calculator} for determining if the file's hash has changed, unless the configured
+     * {@link ChangeDetectionMode} allows to rely on file metadata and the current job is not a deep verify.
      */
     @Bean
     @JobScope
     protected FilteringPathItemProcessor filteringPathItemProcessor(
             @Value("#{jobParameters['backupset.id']}") String backupSetId,
-            @Qualifier("springMD5Calculator") MD5Calculator md5Calculator
+            @Qualifier("springMD5Calculator") MD5Calculator md5Calculator,
+            BackupJobContext backupJobContext,
+            Throttle throttle
     ) {
         StorageService storageService = storageServiceFactory.getStorageService(backupSetId);
-        return new FilteringPathItemProcessor(storageService, md5Calculator);
+        ChangeDetectionMode changeDetectionMode = backupJobContext.isDeepVerify() ?
+                ChangeDetectionMode.CONTENT : properties.getChangeDetection();
+        return new FilteringPathItemProcessor(storageService, md5Calculator, changeDetectionMode, hashCache,
+                throttle);
     }
 }
@@ -2,17 +2,30 @@ package org.ogerardin.b2b.batch.jobs;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.ogerardin.b2b.domain.BackupSet;
 import org.ogerardin.b2b.domain.PeerTarget;
+import org.ogerardin.b2b.domain.mongorepository.BackupSetRepository;
+import org.ogerardin.b2b.files.md5.HashCache;
+import org.ogerardin.b2b.files.md5.MD5Calculator;
+import org.ogerardin.b2b.peer.CompressionSelector;
+import org.ogerardin.b2b.peer.InstanceIdentity;
+import org.ogerardin.b2b.peer.PeerAuthentication;
+import org.ogerardin.b2b.throttle.Throttle;
+import org.springframework.batch.core.ItemReadListener;
 import org.springframework.batch.core.Job;
 import org.springframework.batch.core.Step;
 import org.springframework.batch.core.configuration.annotation.JobScope;
 import org.springframework.batch.core.launch.support.RunIdIncrementer;
 import org.springframework.batch.item.ItemReader;
 import org.springframework.batch.item.support.PassThroughItemProcessor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.UUID;
+
 /**
  * Job implementation for a backup job that process a source of type {@link org.ogerardin.b2b.domain.FilesystemSource}
  * and backups to a network peer.
@@ -22,6 +35,15 @@ public class FilesystemToPeerBackupJobConfiguration extends FilesystemSourceBack
 
     private static final Log logger = LogFactory.getLog(FilesystemToPeerBackupJobConfiguration.class);
 
+    @Autowired
+    protected BackupSetRepository backupSetRepository;
+
+    @Autowired
+    protected HashCache hashCache;
+
+    @Autowired
+    protected InstanceIdentity instanceIdentity;
+
     public FilesystemToPeerBackupJobConfiguration() {
         addStaticParameter("target.type", PeerTarget.class.getName());
         addMandatoryParameter("target.hostname");
@@ -48,28 +70,56 @@ public class FilesystemToPeerBackupJobConfiguration extends FilesystemSourceBack
                 .build();
     }
 
+    /**
+     * Provides a {@link Step} that sends the files taken from the current job's {@link BackupJobContext#changedFiles}
+     * to the peer. Chunks are limited both in number of files and in total size (see
+     * {@link FileSizeCompletionPolicy}); the files of a chunk are pipelined over the connection.
+     */
     @Bean
     protected Step backupToPeerStep(
             ItemReader<FileInfo> changedFilesItemReader,
             PeerItemWriter peerWriter
     )
     {
+        FileSizeCompletionPolicy completionPolicy = new FileSizeCompletionPolicy(
+                properties.getStoreChunkBytes(), properties.getStoreChunkFiles());
         return stepBuilderFactory.get("processLocalFiles")
-                .<FileInfo, FileInfo>chunk(1) // invoke writer 1 file at a time
-                .reader(changedFilesItemReader)
+                .<FileInfo, FileInfo>chunk(completionPolicy)
+                .reader(completionPolicy.peekingReader(changedFilesItemReader))
+                .listener((ItemReadListener<FileInfo>) completionPolicy) // accumulates chunk size
                 .processor(new PassThroughItemProcessor<>())
                 .writer(peerWriter)
+                .faultTolerant()
+                .skip(FileNotSentException.class) // files that fail on their own are reported as write skips
+                .skipLimit(Integer.MAX_VALUE)
                 .build();
     }
 
     @Bean
     @JobScope
     protected PeerItemWriter peerItemWriter(
+            @Value("#{jobParameters['backupset.id']}") String backupSetId,
             @Value("#{jobParameters['target.hostname']}") String targetHostname,
-            @Value("#{jobParameters['target.port']}") String targetPort
-
+            @Value("#{jobParameters['target.port']}") String targetPort,
+            BackupJobContext backupJobContext,
+            @Qualifier("springMD5Calculator") MD5Calculator md5Calculator,
+            Throttle throttle
     ) {
-        return new PeerItemWriter(targetHostname, targetPort);
+        BackupSet backupSet = backupSetRepository.findOne(backupSetId);
+        // the secret is not a job parameter, so that it isn't persisted in the job repository
+        String secret = ((PeerTarget) backupSet.getBackupTarget()).getSecret();
+        if (secret == null) {
+            throw new IllegalStateException("No secret for peer " + targetHostname + ":" + targetPort
+                    + "; this computer must be paired with the peer first");
+        }
+        CompressionSelector compressionSelector = properties.isPeerCompression() ?
+                new CompressionSelector(properties.getMaxCompressionRatio()) : null;
+        // a backup set may be sent under a computer ID of its own, otherwise it is sent under this instance's
+        UUID computerId = (backupSet.getComputerId() != null) ?
+                backupSet.getComputerId() : instanceIdentity.getComputerId();
+        return new PeerItemWriter(targetHostname, Integer.parseInt(targetPort), computerId,
+                PeerAuthentication.decodeSecret(secret), backupJobContext, md5Calculator, hashCache, compressionSelector,
+                throttle);
     }
 
 }
@@ -0,0 +1,56 @@
+package org.ogerardin.b2b.batch.jobs;
+
+import org.ogerardin.b2b.storage.FileVersion;
+import org.ogerardin.b2b.storage.StorageService;
+import org.springframework.batch.item.ItemWriter;
+
+import javax.validation.constraints.NotNull;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * ItemWriter implementation that filters a whole chunk of {@link FileInfo} items the same way
+ * {@link FilteringPathItemProcessor} does, and passes the remaining (changed) items to a delegate writer.
+ * The latest stored versions of all the files in the chunk are retrieved with a single call to
+ * {@link StorageService#getLatestFileVersions}, instead of one call per file.
+ * The number and size of changed files are accumulated in the {@link BackupJobContext}.
+ */
+class FilteringItemWriter implements ItemWriter<FileInfo> {
+
+    private final StorageService storageService;
+    private final FilteringPathItemProcessor filteringProcessor;
+    private final ItemWriter<FileInfo> delegate;
+    private final BackupJobContext context;
+
+    FilteringItemWriter(@NotNull StorageService storageService, @NotNull FilteringPathItemProcessor filteringProcessor,
+                        @NotNull ItemWriter<FileInfo> delegate, @NotNull BackupJobContext context) {
+        this.storageService = storageService;
+        this.filteringProcessor = filteringProcessor;
+        this.delegate = delegate;
+        this.context = context;
+    }
+
+    @Override
+    public void write(List<? extends FileInfo> items) throws Exception {
+        List<Path> paths = items.stream()
+                .map(FileInfo::getPath)
+                .collect(Collectors.toList());
+        Map<Path, FileVersion> storedVersions = storageService.getLatestFileVersions(paths);
+
+        List<FileInfo> changedItems = new ArrayList<>();
+        for (FileInfo item : items) {
+            FileInfo result = filteringProcessor.process(item, storedVersions.get(item.getPath()));
+            if (result != null) {
+                changedItems.add(result);
+                context.addChangedFile(result.getFileAttributes().size());
+            }
+        }
+
+        if (!changedItems.isEmpty()) {
+            delegate.write(changedItems);
+        }
+    }
+}
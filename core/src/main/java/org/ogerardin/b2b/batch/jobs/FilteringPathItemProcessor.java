@@ -2,19 +2,34 @@ package org.ogerardin.b2b.batch.jobs;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.ogerardin.b2b.files.FileKeys;
+import org.ogerardin.b2b.files.md5.HashCache;
 import org.ogerardin.b2b.files.md5.MD5Calculator;
 import org.ogerardin.b2b.storage.FileVersion;
 import org.ogerardin.b2b.storage.StorageFileNotFoundException;
 import org.ogerardin.b2b.storage.StorageService;
+import org.ogerardin.b2b.throttle.Throttle;
 import org.springframework.batch.item.ItemProcessor;
 
 import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 
 /**
  * ItemProcessor implementation that filters the input {@link Path} item if it has been stored already and the
  * stored version has the same MD5 hash as the locally computed version.
+ * With {@link ChangeDetectionMode#METADATA}, the file is never hashed here: it is filtered if its size, last
+ * modification time and file key match the ones recorded for the stored version, and passed on otherwise. In the
+ * latter case the hash is computed by the storage service while storing the file, which discards the new version if
+ * the contents turn out to be unchanged; this way a changed file is read only once.
+ * Before passing on a file whose metadata doesn't match the stored version, the {@link HashCache} is consulted: if it
+ * holds the hash of the file with its current metadata (e.g. because it was hashed for another backup set), the
+ * file doesn't need to be read at all.
+ * Reading files for hashing is limited by the backup set's {@link Throttle}.
  */
 class FilteringPathItemProcessor implements ItemProcessor<FileInfo, FileInfo> {
 
@@ -25,9 +40,20 @@ class FilteringPathItemProcessor implements ItemProcessor<FileInfo, FileInfo> {
 
     private final StorageService storageService;
 
-    FilteringPathItemProcessor(@NotNull StorageService storageService, @NotNull MD5Calculator md5Calculator) {
+    private final ChangeDetectionMode changeDetectionMode;
+
+    private final HashCache hashCache;
+
+    private final Throttle throttle;
+
+    FilteringPathItemProcessor(@NotNull StorageService storageService, @NotNull MD5Calculator md5Calculator,
+                               @NotNull ChangeDetectionMode changeDetectionMode, @NotNull HashCache hashCache,
+                               @NotNull Throttle throttle) {
         this.storageService = storageService;
         this.md5Calculator = md5Calculator;
+        this.changeDetectionMode = changeDetectionMode;
+        this.hashCache = hashCache;
+        this.throttle = throttle;
     }
 
     @Override
@@ -35,21 +61,69 @@ class FilteringPathItemProcessor implements ItemProcessor<FileInfo, FileInfo> {
 
         Path path = item.getPath();
 
-        // retrieve MD5 of stored file version
-        String storedMd5hash;
+        // retrieve stored file version (with GridFS storage, this is a single lookup in the catalog)
+        FileVersion storedVersion;
         try {
-            FileVersion info = storageService.getLatestFileVersion(path);
-            storedMd5hash = info.getMd5hash();
-
+            storedVersion = storageService.getLatestFileVersion(path);
         } catch (StorageFileNotFoundException e) {
+            storedVersion = null;
+        }
+
+        return process(item, storedVersion);
+    }
+
+    /**
+     * Same as {@link #process(FileInfo)}, for a file whose latest stored version has already been retrieved.
+     * @param storedVersion the latest stored version of the file, or null if the file hasn't been stored yet
+     */
+    FileInfo process(FileInfo item, FileVersion storedVersion) throws IOException {
+        Path path = item.getPath();
+
+        if (storedVersion == null) {
             logger.debug("NEW FILE: " + path);
             return item;
         }
 
-        // compute file MD5 and compare with stored file MD5
-        byte[] bytes = Files.readAllBytes(path);
-        String computedMd5Hash = md5Calculator.hexMd5Hash(bytes);
-        if (computedMd5Hash.equalsIgnoreCase(storedMd5hash)) {
+        if (changeDetectionMode == ChangeDetectionMode.METADATA) {
+            if (metadataMatches(item.getFileAttributes(), storedVersion)) {
+                logger.debug("Unchanged (metadata): " + path);
+                return null;
+            }
+            String cachedMd5Hash = hashCache.get(path, item.getFileAttributes());
+            if (cachedMd5Hash != null) {
+                return compareHash(item, cachedMd5Hash, storedVersion);
+            }
+            // don't hash now, the storage service will do it while storing
+            logger.debug("CHANGED (metadata): " + path);
+            return item;
+        }
+
+        // compute file MD5 and compare with stored file MD5; attributes are read before the contents so that the
+        // cache entry can't associate new contents with old attributes
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        String computedMd5Hash = hash(path);
+        hashCache.put(path, attributes, computedMd5Hash);
+        return compareHash(item, computedMd5Hash, storedVersion);
+    }
+
+    private String hash(Path path) throws IOException {
+        try {
+            throttle.acquireFile();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+        if (throttle.isBandwidthUnlimited()) {
+            return md5Calculator.hexMd5Hash(path);
+        }
+        try (InputStream inputStream = throttle.throttle(Files.newInputStream(path))) {
+            return md5Calculator.hexMd5Hash(inputStream);
+        }
+    }
+
+    private FileInfo compareHash(FileInfo item, String computedMd5Hash, FileVersion storedVersion) {
+        Path path = item.getPath();
+        if (computedMd5Hash.equalsIgnoreCase(storedVersion.getMd5hash())) {
             // same MD5, file can be skipped
             logger.debug("Unchanged: " + path);
             return null; // returning null instructs Batch to skip the item, i.e. it is not passed to the writer
@@ -58,4 +132,25 @@ class FilteringPathItemProcessor implements ItemProcessor<FileInfo, FileInfo> {
         logger.debug("CHANGED: " + path);
         return item;
     }
+
+    /**
+     * Returns true if the specified file attributes match the ones recorded for the stored version, i.e. the file
+     * can be assumed to be unchanged. If the stored version lacks the required information, returns false.
+     */
+    private static boolean metadataMatches(BasicFileAttributes attributes, FileVersion storedVersion) {
+        if (storedVersion.getLastModifiedTime() == null) {
+            return false;
+        }
+        if (attributes.size() != storedVersion.getSize()) {
+            return false;
+        }
+        // stored dates only have millisecond precision
+        if (attributes.lastModifiedTime().toMillis() != storedVersion.getLastModifiedTime().toEpochMilli()) {
+            return false;
+        }
+        // only compare file keys if both are known (e.g. the stored version may come from a different filesystem)
+        String fileKey = FileKeys.asString(attributes);
+        String storedFileKey = storedVersion.getFileKey();
+        return fileKey == null || storedFileKey == null || fileKey.equals(storedFileKey);
+    }
 }
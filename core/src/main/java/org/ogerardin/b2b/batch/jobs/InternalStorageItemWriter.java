@@ -2,7 +2,14 @@ package org.ogerardin.b2b.batch.jobs;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.ogerardin.b2b.batch.AdaptiveConcurrencyLimiter;
+import org.ogerardin.b2b.files.md5.HashCache;
+import org.ogerardin.b2b.storage.FileVersion;
 import org.ogerardin.b2b.storage.StorageService;
+import org.ogerardin.b2b.throttle.Throttle;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStream;
+import org.springframework.batch.item.ItemStreamException;
 import org.springframework.batch.item.ItemWriter;
 
 import java.nio.file.Path;
@@ -10,38 +17,75 @@ import java.util.List;
 
 /**
  * ItemWriter implementation that stores the file corresponding to the input {@link Path} into the
- * internal storage.
+ * internal storage. The hash computed while storing is recorded in the {@link HashCache}.
+ * The writer may be called concurrently by a multi-threaded step; the number of concurrent uploads is bounded by an
+ * {@link AdaptiveConcurrencyLimiter}, and the number and size of stored files are accumulated in the
+ * {@link BackupJobContext}.
+ * Reading files is limited by the backup set's {@link Throttle}.
+ * The writer is also an {@link ItemStream} so that the storage service is flushed each time a chunk is committed (and
+ * when the step ends), which makes the files stored in that chunk durable even if the storage service buffers them.
+ * The storage service's statistics are then published in the step's {@link ExecutionContext}, prefixed with
+ * "storage.".
  */
-class InternalStorageItemWriter implements ItemWriter<FileInfo> {
+class InternalStorageItemWriter implements ItemWriter<FileInfo>, ItemStream {
 
     private static final Log logger = LogFactory.getLog(InternalStorageItemWriter.class);
 
     private final StorageService storageService;
-    private final long throttleDelay;
+    private final HashCache hashCache;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final BackupJobContext context;
+    private final Throttle throttle;
 
-    /**
-     * @param throttleDelay for testing only, introduces a delay after each file
-     */
-    InternalStorageItemWriter(StorageService storageService, long throttleDelay) {
+    InternalStorageItemWriter(StorageService storageService, HashCache hashCache, AdaptiveConcurrencyLimiter limiter,
+                              BackupJobContext context, Throttle throttle) {
         this.storageService = storageService;
-        this.throttleDelay = throttleDelay;
+        this.hashCache = hashCache;
+        this.limiter = limiter;
+        this.context = context;
+        this.throttle = throttle;
     }
 
     @Override
     public void write(List<? extends FileInfo> items) throws Exception {
         for (FileInfo item : items) {
             Path path = item.getPath();
+            long size = 0;
+            throttle.acquireFile();
+            limiter.acquire();
             try {
                 logger.debug("STORING: " + path);
-                storageService.store(path);
+                FileVersion version = throttle.isBandwidthUnlimited() ?
+                        storageService.store(path) :
+                        storageService.store(path, throttle::throttle);
+                size = version.getSize();
+                context.addStoredFile(size);
+                // the version's metadata was read before its contents, so it is safe to use as cache key
+                if (version.getMd5hash() != null && version.getLastModifiedTime() != null) {
+                    hashCache.put(path, version.getSize(), version.getLastModifiedTime(), version.getFileKey(),
+                            version.getMd5hash());
+                }
             } catch (Exception e) {
                 logger.error("Failed to store file: " + path, e);
-            }
-
-            if (throttleDelay != 0) {
-                Thread.sleep(throttleDelay);
+            } finally {
+                limiter.release(size);
             }
         }
 
     }
+
+    @Override
+    public void open(ExecutionContext executionContext) throws ItemStreamException {
+    }
+
+    @Override
+    public void update(ExecutionContext executionContext) throws ItemStreamException {
+        storageService.flush();
+        storageService.getStatistics().forEach((name, value) -> executionContext.putLong("storage." + name, value));
+    }
+
+    @Override
+    public void close() throws ItemStreamException {
+        storageService.flush();
+    }
 }
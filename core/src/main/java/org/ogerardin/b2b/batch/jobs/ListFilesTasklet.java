@@ -1,5 +1,7 @@
 package org.ogerardin.b2b.batch.jobs;
 
+import org.ogerardin.b2b.files.ParallelPathCollector;
+import org.ogerardin.b2b.files.PathCollector;
 import org.ogerardin.b2b.files.RecursivePathCollector;
 import org.springframework.batch.core.StepContribution;
 import org.springframework.batch.core.scope.context.ChunkContext;
@@ -8,8 +10,6 @@ import org.springframework.batch.repeat.RepeatStatus;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * Tasklet that populates the provided job context with the list of files to be backed up, so the item reader can
@@ -18,24 +18,29 @@ import java.util.stream.Collectors;
 class ListFilesTasklet implements Tasklet {
     private final Path root;
     private final BackupJobContext context;
+    private final int parallelism;
 
-    public ListFilesTasklet(String root, BackupJobContext backupJobContext) {
+    /**
+     * @param parallelism number of threads used to walk the directory tree; 1 to use a single-threaded walk
+     */
+    public ListFilesTasklet(String root, BackupJobContext backupJobContext, int parallelism) {
         this.root = Paths.get(root);
         this.context = backupJobContext;
+        this.parallelism = parallelism;
     }
 
     @Override
     public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) throws Exception {
-        //walk the root directory
-        RecursivePathCollector pathCollector = new RecursivePathCollector(root);
+        //walk the root directory, putting files directly in the context's compact table
+        FileTable allFiles = context.getAllFiles();
+        allFiles.clear();
+        PathCollector pathCollector = (parallelism > 1) ?
+                new ParallelPathCollector(root, parallelism, allFiles::add) :
+                new RecursivePathCollector(root, allFiles::add);
         pathCollector.walkTree();
 
-        //put results in context
-        Set<FileInfo> allFiles = pathCollector.getPaths().entrySet().stream()
-                .map(e -> new FileInfo(e.getKey(), e.getValue()))
-                .collect(Collectors.toSet());
-        context.setAllFiles(allFiles);
-        context.setTotalSize(pathCollector.getSize());
+        context.setFileCount(allFiles.size());
+        context.setTotalSize(allFiles.getTotalSize());
 
         return RepeatStatus.FINISHED;
     }
@@ -31,7 +31,7 @@ public class ListFilesTaskletExecutionListener extends BackupSetAwareBean implem
         String exitCode = stepExecution.getExitStatus().getExitCode();
         BackupSet backupSet = getBackupSet();
         if (exitCode.equals(ExitStatus.COMPLETED.getExitCode())) {
-            int fileCount = backupJobContext.getAllFiles().size();
+            long fileCount = backupJobContext.getFileCount();
             long totalSize = backupJobContext.getTotalSize();
             backupSet.setStatus("Collected " + fileCount + " files");
             backupSet.setFileCount(fileCount);
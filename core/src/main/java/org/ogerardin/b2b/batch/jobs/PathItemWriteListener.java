@@ -4,44 +4,60 @@ import org.ogerardin.b2b.batch.BackupSetAwareBean;
 import org.ogerardin.b2b.domain.BackupSet;
 import org.springframework.batch.core.ItemWriteListener;
 import org.springframework.batch.core.configuration.annotation.JobScope;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
 
+/**
+ * An {@link ItemWriteListener} that updates the backupSet status with the files being stored. The methods are
+ * synchronized because the step may write several chunks concurrently, and each update reads then saves the backupSet.
+ */
 @Component
 @JobScope
 public class PathItemWriteListener extends BackupSetAwareBean implements ItemWriteListener<FileInfo> {
 
+    private static final int MAX_LISTED_PATHS = 5;
+
+    @Autowired
+    BackupJobContext backupJobContext;
+
     @Override
-    public void beforeWrite(List<? extends FileInfo> items) {
-        Path[] paths = getPaths(items);
+    public synchronized void beforeWrite(List<? extends FileInfo> items) {
         BackupSet backupSet = getBackupSet();
-        backupSet.setStatus("Backing up " + Arrays.toString(paths));
+        backupSet.setStatus("Backing up " + describe(items));
         backupSetRepository.save(backupSet);
     }
 
     @Override
-    public void afterWrite(List<? extends FileInfo> items) {
-        Path[] paths = getPaths(items);
+    public synchronized void afterWrite(List<? extends FileInfo> items) {
         BackupSet backupSet = getBackupSet();
-        backupSet.setStatus("Finished backing up " + Arrays.toString(paths));
+        backupSet.setStatus(String.format("Finished backing up %s (%d/%d files)", describe(items),
+                backupJobContext.getStoredCount(), backupJobContext.getChangedCount()));
         backupSetRepository.save(backupSet);
     }
 
     @Override
-    public void onWriteError(Exception exception, List<? extends FileInfo> items) {
-        Path[] paths = getPaths(items);
+    public synchronized void onWriteError(Exception exception, List<? extends FileInfo> items) {
         BackupSet backupSet = getBackupSet();
-        backupSet.setStatus("ERROR backing up " + Arrays.toString(paths));
+        backupSet.setStatus("ERROR backing up " + describe(items));
         backupSetRepository.save(backupSet);
 
     }
 
-    private Path[] getPaths(List<? extends FileInfo> items) {
-        return items.stream()
-                .map(FileInfo::getPath)
-                .toArray(Path[]::new);
+    /**
+     * Describes a chunk of items for the status; chunks of small files may contain hundreds of items, in which case
+     * only the first path is shown.
+     */
+    private static String describe(List<? extends FileInfo> items) {
+        if (items.size() <= MAX_LISTED_PATHS) {
+            Path[] paths = items.stream()
+                    .map(FileInfo::getPath)
+                    .toArray(Path[]::new);
+            return Arrays.toString(paths);
+        }
+        return items.size() + " files [" + items.get(0).getPath() + ", ...]";
     }
 }
@@ -2,33 +2,204 @@ package org.ogerardin.b2b.batch.jobs;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.ogerardin.b2b.files.md5.HashCache;
+import org.ogerardin.b2b.files.md5.MD5Calculator;
+import org.ogerardin.b2b.peer.CompressionSelector;
+import org.ogerardin.b2b.peer.FileOffer;
+import org.ogerardin.b2b.peer.PeerClient;
+import org.ogerardin.b2b.peer.TransferCheckpoints;
+import org.ogerardin.b2b.throttle.Throttle;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStream;
+import org.springframework.batch.item.ItemStreamException;
 import org.springframework.batch.item.ItemWriter;
 
-import java.util.Arrays;
-import java.util.List;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
+ * {@link ItemWriter} that sends files to a peer back2back instance, over a connection that is opened for the first
+ * chunk and kept for the whole step.
+ * The files of a chunk are pipelined: they are all sent before waiting for the peer to acknowledge them, so the chunk
+ * is only committed once the peer has stored all of its files.
+ *
+ * Before being sent, the files of a chunk are offered to the peer by hash, and only those the peer doesn't have are
+ * sent; renamed or copied files, and files the peer already received, thus cost a few bytes each over the network.
+ * Hashing reads the files once more, unless their hash is in the {@link HashCache}, but reading is much cheaper than
+ * uploading over a home connection.
+ *
+ * Files that can't be read, sent or stored by the peer fail the chunk with a {@link FileNotSentException}, which the
+ * step skips: the chunk is then written again file by file, so that only the failed files are skipped, and counted
+ * as such in the step execution. If the connection is lost, the step fails; large files are staged by the peer, so that their transfer resumes where
+ * it stopped when they are sent again, either by a retry of the chunk or by the next backup.
+ *
+ * Files may be compressed on the wire (see {@link CompressionSelector}); the codecs chosen, the ratios achieved and the
+ * measured throughput of the link are reported in the step's execution context.
+ *
+ * Reading files, both for hashing and for sending, is limited by the backup set's {@link Throttle}.
  */
-class PeerItemWriter implements ItemWriter<FileInfo> {
+class PeerItemWriter implements ItemWriter<FileInfo>, ItemStream {
 
     private static final Log logger = LogFactory.getLog(PeerItemWriter.class);
 
     private final String targetHostname;
-    private final String targetPort;
+    private final int targetPort;
+    private final UUID computerId;
+    private final byte[] secret;
+    private final BackupJobContext context;
+    private final MD5Calculator md5Calculator;
+    private final HashCache hashCache;
+    private final Throttle throttle;
 
-    PeerItemWriter(String targetHostname, String targetPort) {
+    private PeerClient client;
+    /** Blocks of staged files acknowledged by the peer, kept across connections */
+    private final TransferCheckpoints checkpoints = new TransferCheckpoints();
+    /** Null to send files uncompressed; kept across connections, as are its estimates of the link */
+    private final CompressionSelector compressionSelector;
 
+    /** Files that didn't need to be sent because the peer had them already */
+    private long notSentCount = 0;
+    private long notSentSize = 0;
+
+    PeerItemWriter(String targetHostname, int targetPort, UUID computerId, byte[] secret, BackupJobContext context,
+                   MD5Calculator md5Calculator, HashCache hashCache, CompressionSelector compressionSelector,
+                   Throttle throttle) {
         this.targetHostname = targetHostname;
         this.targetPort = targetPort;
+        this.computerId = computerId;
+        this.secret = secret;
+        this.context = context;
+        this.md5Calculator = md5Calculator;
+        this.hashCache = hashCache;
+        this.compressionSelector = compressionSelector;
+        this.throttle = throttle;
     }
 
     @Override
     public void write(List<? extends FileInfo> items) throws Exception {
-        logger.debug("Writing " + Arrays.toString(items.toArray()));
+        PeerClient client = getClient();
 
+        Map<Path, Throwable> failures = new LinkedHashMap<>();
+        Map<String, FileInfo> offeredItems = new LinkedHashMap<>();
+        List<FileOffer> offers = new ArrayList<>();
         for (FileInfo item : items) {
-            //TODO
+            try {
+                FileOffer offer = offer(item.getPath());
+                offers.add(offer);
+                offeredItems.put(offer.getFilename(), item);
+            } catch (IOException e) {
+                logger.error("Failed to hash file: " + item.getPath(), e);
+                failures.put(item.getPath(), e);
+            }
+        }
+        Set<String> needed = new HashSet<>();
+        for (FileOffer offer : client.offer(offers)) {
+            needed.add(offer.getFilename());
+        }
+
+        Map<FileInfo, CompletableFuture<Void>> sent = new LinkedHashMap<>();
+        for (FileInfo item : offeredItems.values()) {
+            if (!needed.contains(item.getPath().toString())) {
+                logger.debug("Already on peer: " + item.getPath());
+                long size = item.getFileAttributes().size();
+                notSentCount++;
+                notSentSize += size;
+                context.addStoredFile(size);
+                continue;
+            }
+            logger.debug("SENDING: " + item.getPath());
+            throttle.acquireFile();
+            try {
+                sent.put(item, client.send(item.getPath()));
+            } catch (IOException e) {
+                if (client.isBroken()) {
+                    throw e;
+                }
+                logger.error("Failed to send file: " + item.getPath(), e);
+                failures.put(item.getPath(), e);
+            }
+        }
+
+        for (Map.Entry<FileInfo, CompletableFuture<Void>> entry : sent.entrySet()) {
+            FileInfo item = entry.getKey();
+            try {
+                entry.getValue().get();
+                context.addStoredFile(item.getFileAttributes().size());
+            } catch (ExecutionException e) {
+                logger.error("Peer failed to store file: " + item.getPath(), e.getCause());
+                failures.put(item.getPath(), e.getCause());
+            }
+        }
+        if (client.isBroken()) {
+            throw new IOException("Connection to peer " + targetHostname + ":" + targetPort + " lost");
+        }
+        if (!failures.isEmpty()) {
+            throw new FileNotSentException(failures);
+        }
+    }
+
+    private FileOffer offer(Path path) throws IOException, InterruptedException {
+        // attributes are read before the contents, so that the cache can't associate new contents with old attributes
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        String md5hash = hashCache.get(path, attributes);
+        if (md5hash == null) {
+            md5hash = hash(path);
+            hashCache.put(path, attributes, md5hash);
+        }
+        return new FileOffer(path.toString(), attributes.size(), md5hash);
+    }
+
+    private String hash(Path path) throws IOException, InterruptedException {
+        throttle.acquireFile();
+        if (throttle.isBandwidthUnlimited()) {
+            return md5Calculator.hexMd5Hash(path);
         }
+        try (InputStream inputStream = throttle.throttle(Files.newInputStream(path))) {
+            return md5Calculator.hexMd5Hash(inputStream);
+        }
+    }
+
+    private PeerClient getClient() throws IOException {
+        if (client == null || client.isBroken()) {
+            client = new PeerClient(new InetSocketAddress(targetHostname, targetPort), computerId, secret,
+                    checkpoints, compressionSelector);
+            client.setThrottle(throttle);
+        }
+        return client;
+    }
+
+    @Override
+    public void open(ExecutionContext executionContext) throws ItemStreamException {
+    }
 
+    @Override
+    public void update(ExecutionContext executionContext) throws ItemStreamException {
+        executionContext.putLong("peer.notSentCount", notSentCount);
+        executionContext.putLong("peer.notSentSize", notSentSize);
+        if (compressionSelector != null) {
+            executionContext.putLong("peer.linkThroughput", (long) compressionSelector.getLinkThroughput());
+            compressionSelector.getStatistics().forEach((codec, statistics) -> {
+                String prefix = "peer.compression." + codec + ".";
+                executionContext.putLong(prefix + "fileCount", statistics.getFileCount());
+                executionContext.putLong(prefix + "inputBytes", statistics.getInputBytes());
+                executionContext.putLong(prefix + "wireBytes", statistics.getWireBytes());
+                executionContext.putDouble(prefix + "ratio", statistics.getRatio());
+            });
+        }
+    }
+
+    @Override
+    public void close() throws ItemStreamException {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
     }
 }
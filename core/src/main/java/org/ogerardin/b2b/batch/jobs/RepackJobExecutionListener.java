@@ -0,0 +1,66 @@
+package org.ogerardin.b2b.batch.jobs;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ogerardin.b2b.B2BProperties;
+import org.ogerardin.b2b.batch.BackupSetAwareBean;
+import org.ogerardin.b2b.storage.StorageService;
+import org.ogerardin.b2b.storage.StorageServiceFactory;
+import org.ogerardin.b2b.storage.gridfs.PackedGridFsStorageService;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobExecutionListener;
+import org.springframework.batch.core.configuration.annotation.JobScope;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Execution listener that repacks the backup set's internal storage in the background after a successful backup,
+ * if the storage uses packs (see {@link PackedGridFsStorageService}).
+ */
+@Component
+@JobScope
+public class RepackJobExecutionListener extends BackupSetAwareBean implements JobExecutionListener {
+
+    private static final Log logger = LogFactory.getLog(RepackJobExecutionListener.class);
+
+    @Autowired
+    B2BProperties properties;
+
+    @Autowired
+    @Qualifier("gridFsStorageServiceFactory")
+    private StorageServiceFactory storageServiceFactory;
+
+    @Autowired
+    private AsyncTaskExecutor asyncTaskExecutor;
+
+    @Override
+    public void beforeJob(JobExecution jobExecution) {
+    }
+
+    @Override
+    public void afterJob(JobExecution jobExecution) {
+        if (jobExecution.getStatus() != BatchStatus.COMPLETED) {
+            return;
+        }
+        StorageService storageService = storageServiceFactory.getStorageService(backupSetId);
+        if (!(storageService instanceof PackedGridFsStorageService)) {
+            return;
+        }
+        long retention = properties.getPackedVersionRetention();
+        String id = backupSetId;
+        asyncTaskExecutor.submit(() -> {
+            logger.info("Repacking storage of backup set " + id);
+            try {
+                ((PackedGridFsStorageService) storageService).repack(
+                        (retention > 0) ? Duration.ofMillis(retention) : null);
+            } catch (Exception e) {
+                logger.error("Failed to repack storage of backup set " + id, e);
+            }
+        });
+    }
+}
@@ -0,0 +1,136 @@
+package org.ogerardin.b2b.batch.jobs;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ogerardin.b2b.files.ParallelPathCollector;
+import org.ogerardin.b2b.files.PathCollector;
+import org.ogerardin.b2b.files.RecursivePathCollector;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemReader;
+import org.springframework.batch.item.ItemStream;
+import org.springframework.batch.item.ItemStreamException;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ItemReader implementation that supplies {@link FileInfo} items while the source directory is being walked, instead
+ * of waiting for the whole tree to be collected. The walk is done by a background thread that feeds a bounded queue,
+ * so memory use doesn't depend on the number of files, and the walk is paused when the downstream steps can't keep
+ * up.
+ * The number and total size of the files read are accumulated in the {@link BackupJobContext}.
+ * The reader is thread-safe, so it can be used in a multi-threaded step.
+ */
+class StreamingFileInfoReader implements ItemReader<FileInfo>, ItemStream {
+
+    private static final Log logger = LogFactory.getLog(StreamingFileInfoReader.class);
+
+    /** Marks the end of the walk in the queue */
+    private static final FileInfo END = new FileInfo(null, null);
+
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    private final Path root;
+    private final BackupJobContext context;
+    private final int parallelism;
+    private final BlockingQueue<FileInfo> queue;
+
+    private Thread walker;
+    private volatile boolean cancelled = false;
+    private volatile Throwable walkerFailure;
+
+    /**
+     * @param parallelism number of threads used to walk the directory tree; 1 to use a single-threaded walk
+     * @param queueSize maximum number of files found but not yet read
+     */
+    StreamingFileInfoReader(String root, BackupJobContext backupJobContext, int parallelism, int queueSize) {
+        this.root = Paths.get(root);
+        this.context = backupJobContext;
+        this.parallelism = parallelism;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    @Override
+    public synchronized void open(ExecutionContext executionContext) throws ItemStreamException {
+        if (walker != null) {
+            return;
+        }
+        walker = new Thread(this::walk, "b2b-walker-" + context.getBackupSetId());
+        walker.setDaemon(true);
+        walker.start();
+    }
+
+    private void walk() {
+        PathCollector pathCollector = (parallelism > 1) ?
+                new ParallelPathCollector(root, parallelism, this::enqueue) :
+                new RecursivePathCollector(root, this::enqueue);
+        try {
+            pathCollector.walkTree();
+        } catch (CancellationException e) {
+            logger.info("Walk of " + root + " cancelled");
+        } catch (Throwable e) {
+            logger.error("Failed to walk " + root, e);
+            walkerFailure = e;
+        } finally {
+            try {
+                enqueue(END);
+            } catch (CancellationException ignored) {
+                // nobody is reading anymore
+            }
+        }
+    }
+
+    private void enqueue(Path path, BasicFileAttributes attributes) {
+        enqueue(new FileInfo(path, attributes));
+    }
+
+    /**
+     * Puts the specified item in the queue, waiting for space to become available unless the reader is closed.
+     * @throws CancellationException if the reader was closed
+     */
+    private void enqueue(FileInfo item) {
+        try {
+            do {
+                if (cancelled) {
+                    throw new CancellationException();
+                }
+            } while (!queue.offer(item, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        }
+    }
+
+    @Override
+    public FileInfo read() throws Exception {
+        if (cancelled) {
+            return null;
+        }
+        FileInfo item = queue.take();
+        if (item == END) {
+            // leave the marker so that subsequent calls also return null
+            queue.put(END);
+            if (walkerFailure != null) {
+                throw new IllegalStateException("Failed to walk " + root, walkerFailure);
+            }
+            return null;
+        }
+        context.addFile(item.getFileAttributes().size());
+        return item;
+    }
+
+    @Override
+    public void update(ExecutionContext executionContext) throws ItemStreamException {
+    }
+
+    @Override
+    public synchronized void close() throws ItemStreamException {
+        cancelled = true;
+        queue.clear();
+    }
+}
@@ -1,6 +1,7 @@
 package org.ogerardin.b2b.domain;
 
 import lombok.Data;
+import org.ogerardin.b2b.throttle.ThrottleSettings;
 import org.springframework.batch.core.JobParameter;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.DBRef;
@@ -31,6 +32,7 @@ public class BackupSet implements JobParametersPopulator {
     private Instant lastBackupCompleteTime;
     private Instant currentBackupStartTime;
     private Instant nextBackupTime;
+    private Instant lastDeepVerifyTime;
 
     private long fileCount;
     private long size;
@@ -42,6 +44,8 @@ public class BackupSet implements JobParametersPopulator {
 
     private String status;
 
+    private ThrottleSettings throttleSettings = new ThrottleSettings();
+
     @Override
     public void populateParams(Map<String, JobParameter> params) {
         params.put("backupset.id", new JobParameter(getId(), false));
@@ -0,0 +1,28 @@
+package org.ogerardin.b2b.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Represents a computer that has been paired with this instance, and may send it files as a peer.
+ */
+@Document
+@Data
+public class PairedPeer {
+
+    /** Computer ID of the peer, as a string */
+    @Id
+    private String computerId;
+
+    private String name;
+
+    /** Secret shared with the peer, as a hex string; never exposed once the peer is paired */
+    @JsonIgnore
+    private String secret;
+
+    private Instant pairedTime;
+}
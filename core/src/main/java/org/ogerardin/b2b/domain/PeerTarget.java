@@ -1,5 +1,6 @@
 package org.ogerardin.b2b.domain;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import org.springframework.batch.core.JobParameter;
@@ -16,6 +17,11 @@ public class PeerTarget extends BackupTarget {
     String hostname;
     long port;
 
+    /** Secret returned by the peer when this computer was paired with it; write-only, and not passed as a job
+     * parameter, so that it doesn't leak into the job repository */
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    String secret;
+
     public PeerTarget() {
     }
 
@@ -24,6 +30,11 @@ public class PeerTarget extends BackupTarget {
         this.port = port;
     }
 
+    public PeerTarget(String hostname, long port, String secret) {
+        this(hostname, port);
+        this.secret = secret;
+    }
+
     @Override
     public void populateParams(Map<String, JobParameter> params) {
         params.put("target.type", new JobParameter(PeerTarget.class.getName()));
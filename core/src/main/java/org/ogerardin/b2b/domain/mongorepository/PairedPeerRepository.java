@@ -0,0 +1,8 @@
+package org.ogerardin.b2b.domain.mongorepository;
+
+import org.ogerardin.b2b.domain.PairedPeer;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+public interface PairedPeerRepository extends MongoRepository<PairedPeer, String> {
+
+}
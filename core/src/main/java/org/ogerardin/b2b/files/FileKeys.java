@@ -0,0 +1,20 @@
+package org.ogerardin.b2b.files;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Utility methods for handling file keys, i.e. the object returned by {@link BasicFileAttributes#fileKey()} that
+ * uniquely identifies a file (on Unix: device + inode).
+ */
+public enum FileKeys {
+    ;
+
+    /**
+     * Returns a string representation of the file key of the specified attributes that can be persisted and compared,
+     * or null if the filesystem doesn't provide file keys.
+     */
+    public static String asString(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        return (fileKey != null) ? fileKey.toString() : null;
+    }
+}
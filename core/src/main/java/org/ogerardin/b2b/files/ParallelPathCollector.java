@@ -0,0 +1,157 @@
+package org.ogerardin.b2b.files;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link PathCollector} implementation that walks the directory tree in parallel: directories are listed and file
+ * attributes are read by {@link RecursiveAction}s in a dedicated {@link ForkJoinPool}, so that the latency of these
+ * calls is spread over several threads, with work stealing keeping them busy in unbalanced trees.
+ *
+ * The result is the same as {@link RecursivePathCollector}: symbolic links are not followed, only regular files are
+ * collected, and entries that can't be accessed are logged and skipped.
+ */
+public class ParallelPathCollector implements PathCollector {
+    private static final Log logger = LogFactory.getLog(ParallelPathCollector.class);
+
+    /** Number of directory entries whose attributes are read by a single task */
+    private static final int BATCH_SIZE = 64;
+
+    private final Map<Path, BasicFileAttributes> paths = new ConcurrentHashMap<>();
+    private final LongAdder size = new LongAdder();
+    private final LongAdder fileCount = new LongAdder();
+
+    private final Path rootDir;
+    private final int parallelism;
+    private final BiConsumer<Path, BasicFileAttributes> sink;
+
+    public ParallelPathCollector(Path rootDir, int parallelism) {
+        this.rootDir = rootDir;
+        this.parallelism = parallelism;
+        this.sink = paths::put;
+    }
+
+    /**
+     * @param sink receives each regular file as it is found, instead of collecting them in {@link #getPaths()}; it
+     *             is called concurrently from several threads.
+     */
+    public ParallelPathCollector(Path rootDir, int parallelism, BiConsumer<Path, BasicFileAttributes> sink) {
+        this.rootDir = rootDir;
+        this.parallelism = parallelism;
+        this.sink = sink;
+    }
+
+    @Override
+    public void walkTree() {
+        logger.info("Collecting all files under " + rootDir + " (parallelism: " + parallelism + ")");
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new EntriesAction(Collections.singletonList(rootDir)));
+        } finally {
+            pool.shutdown();
+        }
+        logger.info("Found " + fileCount.sum() + " files");
+    }
+
+    @Override
+    public Map<Path, BasicFileAttributes> getPaths() {
+        return paths;
+    }
+
+    @Override
+    public long getSize() {
+        return size.sum();
+    }
+
+    public Path getRootDir() {
+        return rootDir;
+    }
+
+    private void visitFile(Path path, BasicFileAttributes attributes) {
+        if (attributes.isRegularFile()) {
+            sink.accept(path, attributes);
+            size.add(attributes.size());
+            fileCount.increment();
+        }
+    }
+
+    private static void visitFileFailed(Path path, IOException e) {
+        logger.warn("Failed to visit file: " + path + " (" + e + ")");
+    }
+
+    /**
+     * Lists a directory and visits its entries in batches, each batch in a separate sub-action; this way even the
+     * attributes of the files in a single large directory are read in parallel.
+     */
+    private class DirectoryAction extends RecursiveAction {
+        private final Path directory;
+
+        DirectoryAction(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            List<Path> entries = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                stream.forEach(entries::add);
+            } catch (IOException e) {
+                visitFileFailed(directory, e);
+            }
+
+            List<EntriesAction> batches = new ArrayList<>();
+            for (int i = 0; i < entries.size(); i += BATCH_SIZE) {
+                batches.add(new EntriesAction(entries.subList(i, Math.min(i + BATCH_SIZE, entries.size()))));
+            }
+            invokeAll(batches);
+        }
+    }
+
+    /**
+     * Reads the attributes of the specified entries, collects regular files and forks a {@link DirectoryAction} for
+     * each subdirectory.
+     */
+    private class EntriesAction extends RecursiveAction {
+        private final List<Path> entries;
+
+        EntriesAction(List<Path> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryAction> subdirectories = new ArrayList<>();
+            for (Path entry : entries) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    visitFileFailed(entry, e);
+                    continue;
+                }
+                if (attributes.isDirectory()) {
+                    subdirectories.add(new DirectoryAction(entry));
+                } else {
+                    visitFile(entry, attributes);
+                }
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
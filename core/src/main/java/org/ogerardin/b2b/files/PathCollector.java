@@ -0,0 +1,29 @@
+package org.ogerardin.b2b.files;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+
+/**
+ * Interface for a component that walks a filesystem directory and collects the {@link Path} and attributes of all
+ * regular files. Files or directories that can't be accessed are logged and skipped.
+ *
+ * Implementations can alternatively be constructed with a sink, in which case each file is passed to the sink as soon
+ * as it is found instead of being collected.
+ */
+public interface PathCollector {
+
+    void walkTree() throws IOException;
+
+    /**
+     * Returns the regular files found by {@link #walkTree()}, with their attributes (always empty if a sink was
+     * provided).
+     */
+    Map<Path, BasicFileAttributes> getPaths();
+
+    /**
+     * Returns the total size of the files found by {@link #walkTree()}.
+     */
+    long getSize();
+}
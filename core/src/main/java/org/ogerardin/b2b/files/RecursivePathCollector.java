@@ -13,6 +13,7 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.BiConsumer;
 
 /**
  * Recursively walks a filesystem directory and collects the {@link Path} of all files.
@@ -21,29 +22,42 @@ import java.util.Map;
  */
 @EqualsAndHashCode(callSuper = true)
 @Data
-public class RecursivePathCollector extends SimpleFileVisitor<Path> {
+public class RecursivePathCollector extends SimpleFileVisitor<Path> implements PathCollector {
     private static final Log logger = LogFactory.getLog(RecursivePathCollector.class);
 
     private final Map<Path, BasicFileAttributes> paths = new HashMap<>();
     private long size = 0;
+    private long fileCount = 0;
 
     private final Path rootDir;
+    private final BiConsumer<Path, BasicFileAttributes> sink;
 
     public RecursivePathCollector(Path rootDir) {
         this.rootDir = rootDir;
+        this.sink = paths::put;
     }
 
+    /**
+     * @param sink receives each regular file as it is found, instead of collecting them in {@link #getPaths()}
+     */
+    public RecursivePathCollector(Path rootDir, BiConsumer<Path, BasicFileAttributes> sink) {
+        this.rootDir = rootDir;
+        this.sink = sink;
+    }
+
+    @Override
     public void walkTree() throws IOException {
         logger.info("Collecting all files under " + rootDir);
         Files.walkFileTree(rootDir,this);
-        logger.info("Found " + paths.size() + " files");
+        logger.info("Found " + fileCount + " files");
     }
 
     @Override
     public FileVisitResult visitFile(Path path, BasicFileAttributes basicFileAttributes) {
         if (basicFileAttributes.isRegularFile()) {
-            this.paths.put(path, basicFileAttributes);
+            this.sink.accept(path, basicFileAttributes);
             this.size += basicFileAttributes.size();
+            this.fileCount++;
         }
         return FileVisitResult.CONTINUE;
     }
@@ -15,4 +15,9 @@ public class ApacheCommonsMD5Calculator implements MD5Calculator {
     public byte[] md5Hash(byte[] bytes) {
         return DigestUtils.md5(bytes);
     }
+
+    @Override
+    public MD5Digester newDigester() {
+        return new MessageDigestMD5Digester(DigestUtils.getMd5Digest());
+    }
 }
@@ -15,4 +15,20 @@ public class FastMD5Calculator implements MD5Calculator {
         md5.Update(bytes);
         return md5.Final();
     }
+
+    @Override
+    public MD5Digester newDigester() {
+        MD5 md5 = new MD5();
+        return new MD5Digester() {
+            @Override
+            public void update(byte[] bytes, int offset, int length) {
+                md5.Update(bytes, offset, length);
+            }
+
+            @Override
+            public byte[] digest() {
+                return md5.Final();
+            }
+        };
+    }
 }
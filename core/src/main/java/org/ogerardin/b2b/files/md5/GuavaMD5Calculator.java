@@ -1,5 +1,6 @@
 package org.ogerardin.b2b.files.md5;
 
+import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import org.springframework.stereotype.Component;
 
@@ -14,4 +15,20 @@ public class GuavaMD5Calculator implements MD5Calculator {
     public byte[] md5Hash(byte[] bytes) {
         return Hashing.md5().hashBytes(bytes).asBytes();
     }
+
+    @Override
+    public MD5Digester newDigester() {
+        Hasher hasher = Hashing.md5().newHasher();
+        return new MD5Digester() {
+            @Override
+            public void update(byte[] bytes, int offset, int length) {
+                hasher.putBytes(bytes, offset, length);
+            }
+
+            @Override
+            public byte[] digest() {
+                return hasher.hash().asBytes();
+            }
+        };
+    }
 }
@@ -0,0 +1,330 @@
+package org.ogerardin.b2b.files.md5;
+
+import com.google.common.hash.Hashing;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ogerardin.b2b.files.FileKeys;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of file MD5 hashes, keyed by the file's path and identity attributes (size, last modification time and
+ * file key). An entry is only returned if all the attributes match, so a cached hash can be trusted as long as the
+ * file's metadata can be trusted.
+ *
+ * The cache has a fixed capacity and lives outside of the Java heap: it is either memory-mapped from a file, which
+ * makes it persistent, or held in direct buffers. Entries are 64 bytes and grouped in buckets of {@link #WAYS}
+ * entries; a path can only be stored in the bucket designated by its hash, and when the bucket is full the least
+ * recently used entry of the bucket is evicted. This gives an approximate LRU eviction policy with constant-time
+ * operations.
+ *
+ * A persistent cache may be left inconsistent by a crash, as the pages of the file are written back in no particular
+ * order: each entry therefore has a checksum, and an entry whose checksum doesn't match is ignored. The access stamps
+ * are written live, while the clock they are taken from is only saved when the cache is closed; if it wasn't closed
+ * cleanly, the clock is recovered from the highest stamp in the cache when it is reopened.
+ *
+ * This class is thread-safe.
+ */
+public class HashCache implements Closeable {
+
+    private static final Log logger = LogFactory.getLog(HashCache.class);
+
+    /** Number of entries per bucket */
+    static final int WAYS = 8;
+
+    private static final int ENTRY_SIZE = 64;
+    private static final int BUCKET_SIZE = ENTRY_SIZE * WAYS;
+
+    // entry layout
+    private static final int KEY_HI_OFFSET = 0;
+    private static final int KEY_LO_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int MTIME_OFFSET = 24;
+    /** Hash of the file key, 32 bits */
+    private static final int FILE_KEY_OFFSET = 32;
+    /** Checksum of all the fields but the stamp, 32 bits */
+    private static final int CHECKSUM_OFFSET = 36;
+    private static final int MD5_OFFSET = 40;
+    private static final int MD5_LENGTH = 16;
+    /** Last access stamp; 0 means the entry is free */
+    private static final int STAMP_OFFSET = 56;
+
+    // header layout
+    private static final int HEADER_SIZE = 64;
+    private static final long MAGIC = 0x4232424853484332L; // "B2BHSHC2"
+    private static final int MAGIC_OFFSET = 0;
+    private static final int BUCKET_COUNT_OFFSET = 8;
+    private static final int CLOCK_OFFSET = 16;
+    /** 1 if the cache was closed cleanly, in which case the saved clock can be trusted */
+    private static final int CLEAN_OFFSET = 24;
+
+    /** Buffers are limited to 2GB, so the entries are split in segments */
+    private static final int BUCKETS_PER_SEGMENT = (1 << 30) / BUCKET_SIZE;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final FileChannel channel;
+    private final ByteBuffer header;
+    private final ByteBuffer[] segments;
+    private final long bucketCount;
+    private final AtomicLong clock;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * Opens the specified cache file, or creates it if it doesn't exist. If the file exists but was created with a
+     * different capacity (or isn't a valid cache file), it is reset.
+     * @param file the file to map the cache to, or null for a non-persistent cache
+     * @param maxEntries the capacity of the cache
+     */
+    public HashCache(Path file, long maxEntries) throws IOException {
+        this.bucketCount = Math.max(1, (maxEntries + WAYS - 1) / WAYS);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+
+        int segmentCount = (int) ((bucketCount + BUCKETS_PER_SEGMENT - 1) / BUCKETS_PER_SEGMENT);
+        segments = new ByteBuffer[segmentCount];
+
+        // a reset cache is empty
+        boolean reset = true;
+        if (file == null) {
+            channel = null;
+            header = ByteBuffer.allocateDirect(HEADER_SIZE);
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = ByteBuffer.allocateDirect(segmentSize(i));
+            }
+        } else {
+            channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long fileSize = HEADER_SIZE + bucketCount * BUCKET_SIZE;
+            reset = !isValid(fileSize);
+            if (reset) {
+                logger.info("Initializing hash cache " + file + " (" + maxEntries + " entries)");
+                // truncating and re-mapping the file zeroes it (i.e. all entries are free)
+                channel.truncate(0);
+            }
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            long position = HEADER_SIZE;
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, segmentSize(i));
+                position += segmentSize(i);
+            }
+        }
+
+        long initialClock = 0;
+        if (!reset) {
+            if (header.getLong(CLEAN_OFFSET) == 1) {
+                initialClock = header.getLong(CLOCK_OFFSET);
+            } else {
+                logger.info("Hash cache " + file + " wasn't closed cleanly, recovering its clock");
+                initialClock = maxStamp();
+            }
+        }
+        clock = new AtomicLong(initialClock);
+
+        header.putLong(MAGIC_OFFSET, MAGIC);
+        header.putLong(BUCKET_COUNT_OFFSET, bucketCount);
+        // until closed, the saved clock can't be trusted
+        header.putLong(CLEAN_OFFSET, 0);
+        if (channel != null) {
+            ((MappedByteBuffer) header).force();
+        }
+    }
+
+    /**
+     * Returns true if the cache file has the expected size and a header matching our capacity
+     */
+    private boolean isValid(long expectedSize) throws IOException {
+        if (channel.size() != expectedSize) {
+            return false;
+        }
+        MappedByteBuffer existingHeader = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        return existingHeader.getLong(MAGIC_OFFSET) == MAGIC
+                && existingHeader.getLong(BUCKET_COUNT_OFFSET) == bucketCount;
+    }
+
+    /**
+     * Returns the highest access stamp of all the entries.
+     */
+    private long maxStamp() {
+        long max = 0;
+        for (ByteBuffer segment : segments) {
+            for (int entry = 0; entry < segment.capacity(); entry += ENTRY_SIZE) {
+                max = Math.max(max, segment.getLong(entry + STAMP_OFFSET));
+            }
+        }
+        return max;
+    }
+
+    private int segmentSize(int segment) {
+        long buckets = Math.min(BUCKETS_PER_SEGMENT, bucketCount - (long) segment * BUCKETS_PER_SEGMENT);
+        return (int) (buckets * BUCKET_SIZE);
+    }
+
+    /**
+     * Returns the cached hash of the specified file (as a lowercase hex string), provided the cached entry was
+     * recorded with the specified attributes; otherwise returns null.
+     */
+    public String get(Path path, BasicFileAttributes attributes) {
+        return get(path, attributes.size(), attributes.lastModifiedTime().toInstant(),
+                FileKeys.asString(attributes));
+    }
+
+    public String get(Path path, long size, Instant lastModifiedTime, String fileKey) {
+        byte[] key = pathHash(path);
+        long keyHi = ByteBuffer.wrap(key).getLong(0);
+        long keyLo = ByteBuffer.wrap(key).getLong(8);
+        long bucket = Math.floorMod(keyLo, bucketCount);
+        ByteBuffer segment = segments[(int) (bucket / BUCKETS_PER_SEGMENT)];
+        int base = (int) (bucket % BUCKETS_PER_SEGMENT) * BUCKET_SIZE;
+
+        synchronized (lock(bucket)) {
+            for (int i = 0; i < WAYS; i++) {
+                int entry = base + i * ENTRY_SIZE;
+                if (segment.getLong(entry + STAMP_OFFSET) == 0
+                        || segment.getLong(entry + KEY_HI_OFFSET) != keyHi
+                        || segment.getLong(entry + KEY_LO_OFFSET) != keyLo) {
+                    continue;
+                }
+                if (segment.getLong(entry + SIZE_OFFSET) != size
+                        || segment.getLong(entry + MTIME_OFFSET) != lastModifiedTime.toEpochMilli()
+                        || segment.getInt(entry + FILE_KEY_OFFSET) != fileKeyHash(fileKey)) {
+                    // the file has changed since its hash was cached
+                    return null;
+                }
+                byte[] md5 = new byte[MD5_LENGTH];
+                for (int j = 0; j < MD5_LENGTH; j++) {
+                    md5[j] = segment.get(entry + MD5_OFFSET + j);
+                }
+                if (segment.getInt(entry + CHECKSUM_OFFSET) != checksum(keyHi, keyLo, size,
+                        lastModifiedTime.toEpochMilli(), fileKeyHash(fileKey), md5)) {
+                    // partially written before a crash: free the entry
+                    logger.debug("Ignoring corrupt hash cache entry for " + path);
+                    segment.putLong(entry + STAMP_OFFSET, 0);
+                    return null;
+                }
+                segment.putLong(entry + STAMP_OFFSET, clock.incrementAndGet());
+                return MD5Calculator.toHex(md5);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the hash of the specified file, computed from its contents when it had the specified attributes.
+     */
+    public void put(Path path, BasicFileAttributes attributes, String md5hash) {
+        put(path, attributes.size(), attributes.lastModifiedTime().toInstant(), FileKeys.asString(attributes),
+                md5hash);
+    }
+
+    public void put(Path path, long size, Instant lastModifiedTime, String fileKey, String md5hash) {
+        byte[] md5 = fromHex(md5hash);
+        byte[] key = pathHash(path);
+        long keyHi = ByteBuffer.wrap(key).getLong(0);
+        long keyLo = ByteBuffer.wrap(key).getLong(8);
+        long bucket = Math.floorMod(keyLo, bucketCount);
+        ByteBuffer segment = segments[(int) (bucket / BUCKETS_PER_SEGMENT)];
+        int base = (int) (bucket % BUCKETS_PER_SEGMENT) * BUCKET_SIZE;
+
+        synchronized (lock(bucket)) {
+            // use the entry for the same path if there is one, otherwise a free entry, otherwise the least
+            // recently used one
+            int target = -1;
+            long oldestStamp = Long.MAX_VALUE;
+            for (int i = 0; i < WAYS; i++) {
+                int entry = base + i * ENTRY_SIZE;
+                long stamp = segment.getLong(entry + STAMP_OFFSET);
+                if (stamp != 0
+                        && segment.getLong(entry + KEY_HI_OFFSET) == keyHi
+                        && segment.getLong(entry + KEY_LO_OFFSET) == keyLo) {
+                    target = entry;
+                    break;
+                }
+                if (stamp < oldestStamp) {
+                    oldestStamp = stamp;
+                    target = entry;
+                }
+            }
+
+            segment.putLong(target + KEY_HI_OFFSET, keyHi);
+            segment.putLong(target + KEY_LO_OFFSET, keyLo);
+            segment.putLong(target + SIZE_OFFSET, size);
+            segment.putLong(target + MTIME_OFFSET, lastModifiedTime.toEpochMilli());
+            segment.putInt(target + FILE_KEY_OFFSET, fileKeyHash(fileKey));
+            segment.putInt(target + CHECKSUM_OFFSET, checksum(keyHi, keyLo, size, lastModifiedTime.toEpochMilli(),
+                    fileKeyHash(fileKey), md5));
+            for (int j = 0; j < MD5_LENGTH; j++) {
+                segment.put(target + MD5_OFFSET + j, md5[j]);
+            }
+            segment.putLong(target + STAMP_OFFSET, clock.incrementAndGet());
+        }
+    }
+
+    /**
+     * Writes the cache to disk (no-op for a non-persistent cache). The saved clock is only trusted once the cache has
+     * been closed.
+     */
+    public void flush() {
+        header.putLong(CLOCK_OFFSET, clock.get());
+        if (channel != null) {
+            ((MappedByteBuffer) header).force();
+            for (ByteBuffer segment : segments) {
+                ((MappedByteBuffer) segment).force();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        // the entries are on disk, so the clock can be trusted
+        header.putLong(CLEAN_OFFSET, 1);
+        if (channel != null) {
+            ((MappedByteBuffer) header).force();
+            channel.close();
+        }
+    }
+
+    private Object lock(long bucket) {
+        return locks[(int) (bucket % LOCK_STRIPES)];
+    }
+
+    private static byte[] pathHash(Path path) {
+        return Hashing.murmur3_128().hashString(path.toAbsolutePath().toString(), StandardCharsets.UTF_8).asBytes();
+    }
+
+    private static int fileKeyHash(String fileKey) {
+        return fileKey == null ? 0 : Hashing.murmur3_32().hashString(fileKey, StandardCharsets.UTF_8).asInt();
+    }
+
+    private static int checksum(long keyHi, long keyLo, long size, long lastModifiedTime, int fileKeyHash,
+                                byte[] md5) {
+        return Hashing.murmur3_32().newHasher()
+                .putLong(keyHi)
+                .putLong(keyLo)
+                .putLong(size)
+                .putLong(lastModifiedTime)
+                .putInt(fileKeyHash)
+                .putBytes(md5)
+                .hash().asInt();
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
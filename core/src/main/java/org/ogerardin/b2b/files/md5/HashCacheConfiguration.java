@@ -0,0 +1,30 @@
+package org.ogerardin.b2b.files.md5;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ogerardin.b2b.B2BProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Provides the application-wide {@link HashCache}, shared by all backup sets so that a file hashed for one of them
+ * doesn't need to be hashed again for another.
+ */
+@Configuration
+public class HashCacheConfiguration {
+
+    private static final Log logger = LogFactory.getLog(HashCacheConfiguration.class);
+
+    @Bean(destroyMethod = "close")
+    public HashCache hashCache(B2BProperties properties) throws IOException {
+        String fileName = properties.getHashCacheFile();
+        Path file = StringUtils.isEmpty(fileName) ? null : Paths.get(fileName);
+        logger.info("Opening hash cache: " + (file != null ? file.toAbsolutePath() : "(in memory)"));
+        return new HashCache(file, properties.getHashCacheEntries());
+    }
+}
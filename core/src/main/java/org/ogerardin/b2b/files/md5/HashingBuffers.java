@@ -0,0 +1,41 @@
+package org.ogerardin.b2b.files.md5;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Provides per-thread buffers for hashing streams and channels, so that hashing a file uses a fixed amount of memory
+ * regardless of its size, and doesn't allocate a new buffer every time.
+ */
+final class HashingBuffers {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> STREAM_BUFFER =
+            ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private static final ThreadLocal<ByteBuffer> CHANNEL_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private static final ThreadLocal<byte[]> SCRATCH_BUFFER =
+            ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private HashingBuffers() {
+    }
+
+    /** Buffer used to read from an {@link java.io.InputStream} */
+    static byte[] streamBuffer() {
+        return STREAM_BUFFER.get();
+    }
+
+    /** Direct buffer used to read from a {@link java.nio.channels.ReadableByteChannel}; it is returned cleared */
+    static ByteBuffer channelBuffer() {
+        ByteBuffer buffer = CHANNEL_BUFFER.get();
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Buffer used by {@link MD5Digester#update(ByteBuffer)} to copy bytes out of a direct buffer */
+    static byte[] heapBuffer() {
+        return SCRATCH_BUFFER.get();
+    }
+}
@@ -13,10 +13,19 @@ public class JavaMD5Calculator implements MD5Calculator {
 
     @Override
     public byte[] md5Hash(byte[] bytes) {
+        MessageDigest md = getMessageDigest();
+        md.update(bytes);
+        return md.digest();
+    }
+
+    @Override
+    public MD5Digester newDigester() {
+        return new MessageDigestMD5Digester(getMessageDigest());
+    }
+
+    private static MessageDigest getMessageDigest() {
         try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            md.update(bytes);
-            return md.digest();
+            return MessageDigest.getInstance("MD5");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
@@ -1,6 +1,12 @@
 package org.ogerardin.b2b.files.md5;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -8,9 +14,62 @@ public interface MD5Calculator {
 
     byte[] md5Hash(byte[] bytes);
 
+    /**
+     * Returns a new {@link MD5Digester} that computes a hash incrementally; this is the basis for hashing
+     * streams, channels and files.
+     */
+    MD5Digester newDigester();
+
+    /**
+     * Hashes the remaining contents of the specified stream, using a fixed size buffer. The stream is not closed.
+     */
+    default byte[] md5Hash(InputStream inputStream) throws IOException {
+        MD5Digester digester = newDigester();
+        byte[] buffer = HashingBuffers.streamBuffer();
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+            digester.update(buffer, 0, length);
+        }
+        return digester.digest();
+    }
+
+    /**
+     * Hashes the remaining contents of the specified channel, using a fixed size direct buffer. The channel is not
+     * closed.
+     */
+    default byte[] md5Hash(ReadableByteChannel channel) throws IOException {
+        MD5Digester digester = newDigester();
+        ByteBuffer buffer = HashingBuffers.channelBuffer();
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            digester.update(buffer);
+            buffer.clear();
+        }
+        return digester.digest();
+    }
+
+    /**
+     * Hashes the contents of the specified file without loading it in memory.
+     */
+    default byte[] md5Hash(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return md5Hash(channel);
+        }
+    }
+
     default String hexMd5Hash(byte[] bytes) {
-        byte[] hashBytes = md5Hash(bytes);
+        return toHex(md5Hash(bytes));
+    }
+
+    default String hexMd5Hash(InputStream inputStream) throws IOException {
+        return toHex(md5Hash(inputStream));
+    }
+
+    default String hexMd5Hash(Path path) throws IOException {
+        return toHex(md5Hash(path));
+    }
 
+    static String toHex(byte[] hashBytes) {
         ByteBuffer buffer = ByteBuffer.wrap(hashBytes);
         return IntStream.generate(buffer::get).limit(buffer.remaining()) //get a stream of ints
                 .map(b -> (0xFF & b)) //as unsigned byte
@@ -0,0 +1,35 @@
+package org.ogerardin.b2b.files.md5;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Computes a MD5 hash incrementally. Instances are obtained from {@link MD5Calculator#newDigester()} and are not
+ * thread-safe.
+ */
+public interface MD5Digester {
+
+    void update(byte[] bytes, int offset, int length);
+
+    /**
+     * Updates the digest with the remaining bytes of the specified buffer. The default implementation copies the
+     * bytes through a reusable heap buffer if the buffer is not backed by an array.
+     */
+    default void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        byte[] bytes = HashingBuffers.heapBuffer();
+        while (buffer.hasRemaining()) {
+            int length = Math.min(bytes.length, buffer.remaining());
+            buffer.get(bytes, 0, length);
+            update(bytes, 0, length);
+        }
+    }
+
+    /**
+     * Completes the computation and returns the hash. The digester must not be used afterwards.
+     */
+    byte[] digest();
+}
@@ -0,0 +1,32 @@
+package org.ogerardin.b2b.files.md5;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * {@link MD5Digester} backed by a {@link MessageDigest}. Direct buffers are passed as is to the
+ * {@link MessageDigest}, which avoids copying them to the heap.
+ */
+class MessageDigestMD5Digester implements MD5Digester {
+
+    private final MessageDigest messageDigest;
+
+    MessageDigestMD5Digester(MessageDigest messageDigest) {
+        this.messageDigest = messageDigest;
+    }
+
+    @Override
+    public void update(byte[] bytes, int offset, int length) {
+        messageDigest.update(bytes, offset, length);
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        messageDigest.update(buffer);
+    }
+
+    @Override
+    public byte[] digest() {
+        return messageDigest.digest();
+    }
+}
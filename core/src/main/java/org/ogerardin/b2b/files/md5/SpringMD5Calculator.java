@@ -3,6 +3,9 @@ package org.ogerardin.b2b.files.md5;
 import org.springframework.stereotype.Component;
 import org.springframework.util.DigestUtils;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 /**
  * MD5 hash calculator using Spring's {@link DigestUtils}
  */
@@ -13,4 +16,17 @@ public class SpringMD5Calculator implements MD5Calculator {
     public byte[] md5Hash(byte[] bytes) {
         return DigestUtils.md5Digest(bytes);
     }
+
+    /**
+     * Spring's {@link DigestUtils} doesn't provide incremental hashing, so we use a {@link MessageDigest} directly,
+     * which is what {@link DigestUtils} does internally.
+     */
+    @Override
+    public MD5Digester newDigester() {
+        try {
+            return new MessageDigestMD5Digester(MessageDigest.getInstance("MD5"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
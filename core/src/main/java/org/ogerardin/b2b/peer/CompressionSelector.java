@@ -0,0 +1,210 @@
+package org.ogerardin.b2b.peer;
+
+import org.ogerardin.b2b.storage.compression.Codec;
+import org.ogerardin.b2b.storage.compression.Codecs;
+import org.ogerardin.b2b.storage.compression.CompressionPolicy;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Chooses the codec used to send each file to a peer. Compressing only pays off if the time it takes is less than the
+ * time it saves on the network: a file is compressed with the codec that minimizes the estimated time to send it,
+ * i.e. the time to compress it plus the time to send the compressed bytes, and sent as is if no codec beats sending
+ * it uncompressed. On a slow link (e.g. the upload of a home connection) compressible files are compressed, with the
+ * strongest codec if the link is slow enough; on a fast LAN they are sent as is.
+ *
+ * The estimates are adjusted as files are sent: the link throughput is measured from the time spent sending, the
+ * speed of each codec from the time spent compressing, and the compression ratio of each codec relative to the ratio
+ * of the sample taken before choosing (see {@link CompressionPolicy#sampleRatio}).
+ *
+ * An instance is meant to be shared by the successive {@link PeerClient}s connected to the same peer, so that the
+ * estimates aren't lost when reconnecting. It also keeps statistics of the codecs chosen and the ratios achieved.
+ */
+public class CompressionSelector {
+
+    /** Name under which files sent uncompressed are counted in the statistics */
+    public static final String NONE = "none";
+
+    /** Link throughput assumed before it is measured: 10 Mbit/s, i.e. compress unless proven useless */
+    private static final double INITIAL_LINK_THROUGHPUT = 10_000_000 / 8;
+
+    /** Transfers smaller than this are too short to measure throughput */
+    private static final long MIN_MEASURED_SIZE = 256 * 1024;
+
+    /** Weight of a new measure in the estimates */
+    private static final double SMOOTHING = 0.3;
+
+    private final double maxRatio;
+    private final List<Candidate> candidates;
+
+    /** Estimated throughput of the link, in bytes per second */
+    private double linkThroughput = INITIAL_LINK_THROUGHPUT;
+
+    private final Map<String, Statistics> statistics = new TreeMap<>();
+
+    /**
+     * @param maxRatio files whose sample doesn't compress to less than this fraction of its size are sent as is
+     */
+    public CompressionSelector(double maxRatio) {
+        this(maxRatio, Arrays.asList(
+                // initial estimates of speed (bytes of input per second) and ratio relative to the sample
+                new Candidate(Codecs.get(Codecs.DEFLATE_FAST), 60_000_000, 1.0),
+                new Candidate(Codecs.get(Codecs.DEFLATE), 20_000_000, 0.9)));
+    }
+
+    CompressionSelector(double maxRatio, List<Candidate> candidates) {
+        this.maxRatio = maxRatio;
+        this.candidates = candidates;
+    }
+
+    /**
+     * Chooses the codec for a file, given a sample of its contents.
+     */
+    public synchronized Choice choose(byte[] sample, int length) {
+        double sampleRatio = CompressionPolicy.sampleRatio(sample, length);
+        if (sampleRatio >= maxRatio) {
+            return new Choice(null, sampleRatio);
+        }
+        // estimated time per byte of the file
+        Candidate best = null;
+        double bestTime = 1 / linkThroughput;
+        for (Candidate candidate : candidates) {
+            double ratio = Math.min(1, sampleRatio * candidate.relativeRatio);
+            double time = 1 / candidate.speed + ratio / linkThroughput;
+            if (time < bestTime) {
+                best = candidate;
+                bestTime = time;
+            }
+        }
+        return new Choice((best == null) ? null : best.codec, sampleRatio);
+    }
+
+    /**
+     * Records the outcome of sending a file.
+     * @param choice the codec chosen for the file
+     * @param inputBytes the number of bytes of the file sent
+     * @param wireBytes the number of bytes actually sent, i.e. once compressed
+     * @param compressNanos the time spent reading and compressing the file
+     * @param transmitNanos the time spent sending
+     */
+    public synchronized void record(Choice choice, long inputBytes, long wireBytes, long compressNanos,
+                                    long transmitNanos) {
+        Codec codec = choice.getCodec();
+        statistics.computeIfAbsent((codec == null) ? NONE : codec.getName(), name -> new Statistics())
+                .add(inputBytes, wireBytes);
+
+        if (wireBytes >= MIN_MEASURED_SIZE && transmitNanos > 0) {
+            linkThroughput = smooth(linkThroughput, wireBytes * 1e9 / transmitNanos);
+        }
+        if (codec != null && inputBytes >= MIN_MEASURED_SIZE && compressNanos > 0) {
+            for (Candidate candidate : candidates) {
+                if (candidate.codec == codec) {
+                    candidate.speed = smooth(candidate.speed, inputBytes * 1e9 / compressNanos);
+                    double ratio = (double) wireBytes / inputBytes;
+                    candidate.relativeRatio = smooth(candidate.relativeRatio, ratio / choice.getSampleRatio());
+                }
+            }
+        }
+    }
+
+    private static double smooth(double estimate, double measure) {
+        return estimate + SMOOTHING * (measure - estimate);
+    }
+
+    /**
+     * Returns the estimated throughput of the link, in bytes per second.
+     */
+    public synchronized double getLinkThroughput() {
+        return linkThroughput;
+    }
+
+    /**
+     * Returns the statistics of the files sent, by codec name ({@link #NONE} for files sent uncompressed).
+     */
+    public synchronized Map<String, Statistics> getStatistics() {
+        Map<String, Statistics> copy = new TreeMap<>();
+        statistics.forEach((name, stats) -> copy.put(name, new Statistics(stats)));
+        return copy;
+    }
+
+    /**
+     * The codec chosen for a file (null to send it uncompressed), and the compression ratio of its sample.
+     */
+    public static class Choice {
+        private final Codec codec;
+        private final double sampleRatio;
+
+        Choice(Codec codec, double sampleRatio) {
+            this.codec = codec;
+            this.sampleRatio = sampleRatio;
+        }
+
+        public Codec getCodec() {
+            return codec;
+        }
+
+        public double getSampleRatio() {
+            return sampleRatio;
+        }
+    }
+
+    /**
+     * Number of files sent with a codec, and bytes before and after compression.
+     */
+    public static class Statistics {
+        private long fileCount;
+        private long inputBytes;
+        private long wireBytes;
+
+        Statistics() {
+        }
+
+        Statistics(Statistics other) {
+            this.fileCount = other.fileCount;
+            this.inputBytes = other.inputBytes;
+            this.wireBytes = other.wireBytes;
+        }
+
+        void add(long inputBytes, long wireBytes) {
+            this.fileCount++;
+            this.inputBytes += inputBytes;
+            this.wireBytes += wireBytes;
+        }
+
+        public long getFileCount() {
+            return fileCount;
+        }
+
+        public long getInputBytes() {
+            return inputBytes;
+        }
+
+        public long getWireBytes() {
+            return wireBytes;
+        }
+
+        /**
+         * Returns the achieved compression ratio, i.e. the bytes sent as a fraction of the bytes of the files.
+         */
+        public double getRatio() {
+            return (inputBytes == 0) ? 1 : (double) wireBytes / inputBytes;
+        }
+    }
+
+    static class Candidate {
+        private final Codec codec;
+        /** Estimated speed, in bytes of input per second */
+        private double speed;
+        /** Estimated compression ratio, relative to the ratio of the sample */
+        private double relativeRatio;
+
+        Candidate(Codec codec, double speed, double relativeRatio) {
+            this.codec = codec;
+            this.speed = speed;
+            this.relativeRatio = relativeRatio;
+        }
+    }
+}
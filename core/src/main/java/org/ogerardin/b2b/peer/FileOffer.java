@@ -0,0 +1,18 @@
+package org.ogerardin.b2b.peer;
+
+import lombok.Data;
+
+/**
+ * A file offered to a peer before being sent (see {@link PeerClient#offer}).
+ */
+@Data
+public class FileOffer {
+
+    /** The file's path, as it is stored by the peer */
+    private final String filename;
+
+    private final long size;
+
+    /** MD5 hash of the file's contents, in hexadecimal */
+    private final String md5hash;
+}
@@ -0,0 +1,110 @@
+package org.ogerardin.b2b.peer;
+
+import lombok.Data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A frame of the peer protocol (see {@link PeerProtocol}).
+ */
+@Data
+class Frame {
+
+    private final byte type;
+    private final int streamId;
+    private final byte[] payload;
+
+    /**
+     * Returns a stream to read the fields of the payload.
+     */
+    DataInputStream payloadInput() {
+        return new DataInputStream(new ByteArrayInputStream(payload));
+    }
+
+    /**
+     * Writes this frame entirely to the specified (blocking) channel.
+     */
+    void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PeerProtocol.HEADER_SIZE + payload.length);
+        buffer.put(type).putInt(streamId).putInt(payload.length).put(payload);
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+
+    static ByteBuffer header(byte type, int streamId, int length) {
+        ByteBuffer header = ByteBuffer.allocate(PeerProtocol.HEADER_SIZE);
+        header.put(type).putInt(streamId).putInt(length);
+        header.flip();
+        return header;
+    }
+
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a frame from the specified (blocking) channel.
+     * @return the frame read, or null if the channel reached end-of-stream before the frame
+     */
+    static Frame read(ReadableByteChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PeerProtocol.HEADER_SIZE);
+        if (!readFully(channel, header, true)) {
+            return null;
+        }
+        header.flip();
+        byte type = header.get();
+        int streamId = header.getInt();
+        int length = checkLength(type, header.getInt());
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, false);
+        return new Frame(type, streamId, payload.array());
+    }
+
+    /**
+     * Checks that the specified payload length is valid for the specified frame type.
+     */
+    static int checkLength(byte type, int length) throws PeerException {
+        int max = (type == PeerProtocol.DATA) ? PeerProtocol.MAX_DATA_PAYLOAD : PeerProtocol.MAX_CONTROL_PAYLOAD;
+        if (length < 0 || length > max) {
+            throw new PeerException("Invalid length " + length + " for frame of type " + type);
+        }
+        return length;
+    }
+
+    private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer, boolean eofAllowed)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (eofAllowed && buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds a frame whose payload is written by the specified writer.
+     */
+    static Frame of(byte type, int streamId, PayloadWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        } catch (IOException e) {
+            // can't happen with a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        return new Frame(type, streamId, bytes.toByteArray());
+    }
+
+    @FunctionalInterface
+    interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
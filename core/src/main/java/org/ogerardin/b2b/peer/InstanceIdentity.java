@@ -0,0 +1,55 @@
+package org.ogerardin.b2b.peer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ogerardin.b2b.B2BProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+/**
+ * Holds the ID of this computer, which identifies it to the peers it sends files to. The ID is generated on first
+ * start and persisted, so that it survives restarts.
+ */
+@Component
+public class InstanceIdentity {
+
+    private static final Log logger = LogFactory.getLog(InstanceIdentity.class);
+
+    private final UUID computerId;
+
+    @Autowired
+    public InstanceIdentity(B2BProperties properties) throws IOException {
+        this(Paths.get(properties.getComputerIdFile()));
+    }
+
+    InstanceIdentity(Path file) throws IOException {
+        if (Files.exists(file)) {
+            String id = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+            try {
+                computerId = UUID.fromString(id);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid computer ID in " + file.toAbsolutePath() + ": " + id, e);
+            }
+        } else {
+            computerId = UUID.randomUUID();
+            // write to a temporary file first, so that a crash doesn't leave a truncated ID
+            Path absolute = file.toAbsolutePath();
+            Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+            Files.write(temp, computerId.toString().getBytes(StandardCharsets.US_ASCII));
+            Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Generated computer ID " + computerId + " in " + absolute);
+        }
+    }
+
+    public UUID getComputerId() {
+        return computerId;
+    }
+}
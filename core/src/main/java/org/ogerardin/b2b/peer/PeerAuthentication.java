@@ -0,0 +1,98 @@
+package org.ogerardin.b2b.peer;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Challenge-response authentication of the peer protocol (see {@link PeerProtocol#HELLO}).
+ *
+ * A receiver only accepts the computers it has been paired with, each with a secret shared with that computer. The
+ * secret is never sent: each side proves it knows it by sending an HMAC of both sides' random nonces, so that a proof
+ * can't be replayed on another connection. The sender's proof also covers its computer ID, and the receiver's proof is
+ * computed differently from the sender's, so that one can't be reflected as the other.
+ */
+public final class PeerAuthentication {
+
+    /** Length of the nonces, of the proofs, and of the generated secrets */
+    static final int LENGTH = 32;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private PeerAuthentication() {
+    }
+
+    /**
+     * Generates a new shared secret, as a hex string, to pair a computer with this instance.
+     */
+    public static String newSecret() {
+        return Hex.encodeHexString(nonce());
+    }
+
+    /**
+     * Decodes a shared secret generated by {@link #newSecret()}.
+     * @throws IllegalArgumentException if the secret isn't a hex string
+     */
+    public static byte[] decodeSecret(String secret) {
+        try {
+            return Hex.decodeHex(secret.toCharArray());
+        } catch (DecoderException e) {
+            throw new IllegalArgumentException("Invalid peer secret", e);
+        }
+    }
+
+    static byte[] nonce() {
+        byte[] nonce = new byte[LENGTH];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Returns the proof sent by the sender in the {@link PeerProtocol#RESPONSE}.
+     */
+    static byte[] senderProof(byte[] secret, UUID computerId, byte[] senderNonce, byte[] receiverNonce) {
+        ByteBuffer id = ByteBuffer.allocate(16)
+                .putLong(computerId.getMostSignificantBits())
+                .putLong(computerId.getLeastSignificantBits());
+        return hmac(secret, "sender", id.array(), senderNonce, receiverNonce);
+    }
+
+    /**
+     * Returns the proof sent by the receiver in the {@link PeerProtocol#WELCOME}.
+     */
+    static byte[] receiverProof(byte[] secret, byte[] senderNonce, byte[] receiverNonce) {
+        return hmac(secret, "receiver", senderNonce, receiverNonce);
+    }
+
+    /**
+     * Compares proofs in constant time.
+     */
+    static boolean matches(byte[] expected, byte[] actual) {
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    private static byte[] hmac(byte[] secret, String role, byte[]... parts) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret, ALGORITHM));
+            mac.update(role.getBytes(StandardCharsets.US_ASCII));
+            for (byte[] part : parts) {
+                mac.update(part);
+            }
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is available in every JRE
+            throw new IllegalStateException(e);
+        }
+    }
+}
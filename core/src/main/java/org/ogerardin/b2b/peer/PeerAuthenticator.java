@@ -0,0 +1,23 @@
+package org.ogerardin.b2b.peer;
+
+import org.ogerardin.b2b.storage.StorageService;
+
+import java.util.UUID;
+
+/**
+ * Decides which computers may send files to this instance, and where their files are stored.
+ */
+public interface PeerAuthenticator {
+
+    /**
+     * @return the secret shared with the specified computer when it was paired with this instance, or null if the
+     * computer is not paired
+     */
+    byte[] getSharedSecret(UUID computerId);
+
+    /**
+     * @return the {@link StorageService} into which the files sent by the specified computer must be stored; only
+     * called once the computer has proved it knows the shared secret
+     */
+    StorageService getStorageService(UUID computerId);
+}
@@ -0,0 +1,706 @@
+package org.ogerardin.b2b.peer;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ogerardin.b2b.storage.compression.Codec;
+import org.ogerardin.b2b.storage.compression.CompressionPolicy;
+import org.ogerardin.b2b.throttle.Throttle;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sending side of a connection to a peer back2back instance (see {@link PeerProtocol}).
+ *
+ * Sending is pipelined: {@link #send(Path)} returns as soon as the file has been sent, without waiting for the peer
+ * to store it; the returned future completes when the peer acknowledges the file. Up to the number of streams allowed
+ * by the peer can be in flight at the same time. The client is thread-safe: files sent from several threads are
+ * multiplexed over the connection.
+ *
+ * File contents are sent with {@link FileChannel#transferTo}, so that they are not copied through the JVM. To avoid
+ * sending files the peer already has, they can be {@link #offer}ed first.
+ *
+ * Large files are staged by the peer until they are complete, if the peer supports it: if their transfer is
+ * interrupted, e.g. because the connection was lost, sending them again resumes from the last block staged by the peer
+ * that matches the file. The blocks acknowledged by the peer are recorded in {@link TransferCheckpoints}.
+ *
+ * If a {@link CompressionSelector} is provided, each file is compressed on the wire with the codec it chooses for the
+ * file, if any; the peer decompresses it before storing it. Compressed contents are read through the JVM instead of
+ * being transferred directly.
+ *
+ * If a {@link Throttle} is set, the bytes read from the files, to be sent or to verify staged blocks, are limited by
+ * it.
+ */
+public class PeerClient implements Closeable {
+
+    private static final Log logger = LogFactory.getLog(PeerClient.class);
+
+    private static final int CONNECT_TIMEOUT = 30 * 1000;
+
+    /** Maximum payload of a DATA frame of compressed contents */
+    private static final int COMPRESSED_BUFFER_SIZE = 256 * 1024;
+
+    private final SocketChannel channel;
+    /** Held while writing a frame, so that frames of different streams don't overlap */
+    private final Object writeLock = new Object();
+
+    private final Map<Integer, OutgoingStream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+    private Semaphore streamSlots;
+    private int streamWindow;
+    /** Files at least this large are staged by the peer; 0 if the peer doesn't stage files */
+    private long stagingThreshold;
+    private final TransferCheckpoints checkpoints;
+    /** Null to never compress */
+    private final CompressionSelector compressionSelector;
+    /** Null to read files as fast as possible */
+    private volatile Throttle throttle;
+
+    /** Set when the connection is no longer usable */
+    private volatile IOException failure;
+
+    public PeerClient(InetSocketAddress address, UUID computerId, byte[] secret) throws IOException {
+        this(address, computerId, secret, new TransferCheckpoints());
+    }
+
+    public PeerClient(InetSocketAddress address, UUID computerId, byte[] secret, TransferCheckpoints checkpoints)
+            throws IOException {
+        this(address, computerId, secret, checkpoints, null);
+    }
+
+    /**
+     * @param computerId ID of this computer, which the peer must have been paired with
+     * @param secret secret shared with the peer when this computer was paired with it
+     * @param compressionSelector chooses the codec used to send each file, or null to send files uncompressed
+     */
+    public PeerClient(InetSocketAddress address, UUID computerId, byte[] secret, TransferCheckpoints checkpoints,
+                      CompressionSelector compressionSelector) throws IOException {
+        this.checkpoints = checkpoints;
+        this.compressionSelector = compressionSelector;
+        channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.socket().connect(address, CONNECT_TIMEOUT);
+            handshake(computerId, secret);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        Thread readerThread = new Thread(this::readFrames, "peer-client-" + address);
+        readerThread.setDaemon(true);
+        readerThread.start();
+        logger.info("Connected to peer " + address);
+    }
+
+    /**
+     * Limits the bytes read from the files by the specified throttle, or by none if null. Limiting the number of files
+     * is up to the caller.
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    private void handshake(UUID computerId, byte[] secret) throws IOException {
+        byte[] senderNonce = PeerAuthentication.nonce();
+        Frame.of(PeerProtocol.HELLO, 0, out -> {
+            out.writeInt(PeerProtocol.VERSION);
+            out.writeLong(computerId.getMostSignificantBits());
+            out.writeLong(computerId.getLeastSignificantBits());
+            out.write(senderNonce);
+        }).writeTo(channel);
+
+        DataInputStream in = readHandshakeReply(PeerProtocol.CHALLENGE);
+        byte[] receiverNonce = new byte[PeerAuthentication.LENGTH];
+        in.readFully(receiverNonce);
+        Frame.of(PeerProtocol.RESPONSE, 0,
+                out -> out.write(PeerAuthentication.senderProof(secret, computerId, senderNonce, receiverNonce)))
+                .writeTo(channel);
+
+        in = readHandshakeReply(PeerProtocol.WELCOME);
+        int maxStreams = in.readInt();
+        streamWindow = in.readInt();
+        stagingThreshold = in.readLong();
+        byte[] proof = new byte[PeerAuthentication.LENGTH];
+        in.readFully(proof);
+        if (!PeerAuthentication.matches(PeerAuthentication.receiverProof(secret, senderNonce, receiverNonce), proof)) {
+            throw new PeerException("The peer doesn't know the shared secret");
+        }
+        streamSlots = new Semaphore(maxStreams);
+    }
+
+    /**
+     * Reads a frame of the handshake, and returns its payload if it is of the expected type.
+     * @throws PeerException if the peer sent an error or another frame
+     */
+    private DataInputStream readHandshakeReply(byte expectedType) throws IOException {
+        Frame reply = Frame.read(channel);
+        if (reply == null) {
+            throw new PeerException("Connection closed by peer during handshake");
+        }
+        DataInputStream in = reply.payloadInput();
+        if (reply.getType() == PeerProtocol.ERROR) {
+            throw new PeerException("Rejected by peer: " + in.readUTF());
+        }
+        if (reply.getType() != expectedType) {
+            throw new PeerException("Unexpected frame type during handshake: " + reply.getType());
+        }
+        return in;
+    }
+
+    /**
+     * Sends the specified file to the peer. This method blocks while the peer doesn't allow more data to be sent.
+     * @return a future that completes when the peer has stored the file, or completes exceptionally if the peer
+     * failed to store it or the connection was lost.
+     * @throws IOException if the file can't be read, or if the connection is not usable (see {@link #isBroken()})
+     */
+    public CompletableFuture<Void> send(Path path) throws IOException, InterruptedException {
+        checkNotBroken();
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            long lastModified = Files.getLastModifiedTime(path).toMillis();
+
+            CompressionSelector.Choice choice = (compressionSelector == null) ? null : chooseCodec(file);
+            Codec codec = (choice == null) ? null : choice.getCodec();
+
+            OutgoingStream stream = openStream();
+            try {
+                boolean staged = stagingThreshold > 0 && size >= stagingThreshold;
+                if (staged) {
+                    stream.stage(path.toString(), size, lastModified);
+                }
+                write(Frame.of(staged ? PeerProtocol.STAGE : PeerProtocol.OPEN, stream.id, out -> {
+                    out.writeUTF(path.toString());
+                    out.writeLong(size);
+                    out.writeLong(lastModified);
+                    out.writeUTF((codec == null) ? "" : codec.getName());
+                }));
+                long position = 0;
+                if (staged) {
+                    position = resumePosition(stream, file);
+                    if (position < 0) {
+                        // failed by the peer
+                        return stream.future;
+                    }
+                    long offset = position;
+                    write(Frame.of(PeerProtocol.RESUME, stream.id, out -> out.writeLong(offset)));
+                }
+                boolean complete;
+                Transfer transfer = new Transfer();
+                long start = System.nanoTime();
+                try {
+                    complete = (codec == null) ? sendContents(stream, file, position, size, transfer)
+                            : sendCompressed(stream, file, position, size, codec, transfer);
+                } catch (InterruptedException e) {
+                    write(Frame.of(PeerProtocol.END, stream.id, out -> out.writeBoolean(false)));
+                    throw e;
+                }
+                write(Frame.of(PeerProtocol.END, stream.id, out -> out.writeBoolean(complete)));
+                if (complete && choice != null) {
+                    // time spent throttled says nothing about the link or the codec
+                    long elapsed = System.nanoTime() - start - transfer.throttleNanos;
+                    compressionSelector.record(choice, size - position, transfer.wireBytes, transfer.compressNanos,
+                            elapsed - transfer.compressNanos);
+                }
+            } catch (IOException e) {
+                // a frame may have been partially written: the connection can't be used anymore
+                fail(e);
+                throw e;
+            }
+            return stream.future;
+        }
+    }
+
+    /**
+     * Offers the specified files to the peer, which answers with those it needs: files whose latest version on the
+     * peer has the same contents, and files whose contents the peer has under another path (which it copies locally),
+     * don't need to be sent. An offer costs a few dozen bytes per file, whatever the size of the file.
+     * The files are offered in batches that are all sent before waiting for the answers.
+     * @return the offered files that must be sent, in the same order
+     */
+    public List<FileOffer> offer(List<FileOffer> files) throws IOException, InterruptedException {
+        checkNotBroken();
+        List<OutgoingStream> batches = new ArrayList<>();
+        int start = 0;
+        while (start < files.size()) {
+            // as many files as fit in a frame
+            int end = start;
+            int length = 4;
+            while (end < files.size()) {
+                int fileLength = encodedLength(files.get(end));
+                if (end > start && length + fileLength > PeerProtocol.MAX_CONTROL_PAYLOAD) {
+                    break;
+                }
+                length += fileLength;
+                end++;
+            }
+            batches.add(sendOffer(files.subList(start, end)));
+            start = end;
+        }
+
+        List<FileOffer> needed = new ArrayList<>();
+        for (OutgoingStream batch : batches) {
+            try {
+                batch.future.get();
+            } catch (ExecutionException e) {
+                throw (e.getCause() instanceof IOException) ? (IOException) e.getCause()
+                        : new PeerException("Offer failed", e.getCause());
+            }
+            needed.addAll(batch.needed);
+        }
+        return needed;
+    }
+
+    private OutgoingStream sendOffer(List<FileOffer> files) throws IOException, InterruptedException {
+        OutgoingStream stream = openStream();
+        stream.offered = files;
+        try {
+            write(Frame.of(PeerProtocol.OFFER, stream.id, out -> {
+                out.writeInt(files.size());
+                for (FileOffer file : files) {
+                    out.writeUTF(file.getFilename());
+                    out.writeLong(file.getSize());
+                    try {
+                        out.write(Hex.decodeHex(file.getMd5hash().toCharArray()));
+                    } catch (DecoderException e) {
+                        throw new IllegalArgumentException("Invalid MD5 hash: " + file.getMd5hash(), e);
+                    }
+                }
+            }));
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        }
+        return stream;
+    }
+
+    /**
+     * Returns an upper bound of the length of the specified file in an offer.
+     */
+    private static int encodedLength(FileOffer file) {
+        return 2 + 3 * file.getFilename().length() + 8 + PeerProtocol.MD5_LENGTH;
+    }
+
+    private OutgoingStream openStream() throws IOException, InterruptedException {
+        streamSlots.acquire();
+        OutgoingStream stream = new OutgoingStream(nextStreamId.getAndIncrement(), streamWindow);
+        streams.put(stream.id, stream);
+        stream.future.whenComplete((result, e) -> {
+            streams.remove(stream.id);
+            streamSlots.release();
+            // the peer may fail the stream before all of it is sent
+            stream.wakeUp();
+        });
+        if (failure != null) {
+            // the connection failed after checkNotBroken
+            stream.future.completeExceptionally(failure);
+            throw failure;
+        }
+        return stream;
+    }
+
+    /**
+     * Waits for the hashes of the blocks of a staged file already staged by the peer, and verifies them against the
+     * recorded checkpoints or the file's contents.
+     * @return the offset from which the file must be sent, i.e. the end of the last block that matches, or -1 if the
+     * peer failed the stream
+     */
+    private long resumePosition(OutgoingStream stream, FileChannel file) throws IOException, InterruptedException {
+        try {
+            CompletableFuture.anyOf(stream.staged, stream.future).get();
+        } catch (ExecutionException e) {
+            // the stream failed
+        } catch (InterruptedException e) {
+            // the peer is waiting for RESUME, which we can't send without knowing the blocks
+            fail(new PeerException("Interrupted while waiting for peer"));
+            throw e;
+        }
+        if (stream.future.isDone()) {
+            return -1;
+        }
+
+        int blockSize = stream.blockSize;
+        List<byte[]> recorded = checkpoints.getBlocks(stream.filename, stream.size, stream.lastModified, blockSize);
+        List<byte[]> stagedBlocks = stream.stagedBlocks;
+        int verified = 0;
+        try {
+            while (verified < stagedBlocks.size()) {
+                byte[] hash = (verified < recorded.size()) ? recorded.get(verified)
+                        : hashBlock(file, verified, blockSize);
+                if (!Arrays.equals(hash, stagedBlocks.get(verified))) {
+                    break;
+                }
+                checkpoints.record(stream.filename, stream.size, stream.lastModified, blockSize, verified, hash);
+                verified++;
+            }
+        } catch (InterruptedException e) {
+            fail(new PeerException("Interrupted while verifying staged blocks"));
+            throw e;
+        }
+        if (verified > 0) {
+            logger.info("Resuming transfer of " + stream.filename + " after " + verified + " blocks");
+        }
+        return Math.min((long) verified * blockSize, stream.size);
+    }
+
+    private byte[] hashBlock(FileChannel file, int index, int blockSize) throws IOException, InterruptedException {
+        MessageDigest digest = DigestUtils.getMd5Digest();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = (long) index * blockSize;
+        long end = Math.min(position + blockSize, file.size());
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int n = file.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+            acquireBytes(n, null);
+            digest.update(buffer.array(), 0, n);
+            position += n;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Chooses the codec for the specified file, from a sample of its beginning.
+     */
+    private CompressionSelector.Choice chooseCodec(FileChannel file) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate(CompressionPolicy.SAMPLE_SIZE);
+        while (sample.hasRemaining() && file.read(sample, sample.position()) > 0) {
+            // read whole sample
+        }
+        return compressionSelector.choose(sample.array(), sample.position());
+    }
+
+    /**
+     * Sends the contents of the specified file from the specified position as DATA frames, as allowed by the stream's
+     * credit.
+     * @return false if the file was truncated while being sent, or if the peer failed the stream before it was
+     * completely sent
+     */
+    private boolean sendContents(OutgoingStream stream, FileChannel file, long position, long size, Transfer transfer)
+            throws IOException, InterruptedException {
+        while (position < size) {
+            long credit = stream.awaitCredit();
+            if (stream.future.isDone()) {
+                return false;
+            }
+            int length = (int) Math.min(Math.min(size - position, PeerProtocol.MAX_DATA_PAYLOAD), credit);
+            // not while holding the write lock, which would hold back the other streams
+            acquireBytes(length, transfer);
+            long sent = 0;
+            synchronized (writeLock) {
+                Frame.writeFully(channel, Frame.header(PeerProtocol.DATA, stream.id, length));
+                while (sent < length) {
+                    long n = file.transferTo(position + sent, length - sent, channel);
+                    if (n <= 0) {
+                        break;
+                    }
+                    sent += n;
+                }
+                if (sent < length) {
+                    // the file was truncated: pad the frame, which keeps the connection consistent
+                    Frame.writeFully(channel, ByteBuffer.allocate((int) (length - sent)));
+                }
+            }
+            stream.consumeCredit(length);
+            transfer.wireBytes += length;
+            if (sent < length) {
+                return false;
+            }
+            position += length;
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link #sendContents}, compressing the contents with the specified codec. The file channel is closed
+     * afterwards.
+     */
+    private boolean sendCompressed(OutgoingStream stream, FileChannel file, long position, long size, Codec codec,
+                                   Transfer transfer) throws IOException, InterruptedException {
+        file.position(position);
+        CountingInputStream contents = new CountingInputStream(
+                ByteStreams.limit(Channels.newInputStream(file), size - position));
+        byte[] buffer = new byte[COMPRESSED_BUFFER_SIZE];
+        try (InputStream compressed = codec.compressing(contents)) {
+            while (true) {
+                long credit = stream.awaitCredit();
+                if (stream.future.isDone()) {
+                    return false;
+                }
+                long start = System.nanoTime();
+                long read = contents.getCount();
+                int length = ByteStreams.read(compressed, buffer, 0, (int) Math.min(buffer.length, credit));
+                transfer.compressNanos += System.nanoTime() - start;
+                acquireBytes(contents.getCount() - read, transfer);
+                if (length == 0) {
+                    break;
+                }
+                synchronized (writeLock) {
+                    Frame.writeFully(channel, Frame.header(PeerProtocol.DATA, stream.id, length));
+                    Frame.writeFully(channel, ByteBuffer.wrap(buffer, 0, length));
+                }
+                stream.consumeCredit(length);
+                transfer.wireBytes += length;
+            }
+        }
+        // the file may have been truncated
+        return contents.getCount() == size - position;
+    }
+
+    /**
+     * Waits as long as the throttle requires after reading the specified number of bytes from a file.
+     * @param transfer the transfer whose time spent throttled is recorded, if any
+     */
+    private void acquireBytes(long count, Transfer transfer) throws InterruptedException {
+        Throttle throttle = this.throttle;
+        if (throttle == null || count == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        throttle.acquireBytes(count);
+        if (transfer != null) {
+            transfer.throttleNanos += System.nanoTime() - start;
+        }
+    }
+
+    private void write(Frame frame) throws IOException {
+        synchronized (writeLock) {
+            frame.writeTo(channel);
+        }
+    }
+
+    /**
+     * Reads the frames sent by the peer, until the connection is closed. Runs in a dedicated thread.
+     */
+    private void readFrames() {
+        try {
+            Frame frame;
+            while ((frame = Frame.read(channel)) != null) {
+                handle(frame);
+            }
+            fail(new PeerException("Connection closed by peer"));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void handle(Frame frame) throws IOException {
+        DataInputStream in = frame.payloadInput();
+        switch (frame.getType()) {
+            case PeerProtocol.CREDIT: {
+                OutgoingStream stream = streams.get(frame.getStreamId());
+                if (stream != null) {
+                    stream.addCredit(in.readInt());
+                }
+                break;
+            }
+            case PeerProtocol.ACK: {
+                OutgoingStream stream = streams.get(frame.getStreamId());
+                if (stream == null) {
+                    throw new PeerException("Acknowledgement for unknown stream " + frame.getStreamId());
+                }
+                if (in.readBoolean()) {
+                    if (stream.filename != null) {
+                        checkpoints.remove(stream.filename);
+                    }
+                    stream.future.complete(null);
+                } else {
+                    stream.future.completeExceptionally(new PeerException(in.readUTF()));
+                }
+                break;
+            }
+            case PeerProtocol.STAGED: {
+                OutgoingStream stream = streams.get(frame.getStreamId());
+                if (stream == null || stream.filename == null) {
+                    throw new PeerException("Staging answer for unknown stream " + frame.getStreamId());
+                }
+                stream.blockSize = in.readInt();
+                int count = in.readInt();
+                List<byte[]> blocks = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] hash = new byte[PeerProtocol.MD5_LENGTH];
+                    in.readFully(hash);
+                    blocks.add(hash);
+                }
+                stream.stagedBlocks = blocks;
+                stream.staged.complete(null);
+                break;
+            }
+            case PeerProtocol.BLOCK: {
+                OutgoingStream stream = streams.get(frame.getStreamId());
+                if (stream != null && stream.filename != null) {
+                    int index = in.readInt();
+                    byte[] hash = new byte[PeerProtocol.MD5_LENGTH];
+                    in.readFully(hash);
+                    checkpoints.record(stream.filename, stream.size, stream.lastModified, stream.blockSize, index,
+                            hash);
+                }
+                break;
+            }
+            case PeerProtocol.NEEDED: {
+                OutgoingStream stream = streams.get(frame.getStreamId());
+                if (stream == null || stream.offered == null) {
+                    throw new PeerException("Answer to unknown offer " + frame.getStreamId());
+                }
+                int count = in.readInt();
+                List<FileOffer> needed = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    int index = in.readInt();
+                    if (index < 0 || index >= stream.offered.size()) {
+                        throw new PeerException("Invalid index in answer to offer: " + index);
+                    }
+                    needed.add(stream.offered.get(index));
+                }
+                stream.needed = needed;
+                stream.future.complete(null);
+                break;
+            }
+            case PeerProtocol.ERROR:
+                throw new PeerException("Error reported by peer: " + in.readUTF());
+            default:
+                throw new PeerException("Unexpected frame type: " + frame.getType());
+        }
+    }
+
+    /**
+     * Marks the connection as unusable, and fails all the streams in flight.
+     */
+    private void fail(IOException e) {
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            failure = e;
+        }
+        logger.debug("Peer connection failed", e);
+        try {
+            channel.close();
+        } catch (IOException closeException) {
+            logger.debug("Failed to close peer connection", closeException);
+        }
+        for (OutgoingStream stream : new ArrayList<>(streams.values())) {
+            stream.future.completeExceptionally(e);
+            stream.wakeUp();
+        }
+    }
+
+    private void checkNotBroken() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns true if the connection can't be used anymore, because it failed or was closed.
+     */
+    public boolean isBroken() {
+        return failure != null;
+    }
+
+    /**
+     * Closes the connection. Files in flight that haven't been acknowledged yet are failed.
+     */
+    @Override
+    public void close() {
+        fail(new PeerException("Connection closed"));
+    }
+
+    /**
+     * Measures of the sending of a file's contents.
+     */
+    private static class Transfer {
+        /** Bytes sent in DATA frames */
+        private long wireBytes;
+        /** Time spent reading and compressing the contents */
+        private long compressNanos;
+        /** Time spent waiting for the throttle */
+        private long throttleNanos;
+    }
+
+    /**
+     * A file being sent, or an offer waiting for its answer.
+     */
+    private class OutgoingStream {
+        private final int id;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        /** For an offer, the files offered */
+        private volatile List<FileOffer> offered;
+        /** For an offer, the files needed by the peer; set before the future completes */
+        private volatile List<FileOffer> needed;
+        /** For a staged file, the file's identity, as recorded in the checkpoints */
+        private volatile String filename;
+        private long size;
+        private long lastModified;
+        /** For a staged file, completes when the peer sends the blocks already staged */
+        private final CompletableFuture<Void> staged = new CompletableFuture<>();
+        private volatile int blockSize;
+        private volatile List<byte[]> stagedBlocks;
+        /** Number of bytes that may be sent */
+        private long credit;
+
+        OutgoingStream(int id, long credit) {
+            this.id = id;
+            this.credit = credit;
+        }
+
+        /**
+         * Waits until the peer allows sending some data, or fails the stream.
+         * @return the number of bytes that may be sent
+         */
+        synchronized long awaitCredit() throws IOException, InterruptedException {
+            while (credit <= 0 && !future.isDone()) {
+                checkNotBroken();
+                wait();
+            }
+            return credit;
+        }
+
+        void stage(String filename, long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.filename = filename;
+        }
+
+        synchronized void consumeCredit(long length) {
+            credit -= length;
+        }
+
+        synchronized void addCredit(int increment) {
+            credit += increment;
+            notifyAll();
+        }
+
+        synchronized void wakeUp() {
+            notifyAll();
+        }
+    }
+}
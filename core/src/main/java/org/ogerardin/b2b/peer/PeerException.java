@@ -0,0 +1,17 @@
+package org.ogerardin.b2b.peer;
+
+import java.io.IOException;
+
+/**
+ * Signals an error reported by a peer, or a violation of the peer protocol.
+ */
+public class PeerException extends IOException {
+
+    public PeerException(String message) {
+        super(message);
+    }
+
+    public PeerException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
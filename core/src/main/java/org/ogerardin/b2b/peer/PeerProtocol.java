@@ -0,0 +1,89 @@
+package org.ogerardin.b2b.peer;
+
+/**
+ * Constants of the binary protocol used to send files to a peer back2back instance.
+ *
+ * All the messages are frames made of a 9-byte header (type as byte, stream ID as int, payload length as int) followed
+ * by the payload; numbers are big-endian. A connection starts with a {@link #HELLO} from the sender, answered by a
+ * {@link #CHALLENGE}; the sender then proves it knows the secret shared with the receiver in a {@link #RESPONSE},
+ * answered by a {@link #WELCOME} in which the receiver proves it knows the secret too, or by an {@link #ERROR} (see
+ * {@link PeerAuthentication}). Each file is then sent as a stream: an {@link #OPEN} frame, {@link #DATA}
+ * frames with the contents, and an {@link #END} frame; the receiver answers with an {@link #ACK} once the file is
+ * stored. Streams are identified by their stream ID, so several files can be in flight over the same connection, and
+ * their frames interleaved.
+ *
+ * Flow control is per stream: the sender may only send as many bytes of a stream as the receiver has granted, i.e. the
+ * initial window announced in the {@link #WELCOME} plus the increments of the {@link #CREDIT} frames the receiver
+ * sends as it consumes the data.
+ *
+ * Before sending files, the sender may {@link #OFFER} them by path, size and hash; the receiver answers with the files
+ * it actually needs, so that files it already has, either as the latest version of the same path or with the same
+ * contents under another path, are not sent. An offer occupies a stream ID and counts as a stream in flight until it is
+ * answered.
+ *
+ * Files at least as large as the staging threshold announced in the {@link #WELCOME} are sent with a {@link #STAGE}
+ * frame instead of an {@link #OPEN}: the receiver stages them on disk until they are complete, and acknowledges each
+ * block of the file with a {@link #BLOCK} frame once it is durably staged. The receiver answers with the hashes of the
+ * blocks it has already staged, e.g. by an interrupted transfer, and the sender sends a {@link #RESUME} frame with the
+ * offset of the first block that doesn't match its file, followed by the contents from that offset, and the
+ * {@link #END}.
+ */
+final class PeerProtocol {
+
+    /** Version of the protocol, sent in the {@link #HELLO} */
+    static final int VERSION = 5;
+
+    static final int HEADER_SIZE = 9;
+
+    /** Maximum payload length of a frame other than {@link #DATA} */
+    static final int MAX_CONTROL_PAYLOAD = 64 * 1024;
+
+    /** Maximum payload length of a {@link #DATA} frame */
+    static final int MAX_DATA_PAYLOAD = 1024 * 1024;
+
+    /** Sender to receiver, stream 0: protocol version (int), computer ID (UUID as 2 longs), sender nonce (32 bytes) */
+    static final byte HELLO = 1;
+    /** Receiver to sender, stream 0: maximum number of streams in flight (int), initial window of each stream (int),
+     * staging threshold (long, 0 if files are never staged), receiver proof (32 bytes) */
+    static final byte WELCOME = 2;
+    /** Receiver to sender, stream 0: error message (UTF); the connection is closed afterwards */
+    static final byte ERROR = 3;
+    /** Receiver to sender, stream 0: receiver nonce (32 bytes) */
+    static final byte CHALLENGE = 4;
+    /** Sender to receiver, stream 0: sender proof (32 bytes) */
+    static final byte RESPONSE = 5;
+
+    /** Sender to receiver: path (UTF), size (long), last modification time in milliseconds (long), name of the codec
+     * the contents are compressed with (UTF, empty if not compressed) */
+    static final byte OPEN = 16;
+    /** Sender to receiver: contents of the stream's file, compressed if a codec was specified; flow control applies to
+     * the bytes sent, i.e. to the compressed contents */
+    static final byte DATA = 17;
+    /** Sender to receiver: complete (boolean); if false, the file could not be read entirely and must be discarded */
+    static final byte END = 18;
+    /** Receiver to sender: stored (boolean), error message if not stored (UTF) */
+    static final byte ACK = 19;
+    /** Receiver to sender: number of bytes the sender may send in addition (int) */
+    static final byte CREDIT = 20;
+    /** Sender to receiver: number of files (int), then for each file: path (UTF), size (long), MD5 hash (16 bytes) */
+    static final byte OFFER = 21;
+    /** Receiver to sender, answer to an {@link #OFFER}: number of files needed (int), then the index of each file
+     * needed in the offer (int) */
+    static final byte NEEDED = 22;
+    /** Sender to receiver: same as {@link #OPEN}, for a file to be staged */
+    static final byte STAGE = 23;
+    /** Receiver to sender, answer to a {@link #STAGE}: block size (int), number of blocks already staged (int), then
+     * the MD5 hash of each block (16 bytes) */
+    static final byte STAGED = 24;
+    /** Sender to receiver: offset from which the contents are sent (long), a multiple of the block size not beyond the
+     * blocks already staged, or the size of the file */
+    static final byte RESUME = 25;
+    /** Receiver to sender: index of a block that has been durably staged (int), MD5 hash of the block (16 bytes) */
+    static final byte BLOCK = 26;
+
+    /** Length of an MD5 hash */
+    static final int MD5_LENGTH = 16;
+
+    private PeerProtocol() {
+    }
+}
@@ -0,0 +1,71 @@
+package org.ogerardin.b2b.peer;
+
+import org.ogerardin.b2b.B2BProperties;
+import org.ogerardin.b2b.domain.PairedPeer;
+import org.ogerardin.b2b.domain.mongorepository.PairedPeerRepository;
+import org.ogerardin.b2b.storage.StorageService;
+import org.ogerardin.b2b.storage.StorageServiceFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.UUID;
+
+/**
+ * Receives the files sent by peer back2back instances, if a receiver port is configured.
+ *
+ * A peer is accepted if it has been paired with this instance, and proves it knows the secret shared when it was
+ * paired (see {@link PeerAuthentication}). The files of each peer are stored into the internal storage, in a bucket of
+ * its own named after its computer ID, so that a peer can't write into the storage of our own backup sets. Large files are staged in the staging directory until they are
+ * complete, so that their transfer can be resumed.
+ */
+@Component
+public class PeerReceiver implements PeerAuthenticator {
+
+    private final B2BProperties properties;
+    private final PairedPeerRepository pairedPeerRepository;
+    private final StorageServiceFactory storageServiceFactory;
+
+    private PeerServer server;
+
+    @Autowired
+    public PeerReceiver(B2BProperties properties, PairedPeerRepository pairedPeerRepository,
+                        @Qualifier("gridFsStorageServiceFactory") StorageServiceFactory storageServiceFactory) {
+        this.properties = properties;
+        this.pairedPeerRepository = pairedPeerRepository;
+        this.storageServiceFactory = storageServiceFactory;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (properties.getPeerReceiverPort() <= 0) {
+            return;
+        }
+        server = new PeerServer(new InetSocketAddress(properties.getPeerReceiverPort()), this,
+                properties.getPeerReceiverThreads(), properties.getPeerMaxStreams(), properties.getPeerStreamWindow());
+        server.setStaging(Paths.get(properties.getPeerStagingDirectory()), properties.getPeerStagingThreshold());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Override
+    public byte[] getSharedSecret(UUID computerId) {
+        PairedPeer peer = pairedPeerRepository.findOne(computerId.toString());
+        return (peer == null) ? null : PeerAuthentication.decodeSecret(peer.getSecret());
+    }
+
+    @Override
+    public StorageService getStorageService(UUID computerId) {
+        return storageServiceFactory.getStorageService("peer-" + computerId);
+    }
+}
@@ -0,0 +1,237 @@
+package org.ogerardin.b2b.peer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ogerardin.b2b.storage.StorageService;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Receiving side of the peer protocol (see {@link PeerProtocol}): accepts connections from peer back2back instances,
+ * and stores the files they send into the {@link StorageService} that the {@link PeerAuthenticator} returns for the
+ * sending computer.
+ *
+ * A single thread does the network I/O of all the connections, with non-blocking channels, and files are stored by a
+ * fixed number of worker threads; the number of threads thus doesn't depend on the number of peers. Files are stored
+ * as they are received, without being buffered entirely: the data of each stream goes through a {@link StreamPipe}
+ * that holds at most the stream's window, and the sender is granted more credit only as the worker consumes the data.
+ * When storage falls behind, the senders are therefore held back.
+ *
+ * If a staging directory is set, large files are staged on disk until they are complete instead (see
+ * {@link StagedFile}), so that an interrupted transfer can be resumed where it stopped.
+ */
+public class PeerServer implements Closeable {
+
+    private static final Log logger = LogFactory.getLog(PeerServer.class);
+
+    private final PeerAuthenticator authenticator;
+    private final int maxStreams;
+    private final int streamWindow;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Thread selectorThread;
+
+    /** Connections that have frames to send, for which the selector thread must register interest in writability */
+    private final Queue<ServerConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    private volatile Path stagingDirectory;
+    private volatile long stagingThreshold = 0;
+    /** Staged files being received, which can't be received by another stream at the same time */
+    private final Set<String> stagedFilesInUse = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder receivedBytes = new LongAdder();
+
+    /**
+     * @param address the address to listen on
+     * @param workerThreads the number of threads that store the received files
+     * @param maxStreams the maximum number of files in flight on each connection
+     * @param streamWindow the maximum number of bytes of each file sent but not yet stored
+     */
+    public PeerServer(InetSocketAddress address, PeerAuthenticator authenticator, int workerThreads, int maxStreams,
+                      int streamWindow) throws IOException {
+        this.authenticator = authenticator;
+        this.maxStreams = maxStreams;
+        this.streamWindow = Math.min(streamWindow, PeerProtocol.MAX_DATA_PAYLOAD);
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        workers = Executors.newFixedThreadPool(workerThreads, new CustomizableThreadFactory("peer-receiver-"));
+
+        selectorThread = new Thread(this::run, "peer-server-" + address.getPort());
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        logger.info("Listening for peers on " + getLocalAddress());
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                ServerConnection connection;
+                while ((connection = pendingWrites.poll()) != null) {
+                    connection.enableWrite();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        ((ServerConnection) key.attachment()).handle();
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                logger.error("Peer server failure", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new ServerConnection(this, channel, key));
+        logger.debug("Accepted connection from " + channel.getRemoteAddress());
+    }
+
+    /**
+     * Makes the selector thread send the frames queued by the specified connection.
+     */
+    void requestWrite(ServerConnection connection) {
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+
+    void submit(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            logger.debug("Task rejected", e);
+        }
+    }
+
+    /**
+     * Makes files at least as large as the specified threshold staged in the specified directory until they are
+     * complete, so that their transfer can be resumed.
+     * @param threshold the minimum size of staged files; 0 to never stage files
+     */
+    public void setStaging(Path directory, long threshold) {
+        this.stagingDirectory = directory;
+        this.stagingThreshold = threshold;
+    }
+
+    Path getStagingDirectory() {
+        return stagingDirectory;
+    }
+
+    /**
+     * Returns the minimum size of the files that are staged, or 0 if files are never staged.
+     */
+    long getStagingThreshold() {
+        return (stagingDirectory == null) ? 0 : stagingThreshold;
+    }
+
+    /**
+     * Marks the specified staged file as being received by a stream.
+     * @return false if it is already being received by another stream
+     */
+    boolean acquireStagedFile(String key) {
+        return stagedFilesInUse.add(key);
+    }
+
+    void releaseStagedFile(String key) {
+        stagedFilesInUse.remove(key);
+    }
+
+    /**
+     * Returns the number of bytes of file contents received so far, from all peers.
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    void addReceivedBytes(long length) {
+        receivedBytes.add(length);
+    }
+
+    PeerAuthenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    int getMaxStreams() {
+        return maxStreams;
+    }
+
+    int getStreamWindow() {
+        return streamWindow;
+    }
+
+    /**
+     * Stops accepting connections and closes the current connections; files being received are discarded.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof ServerConnection) {
+                ((ServerConnection) key.attachment()).close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close peer server", e);
+        }
+        workers.shutdownNow();
+        logger.info("Stopped listening for peers");
+    }
+}
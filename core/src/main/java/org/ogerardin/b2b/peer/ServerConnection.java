@@ -0,0 +1,647 @@
+package org.ogerardin.b2b.peer;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ogerardin.b2b.storage.FileVersion;
+import org.ogerardin.b2b.storage.StorageFileNotFoundException;
+import org.ogerardin.b2b.storage.StorageService;
+import org.ogerardin.b2b.storage.compression.Codec;
+import org.ogerardin.b2b.storage.compression.Codecs;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection accepted by a {@link PeerServer}. Network I/O is done by the server's selector thread, with the
+ * channel in non-blocking mode; the files are stored by the server's workers. Files are either stored as they are
+ * received, or staged until they are complete (see {@link StagedFile}).
+ */
+class ServerConnection {
+
+    private static final Log logger = LogFactory.getLog(ServerConnection.class);
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final PeerServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // frame being read: header fields, and payload (null while reading the header)
+    private byte frameType;
+    private int frameStreamId;
+    private ByteBuffer framePayload;
+
+    private final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+    /** Set after an error: nothing more is read, and the connection is closed once the error is sent */
+    private volatile boolean closeWhenFlushed = false;
+    private volatile boolean closed = false;
+
+    private boolean helloReceived = false;
+    private boolean responseReceived = false;
+    private UUID computerId;
+    private byte[] senderNonce;
+    private byte[] receiverNonce;
+    /** Set once the sending computer is authenticated */
+    private volatile StorageService storageService;
+
+    private final Map<Integer, IncomingStream> streams = new ConcurrentHashMap<>();
+    /** Number of streams not stored yet, and offers not answered yet */
+    private final AtomicInteger activeStreams = new AtomicInteger();
+
+    ServerConnection(PeerServer server, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    /**
+     * Handles the readiness of the channel. Called by the selector thread.
+     */
+    void handle() {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (!closed && key.isWritable()) {
+                write();
+            }
+        } catch (PeerException e) {
+            logger.warn("Protocol error from peer " + describe() + ": " + e.getMessage());
+            error(e.getMessage());
+        } catch (IOException e) {
+            logger.debug("Connection with peer " + describe() + " failed", e);
+            close();
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            close();
+            return;
+        }
+        if (closeWhenFlushed) {
+            // ignore anything sent after the error
+            readBuffer.clear();
+            return;
+        }
+        readBuffer.flip();
+        try {
+            while (!closed && !closeWhenFlushed && readFrame()) {
+                // next frame
+            }
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    /**
+     * Reads as much of the current frame as is available in the read buffer, and handles it if it is complete.
+     * @return true if a frame was handled
+     */
+    private boolean readFrame() throws IOException {
+        if (framePayload == null) {
+            if (readBuffer.remaining() < PeerProtocol.HEADER_SIZE) {
+                return false;
+            }
+            frameType = readBuffer.get();
+            frameStreamId = readBuffer.getInt();
+            framePayload = ByteBuffer.allocate(Frame.checkLength(frameType, readBuffer.getInt()));
+        }
+        int n = Math.min(framePayload.remaining(), readBuffer.remaining());
+        ByteBuffer slice = readBuffer.duplicate();
+        slice.limit(slice.position() + n);
+        framePayload.put(slice);
+        readBuffer.position(readBuffer.position() + n);
+        if (framePayload.hasRemaining()) {
+            return false;
+        }
+        Frame frame = new Frame(frameType, frameStreamId, framePayload.array());
+        framePayload = null;
+        handleFrame(frame);
+        return true;
+    }
+
+    private void handleFrame(Frame frame) throws IOException {
+        if (storageService == null) {
+            handleHandshake(frame);
+            return;
+        }
+        DataInputStream in = frame.payloadInput();
+        int streamId = frame.getStreamId();
+        switch (frame.getType()) {
+            case PeerProtocol.OPEN:
+            case PeerProtocol.STAGE: {
+                checkNewStream(streamId);
+                boolean staged = (frame.getType() == PeerProtocol.STAGE);
+                if (staged && server.getStagingThreshold() == 0) {
+                    throw new PeerException("Staging is not enabled");
+                }
+                IncomingStream stream = new IncomingStream(streamId, in.readUTF(), in.readLong(), in.readLong(),
+                        codec(in.readUTF()));
+                streams.put(streamId, stream);
+                activeStreams.incrementAndGet();
+                if (staged) {
+                    server.submit(() -> prepareStaging(stream));
+                } else {
+                    server.submit(() -> store(stream));
+                }
+                break;
+            }
+            case PeerProtocol.RESUME: {
+                IncomingStream stream = getStream(streamId);
+                if (stream.staged == null || stream.resumeOffset >= 0) {
+                    throw new PeerException("Unexpected RESUME for stream " + streamId);
+                }
+                stream.resumeOffset = in.readLong();
+                server.submit(() -> store(stream));
+                break;
+            }
+            case PeerProtocol.OFFER: {
+                checkNewStream(streamId);
+                int count = in.readInt();
+                List<FileOffer> offered = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String filename = in.readUTF();
+                    long size = in.readLong();
+                    byte[] md5 = new byte[PeerProtocol.MD5_LENGTH];
+                    in.readFully(md5);
+                    offered.add(new FileOffer(filename, size, Hex.encodeHexString(md5)));
+                }
+                activeStreams.incrementAndGet();
+                server.submit(() -> answerOffer(streamId, offered));
+                break;
+            }
+            case PeerProtocol.DATA:
+                getStream(streamId).pipe.write(frame.getPayload());
+                server.addReceivedBytes(frame.getPayload().length);
+                break;
+            case PeerProtocol.END: {
+                IncomingStream stream = getStream(streamId);
+                if (stream.staged != null && stream.resumeOffset < 0) {
+                    throw new PeerException("Unexpected END for stream " + streamId);
+                }
+                if (in.readBoolean()) {
+                    stream.pipe.end();
+                } else {
+                    stream.pipe.abort("The sender could not read the whole file");
+                }
+                stream.ended = true;
+                stream.finishStep();
+                break;
+            }
+            default:
+                throw new PeerException("Unexpected frame type: " + frame.getType());
+        }
+    }
+
+    private void handleHandshake(Frame frame) throws IOException {
+        if (!helloReceived && frame.getType() == PeerProtocol.HELLO) {
+            handleHello(frame);
+        } else if (helloReceived && !responseReceived && frame.getType() == PeerProtocol.RESPONSE) {
+            handleResponse(frame);
+        } else {
+            throw new PeerException("Unexpected frame type during handshake: " + frame.getType());
+        }
+    }
+
+    private void handleHello(Frame frame) throws IOException {
+        helloReceived = true;
+        DataInputStream in = frame.payloadInput();
+        int version = in.readInt();
+        if (version != PeerProtocol.VERSION) {
+            error("Unsupported protocol version " + version);
+            return;
+        }
+        computerId = new UUID(in.readLong(), in.readLong());
+        senderNonce = new byte[PeerAuthentication.LENGTH];
+        in.readFully(senderNonce);
+        // challenge unknown computers too, so that the answer doesn't tell which computers are paired
+        receiverNonce = PeerAuthentication.nonce();
+        send(Frame.of(PeerProtocol.CHALLENGE, 0, out -> out.write(receiverNonce)));
+    }
+
+    private void handleResponse(Frame frame) throws IOException {
+        responseReceived = true;
+        byte[] proof = new byte[PeerAuthentication.LENGTH];
+        frame.payloadInput().readFully(proof);
+        // authentication may involve slow lookups, which must not hold up the selector thread
+        server.submit(() -> {
+            StorageService storageService;
+            byte[] secret;
+            try {
+                secret = server.getAuthenticator().getSharedSecret(computerId);
+                if (secret == null) {
+                    logger.warn("Rejected unknown peer " + describe());
+                    error("Authentication failed");
+                    return;
+                }
+                if (!PeerAuthentication.matches(
+                        PeerAuthentication.senderProof(secret, computerId, senderNonce, receiverNonce), proof)) {
+                    logger.warn("Rejected peer with a wrong secret " + describe());
+                    error("Authentication failed");
+                    return;
+                }
+                storageService = server.getAuthenticator().getStorageService(computerId);
+            } catch (RuntimeException e) {
+                logger.error("Failed to authenticate peer " + describe(), e);
+                error("Authentication failed");
+                return;
+            }
+            this.storageService = storageService;
+            logger.info("Accepted peer " + describe());
+            send(Frame.of(PeerProtocol.WELCOME, 0, out -> {
+                out.writeInt(server.getMaxStreams());
+                out.writeInt(server.getStreamWindow());
+                out.writeLong(server.getStagingThreshold());
+                out.write(PeerAuthentication.receiverProof(secret, senderNonce, receiverNonce));
+            }));
+        });
+    }
+
+    /**
+     * Returns the codec with the specified name, or null if the name is empty, i.e. the contents are not compressed.
+     */
+    private static Codec codec(String name) throws PeerException {
+        if (name.isEmpty()) {
+            return null;
+        }
+        try {
+            return Codecs.get(name);
+        } catch (IllegalArgumentException e) {
+            throw new PeerException(e.getMessage());
+        }
+    }
+
+    private void checkNewStream(int streamId) throws PeerException {
+        if (streams.containsKey(streamId)) {
+            throw new PeerException("Stream " + streamId + " already open");
+        }
+        if (activeStreams.get() >= server.getMaxStreams()) {
+            throw new PeerException("Too many streams in flight");
+        }
+    }
+
+    private IncomingStream getStream(int streamId) throws PeerException {
+        IncomingStream stream = streams.get(streamId);
+        if (stream == null) {
+            throw new PeerException("Unknown stream " + streamId);
+        }
+        return stream;
+    }
+
+    /**
+     * Opens the staged contents of the file to be received on the specified stream, and sends the hashes of the blocks
+     * already staged to the sender. Called by a worker.
+     */
+    private void prepareStaging(IncomingStream stream) {
+        StagedFile staged;
+        try {
+            String key = computerId + ":" + stream.path;
+            if (!server.acquireStagedFile(key)) {
+                throw new PeerException("File already being received: " + stream.path);
+            }
+            stream.stagingKey = key;
+            stream.staged = StagedFile.open(server.getStagingDirectory().resolve(computerId.toString()),
+                    stream.path, stream.size, stream.lastModified);
+            staged = stream.staged;
+        } catch (IOException e) {
+            logger.error("Failed to stage file " + stream.path + " from peer " + describe(), e);
+            releaseStaging(stream);
+            streams.remove(stream.id);
+            activeStreams.decrementAndGet();
+            sendAck(stream.id, e.toString());
+            return;
+        }
+        if (closed || closeWhenFlushed) {
+            // RESUME will never come
+            releaseStaging(stream);
+            return;
+        }
+        List<byte[]> blocks = staged.getBlocks();
+        if (!blocks.isEmpty()) {
+            logger.info("Resuming transfer of " + stream.path + " from peer " + describe() + ": " + blocks.size()
+                    + " blocks already staged");
+        }
+        send(Frame.of(PeerProtocol.STAGED, stream.id, out -> {
+            out.writeInt(staged.getBlockSize());
+            out.writeInt(blocks.size());
+            for (byte[] hash : blocks) {
+                out.write(hash);
+            }
+        }));
+    }
+
+    /**
+     * Stores the file received on the specified stream, as it is received or once it is completely staged. Called by
+     * a worker.
+     */
+    private void store(IncomingStream stream) {
+        String error = null;
+        try {
+            if (stream.staged != null) {
+                storeStaged(stream);
+            } else {
+                storageService.store(stream.contents(), stream.path);
+                storageService.flush();
+            }
+        } catch (Exception e) {
+            if (!closed) {
+                logger.error("Failed to store file " + stream.path + " from peer " + describe(), e);
+            }
+            error = e.toString();
+            stream.pipe.discard();
+        } finally {
+            releaseStaging(stream);
+        }
+        activeStreams.decrementAndGet();
+        sendAck(stream.id, error);
+        stream.finishStep();
+    }
+
+    /**
+     * Stages the contents received from the resume offset, then stores the staged file once it is complete. If the
+     * transfer is interrupted, the staged contents are kept so that it can be resumed.
+     */
+    private void storeStaged(IncomingStream stream) throws IOException {
+        StagedFile staged = stream.staged;
+        staged.resumeAt(stream.resumeOffset);
+        StagedFile.BlockListener listener = (index, hash) -> send(Frame.of(PeerProtocol.BLOCK, stream.id, out -> {
+            out.writeInt(index);
+            out.write(hash);
+        }));
+        InputStream contents = stream.contents();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int n;
+        while ((n = contents.read(buffer)) >= 0) {
+            staged.write(buffer, 0, n, listener);
+        }
+        staged.finish(listener);
+
+        long length = staged.length();
+        if (length != stream.size) {
+            staged.delete();
+            throw new PeerException("Received " + length + " bytes instead of " + stream.size);
+        }
+        try (InputStream inputStream = staged.newInputStream()) {
+            storageService.store(inputStream, stream.path);
+        }
+        // the staged contents are only deleted once stored durably
+        storageService.flush();
+        staged.delete();
+    }
+
+    private synchronized void releaseStaging(IncomingStream stream) {
+        if (stream.staged != null) {
+            try {
+                stream.staged.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close staged file " + stream.path, e);
+            }
+        }
+        if (stream.stagingKey != null) {
+            server.releaseStagedFile(stream.stagingKey);
+            stream.stagingKey = null;
+        }
+    }
+
+    /**
+     * Acknowledges the file received on the specified stream.
+     * @param error null if the file was stored, or the reason why it wasn't
+     */
+    private void sendAck(int streamId, String error) {
+        send(Frame.of(PeerProtocol.ACK, streamId, out -> {
+            out.writeBoolean(error == null);
+            if (error != null) {
+                out.writeUTF(error);
+            }
+        }));
+    }
+
+    /**
+     * Answers an offer with the files that are not available yet. Called by a worker.
+     */
+    private void answerOffer(int streamId, List<FileOffer> offered) {
+        List<Integer> needed = new ArrayList<>();
+        boolean copied = false;
+        for (int i = 0; i < offered.size(); i++) {
+            Availability availability = getAvailability(offered.get(i));
+            if (availability == Availability.NONE) {
+                needed.add(i);
+            }
+            copied |= (availability == Availability.COPIED);
+        }
+        if (copied) {
+            storageService.flush();
+        }
+        logger.debug("Peer " + describe() + " offered " + offered.size() + " files, " + needed.size() + " needed");
+        activeStreams.decrementAndGet();
+        send(Frame.of(PeerProtocol.NEEDED, streamId, out -> {
+            out.writeInt(needed.size());
+            for (int index : needed) {
+                out.writeInt(index);
+            }
+        }));
+    }
+
+    private enum Availability {
+        /** The latest stored version of the file has the offered contents */
+        STORED,
+        /** The offered contents were stored under another path, and have been copied as a new version of the file */
+        COPIED,
+        /** The file must be sent */
+        NONE
+    }
+
+    private Availability getAvailability(FileOffer offer) {
+        String filename = offer.getFilename();
+        try {
+            try {
+                FileVersion latest = storageService.getLatestFileVersion(filename);
+                if (hasContents(latest, offer)) {
+                    return Availability.STORED;
+                }
+            } catch (StorageFileNotFoundException e) {
+                // new file
+            }
+            FileVersion version = storageService.findFileVersionByMd5(offer.getMd5hash());
+            if (!hasContents(version, offer)) {
+                return Availability.NONE;
+            }
+            try (InputStream inputStream = storageService.getFileVersionAsInputStream(version.getId())) {
+                storageService.store(inputStream, filename);
+            }
+            logger.debug("Copied " + version.getFilename() + " to " + filename + " for peer " + describe());
+            return Availability.COPIED;
+        } catch (Exception e) {
+            logger.warn("Failed to look up offered file " + filename + " from peer " + describe(), e);
+            return Availability.NONE;
+        }
+    }
+
+    private static boolean hasContents(FileVersion version, FileOffer offer) {
+        return version != null && version.getSize() == offer.getSize()
+                && offer.getMd5hash().equalsIgnoreCase(version.getMd5hash());
+    }
+
+    /**
+     * Queues the specified frame for sending. May be called from any thread.
+     */
+    void send(Frame frame) {
+        if (closed) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(PeerProtocol.HEADER_SIZE + frame.getPayload().length);
+        buffer.put(frame.getType()).putInt(frame.getStreamId()).putInt(frame.getPayload().length)
+                .put(frame.getPayload());
+        buffer.flip();
+        outgoing.add(buffer);
+        server.requestWrite(this);
+    }
+
+    /**
+     * Registers interest in writability. Called by the selector thread.
+     */
+    void enableWrite() {
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void write() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = outgoing.peek()) != null) {
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                // socket buffer full, wait until writable again
+                return;
+            }
+            outgoing.poll();
+        }
+        if (closeWhenFlushed) {
+            close();
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Sends an error to the peer, then closes the connection. Files in flight are discarded.
+     */
+    private void error(String message) {
+        send(Frame.of(PeerProtocol.ERROR, 0, out -> out.writeUTF(message)));
+        closeWhenFlushed = true;
+        abortStreams("Connection closed after error: " + message);
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close connection with peer " + describe(), e);
+        }
+        abortStreams("Connection closed");
+    }
+
+    private void abortStreams(String reason) {
+        for (IncomingStream stream : streams.values()) {
+            stream.pipe.abort(reason);
+            if (stream.staged != null && stream.resumeOffset < 0) {
+                // waiting for RESUME, no worker to release it
+                releaseStaging(stream);
+            }
+        }
+    }
+
+    private String describe() {
+        String address;
+        try {
+            address = String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            address = "?";
+        }
+        return (computerId == null) ? address : computerId + " (" + address + ")";
+    }
+
+    /**
+     * A file being received.
+     */
+    private class IncomingStream {
+        private final int id;
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final StreamPipe pipe;
+        /** Codec the contents are compressed with, or null */
+        private final Codec codec;
+        /** If the file is staged, its staged contents; set before the STAGED frame is sent */
+        private volatile StagedFile staged;
+        /** Key under which the staged file is marked as being received */
+        private String stagingKey;
+        /** If the file is staged, offset from which the contents are sent; -1 until the RESUME frame is received */
+        private volatile long resumeOffset = -1;
+        /** Set by the selector thread when the END frame is received */
+        private volatile boolean ended = false;
+        /** Bytes consumed by the worker since the last credit was sent */
+        private int consumed = 0;
+        /** The stream is dropped when both the END frame is received and the file is stored */
+        private final AtomicInteger stepsLeft = new AtomicInteger(2);
+
+        IncomingStream(int id, String path, long size, long lastModified, Codec codec) {
+            this.id = id;
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.codec = codec;
+            this.pipe = new StreamPipe(server.getStreamWindow(), this::consumed);
+        }
+
+        /**
+         * Grants credit to the sender for the data consumed, by increments of a quarter of the window to avoid
+         * sending tiny frames.
+         */
+        private void consumed(int length) {
+            int credit;
+            synchronized (this) {
+                consumed += length;
+                if (ended || consumed < server.getStreamWindow() / 4) {
+                    return;
+                }
+                credit = consumed;
+                consumed = 0;
+            }
+            send(Frame.of(PeerProtocol.CREDIT, id, out -> out.writeInt(credit)));
+        }
+
+        /**
+         * Returns the contents of the file, decompressed as they are read from the pipe.
+         */
+        InputStream contents() {
+            return (codec == null) ? pipe : codec.decompressing(pipe);
+        }
+
+        void finishStep() {
+            if (stepsLeft.decrementAndGet() == 0) {
+                streams.remove(id);
+            }
+        }
+    }
+}
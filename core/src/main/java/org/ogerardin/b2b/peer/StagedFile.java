@@ -0,0 +1,236 @@
+package org.ogerardin.b2b.peer;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A file being received from a peer that is staged on disk until it is complete, so that the transfer can be resumed
+ * if it is interrupted (see {@link PeerProtocol#STAGE}).
+ *
+ * The contents received so far are kept in a data file, and the MD5 hash of each complete block in a journal. A block
+ * is only added to the journal once it has been written durably, so that the blocks in the journal can be trusted
+ * after a crash; anything in the data file past the last journaled block is discarded when the transfer is resumed.
+ * The journal also records the size and modification time of the file, and the staged contents are discarded if the
+ * file is staged again with a different size or modification time.
+ */
+class StagedFile implements Closeable {
+
+    /** Minimum size of a block */
+    static final int MIN_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /** Maximum number of blocks of a file, so that the hashes of all blocks fit in a {@link PeerProtocol#STAGED} frame */
+    static final int MAX_BLOCKS = 2048;
+
+    private static final int JOURNAL_HEADER_SIZE = 4 + 8 + 8;
+
+    private final Path dataFile;
+    private final Path journalFile;
+    private final long size;
+    private final int blockSize;
+    /** Hashes of the blocks that have been durably staged */
+    private final List<byte[]> blocks;
+
+    private FileChannel data;
+    private FileChannel journal;
+    /** Hash and length of the block being written */
+    private MessageDigest blockDigest;
+    private long blockLength;
+
+    private StagedFile(Path dataFile, Path journalFile, long size, int blockSize, List<byte[]> blocks) {
+        this.dataFile = dataFile;
+        this.journalFile = journalFile;
+        this.size = size;
+        this.blockSize = blockSize;
+        this.blocks = blocks;
+    }
+
+    /**
+     * Opens the staged contents of the specified file, or prepares an empty staging if the file hasn't been staged
+     * yet, or has been staged with a different size or modification time.
+     * @param directory directory holding the staged files
+     */
+    static StagedFile open(Path directory, String filename, long size, long lastModified) throws IOException {
+        Files.createDirectories(directory);
+        String name = DigestUtils.md5Hex(filename);
+        Path dataFile = directory.resolve(name + ".part");
+        Path journalFile = directory.resolve(name + ".blocks");
+
+        if (Files.exists(journalFile) && Files.exists(dataFile)) {
+            try (FileChannel journal = FileChannel.open(journalFile, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(journal.size(),
+                        JOURNAL_HEADER_SIZE + (long) MAX_BLOCKS * PeerProtocol.MD5_LENGTH));
+                while (buffer.hasRemaining() && journal.read(buffer) >= 0) {
+                    // read whole journal
+                }
+                buffer.flip();
+                if (buffer.remaining() >= JOURNAL_HEADER_SIZE) {
+                    int blockSize = buffer.getInt();
+                    if (blockSize > 0 && buffer.getLong() == size && buffer.getLong() == lastModified) {
+                        // a block is only valid if the data file holds all of it
+                        long dataLength = Files.size(dataFile);
+                        List<byte[]> blocks = new ArrayList<>();
+                        while (buffer.remaining() >= PeerProtocol.MD5_LENGTH
+                                && Math.min((long) (blocks.size() + 1) * blockSize, size) <= dataLength) {
+                            byte[] hash = new byte[PeerProtocol.MD5_LENGTH];
+                            buffer.get(hash);
+                            blocks.add(hash);
+                        }
+                        return new StagedFile(dataFile, journalFile, size, blockSize, blocks);
+                    }
+                }
+            }
+        }
+
+        // start over
+        int blockSize = blockSize(size);
+        Files.deleteIfExists(dataFile);
+        try (FileChannel journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+            header.putInt(blockSize).putLong(size).putLong(lastModified).flip();
+            while (header.hasRemaining()) {
+                journal.write(header);
+            }
+            journal.force(true);
+        }
+        return new StagedFile(dataFile, journalFile, size, blockSize, new ArrayList<>());
+    }
+
+    /**
+     * Returns the size of the blocks of a file of the specified size: at least {@link #MIN_BLOCK_SIZE}, and a whole
+     * number of megabytes such that the file has at most {@link #MAX_BLOCKS} blocks.
+     */
+    static int blockSize(long size) {
+        long megabyte = 1024 * 1024;
+        long blockSize = (size + MAX_BLOCKS - 1) / MAX_BLOCKS;
+        blockSize = (blockSize + megabyte - 1) / megabyte * megabyte;
+        return (int) Math.max(blockSize, MIN_BLOCK_SIZE);
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Returns the hashes of the blocks staged so far.
+     */
+    List<byte[]> getBlocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    /**
+     * Discards the contents staged past the specified offset, from which the contents will be written.
+     * @param offset a multiple of the block size, or the size of the file; not beyond the blocks staged so far
+     */
+    void resumeAt(long offset) throws IOException {
+        int blockCount = (int) ((offset + blockSize - 1) / blockSize);
+        if (blockCount > blocks.size() || (offset % blockSize != 0 && offset != size)) {
+            throw new PeerException("Can't resume at offset " + offset);
+        }
+        blocks.subList(blockCount, blocks.size()).clear();
+
+        data = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        data.truncate(offset);
+        data.position(offset);
+        journal = FileChannel.open(journalFile, StandardOpenOption.WRITE);
+        journal.truncate(JOURNAL_HEADER_SIZE + (long) blockCount * PeerProtocol.MD5_LENGTH);
+        journal.position(journal.size());
+        blockDigest = DigestUtils.getMd5Digest();
+        blockLength = 0;
+    }
+
+    /**
+     * Appends the specified contents. Each time a block is complete, it is made durable, added to the journal, and the
+     * listener is notified.
+     */
+    void write(byte[] bytes, int offset, int length, BlockListener listener) throws IOException {
+        while (length > 0) {
+            int n = (int) Math.min(length, blockSize - blockLength);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, n);
+            while (buffer.hasRemaining()) {
+                data.write(buffer);
+            }
+            blockDigest.update(bytes, offset, n);
+            blockLength += n;
+            offset += n;
+            length -= n;
+            if (blockLength == blockSize) {
+                endBlock(listener);
+            }
+        }
+    }
+
+    /**
+     * Ends the last block, which may be shorter than the block size, after all the contents have been written.
+     */
+    void finish(BlockListener listener) throws IOException {
+        if (blockLength > 0) {
+            endBlock(listener);
+        }
+        data.force(true);
+    }
+
+    private void endBlock(BlockListener listener) throws IOException {
+        byte[] hash = blockDigest.digest();
+        // the block must be durable before it is recorded
+        data.force(false);
+        ByteBuffer buffer = ByteBuffer.wrap(hash);
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+        journal.force(false);
+        blocks.add(hash);
+        blockLength = 0;
+        listener.blockStaged(blocks.size() - 1, hash);
+    }
+
+    /**
+     * Returns the length of the contents staged so far.
+     */
+    long length() throws IOException {
+        return (data != null) ? data.size() : Files.size(dataFile);
+    }
+
+    InputStream newInputStream() throws IOException {
+        return Files.newInputStream(dataFile);
+    }
+
+    /**
+     * Deletes the staged contents, e.g. once they have been stored.
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(dataFile);
+        Files.deleteIfExists(journalFile);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (data != null) {
+                data.close();
+            }
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface BlockListener {
+        void blockStaged(int index, byte[] hash) throws IOException;
+    }
+}
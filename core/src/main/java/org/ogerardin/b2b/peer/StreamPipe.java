@@ -0,0 +1,146 @@
+package org.ogerardin.b2b.peer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.IntConsumer;
+
+/**
+ * An {@link InputStream} that reads the data received for a stream, as it arrives. The network thread
+ * {@link #write}s the payloads of the data frames, and a worker thread reads them, e.g. to store them.
+ *
+ * The pipe holds at most the stream's window; as the reader consumes data, a listener is notified so that the sender
+ * can be granted more credit. A reader that falls behind (e.g. because the storage is slow) thus stops the sender.
+ */
+class StreamPipe extends InputStream {
+
+    private final long capacity;
+    private final IntConsumer consumedListener;
+
+    private final Deque<byte[]> chunks = new ArrayDeque<>();
+    private byte[] current;
+    private int position;
+    private long buffered = 0;
+    private boolean ended = false;
+    private String abortReason;
+    private boolean discarding = false;
+
+    /**
+     * @param capacity the maximum number of bytes buffered
+     * @param consumedListener notified of the number of bytes read each time data is read
+     */
+    StreamPipe(long capacity, IntConsumer consumedListener) {
+        this.capacity = capacity;
+        this.consumedListener = consumedListener;
+    }
+
+    /**
+     * Adds the specified data at the end of the pipe.
+     * @throws PeerException if the data exceeds the capacity, i.e. the sender didn't respect the window
+     */
+    void write(byte[] data) throws PeerException {
+        synchronized (this) {
+            if (ended) {
+                throw new PeerException("Data received for an ended stream");
+            }
+            if (buffered + data.length > capacity) {
+                throw new PeerException("Stream window exceeded");
+            }
+            if (!discarding) {
+                if (data.length > 0) {
+                    chunks.add(data);
+                    buffered += data.length;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+        // nobody will read the data: let the sender send the rest until it notices
+        consumedListener.accept(data.length);
+    }
+
+    /**
+     * Discards the data buffered and the data written from now on, e.g. because the reader failed. The space is
+     * released as if the data had been read, so that the sender doesn't wait for credit that would never come.
+     */
+    void discard() {
+        long dropped;
+        synchronized (this) {
+            discarding = true;
+            chunks.clear();
+            current = null;
+            dropped = buffered;
+            buffered = 0;
+        }
+        if (dropped > 0) {
+            consumedListener.accept((int) dropped);
+        }
+    }
+
+    /**
+     * Signals that all the data has been written; the reader gets end-of-stream once it has read all of it.
+     */
+    synchronized void end() {
+        ended = true;
+        notifyAll();
+    }
+
+    /**
+     * Signals that the data is incomplete; the reader gets an {@link IOException} with the specified reason.
+     */
+    synchronized void abort(String reason) {
+        if (abortReason == null) {
+            abortReason = reason;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return (n < 0) ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n;
+        synchronized (this) {
+            while (abortReason == null && (current == null || position == current.length)) {
+                current = chunks.poll();
+                position = 0;
+                if (current != null) {
+                    continue;
+                }
+                if (ended) {
+                    return -1;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for data");
+                }
+            }
+            if (abortReason != null) {
+                throw new IOException(abortReason);
+            }
+            n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            buffered -= n;
+        }
+        consumedListener.accept(n);
+        return n;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release; unread data is discarded when the stream is dropped
+    }
+}
@@ -0,0 +1,77 @@
+package org.ogerardin.b2b.peer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records, on the sending side, the blocks of staged files that the peer has acknowledged (see
+ * {@link PeerProtocol#BLOCK}), so that when a transfer is resumed, the blocks the peer has staged can be verified
+ * without reading them from the file again. A record is only used for the same size and modification time of the file;
+ * blocks without a record are verified by hashing the file.
+ *
+ * An instance is meant to be shared by the successive {@link PeerClient}s used to send the same files, e.g. after a
+ * connection was lost. Records are dropped once the file is stored.
+ */
+public class TransferCheckpoints {
+
+    private final Map<String, Checkpoint> checkpoints = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the hashes of the blocks of the specified file acknowledged by the peer so far, starting from the first
+     * block.
+     */
+    List<byte[]> getBlocks(String filename, long size, long lastModified, int blockSize) {
+        Checkpoint checkpoint = checkpoints.get(filename);
+        if (checkpoint == null || !checkpoint.matches(size, lastModified, blockSize)) {
+            return new ArrayList<>();
+        }
+        synchronized (checkpoint) {
+            return new ArrayList<>(checkpoint.blocks);
+        }
+    }
+
+    void record(String filename, long size, long lastModified, int blockSize, int index, byte[] hash) {
+        Checkpoint checkpoint = checkpoints.compute(filename, (key, existing) ->
+                (existing != null && existing.matches(size, lastModified, blockSize)) ?
+                        existing : new Checkpoint(size, lastModified, blockSize));
+        synchronized (checkpoint) {
+            List<byte[]> blocks = checkpoint.blocks;
+            if (index < blocks.size()) {
+                blocks.set(index, hash);
+            } else if (index == blocks.size()) {
+                blocks.add(hash);
+            }
+            // otherwise blocks are missing in between, which only a resume from a later offset could cause
+        }
+    }
+
+    void remove(String filename) {
+        checkpoints.remove(filename);
+    }
+
+    /**
+     * Returns the number of files with a record, i.e. whose transfer could be resumed.
+     */
+    public int size() {
+        return checkpoints.size();
+    }
+
+    private static class Checkpoint {
+        private final long size;
+        private final long lastModified;
+        private final int blockSize;
+        private final List<byte[]> blocks = new ArrayList<>();
+
+        Checkpoint(long size, long lastModified, int blockSize) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.blockSize = blockSize;
+        }
+
+        boolean matches(long size, long lastModified, int blockSize) {
+            return this.size == size && this.lastModified == lastModified && this.blockSize == blockSize;
+        }
+    }
+}
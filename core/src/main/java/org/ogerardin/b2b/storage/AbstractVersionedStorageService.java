@@ -0,0 +1,201 @@
+package org.ogerardin.b2b.storage;
+
+import lombok.Data;
+import org.bson.types.ObjectId;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.util.StringUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Base class of the {@link StorageService} implementations that keep a collection of versions in Mongo DB, one
+ * document per version of a file (see {@link StoredVersion}), and store the contents elsewhere. This class handles the
+ * lookups that only need the versions' metadata; subclasses handle the contents.
+ *
+ * Unless otherwise specified, methods that take a path as parameter refer to the latest stored version.
+ *
+ * @param <V> the type of the version documents
+ */
+public abstract class AbstractVersionedStorageService<V extends StoredVersion> implements StorageService {
+
+    protected static final String FILENAME_KEY = "filename";
+    protected static final String STORED_DATE_KEY = "storedDate";
+
+    protected final MongoTemplate mongoTemplate;
+    protected final String bucket;
+
+    protected AbstractVersionedStorageService(MongoTemplate mongoTemplate, String bucket) {
+        this.mongoTemplate = mongoTemplate;
+        this.bucket = bucket;
+    }
+
+    /**
+     * Ensures the index used for latest version lookups exists on the versions collection.
+     */
+    @Override
+    public void init() {
+        mongoTemplate.indexOps(getVersionsCollectionName()).ensureIndex(new Index()
+                .on(FILENAME_KEY, Sort.Direction.ASC)
+                .on(STORED_DATE_KEY, Sort.Direction.DESC));
+    }
+
+    @Override
+    public void store(MultipartFile file) {
+        if (file.isEmpty()) {
+            throw new IllegalArgumentException("empty file " + file);
+        }
+        String filename = StringUtils.cleanPath(file.getOriginalFilename());
+        if (filename.contains("..")) {
+            // This is a security check
+            throw new StorageException("relative path outside current directory " + filename);
+        }
+        try (InputStream inputStream = file.getInputStream()) {
+            store(inputStream, filename);
+        } catch (IOException e) {
+            throw new StorageException("Failed to store file " + filename, e);
+        }
+    }
+
+    @Override
+    public Stream<Path> getAllPaths() {
+        @SuppressWarnings("unchecked")
+        List<String> filenames = mongoTemplate.getCollection(getVersionsCollectionName()).distinct(FILENAME_KEY);
+        return filenames.stream().map(Paths::get);
+    }
+
+    @Override
+    public Resource getAsResource(String filename) throws StorageFileNotFoundException {
+        return new InputStreamResource(getAsInputStream(filename));
+    }
+
+    /**
+     * Records new file metadata for an existing version. This is used when the file's metadata changed but its
+     * contents didn't, so that the next metadata-based change detection sees it as unchanged.
+     */
+    protected FileVersion refreshMetadata(V version, V metadata) {
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(new ObjectId(version.getId()))),
+                new Update()
+                        .set("lastModifiedTime", metadata.getLastModifiedTime())
+                        .set("fileKey", metadata.getFileKey()),
+                getVersionsCollectionName());
+        version.setLastModifiedTime(metadata.getLastModifiedTime());
+        version.setFileKey(metadata.getFileKey());
+        return getFileVersion(version);
+    }
+
+    @Override
+    public FileVersion[] getFileVersions(Path path) {
+        return getFileVersions(canonicalPath(path));
+    }
+
+    @Override
+    public FileVersion getLatestFileVersion(Path path) throws StorageFileNotFoundException {
+        return getLatestFileVersion(canonicalPath(path));
+    }
+
+    /**
+     * Resolves all the specified paths with a single aggregation on the versions collection, which uses the index
+     * created in {@link #init()}.
+     */
+    @Override
+    public Map<Path, FileVersion> getLatestFileVersions(Collection<Path> paths) {
+        // map each canonical path (as used for storage) to the path we were passed
+        Map<String, Path> pathsByFilename = new HashMap<>();
+        for (Path path : paths) {
+            pathsByFilename.put(canonicalPath(path), path);
+        }
+
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where(FILENAME_KEY).in(pathsByFilename.keySet())),
+                Aggregation.sort(new Sort(Sort.Direction.ASC, FILENAME_KEY)
+                        .and(new Sort(Sort.Direction.DESC, STORED_DATE_KEY))),
+                Aggregation.group(FILENAME_KEY)
+                        .first("_id").as("versionId")
+                        .first("size").as("size")
+                        .first("md5hash").as("md5hash")
+                        .first(STORED_DATE_KEY).as("storedDate")
+                        .first("lastModifiedTime").as("lastModifiedTime")
+                        .first("fileKey").as("fileKey")
+        );
+        List<LatestVersion> latestVersions = mongoTemplate.aggregate(aggregation, getVersionsCollectionName(),
+                LatestVersion.class).getMappedResults();
+
+        Map<Path, FileVersion> versions = new HashMap<>();
+        for (LatestVersion latest : latestVersions) {
+            versions.put(pathsByFilename.get(latest.getFilename()), getFileVersion(latest));
+        }
+        return versions;
+    }
+
+    @Override
+    public Resource getFileVersionAsResource(String versionId) throws StorageFileVersionNotFoundException {
+        return new InputStreamResource(getFileVersionAsInputStream(versionId));
+    }
+
+    protected String getVersionsCollectionName() {
+        return bucket + ".versions";
+    }
+
+    protected static String canonicalPath(Path path) {
+        try {
+            return path.toFile().getCanonicalPath();
+        } catch (IOException e) {
+            throw new StorageException("Exception while trying to get canonical path for " + path, e);
+        }
+    }
+
+    protected FileVersion getFileVersion(V version) {
+        FileVersion info = new FileVersion();
+        info.setId(version.getId());
+        info.setFilename(version.getFilename());
+        info.setSize(version.getSize());
+        info.setMd5hash(version.getMd5hash());
+        info.setStoredDate(version.getStoredDate());
+        info.setLastModifiedTime(version.getLastModifiedTime());
+        info.setFileKey(version.getFileKey());
+        return info;
+    }
+
+    private FileVersion getFileVersion(LatestVersion latest) {
+        FileVersion info = new FileVersion();
+        info.setId(latest.getVersionId());
+        info.setFilename(latest.getFilename());
+        info.setSize(latest.getSize());
+        info.setMd5hash(latest.getMd5hash());
+        info.setStoredDate(latest.getStoredDate());
+        info.setLastModifiedTime(latest.getLastModifiedTime());
+        info.setFileKey(latest.getFileKey());
+        return info;
+    }
+
+    /**
+     * Result of the aggregation that looks up the latest version of several files.
+     */
+    @Data
+    static class LatestVersion {
+        @Id
+        private String filename;
+        private String versionId;
+        private long size;
+        private String md5hash;
+        private Instant storedDate;
+        private Instant lastModifiedTime;
+        private String fileKey;
+    }
+}
@@ -19,4 +19,9 @@ public class FileVersion {
     long size;
     /** MD5 hash of the stored file */
     String md5hash;
+    /** Last modification time of the original file when it was stored (possibly null if unknown) */
+    Instant lastModifiedTime;
+    /** File key of the original file when it was stored, see {@link org.ogerardin.b2b.files.FileKeys}
+     * (possibly null if unknown) */
+    String fileKey;
 }
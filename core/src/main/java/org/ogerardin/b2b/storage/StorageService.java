@@ -6,6 +6,10 @@ import org.springframework.web.multipart.MultipartFile;
 import java.io.File;
 import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.UnaryOperator;
 import java.util.stream.Stream;
 
 /**
@@ -28,15 +32,56 @@ public interface StorageService {
     void deleteAll();
 
     void store(File file);
-    void store(Path path);
+    /**
+     * Stores the contents of the specified file.
+     * @return the latest stored version of the file after the operation. Implementations that detect that the
+     * contents are identical to the previously stored version may return that version instead of storing a new one.
+     */
+    FileVersion store(Path path);
+    /**
+     * Same as {@link #store(Path)}, but the file's contents are read through the specified filter, e.g. to
+     * limit the bandwidth.
+     */
+    FileVersion store(Path path, UnaryOperator<InputStream> inputFilter);
     void store(InputStream inputStream, String filename);
 
+    /**
+     * Makes sure that all the files stored so far are durably stored. Implementations that buffer stored files
+     * (e.g. to group small files) must override this; the default implementation does nothing.
+     */
+    default void flush() {
+    }
+
+    /**
+     * Returns statistics about the files stored so far by this instance, by name, e.g. for the job to report them.
+     * The default implementation has none.
+     */
+    default Map<String, Long> getStatistics() {
+        return Collections.emptyMap();
+    }
+
     FileVersion[] getFileVersions(String filename);
     FileVersion[] getFileVersions(Path path);
 
     FileVersion getLatestFileVersion(Path path) throws StorageFileNotFoundException;
     FileVersion getLatestFileVersion(String filename) throws StorageFileNotFoundException;
 
+    /**
+     * Bulk version of {@link #getLatestFileVersion(Path)}.
+     * @return a map with an entry for each of the specified paths that has a stored version; paths that have no
+     * stored version are absent from the map.
+     */
+    Map<Path, FileVersion> getLatestFileVersions(Collection<Path> paths);
+
+    /**
+     * Looks for a stored version with the specified contents, e.g. to store a copy of it instead of transferring the
+     * contents. Implementations that can't look up contents by hash return null, which is the default.
+     * @return a version whose contents have the specified MD5 hash, or null if none is found
+     */
+    default FileVersion findFileVersionByMd5(String md5hash) {
+        return null;
+    }
+
     FileVersion getFileVersion(String versionId) throws StorageFileVersionNotFoundException;
     InputStream getFileVersionAsInputStream(String versionId) throws StorageFileVersionNotFoundException;
     Resource getFileVersionAsResource(String versionId) throws StorageFileVersionNotFoundException;
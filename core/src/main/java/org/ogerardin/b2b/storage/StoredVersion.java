@@ -0,0 +1,36 @@
+package org.ogerardin.b2b.storage;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+
+import java.time.Instant;
+
+/**
+ * Metadata of a version of a file stored by an {@link AbstractVersionedStorageService}; subclasses add the reference
+ * to the contents.
+ */
+@Data
+public abstract class StoredVersion {
+
+    /** The version id */
+    @Id
+    private String id;
+
+    /** The original file path */
+    private String filename;
+
+    /** Length in bytes of the contents */
+    private long size;
+
+    /** MD5 hash of the contents */
+    private String md5hash;
+
+    /** Time the version was stored */
+    private Instant storedDate;
+
+    /** Last modification time of the original file when the version was stored (may be null) */
+    private Instant lastModifiedTime;
+
+    /** File key of the original file when the version was stored (may be null) */
+    private String fileKey;
+}
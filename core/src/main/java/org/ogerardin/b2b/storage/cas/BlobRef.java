@@ -0,0 +1,27 @@
+package org.ogerardin.b2b.storage.cas;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+
+/**
+ * Entry of the {@link BlobStore} for a distinct content.
+ */
+@Data
+public class BlobRef {
+
+    /** SHA-256 hash of the contents, in hex */
+    @Id
+    private String hash;
+
+    /** The id of the GridFS file holding the contents */
+    private String blobId;
+
+    /** Length in bytes of the contents */
+    private long size;
+
+    /** MD5 hash of the contents */
+    private String md5hash;
+
+    /** Number of versions, in any bucket, that refer to this content */
+    private long refCount;
+}
@@ -0,0 +1,154 @@
+package org.ogerardin.b2b.storage.cas;
+
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSFile;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ogerardin.b2b.storage.StorageException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+/**
+ * A store of immutable blobs addressed by the SHA-256 hash of their contents, shared by all backup sets: identical
+ * contents are stored only once, however many files, versions or backup sets refer to them.
+ *
+ * Blob contents are stored in a dedicated GridFS bucket; for each distinct content, a {@link BlobRef} holds the id of
+ * the GridFS file and a reference count, which is maintained by {@link #addReference(String)},
+ * {@link #store(InputStream)} and {@link #removeReference(String)}. A blob is deleted when its last reference is
+ * removed.
+ *
+ * The reference count is only updated with atomic operations, and an entry whose count dropped to 0 can't be
+ * referenced again, so a blob is never deleted while a reference to it is being added.
+ */
+@Component
+public class BlobStore {
+
+    private static final Log logger = LogFactory.getLog(BlobStore.class);
+
+    private static final String BUCKET = "cas";
+
+    /** Number of attempts to record a new blob when racing with concurrent stores or removals of the same contents */
+    private static final int MAX_ATTEMPTS = 10;
+
+    private final MongoTemplate mongoTemplate;
+    private final GridFsTemplate gridFsTemplate;
+
+    @Autowired
+    public BlobStore(MongoDbFactory mongoDbFactory, MongoConverter mongoConverter, MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+        this.gridFsTemplate = new GridFsTemplate(mongoDbFactory, mongoConverter, BUCKET);
+    }
+
+    /**
+     * Adds a reference to the blob with the specified hash, if it exists.
+     * @return the blob's entry, or null if there is no blob with this hash
+     */
+    public BlobRef addReference(String hash) {
+        return mongoTemplate.findAndModify(
+                new Query(Criteria.where("_id").is(hash).and("refCount").gt(0)),
+                new Update().inc("refCount", 1),
+                FindAndModifyOptions.options().returnNew(true),
+                BlobRef.class, getRefsCollectionName());
+    }
+
+    /**
+     * Stores the specified contents as a blob with a single reference, or adds a reference to the existing blob if
+     * the contents turn out to be already stored. The hash is computed from the contents actually read, so the
+     * result is consistent even if the source changed since it was hashed by the caller.
+     * @return the blob's entry
+     */
+    public BlobRef store(InputStream inputStream) {
+        MessageDigest sha256 = DigestUtils.getSha256Digest();
+        GridFSFile file = gridFsTemplate.store(new DigestInputStream(inputStream, sha256), "blob");
+        String hash = Hex.encodeHexString(sha256.digest());
+
+        BlobRef blobRef = new BlobRef();
+        blobRef.setHash(hash);
+        blobRef.setBlobId(file.getId().toString());
+        blobRef.setSize(file.getLength());
+        blobRef.setMd5hash(file.getMD5());
+        blobRef.setRefCount(1);
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            try {
+                mongoTemplate.insert(blobRef, getRefsCollectionName());
+                return blobRef;
+            } catch (DuplicateKeyException e) {
+                // stored concurrently, or entry with no references about to be removed
+                BlobRef existing = addReference(hash);
+                if (existing != null) {
+                    logger.debug("Blob " + hash + " already stored, discarding new copy");
+                    deleteBlob(blobRef.getBlobId());
+                    return existing;
+                }
+                // the existing entry has no references (e.g. its removal was interrupted): remove it and retry
+                removeUnreferenced(hash);
+            }
+        }
+        deleteBlob(blobRef.getBlobId());
+        throw new StorageException("Failed to store blob " + hash + " after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * Removes a reference to the blob with the specified hash, and deletes the blob if it was the last reference.
+     */
+    public void removeReference(String hash) {
+        BlobRef blobRef = mongoTemplate.findAndModify(
+                new Query(Criteria.where("_id").is(hash)),
+                new Update().inc("refCount", -1),
+                FindAndModifyOptions.options().returnNew(true),
+                BlobRef.class, getRefsCollectionName());
+        if (blobRef != null && blobRef.getRefCount() <= 0) {
+            removeUnreferenced(hash);
+        }
+    }
+
+    /**
+     * Removes the entry with the specified hash and its blob, if the entry has no references. Once the reference
+     * count has dropped to 0, {@link #addReference(String)} doesn't match the entry anymore, so it can be removed
+     * safely.
+     */
+    private void removeUnreferenced(String hash) {
+        BlobRef blobRef = mongoTemplate.findAndRemove(
+                new Query(Criteria.where("_id").is(hash).and("refCount").lte(0)),
+                BlobRef.class, getRefsCollectionName());
+        if (blobRef != null) {
+            deleteBlob(blobRef.getBlobId());
+            logger.debug("Deleted blob " + hash);
+        }
+    }
+
+    /**
+     * Returns the contents of the blob with the specified hash, or null if there is no such blob.
+     */
+    public InputStream getContents(String hash) {
+        BlobRef blobRef = mongoTemplate.findById(hash, BlobRef.class, getRefsCollectionName());
+        if (blobRef == null) {
+            return null;
+        }
+        GridFSDBFile file = gridFsTemplate.findOne(new Query(Criteria.where("_id").is(blobRef.getBlobId())));
+        return (file != null) ? file.getInputStream() : null;
+    }
+
+    private void deleteBlob(String blobId) {
+        gridFsTemplate.delete(new Query(Criteria.where("_id").is(blobId)));
+    }
+
+    private String getRefsCollectionName() {
+        return BUCKET + ".refs";
+    }
+}
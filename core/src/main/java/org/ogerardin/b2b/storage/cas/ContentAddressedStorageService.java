@@ -0,0 +1,242 @@
+package org.ogerardin.b2b.storage.cas;
+
+import com.google.common.io.ByteStreams;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
+import org.ogerardin.b2b.files.FileKeys;
+import org.ogerardin.b2b.storage.*;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * Implementation of {@link StorageService} that stores file contents in the {@link BlobStore}, which is shared by
+ * all the instances, so that identical contents are stored only once even if they come from different backup sets.
+ *
+ * Each instance (i.e. bucket) has its own collection of versions (see {@link ContentAddressedVersion}), each of which
+ * refers to a blob by hash and holds a reference to it.
+ *
+ * A file is hashed before it is stored: if a blob with the same hash already exists, storing the file only inserts
+ * a version (no contents are sent to the database); otherwise the file is read a second time to store the blob.
+ */
+public class ContentAddressedStorageService extends AbstractVersionedStorageService<ContentAddressedVersion> {
+
+    private static final Log logger = LogFactory.getLog(ContentAddressedStorageService.class);
+
+
+    private final BlobStore blobStore;
+
+    public ContentAddressedStorageService(MongoTemplate mongoTemplate, BlobStore blobStore, String bucket) {
+        super(mongoTemplate, bucket);
+        this.blobStore = blobStore;
+    }
+
+    @Override
+    public Stream<FileVersion> getAllFileVersions() {
+        return mongoTemplate.findAll(ContentAddressedVersion.class, getVersionsCollectionName()).stream()
+                .map(this::getFileVersion);
+    }
+
+    @Override
+    public InputStream getAsInputStream(String filename) throws StorageFileNotFoundException {
+        ContentAddressedVersion version = findLatestVersion(filename);
+        if (version == null) {
+            throw new StorageFileNotFoundException(filename);
+        }
+        return getContents(version);
+    }
+
+    /**
+     * Deletes all the versions of this bucket, releasing their references to blobs; blobs that are still referenced
+     * from other buckets are kept.
+     */
+    @Override
+    public void deleteAll() {
+        for (ContentAddressedVersion version : mongoTemplate.findAll(ContentAddressedVersion.class,
+                getVersionsCollectionName())) {
+            // remove the version first, so that a crash can only leak a reference, never leave a dangling one
+            mongoTemplate.remove(new Query(Criteria.where("_id").is(new ObjectId(version.getId()))),
+                    getVersionsCollectionName());
+            blobStore.removeReference(version.getHash());
+        }
+        mongoTemplate.dropCollection(getVersionsCollectionName());
+    }
+
+    @Override
+    public void store(File file) {
+        try {
+            store(file.toPath(), file.getCanonicalPath(), new ContentAddressedVersion(), UnaryOperator.identity());
+        } catch (IOException e) {
+            throw new StorageException("Exception while trying to get canonical path for " + file, e);
+        }
+    }
+
+    @Override
+    public FileVersion store(Path path) {
+        return store(path, UnaryOperator.identity());
+    }
+
+    @Override
+    public FileVersion store(Path path, UnaryOperator<InputStream> inputFilter) {
+        ContentAddressedVersion version = new ContentAddressedVersion();
+        try {
+            // attributes are read before the contents, so that a modification while we're reading will be detected
+            // next time
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            version.setLastModifiedTime(attributes.lastModifiedTime().toInstant());
+            version.setFileKey(FileKeys.asString(attributes));
+        } catch (IOException e) {
+            throw new StorageException("Exception while trying to read attributes of " + path, e);
+        }
+        return store(path, canonicalPath(path), version, inputFilter);
+    }
+
+    /**
+     * Stores the specified stream. As a stream can't be read twice, its contents are buffered in memory; this is
+     * only meant for small contents.
+     */
+    @Override
+    public void store(InputStream inputStream, String filename) {
+        byte[] contents;
+        try {
+            contents = ByteStreams.toByteArray(inputStream);
+        } catch (IOException e) {
+            throw new StorageException("Exception while reading contents of " + filename, e);
+        }
+        store(() -> new ByteArrayInputStream(contents), filename, new ContentAddressedVersion());
+    }
+
+    private FileVersion store(Path path, String filename, ContentAddressedVersion version,
+                              UnaryOperator<InputStream> inputFilter) {
+        return store(() -> inputFilter.apply(Files.newInputStream(path, StandardOpenOption.READ)), filename, version);
+    }
+
+    /**
+     * Stores a new version of the file whose contents are provided by the specified source, unless they are identical
+     * to the latest stored version. The contents are hashed first, and only stored in the blob store if no blob with
+     * the same hash exists.
+     * @param version holds the metadata of the original file, if known
+     * @return the latest version of the file after storing
+     */
+    private FileVersion store(ContentSource source, String filename, ContentAddressedVersion version) {
+        MessageDigest sha256 = DigestUtils.getSha256Digest();
+        try (InputStream inputStream = source.open()) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = inputStream.read(buffer)) >= 0) {
+                sha256.update(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Exception while hashing " + filename, e);
+        }
+        String hash = Hex.encodeHexString(sha256.digest());
+
+        ContentAddressedVersion previous = findLatestVersion(filename);
+        if (previous != null && hash.equals(previous.getHash())) {
+            logger.debug("Contents unchanged, discarding new version of " + filename);
+            return refreshMetadata(previous, version);
+        }
+
+        BlobRef blobRef = blobStore.addReference(hash);
+        if (blobRef != null) {
+            logger.debug("Contents of " + filename + " already stored as blob " + hash);
+        } else {
+            try (InputStream inputStream = source.open()) {
+                blobRef = blobStore.store(inputStream);
+            } catch (IOException e) {
+                throw new StorageException("Exception while storing contents of " + filename, e);
+            }
+        }
+
+        version.setId(new ObjectId().toString());
+        version.setFilename(filename);
+        // the blob's hash and size may differ from what we computed if the file changed in the meantime
+        version.setHash(blobRef.getHash());
+        version.setSize(blobRef.getSize());
+        version.setMd5hash(blobRef.getMd5hash());
+        version.setStoredDate(Instant.now());
+        mongoTemplate.insert(version, getVersionsCollectionName());
+        return getFileVersion(version);
+    }
+
+    @Override
+    public FileVersion[] getFileVersions(String filename) {
+        Query query = new Query(Criteria.where(FILENAME_KEY).is(filename));
+        return mongoTemplate.find(query, ContentAddressedVersion.class, getVersionsCollectionName()).stream()
+                .map(this::getFileVersion)
+                .toArray(FileVersion[]::new);
+    }
+
+    @Override
+    public FileVersion getLatestFileVersion(String filename) throws StorageFileNotFoundException {
+        ContentAddressedVersion version = findLatestVersion(filename);
+        if (version == null) {
+            throw new StorageFileNotFoundException(filename);
+        }
+        return getFileVersion(version);
+    }
+
+    @Override
+    public FileVersion getFileVersion(String versionId) throws StorageFileVersionNotFoundException {
+        return getFileVersion(getVersion(versionId));
+    }
+
+    @Override
+    public InputStream getFileVersionAsInputStream(String versionId) throws StorageFileVersionNotFoundException {
+        return getContents(getVersion(versionId));
+    }
+
+    private ContentAddressedVersion getVersion(String versionId) throws StorageFileVersionNotFoundException {
+        ContentAddressedVersion version = mongoTemplate.findById(versionId, ContentAddressedVersion.class,
+                getVersionsCollectionName());
+        if (version == null) {
+            throw new StorageFileVersionNotFoundException(versionId);
+        }
+        return version;
+    }
+
+    private InputStream getContents(ContentAddressedVersion version) {
+        InputStream inputStream = blobStore.getContents(version.getHash());
+        if (inputStream == null) {
+            throw new StorageException("Missing blob " + version.getHash() + " for version " + version.getId());
+        }
+        return inputStream;
+    }
+
+    /**
+     * Returns the latest version of the specified file, or null if there is none. Sorting and limiting are done
+     * server-side using the index created in {@link #init()}.
+     */
+    private ContentAddressedVersion findLatestVersion(String filename) {
+        Query query = new Query(Criteria.where(FILENAME_KEY).is(filename))
+                .with(new Sort(Sort.Direction.DESC, STORED_DATE_KEY))
+                .limit(1);
+        return mongoTemplate.findOne(query, ContentAddressedVersion.class, getVersionsCollectionName());
+    }
+
+    /**
+     * Provides the contents to store; called once to hash them, and once more if they must be stored.
+     */
+    @FunctionalInterface
+    private interface ContentSource {
+        InputStream open() throws IOException;
+    }
+
+}
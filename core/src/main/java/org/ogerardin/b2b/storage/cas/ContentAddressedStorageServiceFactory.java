@@ -0,0 +1,25 @@
+package org.ogerardin.b2b.storage.cas;
+
+import org.ogerardin.b2b.storage.StorageServiceFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+@Component
+public class ContentAddressedStorageServiceFactory implements StorageServiceFactory<ContentAddressedStorageService> {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Override
+    public ContentAddressedStorageService getStorageService(String backupSetId) {
+        // each backupSet has its own versions, but the contents are stored in the blob store shared by all backupSets
+        ContentAddressedStorageService storageService =
+                new ContentAddressedStorageService(mongoTemplate, blobStore, backupSetId);
+        storageService.init();
+        return storageService;
+    }
+}
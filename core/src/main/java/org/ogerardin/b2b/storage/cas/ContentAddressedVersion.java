@@ -0,0 +1,17 @@
+package org.ogerardin.b2b.storage.cas;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.ogerardin.b2b.storage.StoredVersion;
+
+/**
+ * A version of a file stored by {@link ContentAddressedStorageService}: file metadata plus the hash of the contents
+ * in the {@link BlobStore}.
+ */
+@EqualsAndHashCode(callSuper = true)
+@Data
+public class ContentAddressedVersion extends StoredVersion {
+
+    /** SHA-256 hash of the contents, i.e. the key of the contents in the {@link BlobStore} */
+    private String hash;
+}
@@ -0,0 +1,5 @@
+/**
+ * Implementation of {@link org.ogerardin.b2b.storage.StorageService} that stores file contents once in a blob store
+ * shared by all backup sets, addressed by content hash.
+ */
+package org.ogerardin.b2b.storage.cas;
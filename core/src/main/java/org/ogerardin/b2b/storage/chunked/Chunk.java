@@ -0,0 +1,19 @@
+package org.ogerardin.b2b.storage.chunked;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+
+/**
+ * A chunk of file contents stored by {@link ChunkedStorageService}. Chunks are content-addressed: the id is the
+ * hash of the contents, so identical chunks are stored only once.
+ */
+@Data
+public class Chunk {
+
+    /** SHA-256 hash of the contents, in hex */
+    @Id
+    private String hash;
+
+    /** The contents */
+    private byte[] data;
+}
@@ -0,0 +1,24 @@
+package org.ogerardin.b2b.storage.chunked;
+
+import lombok.Data;
+
+/**
+ * Reference to a {@link Chunk} from a {@link ChunkedVersion}.
+ */
+@Data
+public class ChunkRef {
+
+    /** The hash of the chunk, i.e. its id */
+    private String hash;
+
+    /** Length in bytes of the chunk */
+    private int size;
+
+    public ChunkRef() {
+    }
+
+    public ChunkRef(String hash, int size) {
+        this.hash = hash;
+        this.size = size;
+    }
+}
@@ -0,0 +1,71 @@
+package org.ogerardin.b2b.storage.chunked;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * An {@link InputStream} that reads the contents of a {@link ChunkedVersion} by loading its chunks one at a time, so
+ * that only one chunk is held in memory regardless of the size of the file.
+ */
+class ChunkedInputStream extends InputStream {
+
+    private final Iterator<ChunkRef> chunkRefs;
+    private final Function<ChunkRef, byte[]> chunkLoader;
+
+    private byte[] current = new byte[0];
+    private int position = 0;
+
+    /**
+     * @param chunkRefs the chunks to read, in order
+     * @param chunkLoader function that returns the contents of a chunk
+     */
+    ChunkedInputStream(List<ChunkRef> chunkRefs, Function<ChunkRef, byte[]> chunkLoader) {
+        this.chunkRefs = chunkRefs.iterator();
+        this.chunkLoader = chunkLoader;
+    }
+
+    /**
+     * Makes sure there are bytes left to read in the current chunk, loading the next chunk if necessary.
+     * @return false at the end of the stream
+     */
+    private boolean ensureAvailable() {
+        while (position >= current.length) {
+            if (!chunkRefs.hasNext()) {
+                return false;
+            }
+            current = chunkLoader.apply(chunkRefs.next());
+            position = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - position;
+    }
+}
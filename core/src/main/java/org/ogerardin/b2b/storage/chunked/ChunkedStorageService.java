@@ -0,0 +1,297 @@
+package org.ogerardin.b2b.storage.chunked;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
+import org.ogerardin.b2b.files.FileKeys;
+import org.ogerardin.b2b.storage.*;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Implementation of {@link StorageService} that deduplicates contents at the chunk level.
+ *
+ * Files are split into variable-size chunks by content-defined chunking (see {@link FastCdcChunker}), and each chunk
+ * is stored once in a chunk collection, keyed by its SHA-256 hash (see {@link Chunk}). Each version of a file is a
+ * manifest listing its chunks in order (see {@link ChunkedVersion}). When a large file is modified, only the chunks
+ * around the modifications differ from the previous version, so only those are stored.
+ *
+ * Chunks are shared by all the versions of all the files stored by an instance (i.e. in a bucket), and are only
+ * removed by {@link #deleteAll()}.
+ */
+public class ChunkedStorageService extends AbstractVersionedStorageService<ChunkedVersion> {
+
+    private static final Log logger = LogFactory.getLog(ChunkedStorageService.class);
+
+    private static final String CHUNKS_KEY = "chunks";
+
+    /** Chunks are sent to the database in batches of about this size, after filtering out the ones already stored */
+    private static final long CHUNK_BATCH_BYTES = 16 * 1024 * 1024;
+
+    private final int minChunkSize;
+    private final int averageChunkSize;
+    private final int maxChunkSize;
+
+    public ChunkedStorageService(MongoTemplate mongoTemplate, String bucket,
+                                 int minChunkSize, int averageChunkSize, int maxChunkSize) {
+        super(mongoTemplate, bucket);
+        this.minChunkSize = minChunkSize;
+        this.averageChunkSize = averageChunkSize;
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    @Override
+    public Stream<FileVersion> getAllFileVersions() {
+        return mongoTemplate.find(withoutChunks(new Query()), ChunkedVersion.class, getVersionsCollectionName())
+                .stream()
+                .map(this::getFileVersion);
+    }
+
+    @Override
+    public InputStream getAsInputStream(String filename) throws StorageFileNotFoundException {
+        ChunkedVersion version = getLatestVersion(filename, true);
+        return getContents(version);
+    }
+
+    @Override
+    public void deleteAll() {
+        mongoTemplate.dropCollection(getVersionsCollectionName());
+        mongoTemplate.dropCollection(getChunksCollectionName());
+    }
+
+    @Override
+    public void store(File file) {
+        try (InputStream inputStream = Files.newInputStream(file.toPath(), StandardOpenOption.READ)) {
+            store(inputStream, file.getCanonicalPath());
+        } catch (IOException e) {
+            throw new StorageException("Exception while trying to store " + file, e);
+        }
+    }
+
+    @Override
+    public FileVersion store(Path path) {
+        return store(path, UnaryOperator.identity());
+    }
+
+    @Override
+    public FileVersion store(Path path, UnaryOperator<InputStream> inputFilter) {
+        String canonicalPath = canonicalPath(path);
+        ChunkedVersion version = new ChunkedVersion();
+        InputStream inputStream;
+        try {
+            // attributes are read before the contents, so that a modification while we're reading will be detected
+            // next time
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            version.setLastModifiedTime(attributes.lastModifiedTime().toInstant());
+            version.setFileKey(FileKeys.asString(attributes));
+            inputStream = inputFilter.apply(Files.newInputStream(path, StandardOpenOption.READ));
+        } catch (IOException e) {
+            throw new StorageException("Exception while trying to get InputStream for " + path, e);
+        }
+        try (InputStream is = inputStream) {
+            return store(is, canonicalPath, version);
+        } catch (IOException e) {
+            throw new StorageException("Exception while reading " + path, e);
+        }
+    }
+
+    @Override
+    public void store(InputStream inputStream, String filename) {
+        try {
+            store(inputStream, filename, new ChunkedVersion());
+        } catch (IOException e) {
+            throw new StorageException("Exception while reading contents of " + filename, e);
+        }
+    }
+
+    /**
+     * Splits the specified stream into chunks, stores the chunks that aren't already stored, and stores a new version
+     * of the file referencing them, unless its contents are identical to the latest stored version.
+     * @param version holds the metadata of the original file, if known
+     * @return the latest version of the file after storing
+     */
+    private FileVersion store(InputStream inputStream, String filename, ChunkedVersion version) throws IOException {
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        FastCdcChunker chunker = new FastCdcChunker(inputStream, minChunkSize, averageChunkSize, maxChunkSize);
+
+        List<ChunkRef> chunkRefs = new ArrayList<>();
+        Map<String, byte[]> batch = new LinkedHashMap<>();
+        long batchBytes = 0;
+        long size = 0;
+        byte[] data;
+        while ((data = chunker.next()) != null) {
+            md5.update(data);
+            size += data.length;
+            String hash = DigestUtils.sha256Hex(data);
+            chunkRefs.add(new ChunkRef(hash, data.length));
+            if (batch.put(hash, data) == null) {
+                batchBytes += data.length;
+            }
+            if (batchBytes >= CHUNK_BATCH_BYTES) {
+                storeChunks(batch);
+                batch.clear();
+                batchBytes = 0;
+            }
+        }
+        storeChunks(batch);
+        String md5hash = Hex.encodeHexString(md5.digest());
+
+        ChunkedVersion previous = findLatestVersion(filename, false);
+        if (previous != null && md5hash.equalsIgnoreCase(previous.getMd5hash())) {
+            logger.debug("Contents unchanged, discarding new version of " + filename);
+            return refreshMetadata(previous, version);
+        }
+
+        version.setId(new ObjectId().toString());
+        version.setFilename(filename);
+        version.setSize(size);
+        version.setMd5hash(md5hash);
+        version.setStoredDate(Instant.now());
+        version.setChunks(chunkRefs);
+        mongoTemplate.insert(version, getVersionsCollectionName());
+        return getFileVersion(version);
+    }
+
+    /**
+     * Stores those of the specified chunks that aren't stored yet. Existing chunks are looked up first, so that
+     * the contents of chunks already stored are not sent to the database.
+     */
+    private void storeChunks(Map<String, byte[]> chunks) {
+        if (chunks.isEmpty()) {
+            return;
+        }
+        Query query = new Query(Criteria.where("_id").in(chunks.keySet()));
+        query.fields().include("_id");
+        Set<String> existing = mongoTemplate.find(query, Chunk.class, getChunksCollectionName()).stream()
+                .map(Chunk::getHash)
+                .collect(Collectors.toSet());
+
+        List<Chunk> missing = new ArrayList<>();
+        chunks.forEach((hash, data) -> {
+            if (!existing.contains(hash)) {
+                Chunk chunk = new Chunk();
+                chunk.setHash(hash);
+                chunk.setData(data);
+                missing.add(chunk);
+            }
+        });
+        if (missing.isEmpty()) {
+            return;
+        }
+        logger.debug(String.format("Storing %d new chunks out of %d", missing.size(), chunks.size()));
+        try {
+            mongoTemplate.insert(missing, getChunksCollectionName());
+        } catch (DuplicateKeyException e) {
+            // another store inserted some of the same chunks concurrently: insert one by one, skipping those
+            for (Chunk chunk : missing) {
+                try {
+                    mongoTemplate.insert(chunk, getChunksCollectionName());
+                } catch (DuplicateKeyException e1) {
+                    // already stored
+                }
+            }
+        }
+    }
+
+    @Override
+    public FileVersion[] getFileVersions(String filename) {
+        Query query = withoutChunks(new Query(Criteria.where(FILENAME_KEY).is(filename)));
+        return mongoTemplate.find(query, ChunkedVersion.class, getVersionsCollectionName()).stream()
+                .map(this::getFileVersion)
+                .toArray(FileVersion[]::new);
+    }
+
+    @Override
+    public FileVersion getLatestFileVersion(String filename) throws StorageFileNotFoundException {
+        return getFileVersion(getLatestVersion(filename, false));
+    }
+
+    @Override
+    public FileVersion getFileVersion(String versionId) throws StorageFileVersionNotFoundException {
+        Query query = withoutChunks(new Query(Criteria.where("_id").is(versionId)));
+        ChunkedVersion version = mongoTemplate.findOne(query, ChunkedVersion.class, getVersionsCollectionName());
+        if (version == null) {
+            throw new StorageFileVersionNotFoundException(versionId);
+        }
+        return getFileVersion(version);
+    }
+
+    @Override
+    public InputStream getFileVersionAsInputStream(String versionId) throws StorageFileVersionNotFoundException {
+        ChunkedVersion version = mongoTemplate.findById(versionId, ChunkedVersion.class, getVersionsCollectionName());
+        if (version == null) {
+            throw new StorageFileVersionNotFoundException(versionId);
+        }
+        return getContents(version);
+    }
+
+    /**
+     * Returns a stream that reads the contents of the specified version, loading its chunks as they are needed.
+     */
+    private InputStream getContents(ChunkedVersion version) {
+        return new ChunkedInputStream(version.getChunks(), this::loadChunk);
+    }
+
+    private byte[] loadChunk(ChunkRef chunkRef) {
+        Chunk chunk = mongoTemplate.findById(chunkRef.getHash(), Chunk.class, getChunksCollectionName());
+        if (chunk == null) {
+            throw new StorageException("Missing chunk " + chunkRef.getHash());
+        }
+        return chunk.getData();
+    }
+
+    private ChunkedVersion getLatestVersion(String filename, boolean withChunks) throws StorageFileNotFoundException {
+        ChunkedVersion version = findLatestVersion(filename, withChunks);
+        if (version == null) {
+            throw new StorageFileNotFoundException(filename);
+        }
+        return version;
+    }
+
+    /**
+     * Returns the latest version of the specified file, or null if there is none. Sorting and limiting are done
+     * server-side using the index created in {@link #init()}.
+     * @param withChunks whether to load the version's manifest, which can be large
+     */
+    private ChunkedVersion findLatestVersion(String filename, boolean withChunks) {
+        Query query = new Query(Criteria.where(FILENAME_KEY).is(filename))
+                .with(new Sort(Sort.Direction.DESC, STORED_DATE_KEY))
+                .limit(1);
+        if (!withChunks) {
+            withoutChunks(query);
+        }
+        return mongoTemplate.findOne(query, ChunkedVersion.class, getVersionsCollectionName());
+    }
+
+    /**
+     * Excludes the manifest from the results of the specified query, when only the metadata of versions is needed.
+     */
+    private static Query withoutChunks(Query query) {
+        query.fields().exclude(CHUNKS_KEY);
+        return query;
+    }
+
+    private String getChunksCollectionName() {
+        return bucket + ".chunks";
+    }
+
+}
@@ -0,0 +1,27 @@
+package org.ogerardin.b2b.storage.chunked;
+
+import org.ogerardin.b2b.B2BProperties;
+import org.ogerardin.b2b.storage.StorageServiceFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+@Component
+public class ChunkedStorageServiceFactory implements StorageServiceFactory<ChunkedStorageService> {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private B2BProperties properties;
+
+    @Override
+    public ChunkedStorageService getStorageService(String backupSetId) {
+        // as with GridFS, the backupSetId is used as the bucket name so that each backupSet has its own collections,
+        // and chunks are deduplicated among all the files of a backupSet
+        ChunkedStorageService storageService = new ChunkedStorageService(mongoTemplate, backupSetId,
+                properties.getMinChunkSize(), properties.getAverageChunkSize(), properties.getMaxChunkSize());
+        storageService.init();
+        return storageService;
+    }
+}
@@ -0,0 +1,19 @@
+package org.ogerardin.b2b.storage.chunked;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.ogerardin.b2b.storage.StoredVersion;
+
+import java.util.List;
+
+/**
+ * A version of a file stored by {@link ChunkedStorageService}: file metadata plus the manifest of the chunks that
+ * make up the contents, in order.
+ */
+@EqualsAndHashCode(callSuper = true)
+@Data
+public class ChunkedVersion extends StoredVersion {
+
+    /** The chunks that make up the contents, in order */
+    private List<ChunkRef> chunks;
+}
@@ -0,0 +1,139 @@
+package org.ogerardin.b2b.storage.chunked;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into variable-size chunks using content-defined chunking (FastCDC).
+ *
+ * A rolling "gear" hash is computed over the bytes, and a chunk boundary is declared where the hash matches a mask.
+ * As boundaries depend only on the bytes in a small window before them, inserting or removing bytes in a stream only
+ * changes the chunks around the modification: the chunks before and after it are the same as before, which is what
+ * allows deduplication between versions of a file.
+ *
+ * Chunk sizes are kept between a minimum and a maximum; around the average size, a stricter mask is used below the
+ * average and a looser one above it ("normalized chunking"), which narrows the distribution of chunk sizes.
+ *
+ * Instances are not thread-safe; each instance reads a single stream.
+ */
+public class FastCdcChunker {
+
+    /**
+     * Gear table: maps each byte value to a random 64-bit value. It must never change, otherwise chunk boundaries
+     * (and therefore deduplication) wouldn't be stable between versions of the application; java.util.Random's
+     * algorithm is fully specified, so a fixed seed gives the same table on all JVMs.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6b32625f63646321L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int maxSize;
+    private final int averageSize;
+
+    /** Mask used before the average size is reached (more bits, so less likely to match) */
+    private final long smallMask;
+    /** Mask used after the average size is reached (fewer bits, so more likely to match) */
+    private final long largeMask;
+
+    private final InputStream inputStream;
+    private final byte[] buffer;
+    private int length = 0;
+    private boolean eof = false;
+
+    /**
+     * @param inputStream the stream to split
+     * @param minSize minimum chunk size (except for the last chunk, which may be smaller)
+     * @param averageSize target average chunk size; must be a power of 2
+     * @param maxSize maximum chunk size
+     */
+    public FastCdcChunker(InputStream inputStream, int minSize, int averageSize, int maxSize) {
+        if (Integer.bitCount(averageSize) != 1) {
+            throw new IllegalArgumentException("Average chunk size must be a power of 2: " + averageSize);
+        }
+        if (minSize <= 0 || minSize > averageSize || averageSize > maxSize) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid chunk sizes: min %d, average %d, max %d", minSize, averageSize, maxSize));
+        }
+        this.inputStream = inputStream;
+        this.minSize = minSize;
+        this.averageSize = averageSize;
+        this.maxSize = maxSize;
+        int bits = Integer.numberOfTrailingZeros(averageSize);
+        this.smallMask = topBits(bits + 2);
+        this.largeMask = topBits(Math.max(1, bits - 2));
+        this.buffer = new byte[maxSize];
+    }
+
+    /**
+     * Returns a mask of the specified number of high-order bits. The gear hash shifts left at each byte, so the
+     * high-order bits are those that depend on the largest window of input.
+     */
+    private static long topBits(int count) {
+        return -1L << (64 - count);
+    }
+
+    /**
+     * Reads the next chunk.
+     * @return the contents of the chunk, or null at the end of the stream
+     */
+    public byte[] next() throws IOException {
+        fill();
+        if (length == 0) {
+            return null;
+        }
+        int cut = cutPoint(buffer, length);
+        byte[] chunk = Arrays.copyOf(buffer, cut);
+        System.arraycopy(buffer, cut, buffer, 0, length - cut);
+        length -= cut;
+        return chunk;
+    }
+
+    /**
+     * Fills the buffer from the stream, until it is full or the stream is exhausted.
+     */
+    private void fill() throws IOException {
+        while (!eof && length < buffer.length) {
+            int n = inputStream.read(buffer, length, buffer.length - length);
+            if (n < 0) {
+                eof = true;
+            } else {
+                length += n;
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the chunk that starts at the beginning of the specified data.
+     */
+    int cutPoint(byte[] data, int dataLength) {
+        if (dataLength <= minSize) {
+            return dataLength;
+        }
+        int end = Math.min(dataLength, maxSize);
+        int normal = Math.min(averageSize, end);
+        long hash = 0;
+        // the bytes before the minimum size can't be a boundary, so they are skipped entirely
+        int i = minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & smallMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & largeMask) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Implementation of {@link org.ogerardin.b2b.storage.StorageService} that splits files into content-defined chunks
+ * stored once in Mongo DB, and stores each file version as a list of chunk references.
+ */
+package org.ogerardin.b2b.storage.chunked;
@@ -0,0 +1,30 @@
+package org.ogerardin.b2b.storage.compression;
+
+import java.io.InputStream;
+
+/**
+ * A compression codec. Both directions work on {@link InputStream}s, so that contents can be compressed while they
+ * are uploaded and decompressed while they are read, without buffering.
+ *
+ * The name of the codec used for a version is recorded with the version, so a codec's name and format must never
+ * change once versions have been stored with it.
+ */
+public interface Codec {
+
+    /**
+     * The name under which the codec is registered in {@link Codecs}
+     */
+    String getName();
+
+    /**
+     * Returns a stream that reads the compressed form of the specified stream. Closing it closes the specified
+     * stream.
+     */
+    InputStream compressing(InputStream inputStream);
+
+    /**
+     * Returns a stream that reads the decompressed form of the specified stream. Closing it closes the specified
+     * stream.
+     */
+    InputStream decompressing(InputStream inputStream);
+}
@@ -0,0 +1,44 @@
+package org.ogerardin.b2b.storage.compression;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Registry of the available {@link Codec}s, by name. Additional codecs (e.g. backed by native libraries) can be
+ * registered at startup; a codec must stay registered as long as versions compressed with it are stored.
+ */
+public class Codecs {
+
+    /** Deflate favoring speed */
+    public static final String DEFLATE_FAST = "deflate-fast";
+
+    /** Deflate with the default trade-off between speed and compression */
+    public static final String DEFLATE = "deflate";
+
+    private static final Map<String, Codec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCodec(DEFLATE_FAST, Deflater.BEST_SPEED));
+        register(new DeflateCodec(DEFLATE, Deflater.DEFAULT_COMPRESSION));
+    }
+
+    private Codecs() {
+    }
+
+    public static void register(Codec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * Returns the codec with the specified name.
+     * @throws IllegalArgumentException if there is no such codec
+     */
+    public static Codec get(String name) {
+        Codec codec = codecs.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown codec: " + name);
+        }
+        return codec;
+    }
+}
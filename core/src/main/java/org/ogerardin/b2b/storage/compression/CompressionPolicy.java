@@ -0,0 +1,90 @@
+package org.ogerardin.b2b.storage.compression;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Decides whether the contents of a file are worth compressing, by compressing a sample from the beginning of the
+ * file: contents that are already compressed (JPEG, zip, video...) don't shrink significantly, and are stored as is
+ * to save the CPU time of compressing and decompressing them.
+ */
+public class CompressionPolicy {
+
+    /** Size of the sample compressed to estimate the compression ratio */
+    public static final int SAMPLE_SIZE = 64 * 1024;
+
+    /** Contents smaller than this are not compressed, as the gain would be negligible */
+    private static final int MIN_SIZE = 1024;
+
+    private final Codec codec;
+    private final double maxRatio;
+
+    /**
+     * @param codec the codec used for compressible contents
+     * @param maxRatio contents whose sample doesn't compress to less than this fraction of its size are not
+     *                 compressed
+     */
+    public CompressionPolicy(Codec codec, double maxRatio) {
+        this.codec = codec;
+        this.maxRatio = maxRatio;
+    }
+
+    /**
+     * Samples the beginning of the specified stream and returns the codec to use for its contents, or null if they
+     * shouldn't be compressed. The stream is reset to its current position afterwards.
+     */
+    public Codec choose(BufferedInputStream inputStream) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        inputStream.mark(SAMPLE_SIZE);
+        int length = 0;
+        try {
+            int n;
+            while (length < sample.length && (n = inputStream.read(sample, length, sample.length - length)) >= 0) {
+                length += n;
+            }
+        } finally {
+            inputStream.reset();
+        }
+        if (length < MIN_SIZE) {
+            return null;
+        }
+        return (sampleRatio(sample, length) < maxRatio) ? codec : null;
+    }
+
+    /**
+     * Estimates the compression ratio of contents from a sample of them.
+     * @return the compressed size of the sample as a fraction of its size, or 1 if the sample is too small to be worth
+     * compressing
+     */
+    public static double sampleRatio(byte[] sample, int length) {
+        if (length < MIN_SIZE) {
+            return 1;
+        }
+        return (double) compressedSize(sample, length) / length;
+    }
+
+    /**
+     * Returns the size of the specified data once compressed with fast settings, which is a good enough estimate
+     * for any codec.
+     */
+    private static int compressedSize(byte[] data, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            int size = 0;
+            while (!deflater.finished()) {
+                size += deflater.deflate(buffer);
+            }
+            return size;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+}
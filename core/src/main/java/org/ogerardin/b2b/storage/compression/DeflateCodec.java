@@ -0,0 +1,49 @@
+package org.ogerardin.b2b.storage.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * {@link Codec} using the JDK's Deflate implementation, at a given compression level.
+ */
+public class DeflateCodec implements Codec {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String name;
+    private final int level;
+
+    public DeflateCodec(String name, int level) {
+        this.name = name;
+        this.level = level;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public InputStream compressing(InputStream inputStream) {
+        Deflater deflater = new Deflater(level);
+        return new DeflaterInputStream(inputStream, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                // a Deflater passed to the constructor isn't released by the stream
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    @Override
+    public InputStream decompressing(InputStream inputStream) {
+        return new InflaterInputStream(inputStream);
+    }
+}
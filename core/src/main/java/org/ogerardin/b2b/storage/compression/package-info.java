@@ -0,0 +1,4 @@
+/**
+ * Compression codecs applied to the contents of stored versions.
+ */
+package org.ogerardin.b2b.storage.compression;
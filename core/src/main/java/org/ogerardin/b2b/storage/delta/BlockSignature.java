@@ -0,0 +1,205 @@
+package org.ogerardin.b2b.storage.delta;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * The signature of a file, used to encode a newer version of the file as a delta against it: the file is split into
+ * blocks of fixed size, and the signature holds the weak (rolling) and strong checksums of each block. A partial block
+ * at the end of the file is not part of the signature.
+ *
+ * The block size grows with the file size, so that the number of blocks (and the size of the signature) stays
+ * bounded.
+ */
+public class BlockSignature {
+
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCKS = 64 * 1024;
+
+    private final int blockSize;
+    private final int[] weak;
+    private final long[] strong;
+
+    BlockSignature(int blockSize, int[] weak, long[] strong) {
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Returns the block size used for a file of the specified length.
+     */
+    static int blockSizeFor(long length) {
+        int blockSize = MIN_BLOCK_SIZE;
+        while (length / blockSize > MAX_BLOCKS) {
+            blockSize *= 2;
+        }
+        return blockSize;
+    }
+
+    /**
+     * Returns the strong checksum of the specified block: the first 8 bytes of its MD5 hash.
+     */
+    static long strongChecksum(byte[] data, int offset, int length) {
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        md5.update(data, offset, length);
+        return ByteBuffer.wrap(md5.digest()).getLong();
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    int getBlockCount() {
+        return weak.length;
+    }
+
+    int getWeak(int block) {
+        return weak[block];
+    }
+
+    long getStrong(int block) {
+        return strong[block];
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + weak.length * 12);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(blockSize);
+            out.writeInt(weak.length);
+            for (int i = 0; i < weak.length; i++) {
+                out.writeInt(weak[i]);
+                out.writeLong(strong[i]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static BlockSignature fromBytes(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            int blockSize = in.readInt();
+            int count = in.readInt();
+            int[] weak = new int[count];
+            long[] strong = new long[count];
+            for (int i = 0; i < count; i++) {
+                weak[i] = in.readInt();
+                strong[i] = in.readLong();
+            }
+            return new BlockSignature(blockSize, weak, strong);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Wraps the specified stream so that the signature of the contents is computed as they are read.
+     * @param expectedLength the expected length of the contents, used to choose the block size
+     */
+    public static SignatureInputStream computeWhileReading(InputStream inputStream, long expectedLength) {
+        return new SignatureInputStream(inputStream, blockSizeFor(expectedLength));
+    }
+
+    /**
+     * An {@link InputStream} that computes the signature of the contents read through it.
+     */
+    public static class SignatureInputStream extends FilterInputStream {
+
+        private final int blockSize;
+        private final byte[] block;
+        private int blockLength = 0;
+        private long length = 0;
+        private final ByteArrayOutputStream weak = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream strong = new ByteArrayOutputStream();
+
+        SignatureInputStream(InputStream in, int blockSize) {
+            super(in);
+            this.blockSize = blockSize;
+            this.block = new byte[blockSize];
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                update(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                update(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must be seen
+            return Math.max(0, read(new byte[(int) Math.min(n, 8192)]));
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void update(byte[] data, int offset, int len) {
+            length += len;
+            while (len > 0) {
+                int n = Math.min(len, blockSize - blockLength);
+                System.arraycopy(data, offset, block, blockLength, n);
+                blockLength += n;
+                offset += n;
+                len -= n;
+                if (blockLength == blockSize) {
+                    writeInt(weak, RollingChecksum.of(block, 0, blockSize));
+                    writeLong(strong, strongChecksum(block, 0, blockSize));
+                    blockLength = 0;
+                }
+            }
+        }
+
+        /**
+         * Returns the number of bytes read so far.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the signature of the contents read so far.
+         */
+        public BlockSignature getSignature() {
+            ByteBuffer weakBytes = ByteBuffer.wrap(weak.toByteArray());
+            ByteBuffer strongBytes = ByteBuffer.wrap(strong.toByteArray());
+            int count = weakBytes.remaining() / 4;
+            int[] weakChecksums = new int[count];
+            long[] strongChecksums = new long[count];
+            for (int i = 0; i < count; i++) {
+                weakChecksums[i] = weakBytes.getInt();
+                strongChecksums[i] = strongBytes.getLong();
+            }
+            return new BlockSignature(blockSize, weakChecksums, strongChecksums);
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int value) {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+
+        private static void writeLong(ByteArrayOutputStream out, long value) {
+            writeInt(out, (int) (value >>> 32));
+            writeInt(out, (int) value);
+        }
+    }
+}
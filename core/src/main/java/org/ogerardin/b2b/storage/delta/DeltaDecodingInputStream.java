@@ -0,0 +1,99 @@
+package org.ogerardin.b2b.storage.delta;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link InputStream} that reads the contents reconstructed from a delta produced by
+ * {@link DeltaEncodingInputStream} and the base it was encoded against. Copies are in increasing base order, so the
+ * base is read sequentially, and may itself be a {@link DeltaDecodingInputStream}.
+ */
+public class DeltaDecodingInputStream extends InputStream {
+
+    private final DataInputStream delta;
+    private final InputStream base;
+
+    /** Current position in the base */
+    private long basePosition = 0;
+
+    /** Type of the current operation */
+    private int operation = -1;
+    /** Number of bytes left in the current operation */
+    private long remaining = 0;
+
+    public DeltaDecodingInputStream(InputStream delta, InputStream base) {
+        this.delta = new DataInputStream(delta);
+        this.base = base;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return (n < 0) ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextOperation()) {
+            return -1;
+        }
+        int n = (int) Math.min(len, remaining);
+        if (operation == DeltaEncodingInputStream.COPY) {
+            ByteStreams.readFully(base, b, off, n);
+            basePosition += n;
+        } else {
+            delta.readFully(b, off, n);
+        }
+        remaining -= n;
+        return n;
+    }
+
+    /**
+     * Moves to the next operation if the current one is complete.
+     * @return false at the end of the delta
+     */
+    private boolean nextOperation() throws IOException {
+        while (remaining == 0) {
+            if (operation == DeltaEncodingInputStream.END) {
+                return false;
+            }
+            operation = delta.readUnsignedByte();
+            switch (operation) {
+                case DeltaEncodingInputStream.COPY:
+                    long offset = delta.readLong();
+                    remaining = delta.readInt();
+                    if (offset < basePosition) {
+                        throw new IOException("Invalid delta: copy at " + offset + " before base position "
+                                + basePosition);
+                    }
+                    ByteStreams.skipFully(base, offset - basePosition);
+                    basePosition = offset;
+                    break;
+                case DeltaEncodingInputStream.LITERAL:
+                    remaining = delta.readInt();
+                    break;
+                case DeltaEncodingInputStream.END:
+                    return false;
+                default:
+                    throw new IOException("Invalid delta operation: " + operation);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            delta.close();
+        } finally {
+            base.close();
+        }
+    }
+}
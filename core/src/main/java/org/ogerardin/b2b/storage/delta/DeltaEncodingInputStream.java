@@ -0,0 +1,246 @@
+package org.ogerardin.b2b.storage.delta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link InputStream} that reads the delta encoding of a source stream against a base whose
+ * {@link BlockSignature} is known, as the source is read.
+ *
+ * As in rsync, a window the size of a block slides over the source; when its weak checksum matches a block of the
+ * base and the strong checksum confirms it, a copy of the block is emitted and the window jumps past it; otherwise
+ * the first byte of the window is emitted as a literal and the window slides by one byte.
+ *
+ * Copies are only emitted in increasing base order: a block of the base that precedes the last copied block is
+ * treated as a literal. This way the delta can be applied while reading the base sequentially (see
+ * {@link DeltaDecodingInputStream}), which allows reconstructing a version from a chain of deltas as nested streams.
+ * Files that are modified in place or appended to, which are the target of delta encoding, keep their blocks in order
+ * anyway.
+ *
+ * The encoding is a sequence of operations: {@link #COPY} (base offset as long, length as int), {@link #LITERAL}
+ * (length as int, then the bytes), and a final {@link #END}.
+ */
+public class DeltaEncodingInputStream extends InputStream {
+
+    static final int END = 0;
+    static final int COPY = 1;
+    static final int LITERAL = 2;
+
+    /** Maximum length of a literal operation; longer runs of unmatched bytes are split */
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    private final InputStream source;
+    private final BlockSignature base;
+    private final int blockSize;
+    /** Maps weak checksums to the (ascending) indexes of the base blocks that have it */
+    private final Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+    private final RollingChecksum checksum;
+
+    // source buffer: [literalStart, start) is the pending literal, [start, start + blockSize) the window
+    private final byte[] data;
+    private int literalStart = 0;
+    private int start = 0;
+    private int end = 0;
+    private boolean sourceExhausted = false;
+    private boolean checksumValid = false;
+
+    /** Offset in the base after the last copied block; earlier blocks can't be copied anymore */
+    private long baseCursor = 0;
+    private long copyOffset;
+    private int copyLength = 0;
+
+    // encoded output not read yet
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(encoded);
+    private byte[] output = new byte[0];
+    private int outputPosition = 0;
+    private boolean finished = false;
+
+    public DeltaEncodingInputStream(InputStream source, BlockSignature base) {
+        this.source = source;
+        this.base = base;
+        this.blockSize = base.getBlockSize();
+        this.checksum = new RollingChecksum(blockSize);
+        this.data = new byte[MAX_LITERAL + 2 * blockSize];
+        for (int i = 0; i < base.getBlockCount(); i++) {
+            blocksByWeak.computeIfAbsent(base.getWeak(i), k -> new ArrayList<>()).add(i);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureOutput()) {
+            return -1;
+        }
+        return output[outputPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureOutput()) {
+            return -1;
+        }
+        int n = Math.min(len, output.length - outputPosition);
+        System.arraycopy(output, outputPosition, b, off, n);
+        outputPosition += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /**
+     * Makes sure there is encoded output left to read, encoding more of the source if necessary.
+     * @return false at the end of the encoding
+     */
+    private boolean ensureOutput() throws IOException {
+        while (outputPosition >= output.length) {
+            if (finished) {
+                return false;
+            }
+            encode();
+            out.flush();
+            output = encoded.toByteArray();
+            encoded.reset();
+            outputPosition = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Consumes the source until some encoded output is produced, or until the end.
+     */
+    private void encode() throws IOException {
+        while (encoded.size() == 0) {
+            if (!ensureAvailable(blockSize)) {
+                // not enough bytes left for a window: the rest is literal
+                finish();
+                return;
+            }
+            if (!checksumValid) {
+                checksum.reset(data, start);
+                checksumValid = true;
+            }
+            int block = findMatch();
+            if (block >= 0) {
+                flushLiteral();
+                addCopy((long) block * blockSize);
+                start += blockSize;
+                literalStart = start;
+                checksumValid = false;
+                continue;
+            }
+            // no match: the first byte of the window becomes part of the literal
+            if (!ensureAvailable(blockSize + 1)) {
+                finish();
+                return;
+            }
+            checksum.roll(data[start], data[start + blockSize]);
+            start++;
+            if (start - literalStart >= MAX_LITERAL) {
+                flushLiteral();
+            }
+        }
+    }
+
+    private void finish() throws IOException {
+        start = end;
+        flushLiteral();
+        flushCopy();
+        out.writeByte(END);
+        finished = true;
+    }
+
+    /**
+     * Returns the index of a base block identical to the current window that can be copied, or -1 if there is none.
+     */
+    private int findMatch() {
+        List<Integer> candidates = blocksByWeak.get(checksum.value());
+        if (candidates == null) {
+            return -1;
+        }
+        long strong = 0;
+        boolean strongComputed = false;
+        for (int block : candidates) {
+            if ((long) block * blockSize < baseCursor) {
+                continue;
+            }
+            if (!strongComputed) {
+                strong = BlockSignature.strongChecksum(data, start, blockSize);
+                strongComputed = true;
+            }
+            if (base.getStrong(block) == strong) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private void addCopy(long offset) throws IOException {
+        if (copyLength > 0 && copyOffset + copyLength == offset && copyLength <= Integer.MAX_VALUE - blockSize) {
+            copyLength += blockSize;
+        } else {
+            flushCopy();
+            copyOffset = offset;
+            copyLength = blockSize;
+        }
+        baseCursor = offset + blockSize;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyLength > 0) {
+            out.writeByte(COPY);
+            out.writeLong(copyOffset);
+            out.writeInt(copyLength);
+            copyLength = 0;
+        }
+    }
+
+    private void flushLiteral() throws IOException {
+        if (start > literalStart) {
+            flushCopy();
+            out.writeByte(LITERAL);
+            out.writeInt(start - literalStart);
+            out.write(data, literalStart, start - literalStart);
+            literalStart = start;
+        }
+    }
+
+    /**
+     * Makes sure at least the specified number of source bytes are buffered from the start of the window, reading
+     * more of the source if necessary.
+     * @return false if the source doesn't have enough bytes left
+     */
+    private boolean ensureAvailable(int count) throws IOException {
+        while (end - start < count) {
+            if (sourceExhausted) {
+                return false;
+            }
+            if (end == data.length) {
+                // make room by moving the pending literal and the window to the beginning of the buffer
+                System.arraycopy(data, literalStart, data, 0, end - literalStart);
+                start -= literalStart;
+                end -= literalStart;
+                literalStart = 0;
+            }
+            int n = source.read(data, end, data.length - end);
+            if (n < 0) {
+                sourceExhausted = true;
+            } else {
+                end += n;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,50 @@
+package org.ogerardin.b2b.storage.delta;
+
+/**
+ * The rsync weak checksum: an Adler-32-like checksum over a window of fixed length that can be updated in constant
+ * time when the window slides by one byte.
+ */
+class RollingChecksum {
+
+    private final int length;
+    private int a;
+    private int b;
+
+    RollingChecksum(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Computes the checksum of the specified window.
+     */
+    void reset(byte[] data, int offset) {
+        a = 0;
+        b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+    }
+
+    /**
+     * Slides the window by one byte.
+     * @param out the byte leaving the window
+     * @param in the byte entering the window
+     */
+    void roll(byte out, byte in) {
+        int x = out & 0xff;
+        a += (in & 0xff) - x;
+        b += a - length * x;
+    }
+
+    int value() {
+        return (b << 16) | (a & 0xffff);
+    }
+
+    static int of(byte[] data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum(length);
+        checksum.reset(data, offset);
+        return checksum.value();
+    }
+}
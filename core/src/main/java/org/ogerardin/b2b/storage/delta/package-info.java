@@ -0,0 +1,5 @@
+/**
+ * Binary delta encoding in the style of rsync: a new version of a file is encoded as copies of blocks of the previous
+ * version, identified by their rolling and strong checksums, and literal bytes.
+ */
+package org.ogerardin.b2b.storage.delta;
@@ -0,0 +1,192 @@
+package org.ogerardin.b2b.storage.filesystem;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Copies files into a {@link FilesystemStorageService}, using the cheapest strategy available for each file.
+ *
+ * Files are written to a temporary file next to their target, which is then moved over the target atomically, so that
+ * concurrent readers see either the previous contents or the new contents, never a partial file.
+ */
+public class FileCopier {
+
+    private static final Log logger = LogFactory.getLog(FileCopier.class);
+
+    /** Maximum number of bytes transferred by a single {@link FileChannel#transferTo} call */
+    private static final long TRANSFER_WINDOW = 64 * 1024 * 1024;
+
+    private static final Pattern TEMP_NAME = Pattern.compile("\\..*\\.[0-9a-f]{8}(-[0-9a-f]{4}){3}-[0-9a-f]{12}\\.tmp");
+
+    public enum Strategy {
+        /** The target is a hard link to the source: no data is copied */
+        HARD_LINK,
+        /** The data is copied by the kernel using {@link FileChannel#transferTo} */
+        TRANSFER,
+        /** The data is copied through a Java stream, e.g. when it is filtered */
+        STREAM
+    }
+
+    /** Store read-only files as hard links when they are on the same filesystem as the storage */
+    private final boolean linkReadOnlyFiles;
+
+    /** Number of files and bytes copied with each strategy */
+    private final Map<Strategy, LongAdder> fileCounts = new EnumMap<>(Strategy.class);
+    private final Map<Strategy, LongAdder> byteCounts = new EnumMap<>(Strategy.class);
+
+    public FileCopier(boolean linkReadOnlyFiles) {
+        this.linkReadOnlyFiles = linkReadOnlyFiles;
+        for (Strategy strategy : Strategy.values()) {
+            fileCounts.put(strategy, new LongAdder());
+            byteCounts.put(strategy, new LongAdder());
+        }
+    }
+
+    /**
+     * Copies the specified file to the specified target, keeping its last modification time.
+     * @return the strategy that was used
+     */
+    public Strategy copy(Path source, Path target) throws IOException {
+        Path temp = tempPath(target);
+        try {
+            Strategy strategy = Strategy.TRANSFER;
+            if (linkReadOnlyFiles && isReadOnly(source) && sameFileStore(source, target.getParent())) {
+                strategy = link(source, temp) ? Strategy.HARD_LINK : Strategy.TRANSFER;
+            }
+            if (strategy == Strategy.TRANSFER) {
+                transfer(source, temp);
+            }
+            moveIntoPlace(temp, target);
+            count(strategy, Files.size(target));
+            return strategy;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Copies the contents of the specified stream to the specified target.
+     * @param lastModifiedTime the last modification time to set on the target, or null to leave it unchanged
+     */
+    public void copy(InputStream inputStream, FileTime lastModifiedTime, Path target) throws IOException {
+        Path temp = tempPath(target);
+        try {
+            Files.copy(inputStream, temp);
+            if (lastModifiedTime != null) {
+                Files.setLastModifiedTime(temp, lastModifiedTime);
+            }
+            long size = Files.size(temp);
+            moveIntoPlace(temp, target);
+            count(Strategy.STREAM, size);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static Path tempPath(Path target) {
+        // hidden, and in the same directory as the target so that it can be moved atomically
+        return target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    }
+
+    /**
+     * Returns true if the specified file is a temporary file of a copy in progress (or interrupted).
+     */
+    public static boolean isTemporary(Path path) {
+        return TEMP_NAME.matcher(path.getFileName().toString()).matches();
+    }
+
+    /**
+     * Returns true if nobody is supposed to write the specified file, according to its permissions (regardless of the
+     * current user's privileges).
+     */
+    static boolean isReadOnly(Path path) throws IOException {
+        PosixFileAttributeView posixView = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+        if (posixView != null) {
+            Set<PosixFilePermission> permissions = posixView.readAttributes().permissions();
+            return !permissions.contains(PosixFilePermission.OWNER_WRITE)
+                    && !permissions.contains(PosixFilePermission.GROUP_WRITE)
+                    && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+        }
+        DosFileAttributeView dosView = Files.getFileAttributeView(path, DosFileAttributeView.class);
+        if (dosView != null) {
+            return dosView.readAttributes().isReadOnly();
+        }
+        return !Files.isWritable(path);
+    }
+
+    private static boolean sameFileStore(Path source, Path directory) throws IOException {
+        return Files.getFileStore(source).equals(Files.getFileStore(directory));
+    }
+
+    private static boolean link(Path source, Path temp) {
+        try {
+            Files.createLink(temp, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g. the filesystem doesn't support hard links, or the link count limit is reached
+            logger.debug("Failed to link " + source + ", copying it instead: " + e);
+            return false;
+        }
+    }
+
+    private static void transfer(Path source, Path temp) throws IOException {
+        FileTime lastModifiedTime = Files.getLastModifiedTime(source);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long n = in.transferTo(position, Math.min(TRANSFER_WINDOW, size - position), out);
+                if (n <= 0) {
+                    // the file was truncated while being copied
+                    break;
+                }
+                position += n;
+            }
+        }
+        Files.setLastModifiedTime(temp, lastModifiedTime);
+    }
+
+    private static void moveIntoPlace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void count(Strategy strategy, long size) {
+        fileCounts.get(strategy).increment();
+        byteCounts.get(strategy).add(size);
+    }
+
+    /**
+     * Returns the number of files copied with the specified strategy so far.
+     */
+    public long getFileCount(Strategy strategy) {
+        return fileCounts.get(strategy).sum();
+    }
+
+    /**
+     * Returns the number of bytes copied with the specified strategy so far; for {@link Strategy#HARD_LINK}, this is
+     * the number of bytes that didn't need to be copied.
+     */
+    public long getByteCount(Strategy strategy) {
+        return byteCounts.get(strategy).sum();
+    }
+}
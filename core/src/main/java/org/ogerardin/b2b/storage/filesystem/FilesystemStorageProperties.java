@@ -13,4 +13,9 @@ import java.nio.file.Paths;
 public class FilesystemStorageProperties {
 
     Path baseDirectory = Paths.get("storage");
+
+    /** Store read-only files as hard links instead of copies when they are on the same filesystem as the storage.
+     * A hard link shares the contents of the original, so this is only safe if read-only files are never modified in
+     * place. */
+    boolean linkReadOnlyFiles = false;
 }
@@ -1,43 +1,100 @@
 package org.ogerardin.b2b.storage.filesystem;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.ogerardin.b2b.files.md5.MD5Calculator;
 import org.ogerardin.b2b.storage.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
 import org.springframework.web.multipart.MultipartFile;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Comparator;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import static org.ogerardin.b2b.util.LambdaExceptionUtil.rethrowFunction;
-
 /**
- * Implementation of {@link StorageService} using the filesystem. All stored files are saved under a base directory; the
- * path of the local file is the path of the original file, re-rooted at the base directory; e.g. if saving file
- * /x/y/z and the base directory is /a/b/c, then the file will be saved as /a/b/c/x/y/z.
+ * Implementation of {@link StorageService} using the filesystem, that keeps all the versions of the stored files as
+ * snapshots, in the style of rsnapshot or Time Machine.
+ *
+ * A snapshot is a directory under the base directory, named after the time it was created. Each instance stores files
+ * into a new snapshot, created the first time it stores a file. A new snapshot starts as a copy of the previous one in
+ * which every file is a hard link to the file of the previous snapshot, so it holds the latest version of every file,
+ * but only the files stored into it take additional space. Within a snapshot, the path of the local file is the path
+ * of the original file, re-rooted at the snapshot directory; e.g. if saving file /x/y/z and the base directory is
+ * /a/b/c, then the file will be saved as /a/b/c/[snapshot]/x/y/z.
+ *
+ * Files are copied by a {@link FileCopier}, which replaces the link to the previous version atomically instead of
+ * writing through it, so previous snapshots are never modified.
  *
- * This implemetation does not manage multiple versions of a stored file.
+ * A version is identified by the first snapshot that contains it and the path of the file.
  */
 public class FilesystemStorageService implements StorageService {
 
+    private static final Log logger = LogFactory.getLog(FilesystemStorageService.class);
+
+    private static final DateTimeFormatter SNAPSHOT_ID_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneOffset.UTC);
+    private static final Pattern SNAPSHOT_ID = Pattern.compile("\\d{8}-\\d{6}-\\d{3}");
+    /** Name of a snapshot being created, which is not visible until all its links exist */
+    private static final Pattern PARTIAL_SNAPSHOT = Pattern.compile("\\.\\d{8}-\\d{6}-\\d{3}\\.tmp");
+    /** Suffix of the lock file held by the instance creating a partial snapshot */
+    private static final String LOCK_SUFFIX = ".lock";
+
+    /** Separates the snapshot ID from the encoded path in a version ID */
+    private static final char VERSION_ID_SEPARATOR = '_';
+
     @Autowired
     MD5Calculator md5Calculator;
 
     private final Path directory;
 
+    private FileCopier fileCopier = new FileCopier(false);
+
+    /** The snapshot this instance stores files into, or null if it hasn't stored any file yet */
+    private Path snapshot;
+
     public FilesystemStorageService(Path directory) {
         this.directory = directory;
     }
 
+    public void setFileCopier(FileCopier fileCopier) {
+        this.fileCopier = fileCopier;
+    }
+
+    /**
+     * Returns the number of files and bytes stored with each {@link FileCopier.Strategy}, e.g.
+     * "copy.hard_link.fileCount" and "copy.hard_link.byteCount".
+     */
+    @Override
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        for (FileCopier.Strategy strategy : FileCopier.Strategy.values()) {
+            String prefix = "copy." + strategy.name().toLowerCase() + ".";
+            statistics.put(prefix + "fileCount", fileCopier.getFileCount(strategy));
+            statistics.put(prefix + "byteCount", fileCopier.getByteCount(strategy));
+        }
+        return statistics;
+    }
+
     @Override
     public void init() {
         try {
@@ -65,51 +122,240 @@ public class FilesystemStorageService implements StorageService {
 
     @Override
     public Stream<Path> getAllPaths() {
+        List<String> snapshotIds = getSnapshotIds();
+        if (snapshotIds.isEmpty()) {
+            return Stream.empty();
+        }
+        Path latest = snapshotDirectory(snapshotIds.get(snapshotIds.size() - 1));
         try {
-            return Files.walk(directory)
-                    .filter(p -> !Files.isDirectory(p))
-                    .map(this::localToRemote);
+            return Files.walk(latest)
+                    .filter(p -> !Files.isDirectory(p) && !FileCopier.isTemporary(p))
+                    .map(latest::relativize);
         } catch (IOException e) {
             throw new StorageException("Exception while listing local files", e);
         }
     }
 
+    /**
+     * Returns all the versions of all the stored files, i.e. the files of each snapshot that are not the same as in
+     * the previous snapshot.
+     */
     @Override
     public Stream<FileVersion> getAllFileVersions() {
+        List<String> snapshotIds = getSnapshotIds();
+        List<FileVersion> versions = new ArrayList<>();
         try {
-            return Files.walk(directory)
-                    .filter(p -> !Files.isDirectory(p))
-                    .map(rethrowFunction(this::_getFileVersion));
+            for (int i = 0; i < snapshotIds.size(); i++) {
+                String snapshotId = snapshotIds.get(i);
+                Path snapshotDirectory = snapshotDirectory(snapshotId);
+                Path previousDirectory = (i > 0) ? snapshotDirectory(snapshotIds.get(i - 1)) : null;
+                List<Path> relativePaths;
+                try (Stream<Path> paths = Files.walk(snapshotDirectory)) {
+                    relativePaths = paths
+                            .filter(p -> !Files.isDirectory(p) && !FileCopier.isTemporary(p))
+                            .map(snapshotDirectory::relativize)
+                            .collect(Collectors.toList());
+                }
+                for (Path relativePath : relativePaths) {
+                    if (previousDirectory != null && isSameFile(previousDirectory.resolve(relativePath),
+                            snapshotDirectory.resolve(relativePath))) {
+                        continue;
+                    }
+                    versions.add(getFileVersion(snapshotId, relativePath));
+                }
+            }
         } catch (Exception e) {
             throw new StorageException("Exception while listing local files", e);
         }
+        return versions.stream();
     }
 
-    private Path remoteToLocal(Path remotePath) {
+    /**
+     * Returns the path of the specified remote file relative to a snapshot directory.
+     */
+    private static Path relativize(Path remotePath) {
         // turn into a relative path, e.g. C:\xxxx\yyy will become xxx\yyy
         Path root = remotePath.getRoot();
-        Path relativePath = (root != null) ? root.relativize(remotePath) : remotePath;
+        return (root != null) ? root.relativize(remotePath) : remotePath;
+    }
+
+    private Path snapshotDirectory(String snapshotId) {
+        return directory.resolve(snapshotId);
+    }
+
+    /**
+     * Returns the IDs of the existing snapshots, oldest first.
+     */
+    private List<String> getSnapshotIds() {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths
+                    .map(p -> p.getFileName().toString())
+                    .filter(name -> SNAPSHOT_ID.matcher(name).matches())
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new StorageException("Exception while listing snapshots in " + directory, e);
+        }
+    }
+
+    private static Instant snapshotInstant(String snapshotId) {
+        return Instant.from(SNAPSHOT_ID_FORMATTER.parse(snapshotId));
+    }
+
+    /**
+     * Returns the snapshot this instance stores files into, creating it if necessary.
+     */
+    private synchronized Path currentSnapshot() throws IOException {
+        if (snapshot == null) {
+            snapshot = createSnapshot();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Creates a new snapshot, in which every file is a hard link to the same file in the latest snapshot.
+     */
+    private Path createSnapshot() throws IOException {
+        Files.createDirectories(directory);
+        deletePartialSnapshots();
+
+        List<String> snapshotIds = getSnapshotIds();
+        String latestId = snapshotIds.isEmpty() ? null : snapshotIds.get(snapshotIds.size() - 1);
+        Instant instant = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        if (latestId != null && !instant.isAfter(snapshotInstant(latestId))) {
+            // snapshot IDs must be increasing
+            instant = snapshotInstant(latestId).plusMillis(1);
+        }
+        String snapshotId = SNAPSHOT_ID_FORMATTER.format(instant);
+        Path snapshotDirectory = snapshotDirectory(snapshotId);
+
+        if (latestId == null) {
+            Files.createDirectory(snapshotDirectory);
+        } else {
+            // create the snapshot under a temporary name and rename it once complete, so that readers never see a
+            // partial snapshot; its lock tells other instances that it is not abandoned
+            Path partialDirectory = directory.resolve("." + snapshotId + ".tmp");
+            Path lockFile = lockFile(partialDirectory);
+            try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+                 FileLock ignored = lockChannel.lock()) {
+                linkTree(snapshotDirectory(latestId), partialDirectory);
+                Files.move(partialDirectory, snapshotDirectory, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.deleteIfExists(lockFile);
+        }
+        logger.info("Created snapshot " + snapshotDirectory);
+        return snapshotDirectory;
+    }
+
+    /**
+     * Deletes snapshots whose creation was interrupted. A partial snapshot is only deleted if we can lock its lock
+     * file, i.e. if the instance that was creating it is gone; one that another instance is still creating is left
+     * alone.
+     */
+    private void deletePartialSnapshots() throws IOException {
+        List<Path> partialDirectories;
+        try (Stream<Path> paths = Files.list(directory)) {
+            partialDirectories = paths
+                    .filter(p -> PARTIAL_SNAPSHOT.matcher(p.getFileName().toString()).matches())
+                    .collect(Collectors.toList());
+        }
+        for (Path partialDirectory : partialDirectories) {
+            Path lockFile = lockFile(partialDirectory);
+            try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+                 FileLock lock = tryLock(lockChannel)) {
+                if (lock == null) {
+                    logger.debug("Partial snapshot " + partialDirectory + " is being created by another instance");
+                    continue;
+                }
+                // the owner may have completed the snapshot before releasing the lock
+                if (Files.exists(partialDirectory)) {
+                    logger.warn("Deleting partial snapshot " + partialDirectory);
+                    deleteRecursively(partialDirectory);
+                }
+            }
+            Files.deleteIfExists(lockFile);
+        }
+    }
+
+    private static Path lockFile(Path partialDirectory) {
+        return partialDirectory.resolveSibling(partialDirectory.getFileName() + LOCK_SUFFIX);
+    }
+
+    /**
+     * Tries to lock the specified channel.
+     * @return the lock, or null if it is held by another process or by another instance in this JVM
+     */
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Recreates the tree of the specified source directory under the specified target directory, with a hard link
+     * to each file of the source.
+     */
+    private static void linkTree(Path source, Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
 
-        // local path is relative to the directory
-        return directory.resolve(relativePath);
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (FileCopier.isTemporary(file)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Path link = target.resolve(source.relativize(file));
+                try {
+                    Files.createLink(link, file);
+                } catch (IOException | UnsupportedOperationException e) {
+                    // e.g. the maximum number of links to the file is reached
+                    logger.debug("Failed to link " + file + ", copying it instead: " + e);
+                    Files.copy(file, link, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            //noinspection ResultOfMethodCallIgnored
+            paths.sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        }
     }
 
     /**
-     * Returns the remote path (external) corresponding to the specified local path.
-     * The remote path is the local path relative to the storage base directory.
+     * Returns true if both paths exist and are the same file, i.e. one is a hard link to the other.
      */
-    private Path localToRemote(Path localPath) {
-        return directory.relativize(localPath);
+    private static boolean isSameFile(Path path1, Path path2) throws IOException {
+        return Files.exists(path1) && Files.exists(path2) && Files.isSameFile(path1, path2);
     }
 
     @Override
     public InputStream getAsInputStream(String filename) throws StorageFileNotFoundException {
-        Path remotePath = Paths.get(filename);
-        Path localPath = remoteToLocal(remotePath);
+        List<String> snapshotIds = getSnapshotIds();
+        if (snapshotIds.isEmpty()) {
+            throw new StorageFileNotFoundException("No file stored in " + directory);
+        }
+        Path latest = snapshotDirectory(snapshotIds.get(snapshotIds.size() - 1));
+        Path localPath = latest.resolve(relativize(Paths.get(filename)));
 
         try {
             return Files.newInputStream(localPath, StandardOpenOption.READ);
-        } catch (FileNotFoundException e) {
+        } catch (FileNotFoundException | NoSuchFileException e) {
             throw new StorageFileNotFoundException(e);
         } catch (IOException e) {
             throw new StorageException("Exception while trying to get InputStream for " + filename, e);
@@ -122,14 +368,13 @@ public class FilesystemStorageService implements StorageService {
     }
 
     @Override
-    public void deleteAll() {
-        //noinspection ResultOfMethodCallIgnored
+    public synchronized void deleteAll() {
+        snapshot = null;
+        if (!Files.exists(directory)) {
+            return;
+        }
         try {
-            Files.walk(directory)
-                    .sorted(Comparator.reverseOrder())
-                    .map(Path::toFile)
-    //                .peek(System.out::println)
-                    .forEach(File::delete);
+            deleteRecursively(directory);
         } catch (IOException e) {
             throw new StorageException("Exception while trying to recursively delete " + directory, e);
         }
@@ -142,23 +387,52 @@ public class FilesystemStorageService implements StorageService {
     }
 
     @Override
-    public void store(Path remotePath) {
-        Path localPath = remoteToLocal(remotePath);
+    public FileVersion store(Path remotePath) {
+        Path localPath = null;
         try {
+            localPath = currentSnapshot().resolve(relativize(remotePath));
             Files.createDirectories(localPath.getParent());
-            Files.copy(remotePath, localPath, StandardCopyOption.REPLACE_EXISTING);
+            FileCopier.Strategy strategy = fileCopier.copy(remotePath, localPath);
+            logger.debug("Stored " + remotePath + " using " + strategy);
         } catch (IOException e) {
             throw new StorageException("Exception while trying to copy file " + remotePath + " to " + localPath, e);
         }
+        try {
+            return getLatestFileVersion(remotePath);
+        } catch (StorageFileNotFoundException e) {
+            throw new StorageException("Stored file disappeared: " + localPath, e);
+        }
+    }
+
+    @Override
+    public FileVersion store(Path remotePath, UnaryOperator<InputStream> inputFilter) {
+        Path localPath = null;
+        try {
+            localPath = currentSnapshot().resolve(relativize(remotePath));
+            Files.createDirectories(localPath.getParent());
+            FileTime lastModifiedTime = Files.getLastModifiedTime(remotePath);
+            // the stream must be filtered, so the contents can't be transferred directly
+            try (InputStream inputStream = inputFilter.apply(Files.newInputStream(remotePath))) {
+                // keep the original's last modification time, like store(Path) does
+                fileCopier.copy(inputStream, lastModifiedTime, localPath);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Exception while trying to copy file " + remotePath + " to " + localPath, e);
+        }
+        try {
+            return getLatestFileVersion(remotePath);
+        } catch (StorageFileNotFoundException e) {
+            throw new StorageException("Stored file disappeared: " + localPath, e);
+        }
     }
 
     @Override
     public void store(InputStream inputStream, String filename) {
-        Path remotePath = Paths.get(filename);
-        Path localPath = remoteToLocal(remotePath);
+        Path localPath = null;
         try {
+            localPath = currentSnapshot().resolve(relativize(Paths.get(filename)));
             Files.createDirectories(localPath.getParent());
-            Files.copy(inputStream, localPath);
+            fileCopier.copy(inputStream, null, localPath);
         } catch (IOException e) {
             throw new StorageException("Exception while copying input stream to local file " + localPath, e);
         }
@@ -171,22 +445,68 @@ public class FilesystemStorageService implements StorageService {
         return getFileVersions(path);
     }
 
+    /**
+     * Returns the versions of the specified file, oldest first: a snapshot contains a new version of the file if the
+     * file is not the same as in the previous snapshot.
+     */
     @Override
     public FileVersion[] getFileVersions(Path remotePath) {
+        Path relativePath = relativize(remotePath);
+        List<FileVersion> versions = new ArrayList<>();
+        Path previous = null;
         try {
-            FileVersion fileInfo = getLatestFileVersion(remotePath);
-            return new FileVersion[]{ fileInfo };
-        }
-        catch (StorageFileNotFoundException e) {
-            return new FileVersion[0];
+            for (String snapshotId : getSnapshotIds()) {
+                Path localPath = snapshotDirectory(snapshotId).resolve(relativePath);
+                if (!Files.exists(localPath)) {
+                    previous = null;
+                    continue;
+                }
+                if (previous == null || !isSameFile(previous, localPath)) {
+                    versions.add(getFileVersion(snapshotId, relativePath));
+                }
+                previous = localPath;
+            }
+        } catch (IOException | StorageFileNotFoundException e) {
+            throw new StorageException("Exception while listing versions of " + remotePath, e);
         }
+        return versions.toArray(new FileVersion[0]);
     }
 
     @Override
     public FileVersion getLatestFileVersion(Path path) throws StorageFileNotFoundException {
-        Path localPath = remoteToLocal(path);
-        FileVersion fileInfo = _getFileVersion(path, localPath);
-        return fileInfo;
+        return getLatestFileVersion(getSnapshotIds(), relativize(path));
+    }
+
+    /**
+     * Returns the version of the specified file in the latest of the specified snapshots. As the version is
+     * identified by the first snapshot that contains it, this snapshot is looked up by binary search: a file that is
+     * the same as in the latest snapshot is also the same in all the snapshots in between.
+     */
+    private FileVersion getLatestFileVersion(List<String> snapshotIds, Path relativePath)
+            throws StorageFileNotFoundException {
+        if (snapshotIds.isEmpty()) {
+            throw new StorageFileNotFoundException("No file stored in " + directory);
+        }
+        int latest = snapshotIds.size() - 1;
+        Path localPath = snapshotDirectory(snapshotIds.get(latest)).resolve(relativePath);
+        if (!Files.exists(localPath)) {
+            throw new StorageFileNotFoundException("File not found: " + localPath);
+        }
+        int low = 0;
+        int high = latest;
+        try {
+            while (low < high) {
+                int middle = (low + high) / 2;
+                if (isSameFile(snapshotDirectory(snapshotIds.get(middle)).resolve(relativePath), localPath)) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+        } catch (IOException e) {
+            throw new StorageException("Failed to look up first snapshot of " + localPath, e);
+        }
+        return getFileVersion(snapshotIds.get(low), relativePath);
     }
 
     @Override
@@ -196,26 +516,84 @@ public class FilesystemStorageService implements StorageService {
     }
 
     @Override
-    public FileVersion getFileVersion(String versionId) {
-        throw new NotImplementedException();
+    public Map<Path, FileVersion> getLatestFileVersions(Collection<Path> paths) {
+        // local lookups are cheap, there's nothing to gain by batching them
+        List<String> snapshotIds = getSnapshotIds();
+        Map<Path, FileVersion> versions = new HashMap<>();
+        for (Path path : paths) {
+            try {
+                versions.put(path, getLatestFileVersion(snapshotIds, relativize(path)));
+            } catch (StorageFileNotFoundException e) {
+                // not stored: no entry
+            }
+        }
+        return versions;
+    }
+
+    @Override
+    public FileVersion getFileVersion(String versionId) throws StorageFileVersionNotFoundException {
+        VersionLocation location = parseVersionId(versionId);
+        try {
+            return getFileVersion(location.snapshotId, location.relativePath);
+        } catch (StorageFileNotFoundException e) {
+            throw new StorageFileVersionNotFoundException(versionId, e);
+        }
     }
 
     @Override
-    public InputStream getFileVersionAsInputStream(String versionId) {
-        throw new NotImplementedException();
+    public InputStream getFileVersionAsInputStream(String versionId) throws StorageFileVersionNotFoundException {
+        VersionLocation location = parseVersionId(versionId);
+        Path localPath = snapshotDirectory(location.snapshotId).resolve(location.relativePath);
+        try {
+            return Files.newInputStream(localPath, StandardOpenOption.READ);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            throw new StorageFileVersionNotFoundException(versionId, e);
+        } catch (IOException e) {
+            throw new StorageException("Exception while trying to get InputStream for " + localPath, e);
+        }
     }
 
     @Override
-    public Resource getFileVersionAsResource(String versionId) {
-        throw new NotImplementedException();
+    public Resource getFileVersionAsResource(String versionId) throws StorageFileVersionNotFoundException {
+        return new InputStreamResource(getFileVersionAsInputStream(versionId));
+    }
+
+    /**
+     * Returns the ID of the version of the specified file first stored in the specified snapshot. The path is
+     * encoded so that the ID can be used as a URL path segment.
+     */
+    private static String versionId(String snapshotId, Path relativePath) {
+        byte[] pathBytes = relativePath.toString().getBytes(StandardCharsets.UTF_8);
+        return snapshotId + VERSION_ID_SEPARATOR + Base64.getUrlEncoder().withoutPadding().encodeToString(pathBytes);
+    }
+
+    private static VersionLocation parseVersionId(String versionId) throws StorageFileVersionNotFoundException {
+        int separator = versionId.indexOf(VERSION_ID_SEPARATOR);
+        if (separator < 0 || !SNAPSHOT_ID.matcher(versionId.substring(0, separator)).matches()) {
+            throw new StorageFileVersionNotFoundException("Invalid version ID: " + versionId);
+        }
+        Path relativePath;
+        try {
+            byte[] pathBytes = Base64.getUrlDecoder().decode(versionId.substring(separator + 1));
+            relativePath = Paths.get(new String(pathBytes, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            // not Base64, or not a valid path
+            throw new StorageFileVersionNotFoundException("Invalid version ID: " + versionId, e);
+        }
+        if (relativePath.isAbsolute() || relativePath.normalize().startsWith("..")) {
+            // must not point outside of the snapshot
+            throw new StorageFileVersionNotFoundException("Invalid version ID: " + versionId);
+        }
+        return new VersionLocation(versionId.substring(0, separator), relativePath);
     }
 
-    private FileVersion _getFileVersion(Path remotePath, Path localPath) throws StorageFileNotFoundException {
+    private FileVersion getFileVersion(String snapshotId, Path relativePath) throws StorageFileNotFoundException {
+        Path localPath = snapshotDirectory(snapshotId).resolve(relativePath);
         BasicFileAttributes fileAttributes;
         try {
             BasicFileAttributeView fileAttributeView = Files.getFileAttributeView(localPath, BasicFileAttributeView.class);
             fileAttributes = fileAttributeView.readAttributes();
-        } catch (FileNotFoundException e) {
+        } catch (FileNotFoundException | NoSuchFileException e) {
             throw new StorageFileNotFoundException(e);
         } catch (IOException e) {
             throw new StorageException("Failed to get file attributes for file " + localPath, e);
@@ -224,23 +602,34 @@ public class FilesystemStorageService implements StorageService {
         String md5hash = null;
         if (md5Calculator != null) {
             try {
-                byte[] fileBytes = Files.readAllBytes(localPath);
-                md5hash = md5Calculator.hexMd5Hash(fileBytes);
+                md5hash = md5Calculator.hexMd5Hash(localPath);
             } catch (IOException e) {
                 throw new StorageException("Failed to read file " + localPath, e);
             }
         }
 
         FileVersion info = new FileVersion();
-        info.setId(null); //no ID for FilesystemStorageService
-        info.setFilename(remotePath.toString());
+        info.setId(versionId(snapshotId, relativePath));
+        info.setFilename(relativePath.toString());
         info.setSize(fileAttributes.size());
-        info.setStoredDate(fileAttributes.creationTime().toInstant());
+        info.setStoredDate(snapshotInstant(snapshotId));
         info.setMd5hash(md5hash);
+        info.setLastModifiedTime(fileAttributes.lastModifiedTime().toInstant());
+        // the local copy is a different file, so we can't provide the original's file key
+        info.setFileKey(null);
         return info;
     }
 
-    private FileVersion _getFileVersion(Path localPath) throws StorageFileNotFoundException {
-        return _getFileVersion(localToRemote(localPath), localPath);
+    /**
+     * The location of a version: a snapshot and a path in this snapshot.
+     */
+    private static class VersionLocation {
+        private final String snapshotId;
+        private final Path relativePath;
+
+        VersionLocation(String snapshotId, Path relativePath) {
+            this.snapshotId = snapshotId;
+            this.relativePath = relativePath;
+        }
     }
 }
@@ -19,6 +19,9 @@ public class FilesystemStorageServiceFactory implements StorageServiceFactory<Fi
     public FilesystemStorageService getStorageService(String name) {
         Path baseDirectory = properties.getBaseDirectory();
         Path directory = baseDirectory.resolve(name);
-        return new FilesystemStorageService(directory);
+        FilesystemStorageService storageService = new FilesystemStorageService(directory);
+        storageService.setFileCopier(new FileCopier(properties.isLinkReadOnlyFiles()));
+        storageService.init();
+        return storageService;
     }
 }
@@ -1,6 +1,5 @@
 /**
- * Implementation of {@link org.ogerardin.b2b.storage.StorageService} using only the filesystem
- * This implementation doesn't support versioning, i.e. every time a file is stored it overwrites any
- * existing version of that file.
+ * Implementation of {@link org.ogerardin.b2b.storage.StorageService} using only the filesystem.
+ * Versions are kept as snapshot directories, in which unchanged files are hard links to the previous snapshot.
  */
-package org.ogerardin.b2b.storage.filesystem;
\ No newline at end of file
+package org.ogerardin.b2b.storage.filesystem;
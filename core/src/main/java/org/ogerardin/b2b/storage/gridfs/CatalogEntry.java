@@ -0,0 +1,36 @@
+package org.ogerardin.b2b.storage.gridfs;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+
+import java.time.Instant;
+
+/**
+ * Entry of the catalog maintained by {@link GridFsStorageService}: for each stored file, holds information about
+ * the latest stored version, so that it can be retrieved with a single lookup by filename.
+ */
+@Data
+public class CatalogEntry {
+
+    /** The original file path */
+    @Id
+    private String filename;
+
+    /** The id of the latest version */
+    private String versionId;
+
+    /** Length in bytes of the latest version */
+    private long size;
+
+    /** Last modification time of the original file when the latest version was stored (may be null) */
+    private Instant lastModifiedTime;
+
+    /** File key of the original file when the latest version was stored (may be null) */
+    private String fileKey;
+
+    /** MD5 hash of the latest version */
+    private String md5hash;
+
+    /** Time the latest version was stored */
+    private Instant storedDate;
+}
@@ -1,18 +1,39 @@
 package org.ogerardin.b2b.storage.gridfs;
 
+import com.google.common.io.CountingInputStream;
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.gridfs.GridFS;
 import com.mongodb.gridfs.GridFSDBFile;
 import com.mongodb.gridfs.GridFSFile;
+import com.mongodb.gridfs.GridFSInputFile;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
+import org.ogerardin.b2b.files.FileKeys;
 import org.ogerardin.b2b.storage.*;
+import org.ogerardin.b2b.storage.compression.Codec;
+import org.ogerardin.b2b.storage.compression.Codecs;
+import org.ogerardin.b2b.storage.compression.CompressionPolicy;
+import org.ogerardin.b2b.storage.delta.BlockSignature;
+import org.ogerardin.b2b.storage.delta.DeltaDecodingInputStream;
+import org.ogerardin.b2b.storage.delta.DeltaEncodingInputStream;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.MongoDbFactory;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
 import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.index.Index;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.mongodb.gridfs.GridFsCriteria;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
 import org.springframework.util.StringUtils;
@@ -23,8 +44,15 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.Comparator;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
 import java.util.stream.Stream;
 
 /**
@@ -33,20 +61,59 @@ import java.util.stream.Stream;
  * This implementation allows the storage of several versions of the same file (= same path).
  *
  * Unless otherwise specified, methods that take a path as parameter refer to the latest stored version.
+ *
+ * In addition to the GridFS collections, a catalog collection (see {@link CatalogEntry}) holds a summary of the latest
+ * version of each file; it is updated every time a file is stored.
+ *
+ * A file is read only once when stored: the MD5 hash is computed by the driver while uploading, and if it turns out
+ * to be identical to the hash of the latest stored version, the new version is discarded.
+ *
+ * Optionally, a new version of a large file can be stored as a binary delta against the previous version (see
+ * {@link DeltaEncodingInputStream}), which is much smaller for files that are modified in place or appended to. To
+ * encode the delta without reading the previous version back, the {@link BlockSignature} of each version of such
+ * files is recorded when it is stored. A version is stored in full instead ("keyframe") when the chain of deltas to
+ * apply to reconstruct it would exceed a maximum length, so that reading a version doesn't require reading an
+ * unbounded number of versions. Versions stored as deltas are reconstructed on the fly when read.
+ *
+ * Optionally, contents are compressed with a {@link Codec} while they are uploaded, unless a sample shows that they
+ * don't compress well (see {@link CompressionPolicy}); the codec is recorded in the version's metadata, and contents
+ * are decompressed on the fly when read.
  */
 public class GridFsStorageService implements StorageService {
 
+    private static final Log logger = LogFactory.getLog(GridFsStorageService.class);
+
     private static final String DEFAULT_BUCKET = "storage";
 
+    private static final String FILENAME_KEY = "filename";
+    private static final String UPLOAD_DATE_KEY = "uploadDate";
+    private static final String LATEST_VERSION_INDEX = "filename_uploadDate_desc";
+
+    protected final MongoDbFactory mongoDbFactory;
+    private final MongoConverter mongoConverter;
     private final GridFsTemplate gridFsTemplate;
-    private final MongoTemplate mongoTemplate;
-    private final String bucket;
+    protected final MongoTemplate mongoTemplate;
+    protected final String bucket;
+
+    /** Created lazily by {@link #getGridFs()} */
+    private volatile GridFS gridFs;
+
+    /** Files at least this large are stored as deltas against their previous version; 0 to disable deltas */
+    private long deltaThreshold = 0;
+
+    /** Maximum length of a chain of deltas; a version that would exceed it is stored in full */
+    private int maxDeltaChainLength = 10;
+
+    /** Decides which contents are compressed and with which codec; null to disable compression */
+    private CompressionPolicy compressionPolicy = null;
 
     public GridFsStorageService(MongoDbFactory mongoDbFactory, MongoConverter mongoConverter, MongoTemplate mongoTemplate) {
         this(mongoDbFactory, mongoConverter, mongoTemplate, DEFAULT_BUCKET);
     }
 
     public GridFsStorageService(MongoDbFactory mongoDbFactory, MongoConverter mongoConverter, MongoTemplate mongoTemplate, String bucket) {
+        this.mongoDbFactory = mongoDbFactory;
+        this.mongoConverter = mongoConverter;
         this.gridFsTemplate = new GridFsTemplate(mongoDbFactory, mongoConverter, bucket);
         this.mongoTemplate = mongoTemplate;
         this.bucket = bucket;
@@ -56,8 +123,47 @@ public class GridFsStorageService implements StorageService {
         return Paths.get(f);
     }
 
+    /**
+     * Ensures the index used for latest version lookups exists on the bucket's files collection, and the index used
+     * for lookups by hash on the catalog, and builds the catalog if it doesn't exist yet (e.g. for a bucket populated
+     * before the catalog was introduced).
+     */
     @Override
     public void init() {
+        mongoTemplate.indexOps(getFilesCollectionName()).ensureIndex(new Index()
+                .on(FILENAME_KEY, Sort.Direction.ASC)
+                .on(UPLOAD_DATE_KEY, Sort.Direction.DESC)
+                .named(LATEST_VERSION_INDEX));
+        // the catalog is rebuilt with $out, which keeps the indexes of the collection it replaces
+        mongoTemplate.indexOps(getCatalogCollectionName()).ensureIndex(new Index()
+                .on("md5hash", Sort.Direction.ASC));
+
+        if (mongoTemplate.getCollection(getCatalogCollectionName()).count() == 0
+                && mongoTemplate.getCollection(getFilesCollectionName()).count() > 0) {
+            rebuildCatalog();
+        }
+    }
+
+    /**
+     * (Re)builds the catalog from the bucket's files collection. The aggregation result replaces the existing
+     * catalog atomically.
+     */
+    public void rebuildCatalog() {
+        logger.info("Rebuilding catalog for bucket " + bucket);
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.sort(new Sort(Sort.Direction.ASC, FILENAME_KEY).and(new Sort(Sort.Direction.DESC, UPLOAD_DATE_KEY))),
+                Aggregation.group(FILENAME_KEY)
+                        .first("_id").as("versionId")
+                        // versions stored as deltas have the length and hash of the contents in their metadata
+                        .first(ConditionalOperators.ifNull("metadata.contentLength").thenValueOf("length"))
+                        .as("size")
+                        .first("metadata.lastModifiedTime").as("lastModifiedTime")
+                        .first("metadata.fileKey").as("fileKey")
+                        .first(ConditionalOperators.ifNull("metadata.contentMd5").thenValueOf("md5")).as("md5hash")
+                        .first(UPLOAD_DATE_KEY).as("storedDate"),
+                Aggregation.out(getCatalogCollectionName())
+        ).withOptions(Aggregation.newAggregationOptions().allowDiskUse(true).build());
+        mongoTemplate.aggregate(aggregation, getFilesCollectionName(), CatalogEntry.class);
     }
 
     @Override
@@ -72,7 +178,7 @@ public class GridFsStorageService implements StorageService {
         }
         try {
             InputStream is = new BufferedInputStream(file.getInputStream());
-            gridFsTemplate.store(is, filename);
+            store(is, filename);
         }
         catch (Exception e) {
             throw new StorageException("Failed to store file " + filename, e);
@@ -97,33 +203,35 @@ public class GridFsStorageService implements StorageService {
     @Override
     public InputStream getAsInputStream(String filename) throws StorageFileNotFoundException {
         GridFSDBFile fsdbFile = getGridFSDBFile(filename);
-        return fsdbFile.getInputStream();
-
+        try {
+            return getContents(fsdbFile);
+        } catch (StorageFileVersionNotFoundException e) {
+            throw new StorageFileNotFoundException(filename, e);
+        }
     }
 
-
     /**
-     * An attempt to implement getGridFSDBFile using Mongo sorting, by querying the GrdiFS collection directly.
-     * !!! UNRELIABLE !!!
+     * Returns the contents of the specified version, decompressing and reconstructing them if the version is stored
+     * compressed and/or as a delta.
      */
-    private GridFSDBFile getGridFSDBFile_(String filename) throws StorageFileNotFoundException {
-        // 1) perform a standard MongoTemplate query on the file bucket.
-        Query query = new Query(GridFsCriteria.whereFilename().is(filename))
-                .with(new Sort(Sort.Direction.DESC, "uploadDate"))
-                .limit(1);
-        List<BasicDBObject> gridFsFiles = mongoTemplate.find(query, BasicDBObject.class, bucket + ".files");
-        if (gridFsFiles.isEmpty()) {
-            throw new StorageFileNotFoundException(filename);
+    private InputStream getContents(GridFSDBFile fsdbFile) throws StorageFileVersionNotFoundException {
+        InputStream inputStream = fsdbFile.getInputStream();
+        DBObject metadata = fsdbFile.getMetaData();
+        if (metadata == null) {
+            return inputStream;
         }
-        DBObject file = gridFsFiles.get(0);
-        Object fileId = file.get("_id");
-
-        // 2) perfom a gridFsTemplate query with the ID obtained previously. This returns a true GridFSDBFile
-        GridFSDBFile fsdbFile = gridFsTemplate.findOne(
-                new Query(GridFsCriteria.where("_id").is(fileId)));
-        return fsdbFile;
+        String codec = (String) metadata.get("codec");
+        if (codec != null) {
+            inputStream = Codecs.get(codec).decompressing(inputStream);
+        }
+        String deltaBase = (String) metadata.get("deltaBase");
+        if (deltaBase != null) {
+            inputStream = new DeltaDecodingInputStream(inputStream, getFileVersionAsInputStream(deltaBase));
+        }
+        return inputStream;
     }
 
+
     /**
      * Returns all the {@link GridFSDBFile} corresponding to the specified file.
      */
@@ -140,6 +248,8 @@ public class GridFsStorageService implements StorageService {
     @Override
     public void deleteAll() {
         gridFsTemplate.delete(new Query());
+        mongoTemplate.dropCollection(getCatalogCollectionName());
+        mongoTemplate.dropCollection(getSignaturesCollectionName());
     }
 
     @Override
@@ -152,20 +262,222 @@ public class GridFsStorageService implements StorageService {
     }
 
     @Override
-    public void store(Path path) {
+    public FileVersion store(Path path) {
+        return store(path, UnaryOperator.identity());
+    }
+
+    @Override
+    public FileVersion store(Path path, UnaryOperator<InputStream> inputFilter) {
         String canonicalPath = canonicalPath(path);
+        Metadata metadata = new Metadata();
         InputStream inputStream;
+        long size;
         try {
-            inputStream = Files.newInputStream(path, StandardOpenOption.READ);
+            // attributes are read before the contents, so that a modification while we're reading will be detected
+            // next time
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            metadata.setLastModifiedTime(attributes.lastModifiedTime().toInstant());
+            metadata.setFileKey(FileKeys.asString(attributes));
+            size = attributes.size();
+            inputStream = inputFilter.apply(Files.newInputStream(path, StandardOpenOption.READ));
         } catch (IOException e) {
             throw new StorageException("Exception while trying to get InputStream for " + path, e);
         }
-        store(inputStream, canonicalPath);
+        try (InputStream is = inputStream) {
+            return store(is, canonicalPath, metadata, size);
+        } catch (IOException e) {
+            throw new StorageException("Exception while closing InputStream for " + path, e);
+        }
     }
 
     @Override
     public void store(InputStream inputStream, String filename) {
-        gridFsTemplate.store(inputStream, filename, new Metadata());
+        store(inputStream, filename, new Metadata(), -1);
+    }
+
+    /**
+     * Stores the specified stream as a new version of the file, unless its contents are identical to the latest
+     * stored version. Depending on the configuration, the contents may be stored as a delta against the latest
+     * version, and/or compressed; in that case the length and MD5 hash of the contents are recorded in the metadata,
+     * as those computed by the driver are those of the stored bytes.
+     * The chunks are uploaded first, and the file document is only inserted once the contents have been read, so that
+     * it is written with its complete metadata in one step, and not at all if the new version is discarded.
+     * @param expectedSize the expected size of the contents, or -1 if unknown
+     * @return the latest version of the file after storing
+     */
+    private FileVersion store(InputStream inputStream, String filename, Metadata metadata, long expectedSize) {
+        CatalogEntry previous = mongoTemplate.findById(filename, CatalogEntry.class, getCatalogCollectionName());
+
+        Codec codec = null;
+        if (compressionPolicy != null) {
+            BufferedInputStream buffered = new BufferedInputStream(inputStream);
+            inputStream = buffered;
+            try {
+                codec = compressionPolicy.choose(buffered);
+            } catch (IOException e) {
+                throw new StorageException("Exception while sampling contents of " + filename, e);
+            }
+        }
+
+        BlockSignature.SignatureInputStream signatureStream = null;
+        BlockSignature baseSignature = null;
+        if (deltaThreshold > 0 && expectedSize >= deltaThreshold) {
+            signatureStream = BlockSignature.computeWhileReading(inputStream, expectedSize);
+            inputStream = signatureStream;
+            baseSignature = (previous != null) ? getDeltaBaseSignature(previous, metadata) : null;
+        }
+
+        // if the stored bytes are not the contents, we must compute the length and hash of the contents ourselves;
+        // otherwise the driver computes them while uploading, so we don't need to read the stream beforehand
+        boolean transformed = (codec != null || baseSignature != null);
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        CountingInputStream contents = new CountingInputStream(transformed ?
+                new DigestInputStream(inputStream, md5) : inputStream);
+        InputStream stored = contents;
+        if (baseSignature != null) {
+            stored = new DeltaEncodingInputStream(stored, baseSignature);
+        }
+        if (codec != null) {
+            metadata.setCodec(codec.getName());
+            stored = codec.compressing(stored);
+        }
+        GridFSInputFile file;
+        try (InputStream is = stored) {
+            file = getGridFs().createFile(is, filename, true);
+            file.saveChunks();
+        } catch (IOException e) {
+            throw new StorageException("Exception while storing contents of " + filename, e);
+        }
+        String contentMd5 = transformed ? Hex.encodeHexString(md5.digest()) : file.getMD5();
+
+        if (previous != null && contentMd5.equalsIgnoreCase(previous.getMd5hash())) {
+            logger.debug("Contents unchanged, discarding new version of " + filename);
+            mongoTemplate.remove(new Query(Criteria.where("files_id").is(file.getId())), getChunksCollectionName());
+            return refreshMetadata(previous, metadata);
+        }
+
+        if (transformed) {
+            metadata.setContentLength(contents.getCount());
+            metadata.setContentMd5(contentMd5);
+        }
+        DBObject metadataObject = new BasicDBObject();
+        mongoConverter.write(metadata, metadataObject);
+        file.setMetaData(metadataObject);
+        file.save();
+        if (transformed) {
+            logger.debug(String.format("Stored %s as %d bytes (%s%s) for %d bytes of contents", filename,
+                    file.getLength(), baseSignature != null ? "delta" : "full",
+                    codec != null ? ", " + codec.getName() : "", contents.getCount()));
+        }
+
+        if (signatureStream != null) {
+            VersionSignature versionSignature = new VersionSignature();
+            versionSignature.setVersionId(file.getId().toString());
+            versionSignature.setSignature(signatureStream.getSignature().toBytes());
+            mongoTemplate.save(versionSignature, getSignaturesCollectionName());
+        }
+
+        updateCatalog(file, metadata);
+        return getFileVersion(file, metadata);
+    }
+
+    /**
+     * Returns the signature of the specified version if the new version can be stored as a delta against it, and
+     * records the delta base in the new version's metadata; returns null if the new version must be stored in full.
+     */
+    private BlockSignature getDeltaBaseSignature(CatalogEntry previous, Metadata metadata) {
+        VersionSignature versionSignature = mongoTemplate.findById(previous.getVersionId(), VersionSignature.class,
+                getSignaturesCollectionName());
+        if (versionSignature == null) {
+            // the previous version was stored before deltas were enabled, or isn't a GridFS file
+            return null;
+        }
+        GridFSDBFile base = getGridFs().findOne(new ObjectId(previous.getVersionId()));
+        if (base == null) {
+            return null;
+        }
+        DBObject baseMetadata = base.getMetaData();
+        Object baseChainLength = (baseMetadata != null) ? baseMetadata.get("deltaChainLength") : null;
+        int chainLength = (baseChainLength != null ? ((Number) baseChainLength).intValue() : 0) + 1;
+        if (chainLength > maxDeltaChainLength) {
+            // keyframe
+            return null;
+        }
+        metadata.setDeltaBase(previous.getVersionId());
+        metadata.setDeltaChainLength(chainLength);
+        return BlockSignature.fromBytes(versionSignature.getSignature());
+    }
+
+    /**
+     * Records new file metadata for an existing version, both in the files collection (so that it survives a
+     * catalog rebuild) and in the catalog. This is used when the file's metadata changed but its contents didn't,
+     * so that the next metadata-based change detection sees it as unchanged.
+     */
+    protected FileVersion refreshMetadata(CatalogEntry entry, Metadata metadata) {
+        ObjectId versionId = new ObjectId(entry.getVersionId());
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(versionId)),
+                new Update()
+                        .set("metadata.lastModifiedTime", metadata.getLastModifiedTime())
+                        .set("metadata.fileKey", metadata.getFileKey()),
+                getFilesCollectionName());
+        // only touch the catalog entry if it still refers to the same version
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(entry.getFilename())
+                        .and("versionId").is(versionId)),
+                new Update()
+                        .set("lastModifiedTime", metadata.getLastModifiedTime())
+                        .set("fileKey", metadata.getFileKey()),
+                getCatalogCollectionName());
+        entry.setLastModifiedTime(metadata.getLastModifiedTime());
+        entry.setFileKey(metadata.getFileKey());
+        return getFileVersion(entry);
+    }
+
+    /**
+     * Makes the catalog entry for the stored file point to the specified version. This is done with a single
+     * atomic upsert that only matches an entry older than the new version, so that concurrent stores of the same
+     * file can't make the catalog go back to an older version.
+     */
+    private void updateCatalog(GridFSFile file, Metadata metadata) {
+        updateCatalog(file.getFilename(), file.getId(), contentLength(file, metadata), contentMd5(file, metadata),
+                file.getUploadDate(), metadata);
+    }
+
+    /**
+     * Returns the length of the contents of the specified version, which differs from the length of the GridFS file
+     * for a version stored as a delta.
+     */
+    private static long contentLength(GridFSFile file, Metadata metadata) {
+        return (metadata.getContentLength() != null) ? metadata.getContentLength() : file.getLength();
+    }
+
+    /**
+     * Returns the MD5 hash of the contents of the specified version, which differs from the hash of the GridFS file
+     * for a version stored as a delta.
+     */
+    private static String contentMd5(GridFSFile file, Metadata metadata) {
+        return (metadata.getContentMd5() != null) ? metadata.getContentMd5() : file.getMD5();
+    }
+
+    /**
+     * Same as {@link #updateCatalog(GridFSFile, Metadata)}, for a version that isn't stored as a GridFS file.
+     */
+    protected void updateCatalog(String filename, Object versionId, long size, String md5hash, Date storedDate,
+                                 Metadata metadata) {
+        Query query = new Query(Criteria.where("_id").is(filename)
+                .and("storedDate").lt(storedDate));
+        Update update = new Update()
+                .set("versionId", versionId)
+                .set("size", size)
+                .set("lastModifiedTime", metadata.getLastModifiedTime())
+                .set("fileKey", metadata.getFileKey())
+                .set("md5hash", md5hash)
+                .set("storedDate", storedDate);
+        try {
+            mongoTemplate.upsert(query, update, CatalogEntry.class, getCatalogCollectionName());
+        } catch (DuplicateKeyException e) {
+            // the entry exists and refers to a more recent version: leave it alone
+            logger.debug("Catalog already has a more recent version of " + filename);
+        }
     }
 
     @Override
@@ -178,16 +490,79 @@ public class GridFsStorageService implements StorageService {
 
     /**
      * Returns the {@link GridFSDBFile} corresponding to the most recent version of the specified file stored.
+     * The returned instance is fully usable, i.e. its contents can be read.
      */
     private GridFSDBFile getGridFSDBFile(String filename) throws StorageFileNotFoundException {
-        // we do the sorting in the stream pipeline as GridFs doesn't support sorted queries
-        GridFSDBFile fsdbFile = gridFsTemplate.find(new Query(GridFsCriteria.whereFilename().is(filename))).stream()
-                .max(Comparator.comparing(GridFSFile::getUploadDate))
-                .orElseThrow(() -> new StorageFileNotFoundException(filename));
+        GridFSDBFile latest = getLatestFileDocument(filename);
+        // documents returned by a GridFS cursor are not attached to the GridFS instance and can't be read, so we
+        // fetch the file again by id (which is cheap)
+        GridFSDBFile fsdbFile = getGridFs().findOne((ObjectId) latest.getId());
+        if (fsdbFile == null) {
+            // the version was deleted between the 2 queries
+            throw new StorageFileNotFoundException(filename);
+        }
         return fsdbFile;
     }
 
-    private String canonicalPath(Path path) {
+    /**
+     * Returns the files collection document of the most recent version of the specified file. Sorting and limiting
+     * are done server-side using the index created in {@link #init()}, so the cost doesn't depend on the number of
+     * stored versions.
+     * NOTE: the returned instance only contains metadata, calling {@link GridFSDBFile#getInputStream()} on it will
+     * fail; use {@link #getGridFSDBFile(String)} for that purpose.
+     */
+    private GridFSDBFile getLatestFileDocument(String filename) throws StorageFileNotFoundException {
+        DBObject query = new BasicDBObject(FILENAME_KEY, filename);
+        DBObject sort = new BasicDBObject(UPLOAD_DATE_KEY, -1);
+        try (DBCursor cursor = getGridFs().getFileList(query, sort).limit(1)) {
+            if (!cursor.hasNext()) {
+                throw new StorageFileNotFoundException(filename);
+            }
+            return (GridFSDBFile) cursor.next();
+        }
+    }
+
+    /**
+     * Returns the {@link GridFS} instance for our bucket. The instance is created lazily and cached, as creating it
+     * involves several round trips to the server; it is created only once even if several threads store files
+     * concurrently.
+     */
+    private GridFS getGridFs() {
+        GridFS result = gridFs;
+        if (result == null) {
+            synchronized (this) {
+                result = gridFs;
+                if (result == null) {
+                    gridFs = result = new GridFS(mongoDbFactory.getDb(), bucket);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the name of the collection that holds the {@link VersionSignature}s for our bucket.
+     */
+    private String getSignaturesCollectionName() {
+        return bucket + ".signatures";
+    }
+
+    protected String getFilesCollectionName() {
+        return bucket + ".files";
+    }
+
+    private String getChunksCollectionName() {
+        return bucket + ".chunks";
+    }
+
+    /**
+     * Returns the name of the collection that holds the {@link CatalogEntry}s for our bucket.
+     */
+    protected String getCatalogCollectionName() {
+        return bucket + ".catalog";
+    }
+
+    protected String canonicalPath(Path path) {
         String canonicalPath;
         try {
             canonicalPath = path.toFile().getCanonicalPath();
@@ -204,6 +579,40 @@ public class GridFsStorageService implements StorageService {
         info.setSize(fsdbFile.getLength());
         info.setMd5hash(fsdbFile.getMD5());
         info.setStoredDate(fsdbFile.getUploadDate().toInstant());
+        DBObject metadata = fsdbFile.getMetaData();
+        if (metadata != null) {
+            Date lastModifiedTime = (Date) metadata.get("lastModifiedTime");
+            info.setLastModifiedTime(lastModifiedTime != null ? lastModifiedTime.toInstant() : null);
+            info.setFileKey((String) metadata.get("fileKey"));
+            if (metadata.get("contentLength") != null) {
+                info.setSize(((Number) metadata.get("contentLength")).longValue());
+                info.setMd5hash((String) metadata.get("contentMd5"));
+            }
+        }
+        return info;
+    }
+
+    private FileVersion getFileVersion(GridFSFile file, Metadata metadata) {
+        FileVersion info = new FileVersion();
+        info.setId(file.getId().toString());
+        info.setFilename(file.getFilename());
+        info.setSize(contentLength(file, metadata));
+        info.setMd5hash(contentMd5(file, metadata));
+        info.setStoredDate(file.getUploadDate().toInstant());
+        info.setLastModifiedTime(metadata.getLastModifiedTime());
+        info.setFileKey(metadata.getFileKey());
+        return info;
+    }
+
+    protected FileVersion getFileVersion(CatalogEntry entry) {
+        FileVersion info = new FileVersion();
+        info.setId(entry.getVersionId());
+        info.setFilename(entry.getFilename());
+        info.setSize(entry.getSize());
+        info.setMd5hash(entry.getMd5hash());
+        info.setStoredDate(entry.getStoredDate());
+        info.setLastModifiedTime(entry.getLastModifiedTime());
+        info.setFileKey(entry.getFileKey());
         return info;
     }
 
@@ -219,10 +628,47 @@ public class GridFsStorageService implements StorageService {
         return getLatestFileVersion(canonicalPath);
     }
 
+    /**
+     * Returns information about the latest version of the specified file, as recorded in the catalog.
+     */
     @Override
     public FileVersion getLatestFileVersion(String filename) throws StorageFileNotFoundException {
-        GridFSDBFile fsdbFile = getGridFSDBFile(filename);
-        return getFileVersion(fsdbFile);
+        CatalogEntry entry = mongoTemplate.findById(filename, CatalogEntry.class, getCatalogCollectionName());
+        if (entry == null) {
+            throw new StorageFileNotFoundException(filename);
+        }
+        return getFileVersion(entry);
+    }
+
+    /**
+     * Resolves all the specified paths with a single query on the catalog.
+     */
+    @Override
+    public Map<Path, FileVersion> getLatestFileVersions(Collection<Path> paths) {
+        // map each canonical path (as used for storage) to the path we were passed
+        Map<String, Path> pathsByFilename = new HashMap<>();
+        for (Path path : paths) {
+            pathsByFilename.put(canonicalPath(path), path);
+        }
+
+        Query query = new Query(Criteria.where("_id").in(pathsByFilename.keySet()));
+        List<CatalogEntry> entries = mongoTemplate.find(query, CatalogEntry.class, getCatalogCollectionName());
+
+        Map<Path, FileVersion> versions = new HashMap<>();
+        for (CatalogEntry entry : entries) {
+            versions.put(pathsByFilename.get(entry.getFilename()), getFileVersion(entry));
+        }
+        return versions;
+    }
+
+    /**
+     * Looks up the hash in the catalog, i.e. among the latest versions of the files.
+     */
+    @Override
+    public FileVersion findFileVersionByMd5(String md5hash) {
+        Query query = new Query(Criteria.where("md5hash").is(md5hash.toLowerCase()));
+        CatalogEntry entry = mongoTemplate.findOne(query, CatalogEntry.class, getCatalogCollectionName());
+        return (entry == null) ? null : getFileVersion(entry);
     }
 
     @Override
@@ -234,7 +680,7 @@ public class GridFsStorageService implements StorageService {
     @Override
     public InputStream getFileVersionAsInputStream(String versionId) throws StorageFileVersionNotFoundException {
         GridFSDBFile fsdbFile = getGridFSDBFileById(versionId);
-        return fsdbFile.getInputStream();
+        return getContents(fsdbFile);
     }
 
     @Override
@@ -242,6 +688,18 @@ public class GridFsStorageService implements StorageService {
         return new InputStreamResource(getFileVersionAsInputStream(versionId));
     }
 
+    public void setDeltaThreshold(long deltaThreshold) {
+        this.deltaThreshold = deltaThreshold;
+    }
+
+    public void setMaxDeltaChainLength(int maxDeltaChainLength) {
+        this.maxDeltaChainLength = maxDeltaChainLength;
+    }
+
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
     private GridFSDBFile getGridFSDBFileById(String versionId) throws StorageFileVersionNotFoundException {
         GridFSDBFile fsdbFile = gridFsTemplate.findOne(new Query(Criteria.where("_id").is(versionId)));
         if (fsdbFile == null) {
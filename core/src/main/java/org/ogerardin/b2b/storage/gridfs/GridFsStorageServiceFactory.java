@@ -1,11 +1,15 @@
 package org.ogerardin.b2b.storage.gridfs;
 
+import org.ogerardin.b2b.B2BProperties;
 import org.ogerardin.b2b.storage.StorageServiceFactory;
+import org.ogerardin.b2b.storage.compression.Codecs;
+import org.ogerardin.b2b.storage.compression.CompressionPolicy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.MongoDbFactory;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.convert.MongoConverter;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 
 @Component
 public class GridFsStorageServiceFactory implements StorageServiceFactory<GridFsStorageService> {
@@ -19,11 +23,28 @@ public class GridFsStorageServiceFactory implements StorageServiceFactory<GridFs
     @Autowired
     private MongoTemplate mongoTemplate;
 
+    @Autowired
+    private B2BProperties properties;
+
     @Override
     public GridFsStorageService getStorageService(String backupSetId) {
         // we use the backupSetId as the bucket name used by GridFS so that all the files backed up as part of a
         // backupSet are stored in a distinct bucket
         // TODO we should implement a maintenance job to delete buckets for which there is no backupSet
-        return new GridFsStorageService(mongoDbFactory, mongoConverter, mongoTemplate, backupSetId);
+        // if enabled, small files are grouped into packs
+        GridFsStorageService storageService = (properties.getPackThreshold() > 0) ?
+                new PackedGridFsStorageService(mongoDbFactory, mongoConverter, mongoTemplate, backupSetId,
+                        properties.getPackThreshold(), properties.getPackSize()) :
+                new GridFsStorageService(mongoDbFactory, mongoConverter, mongoTemplate, backupSetId);
+        // if enabled, large files are stored as deltas against their previous version
+        storageService.setDeltaThreshold(properties.getDeltaThreshold());
+        storageService.setMaxDeltaChainLength(properties.getMaxDeltaChainLength());
+        // if enabled, compressible contents are compressed
+        if (!StringUtils.isEmpty(properties.getCompressionCodec())) {
+            storageService.setCompressionPolicy(new CompressionPolicy(Codecs.get(properties.getCompressionCodec()),
+                    properties.getMaxCompressionRatio()));
+        }
+        storageService.init();
+        return storageService;
     }
 }
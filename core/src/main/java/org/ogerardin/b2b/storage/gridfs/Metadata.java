@@ -2,8 +2,32 @@ package org.ogerardin.b2b.storage.gridfs;
 
 import lombok.Data;
 
+import java.time.Instant;
+
 @Data
 public class Metadata {
 
     private boolean deleted = false;
+
+    /** Last modification time of the original file at the time it was stored (null if unknown) */
+    private Instant lastModifiedTime;
+
+    /** File key of the original file at the time it was stored (null if unknown) */
+    private String fileKey;
+
+    /** If the version is stored as a delta, the id of the version it was encoded against (null otherwise) */
+    private String deltaBase;
+
+    /** Number of deltas to apply to a full version to reconstruct this version; 0 if stored in full */
+    private int deltaChainLength;
+
+    /** Name of the {@link org.ogerardin.b2b.storage.compression.Codec} the stored bytes are compressed with (null if
+     * not compressed) */
+    private String codec;
+
+    /** If the stored bytes are not the contents (delta and/or compressed), length in bytes of the contents */
+    private Long contentLength;
+
+    /** If the stored bytes are not the contents (delta and/or compressed), MD5 hash of the contents */
+    private String contentMd5;
 }
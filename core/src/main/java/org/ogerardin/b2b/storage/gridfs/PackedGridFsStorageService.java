@@ -0,0 +1,553 @@
+package org.ogerardin.b2b.storage.gridfs;
+
+import com.google.common.io.ByteStreams;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSFile;
+import lombok.Data;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
+import org.ogerardin.b2b.files.FileKeys;
+import org.ogerardin.b2b.storage.FileVersion;
+import org.ogerardin.b2b.storage.StorageException;
+import org.ogerardin.b2b.storage.StorageFileNotFoundException;
+import org.ogerardin.b2b.storage.StorageFileVersionNotFoundException;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.util.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Extension of {@link GridFsStorageService} that stores small files in packs instead of one GridFS file each.
+ *
+ * A pack is a GridFS file (in a separate bucket) that holds the concatenated contents of many small files; each
+ * version stored in a pack has an entry in an index collection (see {@link PackedVersion}) that gives its position
+ * in the pack. Packed versions are addressable by versionId like any other version, and appear in the catalog.
+ *
+ * Small files are buffered in memory until the pending pack reaches the configured pack size, or until
+ * {@link #flush()} is called; until then they are not visible. The pack is written before the index entries and the
+ * catalog, so an interrupted flush leaves at worst an unreferenced pack, which is reclaimed by {@link #repack}.
+ */
+public class PackedGridFsStorageService extends GridFsStorageService {
+
+    private static final Log logger = LogFactory.getLog(PackedGridFsStorageService.class);
+
+    private static final String PACK_FILENAME = "pack";
+
+    /** Packs whose live contents are less than this fraction of their length are rewritten by {@link #repack} */
+    private static final double REPACK_THRESHOLD = 0.5;
+
+    /** Packs more recent than this are left alone by {@link #repack}, as their index entries may not be written yet */
+    private static final Duration REPACK_GRACE_PERIOD = Duration.ofHours(1);
+
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    /**
+     * Locks that prevent concurrent repacks of the same bucket, by bucket. They must be shared by all instances, as
+     * {@link GridFsStorageServiceFactory} creates a new instance each time the storage of a bucket is requested.
+     */
+    private static final ConcurrentMap<String, Object> REPACK_LOCKS = new ConcurrentHashMap<>();
+
+    private final GridFsTemplate packsTemplate;
+
+    /** Files smaller than this are packed */
+    private final long packThreshold;
+
+    /** Size over which the pending pack is written */
+    private final long packSize;
+
+    private final Object packLock = new Object();
+    private ByteArrayOutputStream pendingContents = new ByteArrayOutputStream();
+    private List<PackedVersion> pendingVersions = new ArrayList<>();
+    /** Packs taken over by a flush and not written yet; each completes when its pack is written, or fails */
+    private final List<CompletableFuture<Void>> inFlightPacks = new ArrayList<>();
+
+    public PackedGridFsStorageService(MongoDbFactory mongoDbFactory, MongoConverter mongoConverter,
+                                      MongoTemplate mongoTemplate, String bucket, long packThreshold, long packSize) {
+        super(mongoDbFactory, mongoConverter, mongoTemplate, bucket);
+        this.packsTemplate = new GridFsTemplate(mongoDbFactory, mongoConverter, getPacksBucket());
+        this.packThreshold = packThreshold;
+        this.packSize = packSize;
+    }
+
+    /**
+     * In addition to {@link GridFsStorageService#init()}, ensures the indexes on the packed versions exist.
+     */
+    @Override
+    public void init() {
+        super.init();
+        mongoTemplate.indexOps(getPackedCollectionName()).ensureIndex(new Index()
+                .on("filename", Sort.Direction.ASC)
+                .on("storedDate", Sort.Direction.DESC));
+        mongoTemplate.indexOps(getPackedCollectionName()).ensureIndex(new Index()
+                .on("packId", Sort.Direction.ASC));
+
+        if (mongoTemplate.getCollection(getCatalogCollectionName()).count() == 0
+                && mongoTemplate.getCollection(getPackedCollectionName()).count() > 0) {
+            rebuildCatalog();
+        }
+    }
+
+    /**
+     * In addition to {@link GridFsStorageService#rebuildCatalog()}, records the latest packed version of each file
+     * if it is more recent than the latest version stored as a GridFS file.
+     */
+    @Override
+    public void rebuildCatalog() {
+        super.rebuildCatalog();
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.sort(new Sort(Sort.Direction.ASC, "filename").and(new Sort(Sort.Direction.DESC, "storedDate"))),
+                Aggregation.group("filename")
+                        .first("_id").as("versionId")
+                        .first("size").as("size")
+                        .first("lastModifiedTime").as("lastModifiedTime")
+                        .first("fileKey").as("fileKey")
+                        .first("md5hash").as("md5hash")
+                        .first("storedDate").as("storedDate")
+        ).withOptions(Aggregation.newAggregationOptions().allowDiskUse(true).build());
+        for (CatalogEntry entry : mongoTemplate.aggregate(aggregation, getPackedCollectionName(), CatalogEntry.class)) {
+            Metadata metadata = new Metadata();
+            metadata.setLastModifiedTime(entry.getLastModifiedTime());
+            metadata.setFileKey(entry.getFileKey());
+            updateCatalog(entry.getFilename(), new ObjectId(entry.getVersionId()), entry.getSize(),
+                    entry.getMd5hash(), Date.from(entry.getStoredDate()), metadata);
+        }
+    }
+
+    /**
+     * Stores the specified file into the pending pack if it is smaller than the pack threshold, otherwise as a GridFS
+     * file. As with GridFS files, a new version is only created if the contents differ from the latest version.
+     */
+    @Override
+    public FileVersion store(Path path, UnaryOperator<InputStream> inputFilter) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new StorageException("Exception while trying to read attributes of " + path, e);
+        }
+        if (attributes.size() >= packThreshold) {
+            return super.store(path, inputFilter);
+        }
+
+        String filename = canonicalPath(path);
+        Metadata metadata = new Metadata();
+        metadata.setLastModifiedTime(attributes.lastModifiedTime().toInstant());
+        metadata.setFileKey(FileKeys.asString(attributes));
+        byte[] contents;
+        try (InputStream inputStream = inputFilter.apply(Files.newInputStream(path, StandardOpenOption.READ))) {
+            contents = ByteStreams.toByteArray(inputStream);
+        } catch (IOException e) {
+            throw new StorageException("Exception while trying to read " + path, e);
+        }
+        String md5hash = DigestUtils.md5DigestAsHex(contents);
+
+        CatalogEntry previous = mongoTemplate.findById(filename, CatalogEntry.class, getCatalogCollectionName());
+        if (previous != null && md5hash.equalsIgnoreCase(previous.getMd5hash())) {
+            logger.debug("Contents unchanged, discarding new version of " + filename);
+            return refreshMetadata(previous, metadata);
+        }
+
+        PackedVersion version = new PackedVersion();
+        version.setId(new ObjectId().toString());
+        version.setFilename(filename);
+        version.setSize(contents.length);
+        version.setMd5hash(md5hash);
+        version.setStoredDate(Instant.now());
+        version.setLastModifiedTime(metadata.getLastModifiedTime());
+        version.setFileKey(metadata.getFileKey());
+        boolean full;
+        synchronized (packLock) {
+            version.setOffset(pendingContents.size());
+            pendingContents.write(contents, 0, contents.length);
+            pendingVersions.add(version);
+            full = pendingContents.size() >= packSize;
+        }
+        if (full) {
+            flush();
+        }
+        return getFileVersion(version);
+    }
+
+    /**
+     * Writes the pending pack, if any, then its index entries, then updates the catalog. The pending pack is taken
+     * over under the lock, but written after releasing it, so that concurrent calls to {@link #store} can start
+     * filling the next pack meanwhile. Concurrent flushes may complete out of order, which is harmless as the catalog
+     * only records a version if it is more recent than the one it holds.
+     *
+     * Since packs taken over by concurrent flushes may hold versions stored by the calling thread, this method also
+     * waits until they are written, and fails if any of them failed. The versions of a pack that failed to be written
+     * are put back into the pending pack, so that a later flush writes them.
+     */
+    @Override
+    public void flush() {
+        byte[] contents = null;
+        List<PackedVersion> versions = null;
+        CompletableFuture<Void> written = null;
+        List<CompletableFuture<Void>> awaited;
+        synchronized (packLock) {
+            if (!pendingVersions.isEmpty()) {
+                contents = pendingContents.toByteArray();
+                versions = pendingVersions;
+                pendingContents = new ByteArrayOutputStream();
+                pendingVersions = new ArrayList<>();
+                written = new CompletableFuture<>();
+                inFlightPacks.add(written);
+            }
+            awaited = new ArrayList<>(inFlightPacks);
+        }
+
+        if (written != null) {
+            try {
+                writePack(contents, versions);
+                written.complete(null);
+            } catch (RuntimeException e) {
+                requeue(contents, versions);
+                written.completeExceptionally(e);
+            } finally {
+                synchronized (packLock) {
+                    inFlightPacks.remove(written);
+                }
+            }
+        }
+
+        for (CompletableFuture<Void> future : awaited) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                throw new StorageException("Failed to write pack", e.getCause());
+            }
+        }
+    }
+
+    private void writePack(byte[] contents, List<PackedVersion> versions) {
+        GridFSFile pack = packsTemplate.store(new ByteArrayInputStream(contents), PACK_FILENAME);
+        String packId = pack.getId().toString();
+        versions.forEach(v -> v.setPackId(packId));
+        mongoTemplate.insert(versions, getPackedCollectionName());
+        for (PackedVersion version : versions) {
+            updateCatalog(version);
+        }
+        logger.debug("Stored pack " + packId + " with " + versions.size() + " versions (" + contents.length
+                + " bytes)");
+    }
+
+    /**
+     * Puts the versions of a pack that failed to be written back in front of the pending pack.
+     */
+    private void requeue(byte[] contents, List<PackedVersion> versions) {
+        try {
+            // the index entries may have been partially inserted
+            mongoTemplate.remove(new Query(Criteria.where("_id").in(
+                    versions.stream().map(v -> new ObjectId(v.getId())).collect(Collectors.toList()))),
+                    getPackedCollectionName());
+        } catch (RuntimeException e) {
+            logger.warn("Failed to remove the index entries of a pack that failed to be written", e);
+        }
+        versions.forEach(v -> v.setPackId(null));
+        synchronized (packLock) {
+            ByteArrayOutputStream requeued = new ByteArrayOutputStream(contents.length + pendingContents.size());
+            requeued.write(contents, 0, contents.length);
+            pendingVersions.forEach(v -> v.setOffset(v.getOffset() + contents.length));
+            requeued.write(pendingContents.toByteArray(), 0, pendingContents.size());
+            versions.addAll(pendingVersions);
+            pendingContents = requeued;
+            pendingVersions = versions;
+        }
+    }
+
+    private void updateCatalog(PackedVersion version) {
+        Metadata metadata = new Metadata();
+        metadata.setLastModifiedTime(version.getLastModifiedTime());
+        metadata.setFileKey(version.getFileKey());
+        updateCatalog(version.getFilename(), new ObjectId(version.getId()), version.getSize(), version.getMd5hash(),
+                Date.from(version.getStoredDate()), metadata);
+    }
+
+    @Override
+    protected FileVersion refreshMetadata(CatalogEntry entry, Metadata metadata) {
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(new ObjectId(entry.getVersionId()))),
+                new Update()
+                        .set("lastModifiedTime", metadata.getLastModifiedTime())
+                        .set("fileKey", metadata.getFileKey()),
+                getPackedCollectionName());
+        return super.refreshMetadata(entry, metadata);
+    }
+
+    @Override
+    public Stream<Path> getAllPaths() {
+        @SuppressWarnings("unchecked")
+        List<String> packedFilenames = mongoTemplate.getCollection(getPackedCollectionName()).distinct("filename");
+        return Stream.concat(super.getAllPaths(), packedFilenames.stream().map(Paths::get))
+                .distinct();
+    }
+
+    @Override
+    public Stream<FileVersion> getAllFileVersions() {
+        return Stream.concat(super.getAllFileVersions(),
+                mongoTemplate.findAll(PackedVersion.class, getPackedCollectionName()).stream()
+                        .map(this::getFileVersion));
+    }
+
+    @Override
+    public FileVersion[] getFileVersions(String filename) {
+        List<PackedVersion> packedVersions = mongoTemplate.find(new Query(Criteria.where("filename").is(filename)),
+                PackedVersion.class, getPackedCollectionName());
+        return Stream.concat(Arrays.stream(super.getFileVersions(filename)),
+                packedVersions.stream().map(this::getFileVersion))
+                .toArray(FileVersion[]::new);
+    }
+
+    /**
+     * Returns the contents of the latest version, which may be packed.
+     */
+    @Override
+    public InputStream getAsInputStream(String filename) throws StorageFileNotFoundException {
+        FileVersion latest = getLatestFileVersion(filename);
+        try {
+            return getFileVersionAsInputStream(latest.getId());
+        } catch (StorageFileVersionNotFoundException e) {
+            throw new StorageFileNotFoundException(filename, e);
+        }
+    }
+
+    @Override
+    public FileVersion getFileVersion(String versionId) throws StorageFileVersionNotFoundException {
+        PackedVersion packedVersion = mongoTemplate.findById(versionId, PackedVersion.class, getPackedCollectionName());
+        if (packedVersion == null) {
+            return super.getFileVersion(versionId);
+        }
+        return getFileVersion(packedVersion);
+    }
+
+    @Override
+    public InputStream getFileVersionAsInputStream(String versionId) throws StorageFileVersionNotFoundException {
+        PackedVersion packedVersion = mongoTemplate.findById(versionId, PackedVersion.class, getPackedCollectionName());
+        if (packedVersion == null) {
+            return super.getFileVersionAsInputStream(versionId);
+        }
+        GridFSDBFile pack = packsTemplate.findOne(new Query(Criteria.where("_id").is(packedVersion.getPackId())));
+        if (pack == null) {
+            // the pack was rewritten since we read the index entry
+            throw new StorageFileVersionNotFoundException(versionId);
+        }
+        InputStream inputStream = pack.getInputStream();
+        try {
+            ByteStreams.skipFully(inputStream, packedVersion.getOffset());
+        } catch (IOException e) {
+            throw new StorageException("Exception while trying to read pack " + packedVersion.getPackId(), e);
+        }
+        return ByteStreams.limit(inputStream, packedVersion.getSize());
+    }
+
+    @Override
+    public void deleteAll() {
+        super.deleteAll();
+        synchronized (packLock) {
+            pendingContents = new ByteArrayOutputStream();
+            pendingVersions = new ArrayList<>();
+        }
+        packsTemplate.delete(new Query());
+        mongoTemplate.dropCollection(getPackedCollectionName());
+    }
+
+    /**
+     * Reclaims the space used by packed versions that have been superseded by a newer version of the same file for
+     * longer than the specified retention period, then rewrites the packs whose contents are mostly unused, and
+     * deletes the packs that are not used at all. This may take a while and is intended to run in the background.
+     * Repacks of the same bucket are serialized, even by different instances.
+     * @param retention how long superseded versions are kept; null to keep all versions
+     */
+    public void repack(Duration retention) {
+        synchronized (REPACK_LOCKS.computeIfAbsent(bucket, b -> new Object())) {
+            if (retention != null) {
+                deleteSupersededVersions(Instant.now().minus(retention));
+            }
+            compactPacks();
+        }
+    }
+
+    private void deleteSupersededVersions(Instant cutoff) {
+        // versions are scanned by file, newest first: each version was superseded when the previous one was stored
+        Query query = new Query().with(new Sort(Sort.Direction.ASC, "filename").and(new Sort(Sort.Direction.DESC, "storedDate")));
+        List<String> obsoleteIds = new ArrayList<>();
+        String filename = null;
+        Instant supersededDate = null;
+        try (CloseableIterator<PackedVersion> versions = mongoTemplate.stream(query, PackedVersion.class,
+                getPackedCollectionName())) {
+            while (versions.hasNext()) {
+                PackedVersion version = versions.next();
+                if (!version.getFilename().equals(filename)) {
+                    // the newest packed version may itself be superseded by a version stored as a GridFS file
+                    filename = version.getFilename();
+                    CatalogEntry entry = mongoTemplate.findById(filename, CatalogEntry.class,
+                            getCatalogCollectionName());
+                    supersededDate = (entry == null || entry.getVersionId().equals(version.getId())) ?
+                            null : entry.getStoredDate();
+                }
+                if (supersededDate != null && supersededDate.isBefore(cutoff)) {
+                    obsoleteIds.add(version.getId());
+                    if (obsoleteIds.size() >= DELETE_BATCH_SIZE) {
+                        deletePackedVersions(obsoleteIds);
+                    }
+                }
+                supersededDate = version.getStoredDate();
+            }
+        }
+        deletePackedVersions(obsoleteIds);
+    }
+
+    private void deletePackedVersions(List<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        logger.debug("Deleting " + ids.size() + " superseded packed versions");
+        mongoTemplate.remove(new Query(Criteria.where("_id").in(ids)), getPackedCollectionName());
+        ids.clear();
+    }
+
+    private void compactPacks() {
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.group("packId").sum("size").as("liveBytes"));
+        Map<String, Long> liveBytesByPack = mongoTemplate.aggregate(aggregation, getPackedCollectionName(),
+                PackUsage.class).getMappedResults().stream()
+                .collect(Collectors.toMap(PackUsage::getPackId, PackUsage::getLiveBytes));
+
+        Date graceDate = Date.from(Instant.now().minus(REPACK_GRACE_PERIOD));
+        Repacker repacker = new Repacker();
+        for (GridFSDBFile pack : packsTemplate.find(new Query())) {
+            if (!pack.getUploadDate().before(graceDate)) {
+                continue;
+            }
+            String packId = pack.getId().toString();
+            long liveBytes = liveBytesByPack.getOrDefault(packId, 0L);
+            if (liveBytes == 0) {
+                logger.debug("Deleting unused pack " + packId);
+                packsTemplate.delete(new Query(Criteria.where("_id").is(pack.getId())));
+            }
+            else if (liveBytes < pack.getLength() * REPACK_THRESHOLD) {
+                repacker.add(pack);
+                if (repacker.size() >= packSize) {
+                    repacker.write();
+                }
+            }
+        }
+        repacker.write();
+    }
+
+    /**
+     * Accumulates the live versions of sparse packs into a new pack.
+     */
+    private class Repacker {
+        private ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        private final Map<PackedVersion, Long> newOffsets = new LinkedHashMap<>();
+        private final List<Object> sourcePackIds = new ArrayList<>();
+
+        void add(GridFSDBFile pack) {
+            String packId = pack.getId().toString();
+            List<PackedVersion> versions = mongoTemplate.find(
+                    new Query(Criteria.where("packId").is(packId)).with(new Sort(Sort.Direction.ASC, "offset")),
+                    PackedVersion.class, getPackedCollectionName());
+            try (InputStream inputStream = pack.getInputStream()) {
+                long position = 0;
+                for (PackedVersion version : versions) {
+                    ByteStreams.skipFully(inputStream, version.getOffset() - position);
+                    byte[] bytes = new byte[(int) version.getSize()];
+                    ByteStreams.readFully(inputStream, bytes);
+                    position = version.getOffset() + version.getSize();
+                    newOffsets.put(version, (long) contents.size());
+                    contents.write(bytes, 0, bytes.length);
+                }
+            } catch (IOException e) {
+                throw new StorageException("Exception while trying to read pack " + packId, e);
+            }
+            sourcePackIds.add(pack.getId());
+        }
+
+        long size() {
+            return contents.size();
+        }
+
+        /**
+         * Writes the new pack, points the index entries to it, then deletes the source packs.
+         */
+        void write() {
+            if (sourcePackIds.isEmpty()) {
+                return;
+            }
+            GridFSFile pack = packsTemplate.store(new ByteArrayInputStream(contents.toByteArray()), PACK_FILENAME);
+            String packId = pack.getId().toString();
+            newOffsets.forEach((version, offset) -> mongoTemplate.updateFirst(
+                    new Query(Criteria.where("_id").is(version.getId()).and("packId").is(version.getPackId())),
+                    new Update().set("packId", packId).set("offset", offset),
+                    getPackedCollectionName()));
+            packsTemplate.delete(new Query(Criteria.where("_id").in(sourcePackIds)));
+            logger.info("Repacked " + sourcePackIds.size() + " packs into pack " + packId + " (" + contents.size()
+                    + " bytes)");
+
+            contents = new ByteArrayOutputStream();
+            newOffsets.clear();
+            sourcePackIds.clear();
+        }
+    }
+
+    /** Result of the aggregation that computes the number of bytes still referenced in each pack */
+    @Data
+    static class PackUsage {
+        @Id
+        private String packId;
+        private long liveBytes;
+    }
+
+    private FileVersion getFileVersion(PackedVersion version) {
+        FileVersion info = new FileVersion();
+        info.setId(version.getId());
+        info.setFilename(version.getFilename());
+        info.setSize(version.getSize());
+        info.setMd5hash(version.getMd5hash());
+        info.setStoredDate(version.getStoredDate());
+        info.setLastModifiedTime(version.getLastModifiedTime());
+        info.setFileKey(version.getFileKey());
+        return info;
+    }
+
+    private String getPacksBucket() {
+        return bucket + ".packs";
+    }
+
+    /**
+     * Returns the name of the collection that holds the {@link PackedVersion}s for our bucket.
+     */
+    private String getPackedCollectionName() {
+        return bucket + ".packed";
+    }
+}
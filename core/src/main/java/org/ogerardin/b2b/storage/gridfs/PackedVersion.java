@@ -0,0 +1,42 @@
+package org.ogerardin.b2b.storage.gridfs;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+
+import java.time.Instant;
+
+/**
+ * Index entry of a version stored by {@link PackedGridFsStorageService} inside a pack, i.e. a GridFS file that holds
+ * the concatenated contents of many small files.
+ */
+@Data
+public class PackedVersion {
+
+    /** The version id */
+    @Id
+    private String id;
+
+    /** The original file path */
+    private String filename;
+
+    /** The id of the pack holding the contents */
+    private String packId;
+
+    /** Position of the contents in the pack */
+    private long offset;
+
+    /** Length in bytes of the contents */
+    private long size;
+
+    /** MD5 hash of the contents */
+    private String md5hash;
+
+    /** Time the version was stored */
+    private Instant storedDate;
+
+    /** Last modification time of the original file when the version was stored (may be null) */
+    private Instant lastModifiedTime;
+
+    /** File key of the original file when the version was stored (may be null) */
+    private String fileKey;
+}
@@ -0,0 +1,19 @@
+package org.ogerardin.b2b.storage.gridfs;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+
+/**
+ * The {@link org.ogerardin.b2b.storage.delta.BlockSignature} of a version stored by {@link GridFsStorageService},
+ * recorded so that the next version of the file can be stored as a delta against it without reading it back.
+ */
+@Data
+public class VersionSignature {
+
+    /** The version id */
+    @Id
+    private String versionId;
+
+    /** The serialized signature */
+    private byte[] signature;
+}
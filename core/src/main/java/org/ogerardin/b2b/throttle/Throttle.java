@@ -0,0 +1,106 @@
+package org.ogerardin.b2b.throttle;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.InputStream;
+import java.time.Clock;
+import java.time.LocalDateTime;
+
+/**
+ * Limits the number of bytes and files read per second by a backup set, according to its {@link ThrottleSettings}.
+ * The limits that apply are re-evaluated at most once per minute, so that scheduled periods take effect, and
+ * immediately when the settings are changed.
+ * A single instance is shared by all the threads working for the same backup set.
+ */
+public class Throttle {
+
+    private static final Log logger = LogFactory.getLog(Throttle.class);
+
+    private static final long SCHEDULE_CHECK_INTERVAL_MS = 60 * 1000;
+
+    private final Clock clock;
+    private final TokenBucket bytes = new TokenBucket(0);
+    private final TokenBucket files = new TokenBucket(0);
+
+    private volatile ThrottleSettings settings;
+    private volatile long nextScheduleCheck = 0;
+
+    public Throttle(ThrottleSettings settings) {
+        this(settings, Clock.systemDefaultZone());
+    }
+
+    Throttle(ThrottleSettings settings, Clock clock) {
+        this.clock = clock;
+        update(settings);
+    }
+
+    /**
+     * Changes the settings; the new limits apply immediately.
+     */
+    public synchronized void update(ThrottleSettings settings) {
+        this.settings = (settings != null) ? settings : new ThrottleSettings();
+        applySchedule();
+    }
+
+    public ThrottleSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Waits as long as necessary before starting to read a new file.
+     */
+    public void acquireFile() throws InterruptedException {
+        checkSchedule();
+        files.acquire(1);
+    }
+
+    /**
+     * Waits as long as necessary after reading the specified number of bytes.
+     */
+    public void acquireBytes(long count) throws InterruptedException {
+        checkSchedule();
+        bytes.acquire(count);
+    }
+
+    /**
+     * @return true if no byte limit currently applies, in which case streams don't need to be throttled
+     */
+    public boolean isBandwidthUnlimited() {
+        checkSchedule();
+        return bytes.isUnlimited();
+    }
+
+    /**
+     * @return the specified stream, wrapped so that reads are limited by this throttle
+     */
+    public InputStream throttle(InputStream inputStream) {
+        return new ThrottledInputStream(inputStream, this);
+    }
+
+    private void checkSchedule() {
+        if (clock.millis() >= nextScheduleCheck) {
+            synchronized (this) {
+                if (clock.millis() >= nextScheduleCheck) {
+                    applySchedule();
+                }
+            }
+        }
+    }
+
+    private void applySchedule() {
+        LocalDateTime now = LocalDateTime.now(clock);
+        long bytesPerSecond = settings.bytesPerSecondAt(now);
+        long filesPerSecond = settings.filesPerSecondAt(now);
+        if (bytesPerSecond != bytes.getRate() || filesPerSecond != files.getRate()) {
+            logger.info("Throttling to " + format(bytesPerSecond, "bytes") + ", " + format(filesPerSecond, "files"));
+            bytes.setRate(bytesPerSecond);
+            files.setRate(filesPerSecond);
+        }
+        nextScheduleCheck = clock.millis() + SCHEDULE_CHECK_INTERVAL_MS;
+    }
+
+    private static String format(long rate, String unit) {
+        return (rate == 0) ? "unlimited " + unit + "/s" : rate + " " + unit + "/s";
+    }
+}
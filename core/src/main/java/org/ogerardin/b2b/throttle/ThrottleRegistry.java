@@ -0,0 +1,34 @@
+package org.ogerardin.b2b.throttle;
+
+import org.ogerardin.b2b.domain.BackupSet;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the {@link Throttle} of each backup set, so that the jobs of a backup set share the same limits, and the
+ * limits can be changed while a job is running.
+ */
+@Component
+public class ThrottleRegistry {
+
+    private final Map<String, Throttle> throttles = new ConcurrentHashMap<>();
+
+    /**
+     * @return the throttle of the specified backup set, created from the backup set's settings if necessary
+     */
+    public Throttle getThrottle(BackupSet backupSet) {
+        return throttles.computeIfAbsent(backupSet.getId(), id -> new Throttle(backupSet.getThrottleSettings()));
+    }
+
+    /**
+     * Applies new settings to the specified backup set's throttle, if it exists
+     */
+    public void update(String backupSetId, ThrottleSettings settings) {
+        Throttle throttle = throttles.get(backupSetId);
+        if (throttle != null) {
+            throttle.update(settings);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.ogerardin.b2b.throttle;
+
+import lombok.Data;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * A period of the day with specific throttling limits, e.g. a lower bandwidth during office hours. A period whose
+ * end is before its start spans midnight. A limit of 0 means unlimited.
+ */
+@Data
+public class ThrottleSchedule {
+
+    private LocalTime start;
+    private LocalTime end;
+
+    /** Days on which the period starts; empty for every day */
+    private Set<DayOfWeek> days = EnumSet.noneOf(DayOfWeek.class);
+
+    private long bytesPerSecond = 0;
+    private long filesPerSecond = 0;
+
+    public ThrottleSchedule() {
+    }
+
+    public ThrottleSchedule(LocalTime start, LocalTime end, long bytesPerSecond, long filesPerSecond) {
+        this.start = start;
+        this.end = end;
+        this.bytesPerSecond = bytesPerSecond;
+        this.filesPerSecond = filesPerSecond;
+    }
+
+    boolean appliesTo(LocalDateTime dateTime) {
+        if (start == null || end == null) {
+            return false;
+        }
+        LocalTime time = dateTime.toLocalTime();
+        if (!start.isAfter(end)) {
+            return !time.isBefore(start) && time.isBefore(end) && appliesTo(dateTime.getDayOfWeek());
+        }
+        // spans midnight: after midnight, the period started the day before
+        if (!time.isBefore(start)) {
+            return appliesTo(dateTime.getDayOfWeek());
+        }
+        return time.isBefore(end) && appliesTo(dateTime.getDayOfWeek().minus(1));
+    }
+
+    private boolean appliesTo(DayOfWeek day) {
+        return days == null || days.isEmpty() || days.contains(day);
+    }
+}
@@ -0,0 +1,52 @@
+package org.ogerardin.b2b.throttle;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Throttling settings of a backup set: the maximum number of bytes and files read per second, and optionally
+ * different limits for some periods of the day. A limit of 0 means unlimited.
+ */
+@Data
+public class ThrottleSettings {
+
+    private long bytesPerSecond = 0;
+    private long filesPerSecond = 0;
+
+    /** Periods with specific limits; if several periods overlap, the first one applies */
+    private List<ThrottleSchedule> schedule = new ArrayList<>();
+
+    public ThrottleSettings() {
+    }
+
+    public ThrottleSettings(long bytesPerSecond, long filesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.filesPerSecond = filesPerSecond;
+    }
+
+    /**
+     * @return the period of the schedule that applies at the specified time, or null if none applies
+     */
+    public ThrottleSchedule activeSchedule(LocalDateTime dateTime) {
+        if (schedule == null) {
+            return null;
+        }
+        return schedule.stream()
+                .filter(s -> s.appliesTo(dateTime))
+                .findFirst()
+                .orElse(null);
+    }
+
+    public long bytesPerSecondAt(LocalDateTime dateTime) {
+        ThrottleSchedule active = activeSchedule(dateTime);
+        return (active != null) ? active.getBytesPerSecond() : bytesPerSecond;
+    }
+
+    public long filesPerSecondAt(LocalDateTime dateTime) {
+        ThrottleSchedule active = activeSchedule(dateTime);
+        return (active != null) ? active.getFilesPerSecond() : filesPerSecond;
+    }
+}
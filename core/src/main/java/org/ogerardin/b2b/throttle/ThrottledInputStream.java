@@ -0,0 +1,48 @@
+package org.ogerardin.b2b.throttle;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * An {@link InputStream} that limits the rate at which the underlying stream is read, using a {@link Throttle}.
+ * The bytes are accounted for after they are read, so each read may return up to the size of the caller's buffer
+ * before waiting.
+ */
+public class ThrottledInputStream extends FilterInputStream {
+
+    private final Throttle throttle;
+
+    public ThrottledInputStream(InputStream in, Throttle throttle) {
+        super(in);
+        this.throttle = throttle;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            acquire(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        if (count > 0) {
+            acquire(count);
+        }
+        return count;
+    }
+
+    private void acquire(long count) throws InterruptedIOException {
+        try {
+            throttle.acquireBytes(count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.ogerardin.b2b.throttle;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket rate limiter: tokens are added at a fixed rate up to a maximum (the burst size), and each unit of
+ * work (e.g. a byte or a file) consumes a token.
+ *
+ * A request for more tokens than available is granted immediately, leaving the bucket in debt, and the caller waits
+ * for the debt to be paid back. This allows requests larger than the burst size, and keeps callers in the order of
+ * their requests. The rate can be changed at any time; a rate of 0 means unlimited.
+ */
+public class TokenBucket {
+
+    /** Size of the bucket, in seconds worth of tokens */
+    private static final double BURST_SECONDS = 1.0;
+
+    private final LongSupplier nanoClock;
+
+    private double rate = 0;
+    private double tokens = 0;
+    private long lastRefill;
+
+    /**
+     * @param rate tokens per second; 0 for unlimited
+     */
+    public TokenBucket(long rate) {
+        this(rate, System::nanoTime);
+    }
+
+    TokenBucket(long rate, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.lastRefill = nanoClock.getAsLong();
+        setRate(rate);
+    }
+
+    /**
+     * Changes the rate. When switching from unlimited to limited, the bucket starts full.
+     * @param rate tokens per second; 0 for unlimited
+     */
+    public synchronized void setRate(long rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("Rate must not be negative: " + rate);
+        }
+        refill();
+        if (this.rate == 0) {
+            tokens = rate * BURST_SECONDS;
+        }
+        this.rate = rate;
+        tokens = Math.min(tokens, capacity());
+    }
+
+    public synchronized long getRate() {
+        return (long) rate;
+    }
+
+    public synchronized boolean isUnlimited() {
+        return rate == 0;
+    }
+
+    /**
+     * Takes the specified number of tokens, waiting as long as necessary for them to become available.
+     */
+    public void acquire(long count) throws InterruptedException {
+        long waitNanos = reserve(count);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Takes the specified number of tokens without waiting.
+     * @return the time in nanoseconds the caller must wait before the tokens are actually available
+     */
+    synchronized long reserve(long count) {
+        if (rate == 0) {
+            return 0;
+        }
+        refill();
+        tokens -= count;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens / rate * 1e9);
+    }
+
+    private void refill() {
+        long now = nanoClock.getAsLong();
+        if (rate != 0) {
+            tokens = Math.min(capacity(), tokens + (now - lastRefill) * rate / 1e9);
+        }
+        lastRefill = now;
+    }
+
+    private double capacity() {
+        // at least one token, so that a very low rate doesn't prevent any progress
+        return Math.max(1, rate * BURST_SECONDS);
+    }
+}
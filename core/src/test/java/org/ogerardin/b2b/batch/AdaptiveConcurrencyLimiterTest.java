@@ -0,0 +1,79 @@
+package org.ogerardin.b2b.batch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void testFixedLimit() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(3, false);
+        int threads = 8;
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(executor.submit(() -> {
+                limiter.acquire();
+                try {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(1);
+                    running.decrementAndGet();
+                } finally {
+                    limiter.release(1);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertThat(limiter.getLimit(), is(3));
+        assertThat(maxRunning.get(), lessThanOrEqualTo(3));
+    }
+
+    @Test
+    public void testConvergesToBestConcurrency() throws Exception {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(16, true, clock::get);
+        assertThat(limiter.getLimit(), is(1));
+
+        // simulated target whose throughput grows with concurrency up to 4, then degrades
+        List<Integer> limits = new ArrayList<>();
+        for (int window = 0; window < 50; window++) {
+            int limit = limiter.getLimit();
+            limits.add(limit);
+            long throughput = (limit <= 4) ? limit * 1000 : 4000 - (limit - 4) * 200;
+            for (int i = 0; i < limit; i++) {
+                limiter.acquire();
+            }
+            clock.addAndGet(2 * SECOND);
+            for (int i = 0; i < limit; i++) {
+                limiter.release(throughput * 2 / limit);
+            }
+        }
+
+        assertThat(limits, hasItem(4));
+        for (int limit : limits.subList(40, 50)) {
+            assertThat(limit, allOf(greaterThanOrEqualTo(3), lessThanOrEqualTo(5)));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.ogerardin.b2b.batch.jobs;
+
+import org.junit.Test;
+import org.springframework.batch.item.ItemReader;
+import org.springframework.batch.item.support.IteratorItemReader;
+import org.springframework.batch.repeat.RepeatStatus;
+import org.springframework.batch.repeat.support.RepeatTemplate;
+
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FileSizeCompletionPolicyTest {
+
+    @Test
+    public void testChunks() throws Exception {
+        // 10 small files, then a file larger than the maximum, then 3 medium files
+        List<Long> sizes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            sizes.add(10L);
+        }
+        sizes.add(5000L);
+        sizes.addAll(Arrays.asList(400L, 400L, 400L));
+
+        FileSizeCompletionPolicy policy = new FileSizeCompletionPolicy(1000, 4);
+        List<List<Long>> chunks = chunk(policy, sizes);
+
+        assertThat(chunks, is(Arrays.asList(
+                Arrays.asList(10L, 10L, 10L, 10L),          // limited by number of files
+                Arrays.asList(10L, 10L, 10L, 10L),
+                Arrays.asList(10L, 10L),                    // completed before the large file
+                Arrays.asList(5000L),                       // on its own
+                Arrays.asList(400L, 400L),                  // completed before exceeding the size
+                Arrays.asList(400L)
+        )));
+    }
+
+    /**
+     * Splits the specified file sizes into chunks the same way a chunk-oriented step does: the items of each chunk are
+     * read through the policy's peeking reader, in a repeat operation that uses the completion policy.
+     */
+    private static List<List<Long>> chunk(FileSizeCompletionPolicy policy, List<Long> sizes) throws Exception {
+        List<FileInfo> items = sizes.stream()
+                .map(size -> new FileInfo(Paths.get("file"),
+                        new FileTable.Attributes(size, FileTime.fromMillis(0), null)))
+                .collect(Collectors.toList());
+        ItemReader<FileInfo> reader = policy.peekingReader(new IteratorItemReader<>(items));
+        RepeatTemplate template = new RepeatTemplate();
+        template.setCompletionPolicy(policy);
+        List<List<Long>> chunks = new ArrayList<>();
+        AtomicBoolean exhausted = new AtomicBoolean(false);
+        while (!exhausted.get()) {
+            List<Long> chunk = new ArrayList<>();
+            template.iterate(context -> {
+                FileInfo item = reader.read();
+                if (item == null) {
+                    exhausted.set(true);
+                    return RepeatStatus.FINISHED;
+                }
+                policy.afterRead(item);
+                chunk.add(item.getFileAttributes().size());
+                return RepeatStatus.CONTINUABLE;
+            });
+            if (!chunk.isEmpty()) {
+                chunks.add(chunk);
+            }
+        }
+        return chunks;
+    }
+}
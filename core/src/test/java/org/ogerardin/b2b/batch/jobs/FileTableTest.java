@@ -0,0 +1,129 @@
+package org.ogerardin.b2b.batch.jobs;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ogerardin.b2b.files.FileKeys;
+import org.ogerardin.b2b.files.RecursivePathCollector;
+import org.springframework.util.FileSystemUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class FileTableTest {
+
+    private static final Log logger = LogFactory.getLog(FileTableTest.class);
+
+    private Path root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("b2b-table");
+    }
+
+    @After
+    public void tearDown() {
+        FileSystemUtils.deleteRecursively(root.toFile());
+    }
+
+    @Test
+    public void testContents() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            Path dir = Files.createDirectories(root.resolve("dir" + (i % 7)).resolve("sub dir"));
+            Files.write(dir.resolve("file " + i), new byte[i]);
+        }
+        RecursivePathCollector collector = new RecursivePathCollector(root);
+        collector.walkTree();
+        Map<Path, BasicFileAttributes> expected = collector.getPaths();
+
+        FileTable table = new FileTable();
+        expected.forEach(table::add);
+
+        assertThat(table.size(), is(expected.size()));
+        assertThat(table.getTotalSize(), is(collector.getSize()));
+        Set<Path> seen = new HashSet<>();
+        for (FileInfo fileInfo : table) {
+            BasicFileAttributes attributes = expected.get(fileInfo.getPath());
+            BasicFileAttributes tableAttributes = fileInfo.getFileAttributes();
+            assertThat(tableAttributes.size(), is(attributes.size()));
+            assertThat(tableAttributes.lastModifiedTime().toMillis(), is(attributes.lastModifiedTime().toMillis()));
+            assertThat(FileKeys.asString(tableAttributes), is(FileKeys.asString(attributes)));
+            seen.add(fileInfo.getPath());
+        }
+        assertThat(seen, is(expected.keySet()));
+    }
+
+    @Test
+    public void testFileKeys() {
+        // device numbers are unsigned and may have the top bit set; inode numbers are printed as signed
+        List<String> fileKeys = Arrays.asList("(dev=803,ino=12)", "(dev=8000000000000803,ino=13)",
+                "(dev=ffffffff00000001,ino=-9223372036854775807)", "(dev=803,ino=14)", null, "not a unix key");
+        FileTable table = new FileTable();
+        for (int i = 0; i < fileKeys.size(); i++) {
+            // one directory per file, as files of a directory always live on the same device
+            Path path = Paths.get("/dir" + i, "file");
+            table.add(path, new FileTable.Attributes(i, FileTime.fromMillis(1500000000000L), fileKeys.get(i)));
+        }
+
+        List<String> tableFileKeys = new ArrayList<>();
+        for (FileInfo fileInfo : table) {
+            tableFileKeys.add(FileKeys.asString(fileInfo.getFileAttributes()));
+        }
+        assertThat(tableFileKeys, is(Arrays.asList("(dev=803,ino=12)", "(dev=8000000000000803,ino=13)",
+                "(dev=ffffffff00000001,ino=-9223372036854775807)", "(dev=803,ino=14)", null, null)));
+    }
+
+    /**
+     * Slow and depends on the garbage collector, so only runs if the system property b2b.benchmarks is set to true.
+     */
+    @Test
+    public void benchmarkMemoryUse() {
+        assumeTrue(Boolean.getBoolean("b2b.benchmarks"));
+        int count = 1000 * 1000;
+
+        long before = usedMemory();
+        FileTable table = new FileTable();
+        for (int i = 0; i < count; i++) {
+            table.add(syntheticFile(i));
+        }
+        long tableMemory = usedMemory() - before;
+
+        before = usedMemory();
+        Set<FileInfo> set = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            set.add(syntheticFile(i));
+        }
+        long setMemory = usedMemory() - before;
+
+        logger.info("FileTable: " + tableMemory / count + " bytes per file, HashSet<FileInfo>: "
+                + setMemory / count + " bytes per file");
+        assertThat(table.size(), is(set.size()));
+        assertThat(tableMemory, lessThan(setMemory));
+    }
+
+    private static FileInfo syntheticFile(int i) {
+        Path path = Paths.get("/home/user/documents/project" + (i / 1000), "file" + i + ".txt");
+        BasicFileAttributes attributes = new FileTable.Attributes(i, FileTime.fromMillis(1500000000000L + i),
+                "(dev=803,ino=" + i + ")");
+        return new FileInfo(path, attributes);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
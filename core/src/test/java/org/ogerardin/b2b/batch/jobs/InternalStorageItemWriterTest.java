@@ -0,0 +1,63 @@
+package org.ogerardin.b2b.batch.jobs;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.ogerardin.b2b.batch.AdaptiveConcurrencyLimiter;
+import org.ogerardin.b2b.files.md5.HashCache;
+import org.ogerardin.b2b.storage.filesystem.FilesystemStorageService;
+import org.ogerardin.b2b.throttle.Throttle;
+import org.ogerardin.b2b.throttle.ThrottleSettings;
+import org.springframework.batch.item.ExecutionContext;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests that {@link InternalStorageItemWriter} publishes the statistics of a {@link FilesystemStorageService} in the
+ * step's {@link ExecutionContext}.
+ */
+public class InternalStorageItemWriterTest {
+
+    private static final Path SOURCE_DIRECTORY = Paths.get("target/test-internal-writer-source").toAbsolutePath();
+    private static final Path TARGET_DIRECTORY = Paths.get("target/test-internal-writer-target");
+
+    private InternalStorageItemWriter writer;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteDirectory(SOURCE_DIRECTORY.toFile());
+        FileUtils.deleteDirectory(TARGET_DIRECTORY.toFile());
+        Files.createDirectories(SOURCE_DIRECTORY);
+        FilesystemStorageService storageService = new FilesystemStorageService(TARGET_DIRECTORY);
+        storageService.init();
+        writer = new InternalStorageItemWriter(storageService, new HashCache(null, 1000),
+                new AdaptiveConcurrencyLimiter(2, false), new BackupJobContext("test"),
+                new Throttle(new ThrottleSettings()));
+    }
+
+    @Test
+    public void testCopyStatisticsArePublished() throws Exception {
+        writer.write(Arrays.asList(createFile("a", 10), createFile("b", 20)));
+
+        ExecutionContext executionContext = new ExecutionContext();
+        writer.update(executionContext);
+
+        assertThat(executionContext.getLong("storage.copy.transfer.fileCount"), is(2L));
+        assertThat(executionContext.getLong("storage.copy.transfer.byteCount"), is(30L));
+        assertThat(executionContext.getLong("storage.copy.hard_link.fileCount"), is(0L));
+        assertThat(executionContext.getLong("storage.copy.stream.fileCount"), is(0L));
+    }
+
+    private FileInfo createFile(String name, int size) throws Exception {
+        Path file = SOURCE_DIRECTORY.resolve(name);
+        Files.write(file, new byte[size]);
+        return new FileInfo(file, Files.readAttributes(file, BasicFileAttributes.class));
+    }
+}
@@ -0,0 +1,121 @@
+package org.ogerardin.b2b.batch.jobs;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ogerardin.b2b.files.md5.ApacheCommonsMD5Calculator;
+import org.ogerardin.b2b.files.md5.HashCache;
+import org.ogerardin.b2b.files.md5.MD5Calculator;
+import org.ogerardin.b2b.peer.PeerAuthentication;
+import org.ogerardin.b2b.peer.PeerAuthenticator;
+import org.ogerardin.b2b.peer.PeerServer;
+import org.ogerardin.b2b.storage.FileVersion;
+import org.ogerardin.b2b.storage.StorageException;
+import org.ogerardin.b2b.storage.StorageService;
+import org.ogerardin.b2b.storage.filesystem.FilesystemStorageService;
+import org.ogerardin.b2b.throttle.Throttle;
+import org.ogerardin.b2b.throttle.ThrottleSettings;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link PeerItemWriter} against a {@link PeerServer} that fails to store some files.
+ */
+public class PeerItemWriterTest {
+
+    private static final Path SOURCE_DIRECTORY = Paths.get("target/test-peer-writer-source").toAbsolutePath();
+    private static final Path TARGET_DIRECTORY = Paths.get("target/test-peer-writer-target");
+
+    private final UUID computerId = UUID.randomUUID();
+    private final byte[] secret = PeerAuthentication.decodeSecret(PeerAuthentication.newSecret());
+    private final MD5Calculator md5Calculator = new ApacheCommonsMD5Calculator();
+    private final BackupJobContext context = new BackupJobContext("test");
+    private PeerServer server;
+    private PeerItemWriter writer;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteDirectory(SOURCE_DIRECTORY.toFile());
+        FileUtils.deleteDirectory(TARGET_DIRECTORY.toFile());
+        Files.createDirectories(SOURCE_DIRECTORY);
+        FilesystemStorageService storageService = new FilesystemStorageService(TARGET_DIRECTORY) {
+            @Override
+            public void store(InputStream inputStream, String filename) {
+                if (filename.contains("unstorable")) {
+                    throw new StorageException("disk full");
+                }
+                super.store(inputStream, filename);
+            }
+
+            @Override
+            public FileVersion findFileVersionByMd5(String md5hash) {
+                return null;
+            }
+        };
+        ReflectionTestUtils.setField(storageService, "md5Calculator", md5Calculator);
+        server = new PeerServer(new InetSocketAddress("127.0.0.1", 0), new PeerAuthenticator() {
+            @Override
+            public byte[] getSharedSecret(UUID id) {
+                return id.equals(computerId) ? secret : null;
+            }
+
+            @Override
+            public StorageService getStorageService(UUID id) {
+                return storageService;
+            }
+        }, 2, 4, 64 * 1024);
+        writer = new PeerItemWriter("127.0.0.1", server.getLocalAddress().getPort(), computerId, secret, context,
+                md5Calculator, new HashCache(null, 1000), null, new Throttle(new ThrottleSettings()));
+    }
+
+    @After
+    public void tearDown() {
+        writer.close();
+        server.close();
+    }
+
+    @Test
+    public void testFailedFilesFailTheChunk() throws Exception {
+        FileInfo stored = createFile("stored");
+        FileInfo unstorable = createFile("unstorable");
+        FileInfo deleted = createFile("deleted");
+        Files.delete(deleted.getPath());
+
+        try {
+            writer.write(Arrays.asList(stored, unstorable, deleted));
+            fail("expected failure");
+        } catch (FileNotSentException e) {
+            assertThat(e.getMessage(), startsWith("2 file(s) not sent"));
+            assertThat(e.getSuppressed().length, is(1));
+        }
+        assertThat(context.getStoredCount(), is(1L));
+
+        // when the chunk is written again file by file, only the failed files fail
+        writer.write(Collections.singletonList(stored));
+        try {
+            writer.write(Collections.singletonList(unstorable));
+            fail("expected failure");
+        } catch (FileNotSentException e) {
+            assertThat(e.getCause().getMessage(), containsString("disk full"));
+        }
+    }
+
+    private FileInfo createFile(String name) throws Exception {
+        Path file = SOURCE_DIRECTORY.resolve(name);
+        Files.write(file, name.getBytes());
+        return new FileInfo(file, Files.readAttributes(file, BasicFileAttributes.class));
+    }
+}
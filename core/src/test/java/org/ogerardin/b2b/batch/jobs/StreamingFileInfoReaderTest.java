@@ -0,0 +1,77 @@
+package org.ogerardin.b2b.batch.jobs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.util.FileSystemUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class StreamingFileInfoReaderTest {
+
+    private static final int FILE_COUNT = 1000;
+    private static final int FILE_SIZE = 10;
+
+    private Path root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("b2b-stream");
+        for (int i = 0; i < FILE_COUNT; i++) {
+            Path dir = Files.createDirectories(root.resolve(Integer.toString(i % 10)));
+            Files.write(dir.resolve("file" + i), new byte[FILE_SIZE]);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        FileSystemUtils.deleteRecursively(root.toFile());
+    }
+
+    @Test
+    public void testReadAll() throws Exception {
+        for (int parallelism : new int[]{1, 4}) {
+            BackupJobContext context = new BackupJobContext("test");
+            // a queue much smaller than the number of files, so that the walk has to wait for the reader
+            StreamingFileInfoReader reader = new StreamingFileInfoReader(root.toString(), context, parallelism, 10);
+            reader.open(new ExecutionContext());
+
+            Set<Path> paths = new HashSet<>();
+            FileInfo item;
+            while ((item = reader.read()) != null) {
+                paths.add(item.getPath());
+            }
+            // the end of the walk is sticky
+            assertThat(reader.read(), is(nullValue()));
+            reader.close();
+
+            assertThat(paths.size(), is(FILE_COUNT));
+            assertThat(context.getFileCount(), is((long) FILE_COUNT));
+            assertThat(context.getTotalSize(), is((long) FILE_COUNT * FILE_SIZE));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseStopsWalk() throws Exception {
+        BackupJobContext context = new BackupJobContext("test");
+        StreamingFileInfoReader reader = new StreamingFileInfoReader(root.toString(), context, 4, 10);
+        reader.open(new ExecutionContext());
+        reader.read();
+        reader.close();
+
+        // the walker must terminate even though nobody reads the remaining files
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("b2b-walker-test")) {
+                thread.join();
+            }
+        }
+    }
+}
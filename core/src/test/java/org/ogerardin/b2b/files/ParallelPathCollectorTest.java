@@ -0,0 +1,122 @@
+package org.ogerardin.b2b.files;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.StopWatch;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class ParallelPathCollectorTest {
+
+    private static final Log logger = LogFactory.getLog(ParallelPathCollectorTest.class);
+
+    private static final int PARALLELISM = 8;
+
+    private Path root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("b2b-walk");
+    }
+
+    @After
+    public void tearDown() {
+        FileSystemUtils.deleteRecursively(root.toFile());
+    }
+
+    @Test
+    public void testSameResultAsRecursivePathCollector() throws Exception {
+        createTree(root, new int[]{5, 5, 50}, 20, 100);
+        // entries that must not be collected
+        Files.createDirectories(root.resolve("empty"));
+        Files.createSymbolicLink(root.resolve("link"), root.resolve("0"));
+
+        compare(root);
+    }
+
+    @Test
+    public void testRootIsFile() throws Exception {
+        Path file = Files.write(root.resolve("file"), new byte[10]);
+        compare(file);
+    }
+
+    @Test
+    public void testMissingRoot() throws Exception {
+        ParallelPathCollector collector = new ParallelPathCollector(root.resolve("missing"), PARALLELISM);
+        collector.walkTree();
+        assertThat(collector.getPaths().isEmpty(), is(true));
+    }
+
+    /**
+     * Takes minutes, so only runs if the system property b2b.benchmarks is set to true.
+     */
+    @Test
+    public void benchmarkOneMillionFiles() throws Exception {
+        assumeTrue(Boolean.getBoolean("b2b.benchmarks"));
+        // 10 x 10 x 100 directories containing 100 files each
+        createTree(root, new int[]{10, 10, 100}, 100, 0);
+
+        StopWatch stopWatch = new StopWatch("1M files");
+        stopWatch.start("RecursivePathCollector");
+        RecursivePathCollector recursive = new RecursivePathCollector(root);
+        recursive.walkTree();
+        stopWatch.stop();
+
+        stopWatch.start("ParallelPathCollector(" + PARALLELISM + ")");
+        ParallelPathCollector parallel = new ParallelPathCollector(root, PARALLELISM);
+        parallel.walkTree();
+        stopWatch.stop();
+
+        logger.info(stopWatch.prettyPrint());
+
+        assertThat(parallel.getPaths().size(), is(1000 * 1000));
+        assertThat(parallel.getPaths().keySet(), is(recursive.getPaths().keySet()));
+    }
+
+    private static void compare(Path root) throws Exception {
+        RecursivePathCollector recursive = new RecursivePathCollector(root);
+        recursive.walkTree();
+        ParallelPathCollector parallel = new ParallelPathCollector(root, PARALLELISM);
+        parallel.walkTree();
+
+        Map<Path, BasicFileAttributes> expected = recursive.getPaths();
+        Map<Path, BasicFileAttributes> actual = parallel.getPaths();
+        assertThat(actual.keySet(), is(expected.keySet()));
+        for (Map.Entry<Path, BasicFileAttributes> entry : expected.entrySet()) {
+            assertThat(actual.get(entry.getKey()).size(), is(entry.getValue().size()));
+        }
+        assertThat(parallel.getSize(), is(recursive.getSize()));
+    }
+
+    /**
+     * Creates a directory tree; the directories of the last level contain files of the specified size.
+     * @param fanOuts number of subdirectories of the directories of each level
+     * @param filesPerDirectory number of files in each directory of the last level
+     */
+    private static void createTree(Path dir, int[] fanOuts, int filesPerDirectory, int fileSize) throws Exception {
+        if (fanOuts.length == 0) {
+            byte[] contents = new byte[fileSize];
+            for (int i = 0; i < filesPerDirectory; i++) {
+                Files.write(dir.resolve("file" + i), contents);
+            }
+            return;
+        }
+        int[] subFanOuts = Arrays.copyOfRange(fanOuts, 1, fanOuts.length);
+        for (int i = 0; i < fanOuts[0]; i++) {
+            Path subdir = Files.createDirectory(dir.resolve(Integer.toString(i)));
+            createTree(subdir, subFanOuts, filesPerDirectory, fileSize);
+        }
+    }
+}
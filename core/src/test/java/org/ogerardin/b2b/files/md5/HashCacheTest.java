@@ -0,0 +1,135 @@
+package org.ogerardin.b2b.files.md5;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class HashCacheTest {
+
+    private static final String MD5_A = "0123456789abcdef0123456789abcdef";
+    private static final String MD5_B = "fedcba9876543210fedcba9876543210";
+    private static final Instant MTIME = Instant.ofEpochMilli(1500000000000L);
+
+    private Path cacheFile;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheFile = Files.createTempFile("hash-cache", ".bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(cacheFile);
+    }
+
+    @Test
+    public void testGetRequiresMatchingAttributes() throws Exception {
+        try (HashCache cache = new HashCache(cacheFile, 1000)) {
+            Path path = Paths.get("/some/file");
+            cache.put(path, 42, MTIME, "(dev=1,ino=2)", MD5_A);
+
+            assertThat(cache.get(path, 42, MTIME, "(dev=1,ino=2)"), is(MD5_A));
+            assertThat(cache.get(path, 43, MTIME, "(dev=1,ino=2)"), is(nullValue()));
+            assertThat(cache.get(path, 42, MTIME.plusSeconds(1), "(dev=1,ino=2)"), is(nullValue()));
+            assertThat(cache.get(path, 42, MTIME, "(dev=1,ino=3)"), is(nullValue()));
+            assertThat(cache.get(Paths.get("/some/other/file"), 42, MTIME, "(dev=1,ino=2)"), is(nullValue()));
+
+            // a new entry for the same path replaces the previous one
+            cache.put(path, 43, MTIME, null, MD5_B);
+            assertThat(cache.get(path, 43, MTIME, null), is(MD5_B));
+            assertThat(cache.get(path, 42, MTIME, "(dev=1,ino=2)"), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        Path path = Paths.get("/some/file");
+        try (HashCache cache = new HashCache(cacheFile, 1000)) {
+            cache.put(path, 42, MTIME, null, MD5_A);
+        }
+        try (HashCache cache = new HashCache(cacheFile, 1000)) {
+            assertThat(cache.get(path, 42, MTIME, null), is(MD5_A));
+        }
+        // reopening with a different capacity resets the cache
+        try (HashCache cache = new HashCache(cacheFile, 2000)) {
+            assertThat(cache.get(path, 42, MTIME, null), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void testCorruptEntryIsIgnored() throws Exception {
+        Path path = Paths.get("/some/file");
+        // a single bucket, whose first entry follows the 64-byte header
+        try (HashCache cache = new HashCache(cacheFile, HashCache.WAYS)) {
+            cache.put(path, 42, MTIME, null, MD5_A);
+        }
+        // as if the MD5 had been partially written before a crash
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0x55}), 64 + 40);
+        }
+        try (HashCache cache = new HashCache(cacheFile, HashCache.WAYS)) {
+            assertThat(cache.get(path, 42, MTIME, null), is(nullValue()));
+            cache.put(path, 42, MTIME, null, MD5_B);
+            assertThat(cache.get(path, 42, MTIME, null), is(MD5_B));
+        }
+    }
+
+    @Test
+    public void testClockRecoveredAfterCrash() throws Exception {
+        // a cache with a single bucket, which is never closed, as if the process had crashed
+        HashCache crashed = new HashCache(cacheFile, HashCache.WAYS);
+        try {
+            for (int i = 0; i < HashCache.WAYS; i++) {
+                crashed.put(Paths.get("/file" + i), i, MTIME, null, MD5_A);
+            }
+
+            try (HashCache cache = new HashCache(cacheFile, HashCache.WAYS)) {
+                // use the first two entries, so that the third one is now the least recently used; this only works
+                // if the clock resumes above the stamps already in the cache
+                assertThat(cache.get(Paths.get("/file0"), 0, MTIME, null), is(MD5_A));
+                assertThat(cache.get(Paths.get("/file1"), 1, MTIME, null), is(MD5_A));
+
+                cache.put(Paths.get("/new"), 0, MTIME, null, MD5_B);
+
+                assertThat(cache.get(Paths.get("/file0"), 0, MTIME, null), is(MD5_A));
+                assertThat(cache.get(Paths.get("/file1"), 1, MTIME, null), is(MD5_A));
+                assertThat(cache.get(Paths.get("/file2"), 2, MTIME, null), is(nullValue()));
+            }
+        } finally {
+            crashed.close();
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        // a cache with a single bucket
+        try (HashCache cache = new HashCache(null, HashCache.WAYS)) {
+            for (int i = 0; i < HashCache.WAYS; i++) {
+                cache.put(Paths.get("/file" + i), i, MTIME, null, MD5_A);
+            }
+            // use the first entry, so that the second one is now the least recently used
+            assertThat(cache.get(Paths.get("/file0"), 0, MTIME, null), is(MD5_A));
+
+            cache.put(Paths.get("/new"), 0, MTIME, null, MD5_B);
+
+            assertThat(cache.get(Paths.get("/new"), 0, MTIME, null), is(MD5_B));
+            assertThat(cache.get(Paths.get("/file0"), 0, MTIME, null), is(MD5_A));
+            assertThat(cache.get(Paths.get("/file1"), 1, MTIME, null), is(nullValue()));
+            for (int i = 2; i < HashCache.WAYS; i++) {
+                assertThat(cache.get(Paths.get("/file" + i), i, MTIME, null), is(MD5_A));
+            }
+        }
+    }
+}
@@ -4,6 +4,10 @@ import lombok.Data;
 import org.junit.Test;
 import org.springframework.util.StopWatch;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 
 import static org.hamcrest.Matchers.is;
@@ -30,6 +34,30 @@ public class MD5CalculatorTest {
         benchmark(1000 * 1000 * 1000, "1G bytes");
     }
 
+    @Test
+    public void testStreamingEntryPoints() throws IllegalAccessException, InstantiationException, IOException {
+        // sizes chosen to exercise empty input, partial buffers and multiple buffers
+        for (int size : new int[]{0, 1, 1000, 64 * 1024, 64 * 1024 + 1, 1000 * 1000 + 17}) {
+            byte[] bytes = new byte[size];
+            new Random().nextBytes(bytes);
+
+            Path path = Files.createTempFile("md5", ".bin");
+            try {
+                Files.write(path, bytes);
+                for (Class<? extends MD5Calculator> md5Class : MD5_CLASSES) {
+                    MD5Calculator md5Calculator = md5Class.newInstance();
+                    String expected = md5Calculator.hexMd5Hash(bytes);
+                    assertThat(md5Class.getSimpleName() + " stream " + size,
+                            md5Calculator.hexMd5Hash(new ByteArrayInputStream(bytes)), is(expected));
+                    assertThat(md5Class.getSimpleName() + " path " + size,
+                            md5Calculator.hexMd5Hash(path), is(expected));
+                }
+            } finally {
+                Files.delete(path);
+            }
+        }
+    }
+
     @Data
     private static class Result {
         final String md5;
@@ -0,0 +1,77 @@
+package org.ogerardin.b2b.peer;
+
+import org.junit.Test;
+import org.ogerardin.b2b.storage.compression.Codecs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressionSelectorTest {
+
+    private static final byte[] COMPRESSIBLE = compressible();
+    private static final byte[] INCOMPRESSIBLE = incompressible();
+
+    @Test
+    public void testSlowLink() {
+        // the link is assumed to be slow until measured
+        CompressionSelector selector = new CompressionSelector(0.9);
+        assertNotNull(selector.choose(COMPRESSIBLE, COMPRESSIBLE.length).getCodec());
+        assertNull(selector.choose(INCOMPRESSIBLE, INCOMPRESSIBLE.length).getCodec());
+    }
+
+    @Test
+    public void testFastLink() {
+        CompressionSelector selector = new CompressionSelector(0.9);
+        // 100 MB sent in 100 ms
+        CompressionSelector.Choice choice = selector.choose(INCOMPRESSIBLE, INCOMPRESSIBLE.length);
+        selector.record(choice, 100_000_000, 100_000_000, 0, 100_000_000);
+        assertNull(selector.choose(COMPRESSIBLE, COMPRESSIBLE.length).getCodec());
+    }
+
+    @Test
+    public void testStatistics() {
+        CompressionSelector selector = new CompressionSelector(0.9);
+        CompressionSelector.Choice choice = selector.choose(COMPRESSIBLE, COMPRESSIBLE.length);
+        selector.record(choice, 1000, 100, 1, 1);
+        selector.record(choice, 1000, 300, 1, 1);
+        CompressionSelector.Statistics statistics = selector.getStatistics().get(choice.getCodec().getName());
+        assertEquals(2, statistics.getFileCount());
+        assertEquals(2000, statistics.getInputBytes());
+        assertEquals(400, statistics.getWireBytes());
+        assertEquals(0.2, statistics.getRatio(), 1e-9);
+    }
+
+    @Test
+    public void testSlowCodecNotWorthIt() {
+        CompressionSelector selector = new CompressionSelector(0.9);
+        // measure a link of 10 MB/s, then a codec that only compresses 1 MB/s
+        CompressionSelector.Choice none = new CompressionSelector.Choice(null, 1);
+        for (int i = 0; i < 10; i++) {
+            selector.record(none, 10_000_000, 10_000_000, 0, 1_000_000_000);
+        }
+        for (String name : new String[]{Codecs.DEFLATE_FAST, Codecs.DEFLATE}) {
+            CompressionSelector.Choice choice = new CompressionSelector.Choice(Codecs.get(name), 0.5);
+            for (int i = 0; i < 10; i++) {
+                selector.record(choice, 1_000_000, 500_000, 1_000_000_000, 50_000_000);
+            }
+        }
+        assertNull(selector.choose(COMPRESSIBLE, COMPRESSIBLE.length).getCodec());
+    }
+
+    private static byte[] compressible() {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(0);
+        while (text.length() < 64 * 1024) {
+            text.append("line ").append(random.nextInt(100)).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] incompressible() {
+        byte[] bytes = new byte[64 * 1024];
+        new Random(0).nextBytes(bytes);
+        return bytes;
+    }
+}
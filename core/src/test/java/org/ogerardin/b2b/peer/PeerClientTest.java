@@ -0,0 +1,187 @@
+package org.ogerardin.b2b.peer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link PeerClient} against a minimal receiver that implements the protocol in the test.
+ */
+public class PeerClientTest {
+
+    private static final Path DIRECTORY = Paths.get("target/test-peer-client");
+    private static final int STREAM_WINDOW = 256 * 1024;
+
+    private final UUID computerId = UUID.randomUUID();
+    private final byte[] secret = PeerAuthentication.decodeSecret(PeerAuthentication.newSecret());
+    /** Secret the receiver knows, normally the same as the sender's */
+    private byte[] receiverSecret = secret;
+
+    private ServerSocketChannel serverChannel;
+    private Thread receiverThread;
+
+    /** Contents received for each path */
+    private final Map<String, byte[]> received = new ConcurrentHashMap<>();
+    /** Maximum number of bytes received on a stream beyond what was acknowledged by credits */
+    private volatile long maxOutstanding = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        Files.createDirectories(DIRECTORY);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        serverChannel.close();
+        if (receiverThread != null) {
+            receiverThread.join(10000);
+        }
+    }
+
+    @Test
+    public void testPipelinedTransfer() throws Exception {
+        startReceiver(null);
+        List<Path> files = Arrays.asList(
+                createFile("empty", 0),
+                createFile("small", 10),
+                createFile("large", 3 * 1024 * 1024 + 17));
+
+        try (PeerClient client = new PeerClient(address(), computerId, secret)) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (Path file : files) {
+                futures.add(client.send(file));
+            }
+            for (CompletableFuture<Void> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        }
+
+        for (Path file : files) {
+            assertArrayEquals(Files.readAllBytes(file), received.get(file.toString()));
+        }
+        assertThat(maxOutstanding, lessThanOrEqualTo((long) STREAM_WINDOW));
+    }
+
+    @Test
+    public void testFailedFile() throws Exception {
+        startReceiver("disk full");
+        Path file = createFile("small", 10);
+
+        try (PeerClient client = new PeerClient(address(), computerId, secret)) {
+            client.send(file).get(30, TimeUnit.SECONDS);
+            fail("expected failure");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(PeerException.class));
+            assertThat(e.getCause().getMessage(), is("disk full"));
+        }
+    }
+
+    @Test
+    public void testImpostorReceiver() throws Exception {
+        receiverSecret = PeerAuthentication.decodeSecret(PeerAuthentication.newSecret());
+        startReceiver(null);
+        try {
+            new PeerClient(address(), computerId, secret).close();
+            fail("expected failure");
+        } catch (PeerException e) {
+            assertThat(e.getMessage(), containsString("shared secret"));
+        }
+    }
+
+    private InetSocketAddress address() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    private Path createFile(String name, int size) throws IOException {
+        byte[] contents = new byte[size];
+        new Random(size).nextBytes(contents);
+        Path file = DIRECTORY.resolve(name);
+        Files.write(file, contents);
+        return file;
+    }
+
+    /**
+     * Starts a receiver that accepts a single connection, grants credit as soon as data is received, and
+     * acknowledges each file, with the specified error if not null.
+     */
+    private void startReceiver(String error) {
+        receiverThread = new Thread(() -> {
+            try (SocketChannel channel = serverChannel.accept()) {
+                Frame hello = Frame.read(channel);
+                assertThat(hello.getType(), is(PeerProtocol.HELLO));
+                DataInputStream helloIn = hello.payloadInput();
+                assertThat(helloIn.readInt(), is(PeerProtocol.VERSION));
+                assertThat(new UUID(helloIn.readLong(), helloIn.readLong()), is(computerId));
+                byte[] senderNonce = new byte[PeerAuthentication.LENGTH];
+                helloIn.readFully(senderNonce);
+                byte[] receiverNonce = PeerAuthentication.nonce();
+                Frame.of(PeerProtocol.CHALLENGE, 0, out -> out.write(receiverNonce)).writeTo(channel);
+                Frame response = Frame.read(channel);
+                assertThat(response.getType(), is(PeerProtocol.RESPONSE));
+                assertArrayEquals(PeerAuthentication.senderProof(secret, computerId, senderNonce, receiverNonce),
+                        response.getPayload());
+                Frame.of(PeerProtocol.WELCOME, 0, out -> {
+                    out.writeInt(4);
+                    out.writeInt(STREAM_WINDOW);
+                    out.writeLong(0);
+                    out.write(PeerAuthentication.receiverProof(receiverSecret, senderNonce, receiverNonce));
+                }).writeTo(channel);
+
+                Map<Integer, String> paths = new HashMap<>();
+                Map<Integer, ByteArrayOutputStream> contents = new HashMap<>();
+                Frame frame;
+                while ((frame = Frame.read(channel)) != null) {
+                    int streamId = frame.getStreamId();
+                    DataInputStream in = frame.payloadInput();
+                    switch (frame.getType()) {
+                        case PeerProtocol.OPEN:
+                            paths.put(streamId, in.readUTF());
+                            contents.put(streamId, new ByteArrayOutputStream());
+                            break;
+                        case PeerProtocol.DATA:
+                            maxOutstanding = Math.max(maxOutstanding, frame.getPayload().length);
+                            contents.get(streamId).write(frame.getPayload());
+                            int length = frame.getPayload().length;
+                            Frame.of(PeerProtocol.CREDIT, streamId, out -> out.writeInt(length)).writeTo(channel);
+                            break;
+                        case PeerProtocol.END:
+                            assertThat(in.readBoolean(), is(true));
+                            received.put(paths.get(streamId), contents.get(streamId).toByteArray());
+                            Frame.of(PeerProtocol.ACK, streamId, out -> {
+                                out.writeBoolean(error == null);
+                                if (error != null) {
+                                    out.writeUTF(error);
+                                }
+                            }).writeTo(channel);
+                            break;
+                        default:
+                            fail("Unexpected frame type " + frame.getType());
+                    }
+                }
+            } catch (IOException e) {
+                // connection closed by the client
+            }
+        });
+        receiverThread.start();
+    }
+}
@@ -0,0 +1,169 @@
+package org.ogerardin.b2b.peer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ogerardin.b2b.B2BProperties;
+import org.ogerardin.b2b.domain.PairedPeer;
+import org.ogerardin.b2b.domain.mongorepository.PairedPeerRepository;
+import org.ogerardin.b2b.files.md5.ApacheCommonsMD5Calculator;
+import org.ogerardin.b2b.storage.StorageService;
+import org.ogerardin.b2b.storage.filesystem.FilesystemStorageService;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs two {@link PeerReceiver}s, each with its own {@link InstanceIdentity}, paired with each other, and has each
+ * instance send a file to the other.
+ */
+public class PeerReceiverTest {
+
+    private static final Path DIRECTORY = Paths.get("target/test-peer-receiver").toAbsolutePath();
+
+    private Instance alice;
+    private Instance bob;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteDirectory(DIRECTORY.toFile());
+        alice = new Instance("alice");
+        bob = new Instance("bob");
+        alice.pair(bob);
+        bob.pair(alice);
+    }
+
+    @After
+    public void tearDown() {
+        alice.receiver.stop();
+        bob.receiver.stop();
+    }
+
+    @Test
+    public void testSendToEachOther() throws Exception {
+        alice.sendTo(bob);
+        bob.sendTo(alice);
+    }
+
+    @Test
+    public void testIdentityIsPersisted() throws Exception {
+        assertNotEquals(alice.identity.getComputerId(), bob.identity.getComputerId());
+        assertEquals(alice.identity.getComputerId(),
+                new InstanceIdentity(alice.directory.resolve("computer-id")).getComputerId());
+    }
+
+    @Test(expected = PeerException.class)
+    public void testUnpairedComputer() throws Exception {
+        Instance carol = new Instance("carol");
+        // carol has a secret, but bob doesn't know carol
+        carol.secrets.put(bob.identity.getComputerId(), PeerAuthentication.newSecret());
+        try (PeerClient client = new PeerClient(bob.address(), carol.identity.getComputerId(), carol.secretFor(bob))) {
+            fail("unpaired computer accepted");
+        } finally {
+            carol.receiver.stop();
+        }
+    }
+
+    @Test(expected = PeerException.class)
+    public void testWrongSecret() throws Exception {
+        byte[] wrongSecret = PeerAuthentication.decodeSecret(PeerAuthentication.newSecret());
+        try (PeerClient client = new PeerClient(bob.address(), alice.identity.getComputerId(), wrongSecret)) {
+            fail("wrong secret accepted");
+        }
+    }
+
+    /**
+     * A back2back instance, with its own directory, computer ID, registry of paired peers and receiver.
+     */
+    private static class Instance {
+        private final Path directory;
+        private final int port;
+        private final InstanceIdentity identity;
+        private final PairedPeerRepository pairedPeerRepository = mock(PairedPeerRepository.class);
+        /** Secrets returned by the peers we paired with, by computer ID of the peer */
+        private final Map<UUID, String> secrets = new ConcurrentHashMap<>();
+        private final Map<String, FilesystemStorageService> storageServices = new ConcurrentHashMap<>();
+        private final PeerReceiver receiver;
+
+        Instance(String name) throws IOException {
+            directory = Files.createDirectories(DIRECTORY.resolve(name));
+            port = freePort();
+            identity = new InstanceIdentity(directory.resolve("computer-id"));
+
+            B2BProperties properties = new B2BProperties();
+            properties.setPeerReceiverPort(port);
+            properties.setPeerStagingDirectory(directory.resolve("staging").toString());
+            receiver = new PeerReceiver(properties, pairedPeerRepository, this::getStorageService);
+            receiver.start();
+        }
+
+        private StorageService getStorageService(String name) {
+            return storageServices.computeIfAbsent(name, n -> {
+                FilesystemStorageService storageService = new FilesystemStorageService(directory.resolve(n));
+                ReflectionTestUtils.setField(storageService, "md5Calculator", new ApacheCommonsMD5Calculator());
+                return storageService;
+            });
+        }
+
+        /**
+         * Pairs this computer with the specified peer, i.e. registers this computer with the peer and keeps the
+         * secret the peer returned.
+         */
+        void pair(Instance peer) {
+            UUID computerId = identity.getComputerId();
+            PairedPeer pairedPeer = new PairedPeer();
+            pairedPeer.setComputerId(computerId.toString());
+            pairedPeer.setSecret(PeerAuthentication.newSecret());
+            when(peer.pairedPeerRepository.findOne(computerId.toString())).thenReturn(pairedPeer);
+            secrets.put(peer.identity.getComputerId(), pairedPeer.getSecret());
+        }
+
+        byte[] secretFor(Instance peer) {
+            return PeerAuthentication.decodeSecret(secrets.get(peer.identity.getComputerId()));
+        }
+
+        InetSocketAddress address() {
+            return new InetSocketAddress("127.0.0.1", port);
+        }
+
+        void sendTo(Instance peer) throws Exception {
+            byte[] contents = new byte[100 * 1024];
+            new Random().nextBytes(contents);
+            Path file = directory.resolve("file-for-" + peer.directory.getFileName());
+            Files.write(file, contents);
+
+            try (PeerClient client = new PeerClient(peer.address(), identity.getComputerId(), secretFor(peer))) {
+                client.send(file).get(30, TimeUnit.SECONDS);
+            }
+
+            // stored in the peer's bucket for this computer
+            StorageService storageService = peer.storageServices.get("peer-" + identity.getComputerId());
+            try (InputStream in = storageService.getAsInputStream(file.toString())) {
+                assertArrayEquals(contents, IOUtils.toByteArray(in));
+            }
+        }
+
+        private static int freePort() throws IOException {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                return socket.getLocalPort();
+            }
+        }
+    }
+}
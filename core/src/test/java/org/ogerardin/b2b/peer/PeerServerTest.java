@@ -0,0 +1,256 @@
+package org.ogerardin.b2b.peer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ogerardin.b2b.files.md5.ApacheCommonsMD5Calculator;
+import org.ogerardin.b2b.files.md5.MD5Calculator;
+import org.ogerardin.b2b.storage.FileVersion;
+import org.ogerardin.b2b.storage.StorageService;
+import org.ogerardin.b2b.storage.filesystem.FilesystemStorageService;
+import org.ogerardin.b2b.throttle.Throttle;
+import org.ogerardin.b2b.throttle.ThrottleSettings;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link PeerServer} with {@link PeerClient}s, storing into a {@link FilesystemStorageService}.
+ */
+public class PeerServerTest {
+
+    private static final Path SOURCE_DIRECTORY = Paths.get("target/test-peer-server-source").toAbsolutePath();
+    private static final Path TARGET_DIRECTORY = Paths.get("target/test-peer-server-target");
+
+    private final UUID computerId = UUID.randomUUID();
+    private final byte[] secret = PeerAuthentication.decodeSecret(PeerAuthentication.newSecret());
+    private final MD5Calculator md5Calculator = new ApacheCommonsMD5Calculator();
+    private FilesystemStorageService storageService;
+    private PeerServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteDirectory(TARGET_DIRECTORY.toFile());
+        Files.createDirectories(SOURCE_DIRECTORY);
+        // the filesystem storage can't look up contents by hash, so do it the slow way
+        storageService = new FilesystemStorageService(TARGET_DIRECTORY) {
+            @Override
+            public FileVersion findFileVersionByMd5(String md5hash) {
+                return getLatestFileVersions(getAllPaths().collect(Collectors.toList())).values().stream()
+                        .filter(version -> md5hash.equalsIgnoreCase(version.getMd5hash()))
+                        .findFirst().orElse(null);
+            }
+        };
+        ReflectionTestUtils.setField(storageService, "md5Calculator", md5Calculator);
+        // few workers and a small window, so that senders have to wait for storage
+        PeerAuthenticator authenticator = new PeerAuthenticator() {
+            @Override
+            public byte[] getSharedSecret(UUID id) {
+                return id.equals(computerId) ? secret : null;
+            }
+
+            @Override
+            public StorageService getStorageService(UUID id) {
+                return storageService;
+            }
+        };
+        server = new PeerServer(new InetSocketAddress("127.0.0.1", 0), authenticator, 2, 4, 64 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void testConcurrentSenders() throws Exception {
+        int clientCount = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(clientCount);
+        try {
+            List<Future<List<Path>>> results = new ArrayList<>();
+            for (int c = 0; c < clientCount; c++) {
+                int clientIndex = c;
+                results.add(executor.submit(() -> {
+                    List<Path> files = new ArrayList<>();
+                    try (PeerClient client = new PeerClient(server.getLocalAddress(), computerId, secret)) {
+                        List<CompletableFuture<Void>> futures = new ArrayList<>();
+                        for (int i = 0; i < 5; i++) {
+                            Path file = createFile("client" + clientIndex + "-file" + i, i * 100 * 1024 + clientIndex);
+                            files.add(file);
+                            futures.add(client.send(file));
+                        }
+                        for (CompletableFuture<Void> future : futures) {
+                            future.get(60, TimeUnit.SECONDS);
+                        }
+                    }
+                    return files;
+                }));
+            }
+            for (Future<List<Path>> result : results) {
+                for (Path file : result.get(120, TimeUnit.SECONDS)) {
+                    try (InputStream in = storageService.getAsInputStream(file.toString())) {
+                        assertArrayEquals(Files.readAllBytes(file), IOUtils.toByteArray(in));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testOffer() throws Exception {
+        Path stored = createFile("stored", 1000);
+        Path copy = SOURCE_DIRECTORY.resolve("copy");
+        Files.copy(stored, copy, StandardCopyOption.REPLACE_EXISTING);
+        Path modified = createFile("modified", 2000);
+        Path added = createFile("added", 3000);
+
+        try (PeerClient client = new PeerClient(server.getLocalAddress(), computerId, secret)) {
+            client.send(stored).get(30, TimeUnit.SECONDS);
+            client.send(modified).get(30, TimeUnit.SECONDS);
+            Files.write(modified, "modified".getBytes());
+
+            List<FileOffer> needed = client.offer(Arrays.asList(
+                    offer(stored), offer(copy), offer(modified), offer(added)));
+
+            // the copy is stored by the peer from the contents it has, without being sent
+            assertThat(needed, contains(offer(modified), offer(added)));
+            try (InputStream in = storageService.getAsInputStream(copy.toString())) {
+                assertArrayEquals(Files.readAllBytes(stored), IOUtils.toByteArray(in));
+            }
+        }
+    }
+
+    @Test
+    public void testLargeOffer() throws Exception {
+        Path file = createFile("file", 10);
+        List<FileOffer> offers = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            offers.add(new FileOffer(file.toString() + i, 10, md5Calculator.hexMd5Hash(file)));
+        }
+        try (PeerClient client = new PeerClient(server.getLocalAddress(), computerId, secret)) {
+            // split into several batches, whose answers are reassembled in order
+            assertEquals(offers, client.offer(offers));
+        }
+    }
+
+    @Test
+    public void testResumeStagedFile() throws Exception {
+        Path stagingDirectory = Paths.get("target/test-peer-server-staging");
+        FileUtils.deleteDirectory(stagingDirectory.toFile());
+        server.setStaging(stagingDirectory, 1);
+        int blockSize = StagedFile.MIN_BLOCK_SIZE;
+        Path file = createFile("large", 2 * blockSize + 1000);
+        byte[] contents = Files.readAllBytes(file);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+
+        // an interrupted transfer staged the first block, and a second block that doesn't match the file
+        Path peerStagingDirectory = stagingDirectory.resolve(computerId.toString());
+        try (StagedFile staged = StagedFile.open(peerStagingDirectory, file.toString(), contents.length, lastModified)) {
+            staged.resumeAt(0);
+            StagedFile.BlockListener listener = (index, hash) -> { };
+            staged.write(contents, 0, blockSize, listener);
+            staged.write(new byte[blockSize], 0, blockSize, listener);
+        }
+
+        TransferCheckpoints checkpoints = new TransferCheckpoints();
+        try (PeerClient client = new PeerClient(server.getLocalAddress(), computerId, secret, checkpoints)) {
+            client.send(file).get(60, TimeUnit.SECONDS);
+        }
+
+        // only the blocks from the first one that doesn't match were sent
+        assertEquals(contents.length - blockSize, server.getReceivedBytes());
+        try (InputStream in = storageService.getAsInputStream(file.toString())) {
+            assertArrayEquals(contents, IOUtils.toByteArray(in));
+        }
+        // once stored, the staged contents and the checkpoints are dropped
+        assertThat(peerStagingDirectory.toFile().list(), emptyArray());
+        assertEquals(0, checkpoints.size());
+    }
+
+    @Test
+    public void testCompressedTransfer() throws Exception {
+        Path compressible = SOURCE_DIRECTORY.resolve("compressible");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 2 * 1024 * 1024; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        Files.write(compressible, text.toString().getBytes(StandardCharsets.US_ASCII));
+        Path incompressible = createFile("incompressible", 1024 * 1024);
+
+        CompressionSelector selector = new CompressionSelector(0.9);
+        try (PeerClient client = new PeerClient(server.getLocalAddress(), computerId, secret, new TransferCheckpoints(),
+                selector)) {
+            client.send(compressible).get(30, TimeUnit.SECONDS);
+            client.send(incompressible).get(30, TimeUnit.SECONDS);
+        }
+
+        for (Path file : Arrays.asList(compressible, incompressible)) {
+            try (InputStream in = storageService.getAsInputStream(file.toString())) {
+                assertArrayEquals(Files.readAllBytes(file), IOUtils.toByteArray(in));
+            }
+        }
+        Map<String, CompressionSelector.Statistics> statistics = selector.getStatistics();
+        assertEquals(1, statistics.get(CompressionSelector.NONE).getFileCount());
+        CompressionSelector.Statistics compressed = statistics.entrySet().stream()
+                .filter(entry -> !entry.getKey().equals(CompressionSelector.NONE))
+                .map(Map.Entry::getValue)
+                .findFirst().orElseThrow(AssertionError::new);
+        assertThat(compressed.getRatio(), lessThan(0.5));
+        assertEquals(compressed.getWireBytes() + Files.size(incompressible), server.getReceivedBytes());
+    }
+
+    @Test
+    public void testThrottledTransfer() throws Exception {
+        Path file = createFile("throttled", 1536 * 1024);
+        long start = System.nanoTime();
+        try (PeerClient client = new PeerClient(server.getLocalAddress(), computerId, secret)) {
+            // 512 KB/s, with a burst of 1 second: the rest of the file takes at least 2 seconds
+            client.setThrottle(new Throttle(new ThrottleSettings(512 * 1024, 0)));
+            client.send(file).get(30, TimeUnit.SECONDS);
+        }
+        assertThat(System.nanoTime() - start, greaterThan(TimeUnit.MILLISECONDS.toNanos(1500)));
+        try (InputStream in = storageService.getAsInputStream(file.toString())) {
+            assertArrayEquals(Files.readAllBytes(file), IOUtils.toByteArray(in));
+        }
+    }
+
+    @Test(expected = PeerException.class)
+    public void testUnknownComputer() throws Exception {
+        new PeerClient(server.getLocalAddress(), UUID.randomUUID(), secret).close();
+    }
+
+    @Test(expected = PeerException.class)
+    public void testWrongSecret() throws Exception {
+        byte[] wrongSecret = PeerAuthentication.decodeSecret(PeerAuthentication.newSecret());
+        new PeerClient(server.getLocalAddress(), computerId, wrongSecret).close();
+    }
+
+    private FileOffer offer(Path path) throws IOException {
+        return new FileOffer(path.toString(), Files.size(path), md5Calculator.hexMd5Hash(path));
+    }
+
+    private Path createFile(String name, int size) throws IOException {
+        byte[] contents = new byte[size];
+        new Random(size).nextBytes(contents);
+        Path file = SOURCE_DIRECTORY.resolve(name);
+        Files.write(file, contents);
+        return file;
+    }
+}
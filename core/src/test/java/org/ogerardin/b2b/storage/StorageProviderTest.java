@@ -10,6 +10,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public abstract class StorageProviderTest<S extends StorageService> {
@@ -54,4 +55,20 @@ public abstract class StorageProviderTest<S extends StorageService> {
 
     }
 
+    protected void testLatestFileVersions(StorageService storageService) throws Exception {
+        URL url = getClass().getResource(FILESET_RSC);
+        List<Path> paths = Files.list(Paths.get(url.toURI())).collect(Collectors.toList());
+
+        // store all but the first file
+        paths.stream().skip(1).forEach(storageService::store);
+
+        // bulk lookup must return the same as individual lookups, and nothing for the file not stored
+        Map<Path, FileVersion> versions = storageService.getLatestFileVersions(paths);
+        Assert.assertFalse(versions.containsKey(paths.get(0)));
+        for (Path path : paths.subList(1, paths.size())) {
+            FileVersion expected = storageService.getLatestFileVersion(path);
+            Assert.assertEquals(expected, versions.get(path));
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+package org.ogerardin.b2b.storage.cas;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ogerardin.b2b.storage.FileVersion;
+import org.ogerardin.b2b.storage.StorageProviderTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.ByteArrayInputStream;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class ContentAddressedStorageProviderTest extends StorageProviderTest<ContentAddressedStorageService> {
+
+    @Autowired
+    private MongoDbFactory mongoDbFactory;
+
+    @Autowired
+    private MongoConverter mongoConverter;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private BlobStore blobStore;
+
+    @Before
+    public void setUp() {
+        blobStore = new BlobStore(mongoDbFactory, mongoConverter, mongoTemplate);
+        setStorageService(createStorageService("test"));
+    }
+
+    private ContentAddressedStorageService createStorageService(String bucket) {
+        ContentAddressedStorageService storageService = new ContentAddressedStorageService(mongoTemplate, blobStore,
+                bucket);
+        storageService.init();
+        storageService.deleteAll();
+        return storageService;
+    }
+
+    @Test
+    public void loadAll() throws Exception {
+        super.testLoadAll(storageService);
+    }
+
+    @Test
+    public void latestFileVersions() throws Exception {
+        super.testLatestFileVersions(storageService);
+    }
+
+    @Test
+    public void contentsSharedAcrossBuckets() throws Exception {
+        ContentAddressedStorageService other = createStorageService("other");
+        byte[] contents = "same contents".getBytes();
+        storageService.store(new ByteArrayInputStream(contents), "/some/file");
+        other.store(new ByteArrayInputStream(contents), "/another/file");
+
+        // a single blob, referenced by both versions
+        assertThat(mongoTemplate.getCollection("cas.files").count(), is(1L));
+        FileVersion version = other.getLatestFileVersion("/another/file");
+        assertThat(version.getSize(), is((long) contents.length));
+
+        // deleting one bucket must keep the blob for the other
+        storageService.deleteAll();
+        assertThat(mongoTemplate.getCollection("cas.files").count(), is(1L));
+        assertTrue(IOUtils.contentEquals(new ByteArrayInputStream(contents),
+                other.getFileVersionAsInputStream(version.getId())));
+
+        // deleting the last reference deletes the blob
+        other.deleteAll();
+        assertThat(mongoTemplate.getCollection("cas.files").count(), is(0L));
+    }
+}
@@ -0,0 +1,77 @@
+package org.ogerardin.b2b.storage.chunked;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ogerardin.b2b.storage.FileVersion;
+import org.ogerardin.b2b.storage.StorageProviderTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class ChunkedStorageProviderTest extends StorageProviderTest<ChunkedStorageService> {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Before
+    public void setUp() {
+        ChunkedStorageService storageService = new ChunkedStorageService(mongoTemplate, "test",
+                2 * 1024, 8 * 1024, 32 * 1024);
+        storageService.init();
+        storageService.deleteAll();
+        setStorageService(storageService);
+    }
+
+    @Test
+    public void loadAll() throws Exception {
+        super.testLoadAll(storageService);
+    }
+
+    @Test
+    public void latestFileVersions() throws Exception {
+        super.testLatestFileVersions(storageService);
+    }
+
+    @Test
+    public void modifiedVersionSharesChunks() throws Exception {
+        String filename = "/some/large/file";
+        byte[] contents = new byte[1024 * 1024];
+        new Random(0).nextBytes(contents);
+        storageService.store(new ByteArrayInputStream(contents), filename);
+        long chunksAfterFirst = mongoTemplate.getCollection("test.chunks").count();
+
+        // modify a single byte
+        byte[] modified = contents.clone();
+        modified[contents.length / 2] ^= 1;
+        storageService.store(new ByteArrayInputStream(modified), filename);
+        long chunksAfterSecond = mongoTemplate.getCollection("test.chunks").count();
+
+        // only the chunk containing the modified byte must have been added
+        assertThat(chunksAfterSecond - chunksAfterFirst, lessThan(3L));
+
+        FileVersion[] versions = storageService.getFileVersions(filename);
+        assertThat(versions.length, is(2));
+        for (FileVersion version : versions) {
+            byte[] expected = version.getId().equals(storageService.getLatestFileVersion(filename).getId()) ?
+                    modified : contents;
+            assertTrue(IOUtils.contentEquals(new ByteArrayInputStream(expected),
+                    storageService.getFileVersionAsInputStream(version.getId())));
+        }
+    }
+}
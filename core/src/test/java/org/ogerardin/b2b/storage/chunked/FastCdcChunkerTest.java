@@ -0,0 +1,95 @@
+package org.ogerardin.b2b.storage.chunked;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+public class FastCdcChunkerTest {
+
+    private static final int MIN = 2 * 1024;
+    private static final int AVERAGE = 8 * 1024;
+    private static final int MAX = 32 * 1024;
+
+    @Test
+    public void testChunksRebuildInput() throws Exception {
+        byte[] data = randomBytes(1024 * 1024, 1);
+        List<byte[]> chunks = chunk(data);
+
+        ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = chunks.get(i);
+            assertThat(chunk.length, lessThanOrEqualTo(MAX));
+            if (i < chunks.size() - 1) {
+                assertThat(chunk.length, greaterThanOrEqualTo(MIN));
+            }
+            rebuilt.write(chunk);
+        }
+        assertArrayEquals(data, rebuilt.toByteArray());
+
+        // sizes should be distributed around the average
+        double average = (double) data.length / chunks.size();
+        assertThat(average, allOf(greaterThan(AVERAGE / 2.0), lessThan(AVERAGE * 2.0)));
+    }
+
+    @Test
+    public void testInsertionOnlyChangesNearbyChunks() throws Exception {
+        byte[] data = randomBytes(1024 * 1024, 2);
+        // insert a few bytes in the middle
+        int position = data.length / 2;
+        byte[] modified = new byte[data.length + 3];
+        System.arraycopy(data, 0, modified, 0, position);
+        modified[position] = 1;
+        modified[position + 1] = 2;
+        modified[position + 2] = 3;
+        System.arraycopy(data, position, modified, position + 3, data.length - position);
+
+        Set<String> originalChunks = hashes(chunk(data));
+        List<byte[]> modifiedChunks = chunk(modified);
+        long newBytes = 0;
+        for (byte[] chunk : modifiedChunks) {
+            if (!originalChunks.contains(DigestUtils.sha256Hex(chunk))) {
+                newBytes += chunk.length;
+            }
+        }
+        // with fixed-size blocks, everything after the insertion would be different
+        assertThat(newBytes, lessThanOrEqualTo((long) 3 * MAX));
+    }
+
+    @Test
+    public void testEmptyInput() throws Exception {
+        assertThat(chunk(new byte[0]), empty());
+    }
+
+    private static List<byte[]> chunk(byte[] data) throws Exception {
+        FastCdcChunker chunker = new FastCdcChunker(new ByteArrayInputStream(data), MIN, AVERAGE, MAX);
+        List<byte[]> chunks = new ArrayList<>();
+        byte[] chunk;
+        while ((chunk = chunker.next()) != null) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static Set<String> hashes(List<byte[]> chunks) {
+        Set<String> hashes = new HashSet<>();
+        chunks.forEach(c -> hashes.add(DigestUtils.sha256Hex(c)));
+        return hashes;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
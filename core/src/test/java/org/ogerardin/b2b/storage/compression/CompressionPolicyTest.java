@@ -0,0 +1,53 @@
+package org.ogerardin.b2b.storage.compression;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+public class CompressionPolicyTest {
+
+    private final CompressionPolicy policy = new CompressionPolicy(Codecs.get(Codecs.DEFLATE_FAST), 0.9);
+
+    @Test
+    public void testCompressibleContents() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            text.append("line ").append(i).append(" of some text file\n");
+        }
+        byte[] contents = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        BufferedInputStream inputStream = new BufferedInputStream(new ByteArrayInputStream(contents));
+        Codec codec = policy.choose(inputStream);
+        assertThat(codec, notNullValue());
+
+        // sampling must not consume the stream
+        byte[] compressed = ByteStreams.toByteArray(codec.compressing(inputStream));
+        assertThat(compressed.length, lessThan(contents.length / 3));
+        byte[] decompressed = ByteStreams.toByteArray(codec.decompressing(new ByteArrayInputStream(compressed)));
+        assertArrayEquals(contents, decompressed);
+    }
+
+    @Test
+    public void testIncompressibleContents() throws Exception {
+        // random bytes are as incompressible as JPEG or zip contents
+        byte[] contents = new byte[200 * 1024];
+        new Random(0).nextBytes(contents);
+        BufferedInputStream inputStream = new BufferedInputStream(new ByteArrayInputStream(contents));
+        assertThat(policy.choose(inputStream), nullValue());
+        assertArrayEquals(contents, ByteStreams.toByteArray(inputStream));
+    }
+
+    @Test
+    public void testSmallContents() throws Exception {
+        BufferedInputStream inputStream = new BufferedInputStream(new ByteArrayInputStream(new byte[100]));
+        assertThat(policy.choose(inputStream), nullValue());
+    }
+}
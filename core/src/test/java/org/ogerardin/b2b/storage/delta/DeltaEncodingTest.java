@@ -0,0 +1,90 @@
+package org.ogerardin.b2b.storage.delta;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+public class DeltaEncodingTest {
+
+    @Test
+    public void testModifiedInPlace() throws Exception {
+        byte[] base = randomBytes(1024 * 1024, 1);
+        byte[] modified = base.clone();
+        for (int i = 0; i < 10; i++) {
+            modified[i * 100_000 + 17] ^= 0x55;
+        }
+
+        byte[] delta = roundTrip(base, modified);
+        // each modification costs about one block of literal bytes
+        assertThat(delta.length, lessThan(10 * 2 * BlockSignature.blockSizeFor(base.length)));
+    }
+
+    @Test
+    public void testAppended() throws Exception {
+        byte[] base = randomBytes(500_000, 2);
+        byte[] appended = Arrays.copyOf(base, base.length + 10_000);
+        System.arraycopy(randomBytes(10_000, 3), 0, appended, base.length, 10_000);
+
+        byte[] delta = roundTrip(base, appended);
+        assertThat(delta.length, lessThan(10_000 + 2 * BlockSignature.blockSizeFor(base.length)));
+    }
+
+    @Test
+    public void testUnrelated() throws Exception {
+        roundTrip(randomBytes(100_000, 4), randomBytes(150_000, 5));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        roundTrip(new byte[0], randomBytes(10_000, 6));
+        roundTrip(randomBytes(10_000, 7), new byte[0]);
+    }
+
+    @Test
+    public void testChain() throws Exception {
+        byte[] v0 = randomBytes(300_000, 8);
+        byte[] v1 = v0.clone();
+        v1[1000] ^= 1;
+        byte[] v2 = Arrays.copyOf(v1, v1.length + 5000);
+
+        byte[] delta1 = encode(v0, v1);
+        byte[] delta2 = encode(v1, v2);
+        InputStream reconstructed = new DeltaDecodingInputStream(new ByteArrayInputStream(delta2),
+                new DeltaDecodingInputStream(new ByteArrayInputStream(delta1), new ByteArrayInputStream(v0)));
+        assertArrayEquals(v2, ByteStreams.toByteArray(reconstructed));
+    }
+
+    /**
+     * Encodes the target against the base, checks that decoding gives back the target, and returns the delta.
+     */
+    private static byte[] roundTrip(byte[] base, byte[] target) throws IOException {
+        byte[] delta = encode(base, target);
+        InputStream decoded = new DeltaDecodingInputStream(new ByteArrayInputStream(delta),
+                new ByteArrayInputStream(base));
+        assertArrayEquals(target, ByteStreams.toByteArray(decoded));
+        return delta;
+    }
+
+    private static byte[] encode(byte[] base, byte[] target) throws IOException {
+        BlockSignature.SignatureInputStream signatureStream =
+                BlockSignature.computeWhileReading(new ByteArrayInputStream(base), base.length);
+        ByteStreams.toByteArray(signatureStream);
+        BlockSignature signature = BlockSignature.fromBytes(signatureStream.getSignature().toBytes());
+        return ByteStreams.toByteArray(new DeltaEncodingInputStream(new ByteArrayInputStream(target), signature));
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
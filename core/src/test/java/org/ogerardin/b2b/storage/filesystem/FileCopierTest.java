@@ -0,0 +1,88 @@
+package org.ogerardin.b2b.storage.filesystem;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeThat;
+
+public class FileCopierTest {
+
+    private static final Path DIRECTORY = Paths.get("target/test-file-copier");
+
+    private Path source;
+    private byte[] contents;
+
+    @Before
+    public void setUp() throws Exception {
+        if (Files.exists(DIRECTORY)) {
+            try (Stream<Path> paths = Files.walk(DIRECTORY)) {
+                paths.sorted((p1, p2) -> p2.compareTo(p1)).forEach(p -> p.toFile().delete());
+            }
+        }
+        Files.createDirectories(DIRECTORY.resolve("storage"));
+        contents = new byte[3 * 1024 * 1024];
+        new Random(0).nextBytes(contents);
+        source = DIRECTORY.resolve("source");
+        Files.write(source, contents);
+        Files.setLastModifiedTime(source, FileTime.fromMillis(1500000000000L));
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        Path target = DIRECTORY.resolve("storage/target");
+        Files.write(target, new byte[]{1, 2, 3});
+
+        FileCopier.Strategy strategy = new FileCopier(true).copy(source, target);
+
+        // the source is writable, so it must be copied even if linking is allowed
+        assertThat(strategy, is(FileCopier.Strategy.TRANSFER));
+        assertArrayEquals(contents, Files.readAllBytes(target));
+        assertThat(Files.getLastModifiedTime(target), is(Files.getLastModifiedTime(source)));
+        assertThat(Files.isSameFile(source, target), is(false));
+        // no temporary file left behind
+        try (Stream<Path> files = Files.list(target.getParent())) {
+            assertThat(files.count(), is(1L));
+        }
+    }
+
+    @Test
+    public void testLinkReadOnlyFile() throws Exception {
+        assumeThat(Files.getFileAttributeView(source, PosixFileAttributeView.class), notNullValue());
+        Files.setPosixFilePermissions(source, PosixFilePermissions.fromString("r--r--r--"));
+        Path target = DIRECTORY.resolve("storage/target");
+
+        assertThat(new FileCopier(false).copy(source, target), is(FileCopier.Strategy.TRANSFER));
+        FileCopier fileCopier = new FileCopier(true);
+        assertThat(fileCopier.copy(source, target), is(FileCopier.Strategy.HARD_LINK));
+        assertThat(Files.isSameFile(source, target), is(true));
+        assertArrayEquals(contents, Files.readAllBytes(target));
+
+        assertThat(fileCopier.getFileCount(FileCopier.Strategy.HARD_LINK), is(1L));
+        assertThat(fileCopier.getByteCount(FileCopier.Strategy.HARD_LINK), is((long) contents.length));
+        assertThat(fileCopier.getFileCount(FileCopier.Strategy.TRANSFER), is(0L));
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        Path target = DIRECTORY.resolve("storage/target");
+        FileTime lastModifiedTime = FileTime.fromMillis(1400000000000L);
+
+        new FileCopier(false).copy(new ByteArrayInputStream(contents), lastModifiedTime, target);
+
+        assertArrayEquals(contents, Files.readAllBytes(target));
+        assertThat(Files.getLastModifiedTime(target), is(lastModifiedTime));
+    }
+}
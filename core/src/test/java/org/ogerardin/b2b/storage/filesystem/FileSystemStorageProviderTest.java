@@ -1,10 +1,21 @@
 package org.ogerardin.b2b.storage.filesystem;
 
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
 import org.junit.Test;
+import org.ogerardin.b2b.storage.FileVersion;
+import org.ogerardin.b2b.storage.StorageFileVersionNotFoundException;
 import org.ogerardin.b2b.storage.StorageProviderTest;
+import org.ogerardin.b2b.storage.StorageService;
 
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class FileSystemStorageProviderTest extends StorageProviderTest<FilesystemStorageService> {
 
@@ -19,4 +30,77 @@ public class FileSystemStorageProviderTest extends StorageProviderTest<Filesyste
     public void testLoadAll() throws Exception {
         super.testLoadAll(storageService);
     }
+
+    @Test
+    public void testLatestFileVersions() throws Exception {
+        storageService.deleteAll();
+        super.testLatestFileVersions(storageService);
+    }
+
+    @Test
+    public void testSnapshots() throws Exception {
+        storageService.deleteAll();
+        Path sourceDirectory = Paths.get("target/test-filesystem-storage-source").toAbsolutePath();
+        Files.createDirectories(sourceDirectory);
+        Path modified = sourceDirectory.resolve("modified.txt");
+        Path unchanged = sourceDirectory.resolve("unchanged.txt");
+        Files.write(modified, "version 1".getBytes(StandardCharsets.UTF_8));
+        Files.write(unchanged, "unchanged".getBytes(StandardCharsets.UTF_8));
+
+        // first run stores both files
+        storageService.store(modified);
+        FileVersion unchangedVersion = storageService.store(unchanged);
+
+        // second run (new instance, hence new snapshot) only stores the modified file
+        Files.write(modified, "version 2".getBytes(StandardCharsets.UTF_8));
+        FilesystemStorageService secondRun = new FilesystemStorageService(BASE_DIRECTORY);
+        secondRun.store(modified);
+
+        FileVersion[] modifiedVersions = secondRun.getFileVersions(modified);
+        Assert.assertEquals(2, modifiedVersions.length);
+        Assert.assertEquals("version 1", contents(secondRun, modifiedVersions[0].getId()));
+        Assert.assertEquals("version 2", contents(secondRun, modifiedVersions[1].getId()));
+        Assert.assertEquals(modifiedVersions[1], secondRun.getLatestFileVersion(modified));
+
+        // the unchanged file is linked into the second snapshot, which doesn't make it a new version
+        Assert.assertEquals(1, secondRun.getFileVersions(unchanged).length);
+        Assert.assertEquals(unchangedVersion, secondRun.getLatestFileVersion(unchanged));
+        Assert.assertEquals(unchangedVersion, secondRun.getFileVersion(unchangedVersion.getId()));
+        Assert.assertEquals("unchanged", contents(secondRun, unchangedVersion.getId()));
+        Assert.assertEquals(3, secondRun.getAllFileVersions().count());
+        Assert.assertEquals(2, secondRun.getAllPaths().count());
+    }
+
+    @Test
+    public void testPartialSnapshots() throws Exception {
+        storageService.deleteAll();
+        Path sourceDirectory = Paths.get("target/test-filesystem-storage-source").toAbsolutePath();
+        Files.createDirectories(sourceDirectory);
+        Path file = sourceDirectory.resolve("file.txt");
+        Files.write(file, "contents".getBytes(StandardCharsets.UTF_8));
+        storageService.store(file);
+
+        // a partial snapshot abandoned by a crashed instance, and one another instance is still creating
+        Path abandoned = Files.createDirectories(BASE_DIRECTORY.resolve(".20180101-000000-000.tmp/x"));
+        Path live = Files.createDirectories(BASE_DIRECTORY.resolve(".20180101-000000-001.tmp/x"));
+        try (FileChannel channel = FileChannel.open(BASE_DIRECTORY.resolve(".20180101-000000-001.tmp.lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            new FilesystemStorageService(BASE_DIRECTORY).store(file);
+
+            Assert.assertFalse(Files.exists(abandoned.getParent()));
+            Assert.assertTrue(Files.exists(live));
+        }
+    }
+
+    @Test(expected = StorageFileVersionNotFoundException.class)
+    public void testInvalidVersionId() throws Exception {
+        storageService.getFileVersion("20180101-000000-000_Li4vLi4vZXRjL3Bhc3N3ZA");
+    }
+
+    private static String contents(StorageService storageService, String versionId) throws Exception {
+        try (InputStream inputStream = storageService.getFileVersionAsInputStream(versionId)) {
+            return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+package org.ogerardin.b2b.storage.gridfs;
+
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSFile;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ogerardin.b2b.storage.FileVersion;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.gridfs.GridFsCriteria;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.StopWatch;
+
+import java.io.ByteArrayInputStream;
+import java.util.Comparator;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the cost of looking up the latest version of a file as the number of stored versions grows: the indexed
+ * lookup used by {@link GridFsStorageService} should stay flat, while scanning all versions grows linearly.
+ */
+@RunWith(SpringRunner.class)
+@DataMongoTest
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class GridFsLatestVersionBenchmarkTest {
+
+    private static final Log logger = LogFactory.getLog(GridFsLatestVersionBenchmarkTest.class);
+
+    private static final String BUCKET = "benchmark";
+    private static final String FILENAME = "/some/file";
+    private static final int LOOKUPS = 200;
+
+    @Autowired
+    private MongoDbFactory mongoDbFactory;
+
+    @Autowired
+    private MongoConverter mongoConverter;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private GridFsStorageService storageService;
+    private GridFsTemplate gridFsTemplate;
+
+    @Before
+    public void setUp() {
+        storageService = new GridFsStorageService(mongoDbFactory, mongoConverter, mongoTemplate, BUCKET);
+        storageService.init();
+        storageService.deleteAll();
+        gridFsTemplate = new GridFsTemplate(mongoDbFactory, mongoConverter, BUCKET);
+    }
+
+    /**
+     * Takes minutes, so only runs if the system property b2b.benchmarks is set to true.
+     */
+    @Test
+    public void benchmarkLatestVersionLookup() throws Exception {
+        assumeTrue(Boolean.getBoolean("b2b.benchmarks"));
+        int storedVersions = 0;
+        for (int versionCount : new int[]{1, 10, 100, 1000, 5000}) {
+            // add versions until we reach the desired count
+            for (; storedVersions < versionCount; storedVersions++) {
+                byte[] bytes = ("version " + storedVersions).getBytes();
+                storageService.store(new ByteArrayInputStream(bytes), FILENAME);
+            }
+            benchmark(versionCount);
+        }
+    }
+
+    private void benchmark(int versionCount) throws Exception {
+        logger.info("Benchmarking: " + versionCount + " versions");
+        StopWatch stopWatch = new StopWatch(versionCount + " versions");
+
+        stopWatch.start("indexed lookup");
+        FileVersion latest = null;
+        for (int i = 0; i < LOOKUPS; i++) {
+            latest = storageService.getLatestFileVersion(FILENAME);
+        }
+        stopWatch.stop();
+
+        stopWatch.start("scan all versions");
+        GridFSDBFile scanned = null;
+        for (int i = 0; i < LOOKUPS; i++) {
+            scanned = gridFsTemplate.find(new Query(GridFsCriteria.whereFilename().is(FILENAME))).stream()
+                    .max(Comparator.comparing(GridFSFile::getUploadDate))
+                    .orElseThrow(RuntimeException::new);
+        }
+        stopWatch.stop();
+
+        logger.info(stopWatch.prettyPrint());
+
+        // both approaches must agree on the date of the latest version
+        assertThat(latest.getStoredDate(), is(scanned.getUploadDate().toInstant()));
+    }
+
+}
@@ -1,10 +1,16 @@
 package org.ogerardin.b2b.storage.gridfs;
 
+import com.mongodb.DBObject;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.ogerardin.b2b.storage.FileVersion;
 import org.ogerardin.b2b.storage.StorageProviderTest;
+import org.ogerardin.b2b.storage.compression.Codecs;
+import org.ogerardin.b2b.storage.compression.CompressionPolicy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
 import org.springframework.data.mongodb.MongoDbFactory;
@@ -13,6 +19,21 @@ import org.springframework.data.mongodb.core.convert.MongoConverter;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
 
 @RunWith(SpringRunner.class)
 @DataMongoTest
@@ -46,5 +67,120 @@ public class GridFsStorageProviderTest extends StorageProviderTest<GridFsStorage
         super.testLoadAll(storageService);
     }
 
+    @Test
+    public void latestFileVersions() throws Exception {
+        super.testLatestFileVersions(storageService);
+    }
+
+    @Test
+    public void catalogRebuild() throws Exception {
+        String filename = "/some/file";
+        for (int i = 0; i < 3; i++) {
+            storageService.store(new ByteArrayInputStream(("version " + i).getBytes()), filename);
+        }
+        FileVersion latest = storageService.getLatestFileVersion(filename);
+
+        // the catalog must be up to date after storing...
+        FileVersion[] versions = storageService.getFileVersions(filename);
+        FileVersion expected = Arrays.stream(versions)
+                .max(Comparator.comparing(FileVersion::getStoredDate))
+                .orElseThrow(RuntimeException::new);
+        assertThat(latest.getId(), is(expected.getId()));
+        assertThat(latest.getMd5hash(), is(expected.getMd5hash()));
+
+        // ...and rebuilding it must give the same result
+        storageService.rebuildCatalog();
+        FileVersion rebuilt = storageService.getLatestFileVersion(filename);
+        assertThat(rebuilt, is(latest));
+    }
+
+
+    @Test
+    public void unchangedContentsNotStoredTwice() throws Exception {
+        Path path = Files.createTempFile("b2b", ".txt");
+        try {
+            Files.write(path, "contents".getBytes());
+            FileVersion first = storageService.store(path);
+
+            // touching the file changes its metadata but not its contents
+            Files.setLastModifiedTime(path, FileTime.fromMillis(first.getLastModifiedTime().toEpochMilli() + 60000));
+            FileVersion second = storageService.store(path);
+
+            assertThat(second.getId(), is(first.getId()));
+            assertThat(storageService.getFileVersions(path).length, is(1));
+            // the new metadata must be recorded so that the file is seen as unchanged next time
+            FileVersion latest = storageService.getLatestFileVersion(path);
+            assertThat(latest.getLastModifiedTime(), is(Files.getLastModifiedTime(path).toInstant()));
+
+            Files.write(path, "other contents".getBytes());
+            FileVersion third = storageService.store(path);
+            assertThat(storageService.getFileVersions(path).length, is(2));
+            assertThat(storageService.getLatestFileVersion(path).getId(), is(third.getId()));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void deltaVersionsAreReconstructed() throws Exception {
+        storageService.setDeltaThreshold(1);
+        storageService.setMaxDeltaChainLength(2);
+        Path path = Files.createTempFile("b2b", ".bin");
+        try {
+            byte[] contents = new byte[256 * 1024];
+            new Random(0).nextBytes(contents);
+            List<byte[]> stored = new ArrayList<>();
+            List<FileVersion> versions = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                // modify a few bytes in place, and append some
+                contents = Arrays.copyOf(contents, contents.length + 100);
+                contents[i * 1000] ^= 1;
+                Files.write(path, contents);
+                versions.add(storageService.store(path));
+                stored.add(contents);
+            }
+
+            // every version, full or delta, must read back identical, with the size and hash of the contents
+            for (int i = 0; i < versions.size(); i++) {
+                FileVersion version = storageService.getFileVersion(versions.get(i).getId());
+                assertThat(version.getSize(), is((long) stored.get(i).length));
+                assertThat(version.getMd5hash(), is(DigestUtils.md5Hex(stored.get(i))));
+                assertTrue(IOUtils.contentEquals(new ByteArrayInputStream(stored.get(i)),
+                        storageService.getFileVersionAsInputStream(version.getId())));
+            }
+            assertTrue(IOUtils.contentEquals(new ByteArrayInputStream(contents),
+                    storageService.getAsInputStream(storageService.getLatestFileVersion(path).getFilename())));
+
+            // deltas are much smaller than the contents
+            long storedBytes = mongoTemplate.getCollection("test.files").find().toArray().stream()
+                    .mapToLong(o -> ((Number) o.get("length")).longValue())
+                    .sum();
+            assertThat(storedBytes, lessThan(3L * contents.length));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void compressedVersionsAreReadBack() throws Exception {
+        storageService.setCompressionPolicy(new CompressionPolicy(Codecs.get(Codecs.DEFLATE), 0.9));
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        byte[] contents = text.toString().getBytes();
+        storageService.store(new ByteArrayInputStream(contents), "/some/text/file");
 
-}
\ No newline at end of file
+        FileVersion version = storageService.getLatestFileVersion("/some/text/file");
+        assertThat(version.getSize(), is((long) contents.length));
+        assertThat(version.getMd5hash(), is(DigestUtils.md5Hex(contents)));
+        assertTrue(IOUtils.contentEquals(new ByteArrayInputStream(contents),
+                storageService.getFileVersionAsInputStream(version.getId())));
+        DBObject file = mongoTemplate.getCollection("test.files").findOne();
+        assertThat(((Number) file.get("length")).longValue(), lessThan(contents.length / 3L));
+        // the length and hash of the contents are written with the file document
+        DBObject metadata = (DBObject) file.get("metadata");
+        assertThat(((Number) metadata.get("contentLength")).longValue(), is((long) contents.length));
+        assertThat(metadata.get("contentMd5"), is(DigestUtils.md5Hex(contents)));
+    }
+}
@@ -0,0 +1,239 @@
+package org.ogerardin.b2b.storage.gridfs;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ogerardin.b2b.storage.FileVersion;
+import org.ogerardin.b2b.storage.StorageException;
+import org.ogerardin.b2b.storage.StorageProviderTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.FileSystemUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class PackedGridFsStorageProviderTest extends StorageProviderTest<PackedGridFsStorageService> {
+
+    private static final int PACK_THRESHOLD = 1024;
+
+    @Autowired
+    private MongoDbFactory mongoDbFactory;
+
+    @Autowired
+    private MongoConverter mongoConverter;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Before
+    public void setUp() {
+        PackedGridFsStorageService storageService = new PackedGridFsStorageService(mongoDbFactory, mongoConverter,
+                mongoTemplate, "test", PACK_THRESHOLD, 64 * 1024);
+        storageService.init();
+        storageService.deleteAll();
+        setStorageService(storageService);
+    }
+
+    @Test
+    public void loadAll() throws Exception {
+        super.testLoadAll(unbufferedStorageService());
+    }
+
+    @Test
+    public void latestFileVersions() throws Exception {
+        super.testLatestFileVersions(unbufferedStorageService());
+    }
+
+    /**
+     * Returns a storage service on the same bucket that writes a pack for each small file, so that stored files are
+     * visible right away as expected by the tests shared with other implementations.
+     */
+    private PackedGridFsStorageService unbufferedStorageService() {
+        return new PackedGridFsStorageService(mongoDbFactory, mongoConverter, mongoTemplate, "test", PACK_THRESHOLD, 0);
+    }
+
+    @Test
+    public void packedVersionsAreAddressable() throws Exception {
+        Path dir = Files.createTempDirectory("b2b-pack");
+        try {
+            List<Path> paths = new ArrayList<>();
+            List<FileVersion> versions = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                Path path = dir.resolve("file" + i);
+                Files.write(path, ("contents of file " + i).getBytes());
+                paths.add(path);
+                versions.add(storageService.store(path));
+            }
+            // a large file is not packed
+            Path large = dir.resolve("large");
+            Files.write(large, new byte[PACK_THRESHOLD * 2]);
+            storageService.store(large);
+
+            // packed versions are not visible until flushed
+            assertThat(storageService.getLatestFileVersions(paths).isEmpty(), is(true));
+            storageService.flush();
+
+            for (int i = 0; i < paths.size(); i++) {
+                FileVersion version = versions.get(i);
+                assertThat(storageService.getLatestFileVersion(paths.get(i)).getId(), is(version.getId()));
+                assertThat(storageService.getFileVersion(version.getId()), is(version));
+                byte[] contents = IOUtils.toByteArray(storageService.getFileVersionAsInputStream(version.getId()));
+                assertThat(contents, is(Files.readAllBytes(paths.get(i))));
+            }
+            assertThat(IOUtils.toByteArray(storageService.getAsInputStream(large.toFile().getCanonicalPath())).length,
+                    is(PACK_THRESHOLD * 2));
+
+            // the catalog can be rebuilt from the packed versions
+            FileVersion latest = storageService.getLatestFileVersion(paths.get(0));
+            storageService.rebuildCatalog();
+            assertThat(storageService.getLatestFileVersion(paths.get(0)), is(latest));
+        } finally {
+            FileSystemUtils.deleteRecursively(dir.toFile());
+        }
+    }
+
+    @Test
+    public void repackReclaimsSupersededVersions() throws Exception {
+        Path path = Files.createTempFile("b2b", ".txt");
+        try {
+            Files.write(path, "version 1".getBytes());
+            FileVersion first = storageService.store(path);
+            storageService.flush();
+            Files.write(path, "version 2".getBytes());
+            FileVersion second = storageService.store(path);
+            storageService.flush();
+            assertThat(storageService.getFileVersions(path).length, is(2));
+
+            // with no retention, all versions are kept
+            storageService.repack(null);
+            assertThat(storageService.getFileVersions(path).length, is(2));
+
+            // with a zero retention, the superseded version is deleted and the latest is still readable
+            storageService.repack(Duration.ZERO);
+            assertThat(storageService.getFileVersions(path).length, is(1));
+            assertThat(storageService.getLatestFileVersion(path).getId(), is(second.getId()));
+            assertThat(IOUtils.toString(storageService.getAsInputStream(path.toFile().getCanonicalPath())),
+                    is("version 2"));
+            assertThat(mongoTemplate.findById(first.getId(), PackedVersion.class, "test.packed"), is(nullValue()));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void flushWaitsForConcurrentFlush() throws Exception {
+        BlockingMongoTemplate blockingTemplate = new BlockingMongoTemplate();
+        PackedGridFsStorageService storageService = new PackedGridFsStorageService(mongoDbFactory, mongoConverter,
+                blockingTemplate, "test", PACK_THRESHOLD, 64 * 1024);
+        Path path = Files.createTempFile("b2b", ".txt");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Files.write(path, "contents".getBytes());
+            storageService.store(path);
+
+            // the first flush takes over the pending pack and blocks while writing it
+            Future<?> first = executor.submit(storageService::flush);
+            assertThat(blockingTemplate.entered.await(10, TimeUnit.SECONDS), is(true));
+            // a second flush finds nothing pending, but must still wait for the pack being written
+            Future<?> second = executor.submit(storageService::flush);
+            Thread.sleep(200);
+            assertThat(second.isDone(), is(false));
+
+            blockingTemplate.release.countDown();
+            first.get(10, TimeUnit.SECONDS);
+            second.get(10, TimeUnit.SECONDS);
+            assertThat(storageService.getLatestFileVersion(path), is(notNullValue()));
+        } finally {
+            executor.shutdownNow();
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void flushReportsConcurrentFailure() throws Exception {
+        BlockingMongoTemplate blockingTemplate = new BlockingMongoTemplate();
+        blockingTemplate.failure = new DataAccessResourceFailureException("connection lost");
+        PackedGridFsStorageService storageService = new PackedGridFsStorageService(mongoDbFactory, mongoConverter,
+                blockingTemplate, "test", PACK_THRESHOLD, 64 * 1024);
+        Path path = Files.createTempFile("b2b", ".txt");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Files.write(path, "contents".getBytes());
+            storageService.store(path);
+
+            Future<?> first = executor.submit(storageService::flush);
+            assertThat(blockingTemplate.entered.await(10, TimeUnit.SECONDS), is(true));
+            Future<?> second = executor.submit(storageService::flush);
+            Thread.sleep(200);
+            blockingTemplate.release.countDown();
+            for (Future<?> flush : Arrays.asList(first, second)) {
+                try {
+                    flush.get(10, TimeUnit.SECONDS);
+                    fail("expected failure");
+                } catch (ExecutionException e) {
+                    assertThat(e.getCause(), instanceOf(StorageException.class));
+                }
+            }
+
+            // the version was put back into the pending pack, and is written by the next flush
+            blockingTemplate.failure = null;
+            storageService.flush();
+            assertThat(storageService.getLatestFileVersion(path), is(notNullValue()));
+        } finally {
+            executor.shutdownNow();
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * A {@link MongoTemplate} that blocks the first insertion of index entries until released, then fails it if a
+     * failure is set.
+     */
+    private class BlockingMongoTemplate extends MongoTemplate {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile RuntimeException failure;
+
+        BlockingMongoTemplate() {
+            super(mongoDbFactory, mongoConverter);
+        }
+
+        @Override
+        public void insert(Collection<?> batchToSave, String collectionName) {
+            if (entered.getCount() > 0) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+            super.insert(batchToSave, collectionName);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.ogerardin.b2b.throttle;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.time.*;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ThrottleTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void testTokenBucket() {
+        AtomicLong clock = new AtomicLong();
+        TokenBucket bucket = new TokenBucket(1000, clock::get);
+
+        // the bucket starts full
+        assertThat(bucket.reserve(1000), is(0L));
+        // then the caller is in debt
+        assertThat(bucket.reserve(500), is(SECOND / 2));
+        // the debt is paid back with time
+        clock.addAndGet(SECOND);
+        assertThat(bucket.reserve(500), is(0L));
+        // tokens don't accumulate beyond the burst size
+        clock.addAndGet(10 * SECOND);
+        assertThat(bucket.reserve(3000), is(2 * SECOND));
+
+        bucket.setRate(0);
+        assertThat(bucket.isUnlimited(), is(true));
+        assertThat(bucket.reserve(Long.MAX_VALUE), is(0L));
+    }
+
+    @Test
+    public void testSchedule() {
+        ThrottleSettings settings = new ThrottleSettings(1000, 10);
+        ThrottleSchedule night = new ThrottleSchedule(LocalTime.of(22, 0), LocalTime.of(6, 0), 0, 0);
+        ThrottleSchedule office = new ThrottleSchedule(LocalTime.of(9, 0), LocalTime.of(18, 0), 100, 1);
+        office.setDays(EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY));
+        settings.getSchedule().add(night);
+        settings.getSchedule().add(office);
+
+        // 2018-01-01 is a Monday
+        assertThat(settings.activeSchedule(LocalDateTime.of(2018, 1, 1, 23, 0)), is(night));
+        assertThat(settings.activeSchedule(LocalDateTime.of(2018, 1, 2, 5, 59)), is(night));
+        assertThat(settings.activeSchedule(LocalDateTime.of(2018, 1, 2, 6, 0)), is(nullValue()));
+        assertThat(settings.activeSchedule(LocalDateTime.of(2018, 1, 1, 9, 0)), is(office));
+        assertThat(settings.activeSchedule(LocalDateTime.of(2018, 1, 6, 10, 0)), is(nullValue()));
+
+        assertThat(settings.bytesPerSecondAt(LocalDateTime.of(2018, 1, 1, 10, 0)), is(100L));
+        assertThat(settings.bytesPerSecondAt(LocalDateTime.of(2018, 1, 1, 20, 0)), is(1000L));
+        assertThat(settings.bytesPerSecondAt(LocalDateTime.of(2018, 1, 1, 23, 0)), is(0L));
+    }
+
+    @Test
+    public void testThrottledInputStream() throws Exception {
+        Clock clock = Clock.fixed(Instant.parse("2018-01-01T12:00:00Z"), ZoneOffset.UTC);
+        Throttle throttle = new Throttle(new ThrottleSettings(100 * 1024, 0), clock);
+        assertThat(throttle.isBandwidthUnlimited(), is(false));
+
+        // the first 100K are available immediately, the next 50K take about half a second
+        long start = System.nanoTime();
+        try (InputStream inputStream = throttle.throttle(new ByteArrayInputStream(new byte[150 * 1024]))) {
+            byte[] buffer = new byte[8192];
+            while (inputStream.read(buffer) != -1) {
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        assertThat(elapsed, greaterThan(SECOND / 3));
+
+        // new settings apply immediately
+        throttle.update(new ThrottleSettings());
+        assertThat(throttle.isBandwidthUnlimited(), is(true));
+        throttle.update(null);
+        assertThat(throttle.getSettings().getSchedule(), is(Collections.emptyList()));
+    }
+}